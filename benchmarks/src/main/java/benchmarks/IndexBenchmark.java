@@ -0,0 +1,73 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import index.IndexPointer;
+import index.kmer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static benchmarks.PangenomeState.SAMPLES;
+import static benchmarks.PangenomeState.SAMPLE_MASK;
+
+/**
+ * Measures looking up kmers in the index and reading and writing their pointers.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexBenchmark {
+    private static final int BATCH_SIZE = 256;
+    private final IndexPointer pointer = new IndexPointer();
+    private final kmer[] batch = new kmer[BATCH_SIZE];
+    private final long[] batch_ranks = new long[BATCH_SIZE];
+    private int next;
+
+    @Benchmark
+    public long find_present(PangenomeState state) {
+        return state.indexDb.find(state.present[next++ & SAMPLE_MASK]);
+    }
+
+    @Benchmark
+    public long find_absent(PangenomeState state) {
+        return state.indexDb.find(state.absent[next++ & SAMPLE_MASK]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public long[] find_batch_present(PangenomeState state) {
+        next = (next + BATCH_SIZE) & (SAMPLES - BATCH_SIZE);
+        System.arraycopy(state.present, next, batch, 0, BATCH_SIZE);
+        state.indexDb.find_batch(batch, BATCH_SIZE, batch_ranks);
+        return batch_ranks;
+    }
+
+    @Benchmark
+    public IndexPointer get_pointer(PangenomeState state) {
+        state.indexDb.get_pointer(pointer, state.ranks[next++ & SAMPLE_MASK]);
+        return pointer;
+    }
+
+    @Benchmark
+    public void put_pointer(PangenomeState state) {
+        int i = next++ & SAMPLE_MASK;
+        state.indexDb.put_pointer(i, i & 0xFF, (i & 1) == 0, state.ranks[(i + 1) & SAMPLE_MASK], state.ranks[i]);
+    }
+}
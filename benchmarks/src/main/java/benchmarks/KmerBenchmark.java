@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import index.KmerCounter;
+import index.kmer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures sliding a kmer along a random sequence in both directions, per base.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KmerBenchmark {
+    private static final int BASES = 1 << 16;
+
+    @Param({"15", "31", "63", "101"})
+    public int K;
+
+    private int[] codes;
+    private kmer k_mer;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(1);
+        codes = new int[BASES];
+        for (int i = 0; i < BASES; ++i)
+            codes[i] = rnd.nextInt(4);
+        k_mer = new kmer(K, KmerCounter.prefix_length(K, 1L << 32));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BASES)
+    public kmer next_kmer() {
+        for (int i = 0; i < BASES; ++i)
+            k_mer.next_kmer(codes[i]);
+        return k_mer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BASES)
+    public kmer prev_kmer() {
+        for (int i = BASES - 1; i >= 0; --i)
+            k_mer.prev_kmer(codes[i]);
+        return k_mer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BASES)
+    public int next_kmer_suffix() {
+        int sum = 0;
+        for (int i = 0; i < BASES; ++i) {
+            k_mer.next_kmer(codes[i]);
+            sum += k_mer.get_canonical_prefix() + k_mer.get_canonical_suffix()[0];
+        }
+        return sum;
+    }
+}
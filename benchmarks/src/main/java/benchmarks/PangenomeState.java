@@ -0,0 +1,171 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import index.IndexDatabase;
+import index.kmer;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import sequence.SequenceDatabase;
+import sequence.SequenceScanner;
+
+/**
+ * Builds the genome database and the k-mer index the benchmarks run on, in a
+ * temporary directory, either from synthetic genomes or from the genomes of
+ * the example directory, and samples the k-mers and positions to look up.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+@State(Scope.Benchmark)
+public class PangenomeState {
+    public static final int SAMPLES = 1 << 12; // Number of the sampled kmers and positions, a power of two
+    public static final int SAMPLE_MASK = SAMPLES - 1;
+
+    /**
+     * "synthetic" for random genomes, or the path to a directory of FASTA
+     * files, relative to the working directory, which is the root of the
+     * repository in the command of the pom and of the Readme.
+     */
+    @Param({"synthetic", "example/data"})
+    public String genomes;
+
+    @Param({"21"})
+    public int K;
+
+    @Param({"1000000"})
+    public int genome_length; // Length of the synthetic genomes
+
+    @Param({"4"})
+    public int genomes_num; // Number of the synthetic genomes
+
+    public Path path;
+    public SequenceDatabase genomeDb;
+    public IndexDatabase indexDb;
+    public SequenceScanner scanner;
+    public kmer[] present;     // Kmers occurring in the genomes
+    public kmer[] absent;      // Random kmers, almost all absent from the genomes
+    public long[] ranks;       // Numbers of random kmers in the index
+    public int[][] positions;  // Random genome, sequence and position triples
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        int i, pre_len;
+        Random rnd = new Random(1);
+        path = Files.createTempDirectory("pantools_benchmark");
+        String genomes_file = path + "/genomes.txt";
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(genomes_file))) {
+            if (genomes.equals("synthetic")) {
+                for (i = 1; i <= genomes_num; ++i) {
+                    write_genome(path + "/genome_" + i + ".fasta", rnd, i);
+                    out.write(path + "/genome_" + i + ".fasta\n");
+                }
+            } else {
+                File[] files = new File(genomes).listFiles((dir, name) -> name.matches(".*\\.(fa|fna|fasta)"));
+                if (files == null || files.length == 0)
+                    throw new IOException("No FASTA file in " + new File(genomes).getAbsolutePath() + "; run the benchmarks from the root of the repository.");
+                for (File f : files)
+                    out.write(f.getAbsolutePath() + "\n");
+            }
+        }
+        genomeDb = new SequenceDatabase(path + "/genome", genomes_file);
+        indexDb = new IndexDatabase(path + "/index", genomes_file, genomeDb, K);
+        K = indexDb.get_K();
+        pre_len = indexDb.get_pre_len();
+        scanner = new SequenceScanner(genomeDb, 1, genomeDb.num_genomes, 1, 1, K, pre_len);
+        present = new kmer[SAMPLES];
+        absent = new kmer[SAMPLES];
+        ranks = new long[SAMPLES];
+        positions = new int[SAMPLES][];
+        for (i = 0; i < SAMPLES; ++i) {
+            positions[i] = random_position(rnd, 0);
+            present[i] = present_kmer(rnd);
+            absent[i] = new kmer(K, pre_len);
+            for (int j = 0; j < K; ++j)
+                absent[i].next_kmer(rnd.nextInt(4));
+            ranks[i] = (rnd.nextLong() & Long.MAX_VALUE) % indexDb.length();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tear_down() throws IOException {
+        indexDb.close();
+        genomeDb.close();
+        Files.walk(path).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    /**
+     * Gives a random position of the genomes, at least a margin before the
+     * end of its sequence.
+     *
+     * @param rnd The random generator
+     * @param margin Number of the bases to be kept after the position
+     * @return The genome, sequence and position
+     */
+    public int[] random_position(Random rnd, int margin) {
+        int g, s;
+        do {
+            g = 1 + rnd.nextInt(genomeDb.num_genomes);
+            s = 1 + rnd.nextInt(genomeDb.num_sequences[g]);
+        } while (genomeDb.get_sequence_length(g, s) <= margin);
+        return new int[]{g, s, rnd.nextInt((int)genomeDb.get_sequence_length(g, s) - margin)};
+    }
+
+    /**
+     * Gives a kmer occurring at a random position of the genomes.
+     */
+    private kmer present_kmer(Random rnd) {
+        int[] address;
+        int i, code;
+        kmer k_mer = new kmer(K, indexDb.get_pre_len());
+        while (true) {
+            address = random_position(rnd, K);
+            k_mer.reset();
+            for (i = 0; i < K; ++i) {
+                code = scanner.get_code(address[0], address[1], address[2] + i);
+                if (code > 3)
+                    break;
+                k_mer.next_kmer(code);
+            }
+            if (i == K)
+                return k_mer;
+        }
+    }
+
+    /**
+     * Writes a random genome of 10 sequences; every genome after the first
+     * is the first one with about one mutation per 100 bases.
+     */
+    private void write_genome(String file, Random rnd, int number) throws IOException {
+        char[] sym = new char[]{'A', 'C', 'G', 'T'};
+        Random base_rnd = new Random(0);
+        int s, i;
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            for (s = 1; s <= 10; ++s) {
+                out.write(">genome_" + number + "_sequence_" + s + "\n");
+                for (i = 1; i <= genome_length / 10; ++i) {
+                    int code = base_rnd.nextInt(4);
+                    out.write(sym[number > 1 && rnd.nextInt(100) == 0 ? rnd.nextInt(4) : code]);
+                    if (i % 80 == 0)
+                        out.write('\n');
+                }
+                out.write('\n');
+            }
+        }
+    }
+}
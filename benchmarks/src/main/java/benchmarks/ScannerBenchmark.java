@@ -0,0 +1,73 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static benchmarks.PangenomeState.SAMPLES;
+import static benchmarks.PangenomeState.SAMPLE_MASK;
+
+/**
+ * Measures reading bases and regions out of the genome database.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScannerBenchmark {
+    @Param({"100", "5000"})
+    public int region_length;
+
+    private final StringBuilder seq = new StringBuilder();
+    private int[][] regions;  // Random regions of region_length bases
+    private int next;
+
+    @Setup
+    public void setup(PangenomeState state) {
+        Random rnd = new Random(2);
+        regions = new int[SAMPLES][];
+        for (int i = 0; i < SAMPLES; ++i)
+            regions[i] = state.random_position(rnd, region_length);
+    }
+
+    @Benchmark
+    public int get_code(PangenomeState state) {
+        int[] address = state.positions[next++ & SAMPLE_MASK];
+        return state.scanner.get_code(address[0], address[1], address[2]);
+    }
+
+    @Benchmark
+    public StringBuilder get_sub_sequence_forward(PangenomeState state) {
+        int[] address = regions[next++ & SAMPLE_MASK];
+        seq.setLength(0);
+        state.scanner.get_sub_sequence(seq, address[0], address[1], address[2], region_length, true);
+        return seq;
+    }
+
+    @Benchmark
+    public StringBuilder get_sub_sequence_reverse(PangenomeState state) {
+        int[] address = regions[next++ & SAMPLE_MASK];
+        seq.setLength(0);
+        state.scanner.get_sub_sequence(seq, address[0], address[1], address[2], region_length, false);
+        return seq;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Implements the Elias-Fano encoding of a non-decreasing sequence of numbers,
+ * which takes about 2 + log(universe / size) bits per number and gives any
+ * number of the sequence in constant time.
+ *
+ * The low bits of every number are packed in an array; the high bits are
+ * stored in unary, the i'th number setting the bit (number >> low_bits) + i.
+ * The position of every SAMPLE'th set bit is kept to find the i'th one fast.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class EliasFano {
+    private static final int SAMPLE_SHIFT = 8; // One sample for every 256 numbers
+    private long size;          // Number of the numbers
+    private long added;         // Number of the numbers added so far
+    private int low_bits;
+    private long low_mask;
+    private long[] low;
+    private long[] high;
+    private long[] samples;     // The position of every sampled set bit in high
+
+    /**
+     * Creates an empty sequence to be filled by add().
+     *
+     * @param n Number of the numbers
+     * @param universe The largest number
+     */
+    public EliasFano(long n, long universe) {
+        size = n;
+        added = 0;
+        low_bits = n == 0 || universe / n == 0 ? 0 : 63 - Long.numberOfLeadingZeros(universe / n);
+        low_mask = (1L << low_bits) - 1;
+        low = new long[(int)((n * low_bits + 63) / 64)];
+        high = new long[(int)((n + (universe >>> low_bits) + 64) / 64)];
+        samples = new long[(int)(n >>> SAMPLE_SHIFT) + 1];
+    }
+
+    /**
+     * Reads a sequence written by write().
+     *
+     * @param path Path to the file
+     */
+    public EliasFano(String path) throws IOException {
+        int i;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 20))) {
+            size = added = in.readLong();
+            low_bits = in.readInt();
+            low_mask = (1L << low_bits) - 1;
+            low = new long[in.readInt()];
+            for (i = 0; i < low.length; ++i)
+                low[i] = in.readLong();
+            high = new long[in.readInt()];
+            for (i = 0; i < high.length; ++i)
+                high[i] = in.readLong();
+        }
+        sample();
+    }
+
+    /**
+     * Appends a number to the sequence; the numbers should be added in
+     * non-decreasing order.
+     *
+     * @param number The number
+     */
+    public void add(long number) {
+        long pos;
+        if (low_bits > 0) {
+            pos = added * low_bits;
+            low[(int)(pos >>> 6)] |= (number & low_mask) << pos;
+            if ((pos & 63) + low_bits > 64)
+                low[(int)(pos >>> 6) + 1] |= (number & low_mask) >>> (64 - (pos & 63));
+        }
+        pos = (number >>> low_bits) + added;
+        high[(int)(pos >>> 6)] |= 1L << pos;
+        if ((added & ((1 << SAMPLE_SHIFT) - 1)) == 0)
+            samples[(int)(added >>> SAMPLE_SHIFT)] = pos;
+        ++added;
+    }
+
+    /**
+     * Gives a number of the sequence.
+     *
+     * @param i The index of the number
+     * @return The number
+     */
+    public long get(long i) {
+        long pos, word, number;
+        int w, r;
+        pos = samples[(int)(i >>> SAMPLE_SHIFT)];
+        r = (int)(i & ((1 << SAMPLE_SHIFT) - 1));
+        w = (int)(pos >>> 6);
+        word = high[w] & (-1L << pos);
+        for (; r >= Long.bitCount(word); word = high[++w])
+            r -= Long.bitCount(word);
+        for (; r > 0; --r)
+            word &= word - 1;
+        number = (((long)w << 6) + Long.numberOfTrailingZeros(word) - i) << low_bits;
+        if (low_bits > 0) {
+            pos = i * low_bits;
+            word = low[(int)(pos >>> 6)] >>> pos;
+            if ((pos & 63) + low_bits > 64)
+                word |= low[(int)(pos >>> 6) + 1] << (64 - (pos & 63));
+            number |= word & low_mask;
+        }
+        return number;
+    }
+
+    /**
+     * Gives the number of the numbers in the sequence.
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Writes the sequence in a file.
+     *
+     * @param path Path to the file
+     */
+    public void write(String path) throws IOException {
+        int i;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20))) {
+            out.writeLong(size);
+            out.writeInt(low_bits);
+            out.writeInt(low.length);
+            for (i = 0; i < low.length; ++i)
+                out.writeLong(low[i]);
+            out.writeInt(high.length);
+            for (i = 0; i < high.length; ++i)
+                out.writeLong(high[i]);
+        }
+    }
+
+    /**
+     * Finds the position of every sampled set bit of the high bits.
+     */
+    private void sample() {
+        long count = 0, word;
+        int w;
+        samples = new long[(int)(size >>> SAMPLE_SHIFT) + 1];
+        for (w = 0; w < high.length; ++w) {
+            for (word = high[w]; word != 0; word &= word - 1, ++count)
+                if ((count & ((1 << SAMPLE_SHIFT) - 1)) == 0)
+                    samples[(int)(count >>> SAMPLE_SHIFT)] = ((long)w << 6) + Long.numberOfTrailingZeros(word);
+        }
+    }
+}
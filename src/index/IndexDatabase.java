@@ -6,11 +6,12 @@
 package index;
 
 import sequence.SequenceDatabase;
-import static index.kmer.adjust_fwd_kmer;
-import static index.kmer.compare_suffix;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -18,33 +19,31 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
+import pantools.LargeMappedFile;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import static pantools.Pantools.COMPACT_INDEX;
+import static pantools.Pantools.KMER_HASH;
 import static pantools.Pantools.MAX_TRANSACTION_SIZE;
-import static pantools.Pantools.cores;
 import static pantools.Pantools.degenerate_label;
 import static pantools.Pantools.labels;
-import static pantools.Pantools.executeCommand;
 import static pantools.Pantools.nucleotide_label;
 
 /**
  * Implements all the functionality to work with a KMC-based kmer index database. 
+ * All the reads and writes use absolute positions in the mapped buffers and 
+ * no shared scratch objects, so the index can be queried by several threads.
  * 
  * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
  * University, Netherlands
  */
 public final class IndexDatabase {
 
-    private kmer key;
-    private long[] prefix_ptr;
-    private int ptr_parts_num;
-    private long[] ptr_parts_size;
-    private int suf_parts_num;
-    private long[] suf_parts_size;
-    private int MAX_BYTE_COUNT = 100000000; 
+    private EliasFano prefix_ptr;   // The number of the first kmer of every prefix
     private int header_pos;
     private final String INFO_FILE = "/index.info";
     private String db_path;
@@ -58,15 +57,20 @@ public final class IndexDatabase {
     private long kmers_num;
     private int id_len;
     private int offset_len;
+    private int pointer_format;     // See PointerFile
+    private int id_bits;
+    private int node_bits;
+    private int offset_bits;
 
     private int suf_rec_size;
     private int suf_len;
-    public static int POINTER_LENGTH;// = 21; // The length of a poniter in bytes
-    private RandomAccessFile suf_file;
+    private int POINTER_LENGTH; // The length of a poniter in bytes
+    private boolean compact;        // Determines if the kmers are stored in the compact layout of KmerWriter
+    private LargeMappedFile suf_file;
+    private LargeMappedFile skip_file;
     private RandomAccessFile pre_file;
-    private MappedByteBuffer[] suf_buff;
-    private RandomAccessFile ptr_file;
-    private MappedByteBuffer[] ptr_buff;
+    private PointerFile ptr_file;
+    private KmerHash kmer_hash;     // The minimal perfect hash of the k-mers, if available
 
     /**
      * Mounts an available index database to the index database object
@@ -74,10 +78,9 @@ public final class IndexDatabase {
      * @param index_path Path to the index database 
      */
     public IndexDatabase(String index_path) {
-        int i, k;
-        long p;
+        String line;
+        db_path = index_path;
         try {
-            pre_file = new RandomAccessFile(index_path + "/sorted.kmc_pre", "r");
             BufferedReader in = new BufferedReader(new FileReader(index_path + INFO_FILE));
             K = Integer.parseInt(in.readLine().split(":")[1]);
             mode = Integer.parseInt(in.readLine().split(":")[1]);
@@ -90,39 +93,29 @@ public final class IndexDatabase {
             id_len = Integer.parseInt(in.readLine().split(":")[1]);
             offset_len = Integer.parseInt(in.readLine().split(":")[1]);
             POINTER_LENGTH = Integer.parseInt(in.readLine().split(":")[1]);
+            line = in.readLine();
+            if (line == null) { // written before the pointer formats
+                pointer_format = 1;
+            } else {
+                pointer_format = Integer.parseInt(line.split(":")[1]);
+                id_bits = Integer.parseInt(in.readLine().split(":")[1]);
+                offset_bits = Integer.parseInt(in.readLine().split(":")[1]);
+                line = in.readLine();
+                if (line != null && line.startsWith("node_bits:")) {
+                    node_bits = Integer.parseInt(line.split(":")[1]);
+                    line = in.readLine();
+                } else // written before the node field had a size of its own
+                    node_bits = id_bits;
+            }
+            compact = line != null && line.split(":")[1].equals("compact");
             in.close();
-            key=new kmer(K,pre_len);
             System.out.println("Indexing " + kmers_num + " kmers...                    ");
-            // load the prefix file into the memory    
-            pre_file.seek(4);
-            int q, len = 1 << (2 * pre_len);
-            prefix_ptr = new long[len];
-            MappedByteBuffer pre_buff = pre_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4, 8 * len);
-            for (i = 0; i < len; ++i) 
-                prefix_ptr[i] = read_prefix(pre_buff);
-            pre_buff = null;
-            pre_file.close();
+            load_prefixes(index_path + "/sorted");
         // mapping suffix file into the memory
             suf_rec_size = ctr_size + suf_len / 4;
-            MAX_BYTE_COUNT = MAX_BYTE_COUNT / suf_rec_size * suf_rec_size;
-            suf_parts_num = (int) ((kmers_num * suf_rec_size) % MAX_BYTE_COUNT == 0 ? (kmers_num * suf_rec_size) / MAX_BYTE_COUNT : (kmers_num * suf_rec_size) / MAX_BYTE_COUNT + 1);
-            suf_parts_size = new long[suf_parts_num];
-            suf_file = new RandomAccessFile(index_path + "/sorted.kmc_suf", "r");
-            suf_buff = new MappedByteBuffer[suf_parts_num];
-            for (k = 0; k < suf_parts_num; ++k) {
-                suf_parts_size[k] = (int) (k == suf_parts_num - 1 ? (kmers_num * suf_rec_size) % MAX_BYTE_COUNT : MAX_BYTE_COUNT);
-                suf_buff[k] = suf_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4 + k * suf_parts_size[0], suf_parts_size[k]);
-            }
-        // mapping pointers file into the memory
-            MAX_BYTE_COUNT = MAX_BYTE_COUNT / POINTER_LENGTH * POINTER_LENGTH;
-            ptr_parts_num = (int) ((kmers_num * POINTER_LENGTH) % MAX_BYTE_COUNT == 0 ? (kmers_num * POINTER_LENGTH) / MAX_BYTE_COUNT : (kmers_num * POINTER_LENGTH) / MAX_BYTE_COUNT + 1);
-            ptr_parts_size = new long[ptr_parts_num];
-            ptr_file = new RandomAccessFile(index_path + "/pointers.db", "rw");
-            ptr_buff = new MappedByteBuffer[ptr_parts_num];
-            for (k = 0; k < ptr_parts_num; ++k) {
-                ptr_parts_size[k] = (int) (k == ptr_parts_num - 1 ? (kmers_num * POINTER_LENGTH) % MAX_BYTE_COUNT : MAX_BYTE_COUNT);
-                ptr_buff[k] = ptr_file.getChannel().map(FileChannel.MapMode.READ_WRITE, k * ptr_parts_size[0], ptr_parts_size[k]);
-            }
+            map_files(index_path);
+            if (new File(index_path + KmerHash.HASH_FILE).exists())
+                kmer_hash = new KmerHash(index_path);
         } catch (IOException e) {
             System.out.println(e.getMessage());
             System.exit(1);
@@ -140,32 +133,20 @@ public final class IndexDatabase {
     public IndexDatabase(String index_path, String genomes_path_file, SequenceDatabase genomeDb, int k) {
         long p;
         IndexPointer null_pointer = new IndexPointer();
-        int i, j;
-        long longest_scaffold = 0;
-        String output;
         db_path = index_path;
+        compact = COMPACT_INDEX;
         try {
             Files.createDirectory(Paths.get(index_path));
             if (k == -1) // K is not given by the user, then calculate the optimal K
-                K = Math.round((float)((Math.log(0.002001) - Math.log(genomeDb.num_bytes))/Math.log(0.25)));
+                K = Math.round((float)((Math.log(0.002001) - Math.log(genomeDb.num_bases() / 2))/Math.log(0.25)));
             else
                 K = k;
             if (K % 2 == 0) // Even values make localization process problamatic
                 K += 1;
-            System.out.println("Running KMC with K = " + K + " ...                      ");
-            executeCommand("kmc -r -k" + K + " -t" + cores + " -m" + 
-                    (Runtime.getRuntime().maxMemory() / 1073741824L) + " -ci1 -fm " + 
-                    (genomeDb.num_genomes > 1 ? "@" + genomes_path_file.trim() : genomeDb.genome_names[1]) + " " + index_path + "/kmers " + index_path);            
-            System.out.println("Sorting Kmers...                      ");
-            output = executeCommand("kmc_tools sort " + index_path + "/kmers " + index_path + "/sorted");
-        // Small databases are usually sorted already    
-            if (output.startsWith("This database contains sorted k-mers already!")) {
-                new File(index_path + "/kmers.kmc_pre").renameTo(new File(index_path + "/sorted.kmc_pre"));
-                new File(index_path + "/kmers.kmc_suf").renameTo(new File(index_path + "/sorted.kmc_suf"));
-            } else {
-                new File(index_path + "/kmers.kmc_pre").delete();
-                new File(index_path + "/kmers.kmc_suf").delete();
-            }
+            System.out.println("Counting kmers with K = " + K + " ...                      ");
+            pre_len = KmerCounter.prefix_length(K, genomeDb.num_bases());
+            kmers_num = new KmerCounter(genomeDb, K, pre_len, 1, genomeDb.num_genomes)
+                    .count(index_path + "/sorted", index_path, compact);
         /*
         All integers in the KMC output files are stored in LSB (least significant byte first) format.
             
@@ -201,72 +182,51 @@ public final class IndexDatabase {
                 represented as 0x51 (for CCAC), 0x03 (for AAAT). Integers are stored according to the LSB (little endian)
                 convention, floats are stored in the same way as they are stored in the memory.
         [marker] (another copy, to signal the file is not truncated).
-        */
         
-            pre_file = new RandomAccessFile(index_path + "/sorted.kmc_pre", "r");
-            pre_file.seek(pre_file.length() - 8);
-            header_pos = read_int(pre_file);
-            pre_file.seek(pre_file.length() - (8 + header_pos));
-        // read the header of the index    
-            K = read_int(pre_file);
-        //  k-mer length   
-            mode = read_int(pre_file); 
-        // 0 (occurrence count) or 1 (counting according to Quake quality)
-            ctr_size = read_int(pre_file); 
-        // counter field size: for mode 0 it is 1, 2, 3, or 4; for mode 1 it is always 4
-            pre_len = read_int(pre_file);  
-        // prefix length such that suffix length is divisible by 4. 
-        // Max prefix length is limited up to 15 in KMC (exact value is calculated in such a way that summary size of kmc_pre and kmc_suf should be minimal)
-            min_count = read_int(pre_file);
-        // minimum number of k-mer occurrences to be written in the database    
-            max_count = read_int(pre_file);
-        // maximum number of k-mer occurrences to be written in the database    
-            kmers_num = read_long(pre_file);
-        // total number of k-mers in the database    
+        The compact layout keeps no header and no counters, see KmerWriter.
+        */
+            if (compact) {
+                mode = 0;
+                ctr_size = 0;
+                min_count = 1;
+                max_count = 255;
+            } else {
+                pre_file = new RandomAccessFile(index_path + "/sorted.kmc_pre", "r");
+                pre_file.seek(pre_file.length() - 8);
+                header_pos = read_int(pre_file);
+                pre_file.seek(pre_file.length() - (8 + header_pos));
+            // read the header of the index    
+                K = read_int(pre_file);
+            //  k-mer length   
+                mode = read_int(pre_file); 
+            // 0 (occurrence count) or 1 (counting according to Quake quality)
+                ctr_size = read_int(pre_file); 
+            // counter field size: for mode 0 it is 1, 2, 3, or 4; for mode 1 it is always 4
+                pre_len = read_int(pre_file);  
+            // prefix length such that suffix length is divisible by 4. 
+            // Max prefix length is limited up to 15 in KMC (exact value is calculated in such a way that summary size of kmc_pre and kmc_suf should be minimal)
+                min_count = read_int(pre_file);
+            // minimum number of k-mer occurrences to be written in the database    
+                max_count = read_int(pre_file);
+            // maximum number of k-mer occurrences to be written in the database    
+                kmers_num = read_long(pre_file);
+            // total number of k-mers in the database    
+                pre_file.close();
+            }
             suf_len = K - pre_len;
-            for (i = 1; i <= genomeDb.num_genomes; ++i)
-                for (j = 1; j <= genomeDb.num_sequences[i]; ++j)
-                    if (genomeDb.sequence_length[i][j] > longest_scaffold)
-                        longest_scaffold = genomeDb.sequence_length[i][j];
-            id_len = (int)Math.round(Math.ceil( Math.log(kmers_num) / Math.log(2) / 8));
-            offset_len = (int)Math.round(Math.ceil( Math.log(longest_scaffold) / Math.log(2) / 8));
-            POINTER_LENGTH = 2 * id_len + offset_len + 1;
-            key=new kmer(K,pre_len);
-            write_info();
+            set_pointer_sizes(longest_scaffold(genomeDb), node_id_bound(genomeDb, 1, -1L));
             System.out.println("Indexing " + kmers_num + " kmers...                    ");
-            // load the prefix file into the memory    
-            pre_file.seek(4);
-            int q, len = 1 << (2 * pre_len);
-            prefix_ptr = new long[len];
-            MappedByteBuffer pre_buff = pre_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4, 8 * len);
-            for (i = 0; i < len; ++i) 
-                prefix_ptr[i] = read_prefix(pre_buff);
-            pre_buff = null;
-            pre_file.close();
-
+            load_prefixes(index_path + "/sorted");
             // mapping suffix file into the memory
             suf_rec_size = ctr_size + suf_len / 4;
-            MAX_BYTE_COUNT = MAX_BYTE_COUNT / suf_rec_size * suf_rec_size;
-            suf_parts_num = (int) ((kmers_num * suf_rec_size) % MAX_BYTE_COUNT == 0 ? (kmers_num * suf_rec_size) / MAX_BYTE_COUNT : (kmers_num * suf_rec_size) / MAX_BYTE_COUNT + 1);
-            suf_parts_size = new long[suf_parts_num];
-            suf_file = new RandomAccessFile(index_path + "/sorted.kmc_suf", "r");
-            suf_buff = new MappedByteBuffer[suf_parts_num];
-            for (i = 0; i < suf_parts_num; ++i) {
-                suf_parts_size[i] = (int) (i == suf_parts_num - 1 ? (kmers_num * suf_rec_size) % MAX_BYTE_COUNT : MAX_BYTE_COUNT);
-                suf_buff[i] = suf_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4 + i * suf_parts_size[0], suf_parts_size[i]);
-            }
-            // mapping pointers file into the memory
-            MAX_BYTE_COUNT = MAX_BYTE_COUNT / POINTER_LENGTH * POINTER_LENGTH;
-            ptr_parts_num = (int) ((kmers_num * POINTER_LENGTH) % MAX_BYTE_COUNT == 0 ? (kmers_num * POINTER_LENGTH) / MAX_BYTE_COUNT : (kmers_num * POINTER_LENGTH) / MAX_BYTE_COUNT + 1);
-            ptr_parts_size = new long[ptr_parts_num];
-            ptr_file = new RandomAccessFile(index_path + "/pointers.db", "rw");
-            ptr_buff = new MappedByteBuffer[ptr_parts_num];
-            for (i = 0; i < ptr_parts_num; ++i) {
-                ptr_parts_size[i] = (int) (i == ptr_parts_num - 1 ? (kmers_num * POINTER_LENGTH) % MAX_BYTE_COUNT : MAX_BYTE_COUNT);
-                ptr_buff[i] = ptr_file.getChannel().map(FileChannel.MapMode.READ_WRITE, i * ptr_parts_size[0], ptr_parts_size[i]);
-            }
-            for (p = 0; p < kmers_num; ++p) {
-                put_pointer(null_pointer, p);
+            map_files(index_path);
+            write_info();
+            if (!ptr_file.zero_is_null())
+                for (p = 0; p < kmers_num; ++p)
+                    put_pointer(null_pointer, p);
+            if (KMER_HASH) {
+                System.out.println("Hashing " + kmers_num + " kmers...                    ");
+                kmer_hash = new KmerHash(this, index_path);
             }
         } catch (IOException e) {
             System.out.println(e.getMessage());
@@ -284,132 +244,93 @@ public final class IndexDatabase {
      * @param previous_num_genomes Number of the genomes available in the index
      */
     public IndexDatabase(String index_path, String genomes_path_file, SequenceDatabase genomeDb, GraphDatabaseService graphDb, int previous_num_genomes) {
-        int cores = Runtime.getRuntime().availableProcessors() / 2 + 1;
-        int i, j, k, p;
-        long longest_scaffold = 0;
+        int i, map_len;
+        long p, new_kmers_num;
         IndexPointer null_pointer = new IndexPointer();
-        long c_index,p_index,l;
+        IndexPointer ptr = new IndexPointer();
         Node node;
         ResourceIterator<Node> nodes_iterator;
+        LargeMappedFile rank_map;
+        boolean hashed = KMER_HASH || new File(index_path + KmerHash.HASH_FILE).exists();
         db_path = index_path;
         // move current index files to directory old_index
         try {
+            Files.deleteIfExists(Paths.get(index_path + KmerHash.HASH_FILE));
+            Files.deleteIfExists(Paths.get(index_path + KmerHash.RANK_FILE));
             if (! new File(index_path+"/old_index").exists())
                 Files.createDirectory(Paths.get(index_path+"/old_index"));
-            Files.move(Paths.get(index_path + "/sorted.kmc_pre"), Paths.get(index_path + "/old_index/sorted.kmc_pre"));
-            Files.move(Paths.get(index_path + "/sorted.kmc_suf"), Paths.get(index_path + "/old_index/sorted.kmc_suf"));
+            compact = new File(index_path + "/sorted.pre").exists();
+            for (String ext: kmer_files(compact))
+                Files.move(Paths.get(index_path + "/sorted" + ext), Paths.get(index_path + "/old_index/sorted" + ext));
             Files.move(Paths.get(index_path + "/pointers.db"), Paths.get(index_path + "/old_index/pointers.db"));
             Files.move(Paths.get(index_path + "/index.info"), Paths.get(index_path + "/old_index/index.info"));
         // load old_index
             IndexDatabase old_index = new IndexDatabase(index_path + "/old_index");
-        // make new index for new genomes
-            System.out.println("Running KMC with K = " + old_index.K + " ...                      ");
-            executeCommand("kmc -r -k" + old_index.K + " -t" + cores + " -m" + (Runtime.getRuntime().maxMemory() / 1073741824L) + 
-                    " -ci1 -fm " + (genomeDb.num_genomes - previous_num_genomes > 1 ? "@" + 
-                    genomes_path_file.trim() : genomeDb.genome_names[previous_num_genomes + 1]) + 
-                    " " + index_path + "/new_kmers " + index_path);
+            K = old_index.K;
+            mode = old_index.mode;
+            ctr_size = old_index.ctr_size;
+            pre_len = old_index.pre_len;
+            min_count = old_index.min_count;
+            max_count = old_index.max_count;
+            suf_len = K - pre_len;
+            suf_rec_size = ctr_size + suf_len / 4;
+        // count the kmers of the new genomes with the prefix length of the old index
+            System.out.println("Counting kmers of the new genomes with K = " + K + " ...                      ");
+            new_kmers_num = new KmerCounter(genomeDb, K, pre_len, previous_num_genomes + 1, genomeDb.num_genomes)
+                    .count(index_path + "/new_kmers", index_path, false);
         // merge two indeces    
-            executeCommand("kmc_tools union " + index_path + "/old_index/sorted " + index_path + "/new_kmers " + index_path + "/sorted");
-            pre_file = new RandomAccessFile(index_path + "/sorted.kmc_pre", "r");
-            pre_file.seek(pre_file.length() - 8);
-            header_pos = read_int(pre_file);
-            pre_file.seek(pre_file.length() - 8 - header_pos);
-        // read the merged index properties    
-            K = read_int(pre_file);
-            mode = read_int(pre_file);
-            ctr_size = read_int(pre_file);
-            pre_len = read_int(pre_file);
-            min_count = read_int(pre_file);
-            max_count = read_int(pre_file);
-            kmers_num = read_long(pre_file);
+            System.out.println("Merging " + new_kmers_num + " kmers into the index...                    ");
+            for (map_len = 1; map_len < 8 && ((old_index.kmers_num + new_kmers_num) >> (8 * map_len)) > 0; ++map_len);
+            rank_map = new LargeMappedFile(index_path + "/old_index/ranks.map", old_index.kmers_num * map_len, true);
+            merge_kmers(old_index, index_path + "/new_kmers", new_kmers_num, index_path + "/sorted", rank_map, map_len);
             System.out.println((kmers_num - old_index.kmers_num) + " new kmers generated.                    ");
-        // load the prefix file into the memory    
-            pre_file.seek(4);
-            int q, len = 1 << (2 * pre_len);
-            prefix_ptr = new long[len];
-            MappedByteBuffer pre_buff = pre_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4, 8 * len);
-            for (i = 0; i < len; ++i) 
-                prefix_ptr[i] = read_prefix(pre_buff);
-            pre_buff = null;
-            pre_file.close();
-        // mapping suffix file into the memory    
-            suf_len = K - pre_len;
-            for (i = 1; i <= genomeDb.num_genomes; ++i)
-                for (j = 1; j <= genomeDb.num_sequences[i]; ++j)
-                    if (genomeDb.sequence_length[i][j] > longest_scaffold)
-                        longest_scaffold = genomeDb.sequence_length[i][j];
-            id_len = (int)Math.round(Math.ceil( Math.log(kmers_num) / Math.log(2) / 8));
-            offset_len = (int)Math.round(Math.ceil( Math.log(longest_scaffold) / Math.log(2) / 8));
-            POINTER_LENGTH = 2 * id_len + offset_len + 1;
+            set_pointer_sizes(longest_scaffold(genomeDb), node_id_bound(genomeDb, previous_num_genomes + 1, highest_node_id(graphDb)));
+            map_files(index_path);
             write_info();
-            suf_rec_size = ctr_size + suf_len / 4;
-            MAX_BYTE_COUNT = MAX_BYTE_COUNT / suf_rec_size * suf_rec_size;
-            suf_parts_num = (int) ((kmers_num * suf_rec_size) % MAX_BYTE_COUNT == 0 ? (kmers_num * suf_rec_size) / MAX_BYTE_COUNT : (kmers_num * suf_rec_size) / MAX_BYTE_COUNT + 1);
-            suf_parts_size = new long[suf_parts_num];
-            suf_file = new RandomAccessFile(index_path + "/sorted.kmc_suf", "r");
-            suf_buff = new MappedByteBuffer[suf_parts_num];
-            key=new kmer(K,pre_len);
-            for (k = 0; k < suf_parts_num; ++k) {
-                suf_parts_size[k] = (int) (k == suf_parts_num - 1 ? (kmers_num * suf_rec_size) % MAX_BYTE_COUNT : MAX_BYTE_COUNT);
-                suf_buff[k] = suf_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4 + k * suf_parts_size[0], suf_parts_size[k]);
-            }
-        // mapping pointers file into the memory    
-            MAX_BYTE_COUNT = MAX_BYTE_COUNT / POINTER_LENGTH * POINTER_LENGTH;
-            ptr_parts_num = (int) ((kmers_num * POINTER_LENGTH) % MAX_BYTE_COUNT == 0 ? (kmers_num * POINTER_LENGTH) / MAX_BYTE_COUNT : (kmers_num * POINTER_LENGTH) / MAX_BYTE_COUNT + 1);
-            ptr_parts_size = new long[ptr_parts_num];
-            ptr_file = new RandomAccessFile(index_path + "/pointers.db", "rw");
-            ptr_buff = new MappedByteBuffer[ptr_parts_num];
-            for (k = 0; k < ptr_parts_num; ++k) {
-                ptr_parts_size[k] = (int) (k == ptr_parts_num - 1 ? (kmers_num * POINTER_LENGTH) % MAX_BYTE_COUNT : MAX_BYTE_COUNT);
-                ptr_buff[k] = ptr_file.getChannel().map(FileChannel.MapMode.READ_WRITE, k * ptr_parts_size[0], ptr_parts_size[k]);
-            }
-            for (p = 0; p < kmers_num; ++p) {
-                put_pointer(null_pointer, p);
-            }
-        // adjusting available pointers
+            if (!ptr_file.zero_is_null())
+                for (p = 0; p < kmers_num; ++p)
+                    put_pointer(null_pointer, p);
+        // move the available pointers to the new numbers of their kmers, in the order of the numbers
             System.out.println("Updating kmer index...                    ");
+            for (p = 0; p < old_index.kmers_num; ++p) {
+                old_index.get_pointer(ptr, p);
+                if (ptr.node_id != -1L) {
+                    if (ptr.next_index != -1L)
+                        ptr.next_index = rank_map.get_long(ptr.next_index * map_len, map_len);
+                    put_pointer(ptr, rank_map.get_long(p * map_len, map_len));
+                }
+            }
             try(Transaction tx = graphDb.beginTx()){
                 nodes_iterator = graphDb.findNodes(nucleotide_label);
                 tx.success();
             }
-            kmer old_kmer = new kmer(K,old_index.pre_len);
-            kmer new_kmer = new kmer(K,pre_len);
-            IndexPointer ptr = new IndexPointer();
             for(;nodes_iterator.hasNext();){
                 try (Transaction tx = graphDb.beginTx()) {
                     for (i = 0; i < 10 * MAX_TRANSACTION_SIZE && nodes_iterator.hasNext(); ++i){
                         node=nodes_iterator.next();
                         if (!node.hasLabel(degenerate_label)){
-                            l=(long)node.getProperty("first_kmer");
-                            old_index.get_kmer(old_kmer, l);
-                            adjust_fwd_kmer(new_kmer, old_kmer);
-                            p_index = find(new_kmer);
-                            old_index.get_pointer(ptr,l);
-                            put_pointer(ptr,p_index);
-                            node.setProperty("first_kmer", p_index);
-                            for(l = old_index.get_next_index(l); l != -1L; l = old_index.get_next_index(l)){
-                                old_index.get_kmer(old_kmer, l);
-                                adjust_fwd_kmer(new_kmer, old_kmer);
-                                c_index = find(new_kmer);
-                                old_index.get_pointer(ptr,l);
-                                put_pointer(ptr,c_index);
-                                put_next_index(c_index,p_index);
-                                p_index = c_index;
-                            }
-                            put_next_index(-1L,p_index);
-                            node.setProperty("last_kmer", p_index);
+                            p = (long)node.getProperty("first_kmer");
+                            node.setProperty("first_kmer", rank_map.get_long(p * map_len, map_len));
+                            p = (long)node.getProperty("last_kmer");
+                            node.setProperty("last_kmer", rank_map.get_long(p * map_len, map_len));
                         }
                     }
                     tx.success();
                 }
             } 
             nodes_iterator.close();
+            rank_map.close();
             old_index.close();
-            Files.delete(Paths.get(index_path + "/old_index/sorted.kmc_suf"));
+            if (hashed) {
+                System.out.println("Hashing " + kmers_num + " kmers...                    ");
+                kmer_hash = new KmerHash(this, index_path);
+            }
+            for (String ext: kmer_files(compact))
+                Files.delete(Paths.get(index_path + "/old_index/sorted" + ext));
             Files.delete(Paths.get(index_path + "/new_kmers.kmc_pre"));
             Files.delete(Paths.get(index_path + "/new_kmers.kmc_suf"));
             Files.delete(Paths.get(index_path + "/old_index/pointers.db"));
-            Files.delete(Paths.get(index_path + "/old_index/sorted.kmc_pre"));
+            Files.delete(Paths.get(index_path + "/old_index/ranks.map"));
             //Files.delete(old_index_folder);
         } catch (IOException e) {
             System.out.println(e.getMessage() + "\nFailed to make index!");
@@ -417,6 +338,84 @@ public final class IndexDatabase {
         }
     }
 
+    /**
+     * Merges the sorted kmers of an old index and of the new genomes into the 
+     * kmer files of this index, in one sequential pass over both, and records
+     * the new number of every old kmer. Both inputs have the same prefix 
+     * length, so they are merged prefix by prefix.
+     * 
+     * @param old_index The old index database
+     * @param new_prefix Path and name of the KMC files of the new kmers without extension
+     * @param new_kmers_num Number of the new kmers
+     * @param output_prefix Path and name of the merged files without extension
+     * @param rank_map The file to be filled with the new numbers of the old kmers
+     * @param map_len Number of bytes of a number in the rank map
+     */
+    private void merge_kmers(IndexDatabase old_index, String new_prefix, long new_kmers_num, String output_prefix, 
+            LargeMappedFile rank_map, int map_len) throws IOException {
+        int x, i, comp, len = 1 << (2 * pre_len), suf_bytes = suf_len / 4;
+        long o, o_end, n, n_end, r = 0, count;
+        long[] new_ptr = new long[len], prefix_count = new long[len];
+        byte[] old_rec = new byte[suf_rec_size], new_rec = new byte[suf_bytes + 1];
+        KmerWriter out = new KmerWriter(output_prefix, compact, K, pre_len, ctr_size, max_count);
+        try (RandomAccessFile new_pre = new RandomAccessFile(new_prefix + ".kmc_pre", "r")) {
+            MappedByteBuffer pre_buff = new_pre.getChannel().map(FileChannel.MapMode.READ_ONLY, 4, 8 * len);
+            for (x = 0; x < len; ++x) 
+                new_ptr[x] = read_prefix(pre_buff);
+        }
+        try (DataInputStream old_in = new DataInputStream(new BufferedInputStream(new FileInputStream(old_index.db_path + 
+                (compact ? "/sorted.suf" : "/sorted.kmc_suf")), 1 << 20));
+             DataInputStream new_in = new DataInputStream(new BufferedInputStream(new FileInputStream(new_prefix + ".kmc_suf"), 1 << 20))) {
+            if (!compact)
+                old_in.readInt(); // the marker
+            new_in.readInt();
+            for (x = 0; x < len; ++x) {
+                o = old_index.prefix_ptr.get(x);
+                o_end = x == len - 1 ? old_index.kmers_num : old_index.prefix_ptr.get(x + 1);
+                n = new_ptr[x];
+                n_end = x == len - 1 ? new_kmers_num : new_ptr[x + 1];
+                if (o < o_end)
+                    old_in.readFully(old_rec);
+                if (n < n_end)
+                    new_in.readFully(new_rec);
+                for (; o < o_end || n < n_end; ++r, ++prefix_count[x]) {
+                    if (o == o_end)
+                        comp = 1;
+                    else if (n == n_end)
+                        comp = -1;
+                    else
+                        for (comp = 0, i = 0; i < suf_bytes && comp == 0; ++i)
+                            comp = Integer.compare(old_rec[i] & 0x00FF, new_rec[i] & 0x00FF);
+                    if (comp <= 0) {
+                        for (count = 0, i = ctr_size - 1; i >= 0; --i)
+                            count = (count << 8) | (old_rec[suf_bytes + i] & 0x00FF);
+                        if (comp == 0)
+                            count += new_rec[suf_bytes] & 0x00FF;
+                        out.write(old_rec, 0, count);
+                        rank_map.put_long(o * map_len, r, map_len);
+                        if (++o < o_end)
+                            old_in.readFully(old_rec);
+                    } else
+                        out.write(new_rec, 0, new_rec[suf_bytes] & 0x00FF);
+                    if (comp >= 0 && ++n < n_end)
+                        new_in.readFully(new_rec);
+                }
+            }
+        }
+        kmers_num = out.close(prefix_count);
+        load_prefixes(output_prefix);
+    }
+
+    /**
+     * Gives the extensions of the kmer files of a layout.
+     * 
+     * @param compact Determines if the layout is the compact one
+     * @return The extensions
+     */
+    private static String[] kmer_files(boolean compact) {
+        return compact ? new String[]{".pre", ".suf", ".skip"} : new String[]{".kmc_pre", ".kmc_suf"};
+    }
+
     public void write_info() {
         try {
             BufferedWriter out = new BufferedWriter(new FileWriter(db_path + INFO_FILE));
@@ -431,6 +430,11 @@ public final class IndexDatabase {
             out.write("id_len:" + id_len + "\n");
             out.write("offset_len:" + offset_len + "\n");
             out.write("POINTER_LENGTH:" + POINTER_LENGTH + "\n");
+            out.write("pointer_format:" + pointer_format + "\n");
+            out.write("id_bits:" + id_bits + "\n");
+            out.write("offset_bits:" + offset_bits + "\n");
+            out.write("node_bits:" + node_bits + "\n");
+            out.write("layout:" + (compact ? "compact" : "kmc") + "\n");
             out.close();
         } catch (IOException ioe) {
             System.out.println(ioe.getMessage());
@@ -472,13 +476,10 @@ public final class IndexDatabase {
         try {
             ptr_file.close();
             suf_file.close();
-            int k;
-            for (k = 0; k < ptr_parts_num; ++k) {
-                ptr_buff[k] = null;
-            }
-            for (k = 0; k < suf_parts_num; ++k) {
-                suf_buff[k] = null;
-            }
+            if (skip_file != null)
+                skip_file.close();
+            if (kmer_hash != null)
+                kmer_hash.close();
         } catch (IOException e) {
             System.out.println(e.getMessage());
             System.exit(1);
@@ -531,62 +532,194 @@ public final class IndexDatabase {
     }
 
     /**
-     * Reads a long integer from the memory mapped buffer.
+     * Maps the suffix and the pointer files into the memory.
      * 
-     * @param buff The file associated to the byte stream
-     * @return The long integer value
-     * @throws IOException 
+     * @param index_path Path to the index database 
      */
-    private int read_int(MappedByteBuffer buff, int n) {
-        int number = 0;
-            for (int i = 0; i < n; ++i) {
-                number = number << 8;
-                number = number | (buff.get() & (int)0x00FF);
-            }
-        return number == (1l << 8 * n) - 1 ? -1 : number;
+    private void map_files(String index_path) throws IOException {
+        if (compact) {
+            suf_file = new LargeMappedFile(index_path + "/sorted.suf", 0, kmers_num * suf_rec_size, false);
+            skip_file = new LargeMappedFile(index_path + "/sorted.skip", 0, 
+                    (kmers_num + KmerWriter.BLOCK_SIZE - 1) / KmerWriter.BLOCK_SIZE * 8, false);
+        } else
+            suf_file = new LargeMappedFile(index_path + "/sorted.kmc_suf", 4, kmers_num * suf_rec_size, false);
+        map_pointers(index_path + "/pointers.db");
     }
-    
+
     /**
-     * Reads a long integer from the memory mapped buffer.
+     * Loads the number of the first kmer of every prefix into the memory,
+     * Elias-Fano encoded in both layouts.
      * 
-     * @param buff The file associated to the byte stream
-     * @return The long integer value
-     * @throws IOException 
+     * @param path Path and name of the kmer files without extension
      */
-    private long read_long(MappedByteBuffer buff, int n) {
-        long number = 0;
-            for (int i = 0; i < n; ++i) {
-                number = number << 8;
-                number = number | (buff.get() & (long)0xFF);
-            }
-        return number == (1l << 8 * n) - 1 ? -1l : number;
+    private void load_prefixes(String path) throws IOException {
+        int i, len = 1 << (2 * pre_len);
+        if (compact)
+            prefix_ptr = new EliasFano(path + ".pre");
+        else {
+            prefix_ptr = new EliasFano(len, kmers_num);
+            pre_file = new RandomAccessFile(path + ".kmc_pre", "r");
+            MappedByteBuffer pre_buff = pre_file.getChannel().map(FileChannel.MapMode.READ_ONLY, 4, 8 * len);
+            for (i = 0; i < len; ++i) 
+                prefix_ptr.add(read_prefix(pre_buff));
+            pre_buff = null;
+            pre_file.close();
+        }
     }
 
     /**
-     * Reads a long integer from the memory mapped buffer.
+     * Gives the first kmer of the range of a suffix which can hold the suffix,
+     * according to the skip table.
      * 
-     * @param buff The file associated to the byte stream
-     * @return The long integer value
-     * @throws IOException 
+     * @param key The skip key of the suffix
+     * @param low The first kmer of the range
+     * @param high The last kmer of the range
+     * @return The first kmer of the narrowed range
      */
-    private void write_int(MappedByteBuffer buff, int number, int n) {
-        for (int i = n - 1; i >= 0; --i) {
-            buff.put((byte)((number >> (8 * i)) & 0x00FF));
+    private long skip_low(long key, long low, long high) {
+        long mid, b_low = (low + KmerWriter.BLOCK_SIZE - 1) / KmerWriter.BLOCK_SIZE, b_high = high / KmerWriter.BLOCK_SIZE;
+        // find the last block starting with a smaller key
+        while (b_low <= b_high) {
+            mid = (b_low + b_high) >>> 1;
+            if (Long.compareUnsigned(skip_file.get_long(mid * 8), key) < 0)
+                b_low = mid + 1;
+            else
+                b_high = mid - 1;
         }
+        return Math.max(low, b_high * KmerWriter.BLOCK_SIZE);
     }
-    
+
     /**
-     * Reads a long integer from the memory mapped buffer.
+     * Gives the last kmer of the range of a suffix which can hold the suffix,
+     * according to the skip table.
      * 
-     * @param buff The file associated to the byte stream
-     * @return The long integer value
-     * @throws IOException 
+     * @param key The skip key of the suffix
+     * @param low The first kmer of the range
+     * @param high The last kmer of the range
+     * @return The last kmer of the narrowed range
      */
-    private void write_long(MappedByteBuffer buff, long number, int n) {
-        for (int i = n - 1; i >= 0; --i) {
-            buff.put((byte)((number >> (8 * i)) & 0x00FF));
+    private long skip_high(long key, long low, long high) {
+        long mid, b_low = (low + KmerWriter.BLOCK_SIZE - 1) / KmerWriter.BLOCK_SIZE, b_high = high / KmerWriter.BLOCK_SIZE;
+        // find the first block starting with a larger key
+        while (b_low <= b_high) {
+            mid = (b_low + b_high) >>> 1;
+            if (Long.compareUnsigned(skip_file.get_long(mid * 8), key) > 0)
+                b_high = mid - 1;
+            else
+                b_low = mid + 1;
         }
-    }    
+        return b_low * KmerWriter.BLOCK_SIZE <= high ? b_low * KmerWriter.BLOCK_SIZE - 1 : high;
+    }
+
+    /**
+     * Maps the pointers file into the memory in the current pointer format.
+     *
+     * @param path Path to the pointers file
+     */
+    private void map_pointers(String path) throws IOException {
+        if (pointer_format == 1)
+            ptr_file = new PointerFile(path, kmers_num, 1, id_len, id_len, offset_len);
+        else
+            ptr_file = new PointerFile(path, kmers_num, pointer_format, id_bits, node_bits, offset_bits);
+        POINTER_LENGTH = ptr_file.get_record_length();
+    }
+
+    /**
+     * Calculates the size of the pointer fields of a new index in the latest pointer format.
+     *
+     * @param longest_scaffold The length of the longest sequence in the genome database
+     * @param max_node_id The largest node id the pointers may hold
+     */
+    private void set_pointer_sizes(long longest_scaffold, long max_node_id) {
+        id_len = (int)Math.round(Math.ceil( Math.log(kmers_num) / Math.log(2) / 8));
+        offset_len = (int)Math.round(Math.ceil( Math.log(longest_scaffold) / Math.log(2) / 8));
+        pointer_format = PointerFile.LATEST_FORMAT;
+        id_bits = PointerFile.bits(kmers_num);
+        node_bits = Math.max(id_bits, PointerFile.bits(max_node_id + 1));
+        offset_bits = PointerFile.bits(longest_scaffold);
+    }
+
+    /**
+     * Bounds the node ids the construction of some genomes may give: the ids
+     * already in the graph, then a node for every genome and sequence, at most
+     * one nucleotide node per kmer and at most one degenerate node per base.
+     *
+     * @param genomeDb The genome database
+     * @param from_genome The first genome to be added to the graph
+     * @param highest_node_id The largest node id in the graph, -1 if it is empty
+     * @return The largest node id the pointers may hold
+     */
+    private long node_id_bound(SequenceDatabase genomeDb, int from_genome, long highest_node_id) {
+        long bound = highest_node_id + 1 + kmers_num;
+        for (int g = from_genome; g <= genomeDb.num_genomes; ++g) {
+            bound += 1 + genomeDb.num_sequences[g];
+            for (int s = 1; s <= genomeDb.num_sequences[g]; ++s)
+                bound += genomeDb.get_sequence_length(g, s);
+        }
+        return bound;
+    }
+
+    /**
+     * Gives the largest node id in the graph, counting the annotation nodes.
+     */
+    private static long highest_node_id(GraphDatabaseService graphDb) {
+        long highest = -1L;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node node: graphDb.getAllNodes())
+                highest = Math.max(highest, node.getId());
+            tx.success();
+        }
+        return highest;
+    }
+
+    /**
+     * Gives the length of the longest sequence in the genome database.
+     *
+     * @param genomeDb The genome database
+     * @return The length of the longest sequence
+     */
+    private static long longest_scaffold(SequenceDatabase genomeDb) {
+        long longest_scaffold = 0;
+        for (int i = 1; i <= genomeDb.num_genomes; ++i)
+            for (int j = 1; j <= genomeDb.num_sequences[i]; ++j)
+                if (genomeDb.get_sequence_length(i, j) > longest_scaffold)
+                    longest_scaffold = genomeDb.get_sequence_length(i, j);
+        return longest_scaffold;
+    }
+
+    /**
+     * Rewrites the pointers file in the latest pointer format.
+     *
+     * @param genomeDb The genome database
+     */
+    public void migrate_pointers(SequenceDatabase genomeDb) {
+        IndexPointer ptr = new IndexPointer();
+        PointerFile new_file;
+        long p, max_node_id;
+        if (pointer_format == PointerFile.LATEST_FORMAT) {
+            System.out.println("The pointers are already in format " + pointer_format + ".");
+            return;
+        }
+        System.out.println("Migrating " + kmers_num + " pointers from format " + pointer_format + " to " + PointerFile.LATEST_FORMAT + "...");
+        try {
+            for (max_node_id = -1L, p = 0; p < kmers_num; ++p)
+                max_node_id = Math.max(max_node_id, ptr_file.get_node_id(p));
+            set_pointer_sizes(longest_scaffold(genomeDb), max_node_id);
+            new_file = new PointerFile(db_path + "/pointers.db.new", kmers_num, pointer_format, id_bits, node_bits, offset_bits);
+            for (p = 0; p < kmers_num; ++p) {
+                ptr_file.get_pointer(ptr, p);
+                new_file.put_pointer(ptr.node_id, ptr.offset, ptr.canonical, ptr.next_index, p);
+            }
+            new_file.close();
+            ptr_file.close();
+            Files.move(Paths.get(db_path + "/pointers.db.new"), Paths.get(db_path + "/pointers.db"), StandardCopyOption.REPLACE_EXISTING);
+            map_pointers(db_path + "/pointers.db");
+            write_info();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
 
     /**
      * Reads a kmer from th index database.
@@ -596,12 +729,12 @@ public final class IndexDatabase {
      */
     public void get_kmer(kmer key, long number) {
         boolean found = false;
-        int low = 0, high = prefix_ptr.length - 1, mid = 0;
+        int low = 0, high = (int)prefix_ptr.size() - 1, mid = 0;
         while (low <= high && !found) {
             mid = (low + high) / 2;
-            if (number < prefix_ptr[mid]) {
+            if (number < prefix_ptr.get(mid)) {
                 high = mid - 1;
-            } else if (number > prefix_ptr[mid]) {
+            } else if (number > prefix_ptr.get(mid)) {
                 low = mid + 1;
             } else {
                 found = true;
@@ -610,16 +743,21 @@ public final class IndexDatabase {
         if (!found) {
             mid = high;
         } else {
-            for (; mid < prefix_ptr.length - 1 && prefix_ptr[mid + 1] == prefix_ptr[mid]; ++mid);
+            for (; mid < prefix_ptr.size() - 1 && prefix_ptr.get(mid + 1) == number; ++mid);
         }
-        key.set_fwd_prefix(mid);
-        suf_buff[(int) (number * suf_rec_size / suf_parts_size[0])].position((int) (number * suf_rec_size % suf_parts_size[0]));
-        suf_buff[(int) (number * suf_rec_size / suf_parts_size[0])].get(key.get_fwd_suffix(), 0, suf_len / 4);
+        byte[] suffix = new byte[suf_len / 4];
+        get_suffix(suffix, number);
+        key.set_fwd(mid, suffix);
     }
 
+    /**
+     * Gives the number of occurrences of a kmer, or 0 if the index keeps no counters.
+     * 
+     * @param number The number of kmer in the index
+     * @return The count
+     */
     public int get_kmer_count(long number) {
-        suf_buff[(int) (number * suf_rec_size / suf_parts_size[0])].position((int) (number * suf_rec_size % suf_parts_size[0]) + suf_len / 4);
-        return suf_buff[(int) (number * suf_rec_size / suf_parts_size[0])].get() & 0x00FF;
+        return ctr_size == 0 ? 0 : suf_file.get(number * suf_rec_size + suf_len / 4) & 0x00FF;
     }
 
 
@@ -629,47 +767,30 @@ public final class IndexDatabase {
      * @param number Number of the pointer.
      */
     public void get_pointer(IndexPointer poniter, long number){
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int)(number * POINTER_LENGTH % ptr_parts_size[0]));
-        poniter.node_id = read_long(buff,id_len);
-        poniter.offset = read_int(buff,offset_len);
-        poniter.canonical = buff.get() == 0;
-        poniter.next_index=read_long(buff,id_len);
+        ptr_file.get_pointer(poniter, number);
     }
-    
+
     /**
      * Writes a pointer in the index database
      * @param poniter The pointer
      * @param number Number of the pointer.
      */
     public void put_pointer(IndexPointer poniter, long number){
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int)(number * POINTER_LENGTH % ptr_parts_size[0]));
-        write_long(buff, poniter.node_id, id_len);
-        write_int(buff, poniter.offset, offset_len);
-        buff.put((byte) (poniter.canonical ? 0 : 1));
-        write_long(buff, poniter.next_index, id_len);
+        ptr_file.put_pointer(poniter.node_id, poniter.offset, poniter.canonical, poniter.next_index, number);
     }
 
     public void put_pointer(long node_id, int offset, boolean canonical,long next_index, long number){
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int)(number * POINTER_LENGTH % ptr_parts_size[0]));
-        write_long(buff, node_id, id_len);
-        write_int(buff, offset, offset_len);
-        buff.put((byte) (canonical ? 0 : 1));
-        write_long(buff, next_index, id_len);
+        ptr_file.put_pointer(node_id, offset, canonical, next_index, number);
     }
 
-    
+
     /**
      * Reads the node id of a kmer from the index database.
      * @param number Number of the kmer in the index
      * @return The id of node
      */
     public long get_node_id(long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]));
-        return read_long(buff, id_len);
+        return ptr_file.get_node_id(number);
     }
 
     /**
@@ -678,9 +799,7 @@ public final class IndexDatabase {
      * @param number Number of the kmer in the index
      */
     public void put_node_id(long node_id, long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]));
-        write_long(buff, node_id, id_len);
+        ptr_file.put_node_id(node_id, number);
     }
 
     /**
@@ -689,9 +808,7 @@ public final class IndexDatabase {
      * @return The position in the node
      */
     public int get_position(long number){
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]) + id_len);
-        return read_int(buff, offset_len);
+        return ptr_file.get_position(number);
     }
 
     /**
@@ -700,9 +817,7 @@ public final class IndexDatabase {
      * @param number Number of the kmer in the index
      */
     public void put_position(int position, long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]) + id_len);
-        write_int(buff, position, offset_len);
+        ptr_file.put_position(position, number);
     }
 
     /**
@@ -711,33 +826,25 @@ public final class IndexDatabase {
      * @return The canonical status
      */
     public boolean get_canonical(long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]) + id_len + offset_len);
-        return buff.get() == 0;
+        return ptr_file.get_canonical(number);
     }
 
     /**
      * Writes the canonical status of a kmer at the first visit.
-     * @param canonical The canonical status to be written ( 0 if it was canonical, 1 otherwise )
+     * @param canonical The canonical status to be written
      * @param number Number of the kmer in the index
      */
     public void put_canonical(boolean canonical, long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]) + id_len + offset_len);
-        buff.put((byte) (canonical ? 0 : 1));
+        ptr_file.put_canonical(canonical, number);
     }
-    
+
     public long get_next_index(long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]) + id_len + offset_len + 1);
-        return read_long(buff, id_len);
+        return ptr_file.get_next_index(number);
     }
     //,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,,
     public void put_next_index(long next_index, long number) {
-        MappedByteBuffer buff = ptr_buff[(int) (number * POINTER_LENGTH / ptr_parts_size[0])];
-        buff.position((int) (number * POINTER_LENGTH % ptr_parts_size[0]) + id_len + offset_len + 1);
-        write_long(buff, next_index, id_len);
-    }  
+        ptr_file.put_next_index(next_index, number);
+    }
     /**
      * Finds the number of a kmer in the database.
      * 
@@ -746,20 +853,28 @@ public final class IndexDatabase {
      */
     public long find(kmer k_mer) {
         long low, mid, high;
-        int j, comp, prefix = k_mer.get_canonical_prefix();;
+        int comp, prefix = k_mer.get_canonical_prefix();
         byte[] suffix = k_mer.get_canonical_suffix();
-        low = prefix_ptr[(int)prefix];
-        if (prefix == prefix_ptr.length - 1) {
+        low = prefix_ptr.get(prefix);
+        if (prefix == prefix_ptr.size() - 1) {
             high = kmers_num - 1;
         } else {
-            high = prefix_ptr[(int)prefix + 1] - 1;
+            high = prefix_ptr.get(prefix + 1) - 1;
+        }
+        if (kmer_hash != null) {
+            mid = kmer_hash.get_rank(KmerHash.hash(prefix, suffix));
+            if (mid != -1L)
+                return mid >= low && mid <= high && compare_suffix_at(suffix, mid) == 0 ? mid : -1L;
+        }
+        if (compact && low <= high) {
+            long key = KmerWriter.skip_key(suffix, 0, suffix.length);
+            mid = skip_low(key, low, high);
+            high = skip_high(key, low, high);
+            low = mid;
         }
         while (low <= high) {
             mid = (low + high) / 2;
-            j = (int) (mid * suf_rec_size / suf_parts_size[0]);
-            suf_buff[j].position((int) (mid * suf_rec_size % suf_parts_size[0]));
-            suf_buff[j].get(key.get_canonical_suffix(), 0, suf_len / 4);
-            comp = compare_suffix(suffix, key.get_canonical_suffix());
+            comp = compare_suffix_at(suffix, mid);
             if (comp == -1) {
                 high = mid - 1;
             } else if (comp == 1) {
@@ -771,6 +886,110 @@ public final class IndexDatabase {
         return -1L; // not found
     }
 
+    /**
+     * Finds the numbers of a batch of kmers in the database.
+     * 
+     * The searches are interleaved: every round first reads the middle record
+     * of all the unfinished searches and only then compares them, so that the
+     * cache misses of independent kmers overlap instead of running one after
+     * the other. With the hash function the candidates of all the kmers are
+     * fetched before any of them is verified.
+     * 
+     * @param kmers The kmer objects
+     * @param n The number of kmers in the batch
+     * @param ranks The array to be filled with the numbers of the kmers, -1 for the absent ones
+     */
+    public void find_batch(kmer[] kmers, int n, long[] ranks) {
+        long[] low = new long[n], high = new long[n];
+        int[] active = new int[n], first = new int[n];
+        int i, j, a, comp, prefix, num_active = 0;
+        byte[] suffix;
+        long mid;
+        for (i = 0; i < n; ++i) {
+            prefix = kmers[i].get_canonical_prefix();
+            low[i] = prefix_ptr.get(prefix);
+            high[i] = prefix == prefix_ptr.size() - 1 ? kmers_num - 1 : prefix_ptr.get(prefix + 1) - 1;
+            ranks[i] = kmer_hash == null ? -1L : kmer_hash.get_rank(KmerHash.hash(prefix, kmers[i].get_canonical_suffix()));
+        }
+        for (i = 0; i < n; ++i) {
+            mid = ranks[i];
+            if (mid != -1L) {
+                if (mid < low[i] || mid > high[i] || compare_suffix_at(kmers[i].get_canonical_suffix(), mid) != 0)
+                    ranks[i] = -1L;
+            } else if (low[i] <= high[i]) {
+                if (compact) {
+                    mid = KmerWriter.skip_key(kmers[i].get_canonical_suffix(), 0, suf_len / 4);
+                    low[i] = skip_low(mid, low[i], high[i]);
+                    high[i] = skip_high(mid, low[i], high[i]);
+                }
+                active[num_active++] = i;
+            }
+        }
+        while (num_active > 0) {
+            for (a = 0; a < num_active; ++a) {
+                i = active[a];
+                first[i] = suf_file.get(((low[i] + high[i]) >>> 1) * suf_rec_size) & 0x00FF;
+            }
+            for (a = j = 0; a < num_active; ++a) {
+                i = active[a];
+                mid = (low[i] + high[i]) >>> 1;
+                suffix = kmers[i].get_canonical_suffix();
+                comp = suffix.length == 0 ? 0 : Integer.compare(suffix[0] & 0x00FF, first[i]);
+                if (comp == 0)
+                    comp = compare_suffix_at(suffix, mid);
+                if (comp < 0)
+                    high[i] = mid - 1;
+                else if (comp > 0)
+                    low[i] = mid + 1;
+                else {
+                    ranks[i] = mid;
+                    continue;
+                }
+                if (low[i] <= high[i])
+                    active[j++] = i;
+            }
+            num_active = j;
+        }
+    }
+
+    /**
+     * Compares a suffix with the suffix of a kmer in the database.
+     * 
+     * @param suffix The suffix
+     * @param number The number of kmer in the index
+     * @return -1 if the suffix is smaller, 0 if they are equal and 1 if the suffix of kmer is smaller
+     */
+    private int compare_suffix_at(byte[] suffix, long number) {
+        long pos = number * suf_rec_size;
+        int i, a, b;
+        for (i = 0; i < suffix.length; ++i) {
+            a = suffix[i] & 0x00FF;
+            b = suf_file.get(pos + i) & 0x00FF;
+            if (a != b)
+                return a < b ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the suffix of a kmer without moving the position of the buffers.
+     * 
+     * @param suffix The array to be filled with the suffix
+     * @param number The number of kmer in the index
+     */
+    void get_suffix(byte[] suffix, long number) {
+        suf_file.get(number * suf_rec_size, suffix, 0, suffix.length);
+    }
+
+    /**
+     * Gives the number of the first kmer of every prefix.
+     * 
+     * @return The prefix pointers
+     */
+    EliasFano get_prefix_pointers() {
+        return prefix_ptr;
+    }
+
     /**
      * Converts the byte array to an integer value.
      * @param b The byte array
@@ -0,0 +1,406 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import sequence.SequenceDatabase;
+import static pantools.Pantools.THREADS;
+
+/**
+ * Counts the canonical k-mers of the genome database in-process and writes them
+ * in the sorted prefix/suffix layout of KMC, so that the index database can mount
+ * them as if they were produced by "kmc" and "kmc_tools sort".
+ *
+ * K-mers are scattered into disk-backed radix buckets (partitions of the prefix
+ * space), then every bucket is sorted and de-duplicated on its own, so the memory
+ * usage is bounded by the size of the largest bucket and not by the number of k-mers.
+ * Every thread writes its own bucket files; if they would be too many to be open
+ * at once, the k-mers are scattered in several passes over ranges of the buckets.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class KmerCounter {
+    private static final int MAX_OPEN_FILES = 512; // The bucket files open at once, below the usual limit of 1024
+    private final SequenceDatabase genomeDb;
+    private final int K;
+    private final int pre_len;
+    private final int suf_len;
+    private final int suf_bytes;    // Number of bytes of a packed suffix
+    private final int rec_size;     // Size of a bucket record: 4 bytes of prefix followed by the suffix
+    private final int from_genome;
+    private final int to_genome;
+    private int part_bits;          // Number of the prefix bits determining the bucket of a k-mer
+    private int parts_num;
+    private int parts_per_pass;     // Number of the buckets scattered in a pass
+    private int threads;
+    private String tmp_path;
+    private long[] prefix_count;    // Number of distinct k-mers for every prefix
+    private long[] part_kmers;      // Number of distinct k-mers in every bucket
+    private final int ctr_size = 1;
+    private final int max_count = 255;
+
+    /**
+     * The constructor
+     *
+     * @param db The genome database
+     * @param k Size of K
+     * @param p_len The length of the prefix of the k-mers
+     * @param fg The first genome to be counted
+     * @param tg The last genome to be counted
+     */
+    public KmerCounter(SequenceDatabase db, int k, int p_len, int fg, int tg) {
+        genomeDb = db;
+        K = k;
+        pre_len = p_len;
+        suf_len = K - pre_len;
+        suf_bytes = suf_len / 4;
+        rec_size = 4 + suf_bytes;
+        from_genome = fg;
+        to_genome = tg;
+    }
+
+    /**
+     * Calculates a prefix length for which the suffix length is divisible by 4,
+     * like KMC does, trying to keep the prefix table small compared to the suffix file.
+     *
+     * @param k Size of K
+     * @param num_bases Number of bases to be indexed
+     * @return The prefix length
+     */
+    public static int prefix_length(int k, long num_bases) {
+        int target, p_len;
+        target = (int)(Math.log(Math.max(num_bases, 4)) / Math.log(4)) - 2;
+        target = Math.max(1, Math.min(11, target));
+        p_len = k % 4;
+        while (p_len + 4 <= target && k - (p_len + 4) >= 4)
+            p_len += 4;
+        if (p_len == 0)
+            p_len = 4;
+        return p_len;
+    }
+
+    /**
+     * Counts the k-mers and writes the sorted prefix and suffix files.
+     *
+     * @param output_prefix Path and name of the output files without extension
+     * @param work_path A directory for the temporary bucket files
+     * @param compact Determines if the compact layout of KmerWriter should be written instead of the one of KMC
+     * @return Number of distinct k-mers
+     */
+    public long count(String output_prefix, String work_path, boolean compact) {
+        long bases = 0;
+        int g, s, bits;
+        for (g = from_genome; g <= to_genome; ++g)
+            for (s = 1; s <= genomeDb.num_sequences[g]; ++s)
+                bases += genomeDb.get_sequence_length(g, s);
+    // choose the number of buckets so that every bucket comfortably fits in the heap
+        long bucket_budget = Math.max(1L << 20, Runtime.getRuntime().maxMemory() / (4L * Math.max(1, THREADS)));
+        long estimate = 2 * bases * rec_size;
+        for (bits = 0; bits < Math.min(12, 2 * pre_len) && estimate >> bits > bucket_budget; ++bits);
+        return count(output_prefix, work_path, compact, bits, MAX_OPEN_FILES);
+    }
+
+    /**
+     * Counts the k-mers in a given number of buckets.
+     *
+     * @param output_prefix Path and name of the output files without extension
+     * @param work_path A directory for the temporary bucket files
+     * @param compact Determines if the compact layout of KmerWriter should be written instead of the one of KMC
+     * @param bits The logarithm of the number of the buckets
+     * @param open_files The largest number of the bucket files open at once
+     * @return Number of distinct k-mers
+     */
+    long count(String output_prefix, String work_path, boolean compact, int bits, int open_files) {
+        long num_kmers = 0;
+        int first_part;
+        threads = Math.max(1, THREADS);
+        tmp_path = work_path + "/kmer_buckets";
+        new File(tmp_path).mkdir();
+        part_bits = bits;
+        parts_num = 1 << part_bits;
+        parts_per_pass = Math.min(parts_num, Integer.highestOneBit(Math.max(1, open_files / threads)));
+        prefix_count = new long[1 << (2 * pre_len)];
+        part_kmers = new long[parts_num];
+        System.out.println("Scattering k-mers into " + parts_num + " buckets" +
+                (parts_per_pass < parts_num ? " in " + parts_num / parts_per_pass + " passes" : "") + "...");
+        for (first_part = 0; first_part < parts_num; first_part += parts_per_pass)
+            scatter(first_part);
+        System.out.println("Sorting k-mers...");
+        sort();
+        for (int p = 0; p < parts_num; ++p)
+            num_kmers += part_kmers[p];
+        write_kmers(output_prefix, compact);
+        new File(tmp_path).delete();
+        return num_kmers;
+    }
+
+    /**
+     * Writes the canonical k-mers of the sequences which fall in a range of
+     * the buckets in the bucket files, each thread in its own set of files.
+     *
+     * @param first_part The first bucket of the range
+     */
+    private void scatter(int first_part) {
+        int g, s, n = 0;
+        for (g = from_genome; g <= to_genome; ++g)
+            n += genomeDb.num_sequences[g];
+        final int[][] jobs = new int[n][];
+        for (n = 0, g = from_genome; g <= to_genome; ++g)
+            for (s = 1; s <= genomeDb.num_sequences[g]; ++s, ++n)
+                jobs[n] = new int[]{g, s};
+        final AtomicInteger next_job = new AtomicInteger(0);
+        try {
+            ExecutorService es = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; ++t)
+                es.execute(new Scatter_kmers(t, jobs, next_job, first_part));
+            es.shutdown();
+            es.awaitTermination(10, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Takes sequences from the job list and appends their k-mers to the buckets
+     * of the thread in the range of the pass.
+     */
+    private class Scatter_kmers implements Runnable {
+        int thread;
+        int[][] jobs;
+        AtomicInteger next_job;
+        int first_part;
+
+        public Scatter_kmers(int t, int[][] j, AtomicInteger n, int f) {
+            thread = t;
+            jobs = j;
+            next_job = n;
+            first_part = f;
+        }
+
+        @Override
+        public void run() {
+            int i, j, p, valid, code, prefix, shift = 2 * pre_len - part_bits;
+            long len;
+            byte[] suffix;
+            kmer curr_kmer = new kmer(K, pre_len);
+            SequenceDatabase.Cursor cursor = genomeDb.get_cursor();
+            int buff_size = Math.max(4096, Math.min(1 << 16, (8 << 20) / parts_per_pass)) / rec_size * rec_size;
+            byte[][] buff = new byte[parts_per_pass][buff_size];
+            int[] fill = new int[parts_per_pass];
+            OutputStream[] out = new OutputStream[parts_per_pass];
+            try {
+                for (p = 0; p < parts_per_pass; ++p)
+                    out[p] = new FileOutputStream(bucket_name(thread, first_part + p));
+                for (j = next_job.getAndIncrement(); j < jobs.length; j = next_job.getAndIncrement()) {
+                    len = genomeDb.get_sequence_length(jobs[j][0], jobs[j][1]);
+                    curr_kmer.reset();
+                    for (valid = 0, i = 0; i < len; ++i) {
+                        code = cursor.get_code(jobs[j][0], jobs[j][1], i);
+                        if (code > 3) { // degenerate bases break the k-mers
+                            valid = 0;
+                            curr_kmer.reset();
+                            continue;
+                        }
+                        curr_kmer.next_kmer(code);
+                        if (++valid < K)
+                            continue;
+                        prefix = curr_kmer.get_canonical_prefix();
+                        p = (prefix >>> shift) - first_part;
+                        if (p < 0 || p >= parts_per_pass)
+                            continue;
+                        suffix = curr_kmer.get_canonical_suffix();
+                        if (fill[p] + rec_size > buff_size) {
+                            out[p].write(buff[p], 0, fill[p]);
+                            fill[p] = 0;
+                        }
+                        buff[p][fill[p]++] = (byte)(prefix >>> 24);
+                        buff[p][fill[p]++] = (byte)(prefix >>> 16);
+                        buff[p][fill[p]++] = (byte)(prefix >>> 8);
+                        buff[p][fill[p]++] = (byte)prefix;
+                        System.arraycopy(suffix, 0, buff[p], fill[p], suf_bytes);
+                        fill[p] += suf_bytes;
+                    }
+                }
+                for (p = 0; p < parts_per_pass; ++p) {
+                    out[p].write(buff[p], 0, fill[p]);
+                    out[p].close();
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Sorts and de-duplicates the buckets in parallel, as far as the heap allows.
+     */
+    private void sort() {
+        long largest = 0, size;
+        int p, t, sorters;
+        for (p = 0; p < parts_num; ++p) {
+            for (size = 0, t = 0; t < threads; ++t)
+                size += new File(bucket_name(t, p)).length();
+            largest = Math.max(largest, size);
+        }
+        if (largest > Integer.MAX_VALUE - 8) {
+            System.out.println("A k-mer bucket is too large to be sorted; increase the heap size.");
+            System.exit(1);
+        }
+        sorters = (int) Math.max(1, Math.min(threads, Runtime.getRuntime().maxMemory() / (3 * largest + 1)));
+        final AtomicInteger next_part = new AtomicInteger(0);
+        try {
+            ExecutorService es = Executors.newFixedThreadPool(sorters);
+            for (t = 0; t < sorters; ++t)
+                es.execute(new Sort_bucket(next_part));
+            es.shutdown();
+            es.awaitTermination(10, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Takes buckets one by one, sorts their records, counts the equal ones and
+     * writes the distinct suffixes with their counters in a sorted bucket file.
+     */
+    private class Sort_bucket implements Runnable {
+        AtomicInteger next_part;
+
+        public Sort_bucket(AtomicInteger n) {
+            next_part = n;
+        }
+
+        @Override
+        public void run() {
+            int p, t, n, i, j, count, prefix;
+            long size;
+            byte[] records, sorted;
+            try {
+                for (p = next_part.getAndIncrement(); p < parts_num; p = next_part.getAndIncrement()) {
+                    for (size = 0, t = 0; t < threads; ++t)
+                        size += new File(bucket_name(t, p)).length();
+                    records = new byte[(int)size];
+                    for (n = 0, t = 0; t < threads; ++t) {
+                        try (InputStream in = new FileInputStream(bucket_name(t, p))) {
+                            for (i = in.read(records, n, (int)size - n); i > 0; i = in.read(records, n, (int)size - n))
+                                n += i;
+                        }
+                        Files.delete(Paths.get(bucket_name(t, p)));
+                    }
+                    n = (int)(size / rec_size);
+                    sorted = radix_sort(records, n);
+                    records = null;
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(sorted_name(p)), 1 << 16)) {
+                        for (i = 0; i < n; i = j) {
+                            for (j = i + 1; j < n && equal_records(sorted, i, j); ++j);
+                            count = Math.min(j - i, max_count);
+                            prefix = ((sorted[i * rec_size] & 0xFF) << 24) | ((sorted[i * rec_size + 1] & 0xFF) << 16) |
+                                     ((sorted[i * rec_size + 2] & 0xFF) << 8) | (sorted[i * rec_size + 3] & 0xFF);
+                            ++prefix_count[prefix];
+                            ++part_kmers[p];
+                            out.write(sorted, i * rec_size + 4, suf_bytes);
+                            out.write(count); // ctr_size is 1
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Sorts fixed-size records on their bytes, from the least significant byte
+     * to the most significant one, skipping the bytes which are equal in all records.
+     *
+     * @param records The records
+     * @param n Number of records
+     * @return The sorted records
+     */
+    private byte[] radix_sort(byte[] records, int n) {
+        int b, i, d;
+        int[] offset = new int[257];
+        byte[] tmp = new byte[records.length], swap;
+        for (b = rec_size - 1; b >= 0; --b) {
+            java.util.Arrays.fill(offset, 0);
+            for (i = 0; i < n; ++i)
+                ++offset[(records[i * rec_size + b] & 0xFF) + 1];
+            for (d = 0; d < 256 && offset[d + 1] != n; ++d);
+            if (d < 256) // all the records have the same byte here
+                continue;
+            for (d = 1; d < 257; ++d)
+                offset[d] += offset[d - 1];
+            for (i = 0; i < n; ++i)
+                System.arraycopy(records, i * rec_size, tmp, (offset[records[i * rec_size + b] & 0xFF]++) * rec_size, rec_size);
+            swap = records;
+            records = tmp;
+            tmp = swap;
+        }
+        return records;
+    }
+
+    private boolean equal_records(byte[] records, int i, int j) {
+        int a = i * rec_size, b = j * rec_size;
+        for (int k = 0; k < rec_size; ++k)
+            if (records[a + k] != records[b + k])
+                return false;
+        return true;
+    }
+
+    /**
+     * Concatenates the sorted buckets in the suffix file and writes the prefix file.
+     *
+     * @param output_prefix Path and name of the output files without extension
+     * @param compact Determines if the compact layout should be written
+     */
+    private void write_kmers(String output_prefix, boolean compact) {
+        byte[] rec = new byte[suf_bytes + 1]; // ctr_size is 1
+        long n;
+        try {
+            KmerWriter out = new KmerWriter(output_prefix, compact, K, pre_len, ctr_size, max_count);
+            for (int p = 0; p < parts_num; ++p) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sorted_name(p)), 1 << 16))) {
+                    for (n = 0; n < part_kmers[p]; ++n) {
+                        in.readFully(rec);
+                        out.write(rec, 0, rec[suf_bytes] & 0x00FF);
+                    }
+                }
+                Files.delete(Paths.get(sorted_name(p)));
+            }
+            out.close(prefix_count);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private String bucket_name(int thread, int part) {
+        return tmp_path + "/t" + thread + "_b" + part;
+    }
+
+    private String sorted_name(int part) {
+        return tmp_path + "/b" + part + ".suf";
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import pantools.LargeMappedFile;
+
+/**
+ * Implements a minimal perfect hash function (BBHash) from the k-mers of the
+ * index to their numbers, so that a k-mer can be found with one probe instead
+ * of a binary search over the suffix file.
+ *
+ * Every level is a bit array of GAMMA times the number of the remaining keys;
+ * a key lands in the first level in which it does not collide with another key
+ * and its slot is the number of the set bits before it. The slots are translated
+ * to the k-mer numbers by the rank file.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class KmerHash {
+    public static final String HASH_FILE = "/kmers.mphf";
+    public static final String RANK_FILE = "/kmers.rank";
+    private static final double GAMMA = 2.0;
+    private static final int MAX_LEVELS = 64;
+    private static final int SAMPLE_SHIFT = 9; // One rank sample for every 512 bits
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+    private int levels_num;
+    private long[] level_size;      // Number of bits in each level
+    private long[][] level_bits;
+    private long[][] level_ranks;   // Number of set bits before every sample, counting the previous levels
+    private long keys_num;          // Number of the keys placed in the levels
+    private int rank_len;           // Number of bytes of a k-mer number in the rank file
+    private LargeMappedFile rank_file;
+
+    /**
+     * Mounts an available hash function of the index.
+     *
+     * @param index_path Path to the index database
+     */
+    public KmerHash(String index_path) {
+        int l, i;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index_path + HASH_FILE), 1 << 20))) {
+            levels_num = in.readInt();
+            rank_len = in.readInt();
+            keys_num = in.readLong();
+            level_size = new long[levels_num];
+            level_bits = new long[levels_num][];
+            for (l = 0; l < levels_num; ++l) {
+                level_size[l] = in.readLong();
+                level_bits[l] = new long[(int)(level_size[l] / 64)];
+                for (i = 0; i < level_bits[l].length; ++i)
+                    level_bits[l][i] = in.readLong();
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+        sample_ranks();
+        map_ranks(index_path, false);
+    }
+
+    /**
+     * Builds the hash function for all the k-mers of the index and writes it
+     * next to the pointers file.
+     *
+     * @param index The index database
+     * @param index_path Path to the index database
+     */
+    public KmerHash(IndexDatabase index, String index_path) {
+        long n = index.length(), remaining = n, number, h, bits, placed;
+        EliasFano prefix_ptr = index.get_prefix_pointers();
+        long[] seen, coll, rest = null, next_rest;
+        byte[] suffix = new byte[index.get_suf_len() / 4];
+        int p, l, r;
+        long[] size = new long[MAX_LEVELS];
+        long[][] levels = new long[MAX_LEVELS][];
+        for (l = 0; remaining > 0 && l < MAX_LEVELS; ++l) {
+            bits = ((long)Math.ceil(GAMMA * remaining) + 63) / 64 * 64;
+            size[l] = bits;
+            seen = new long[(int)(bits / 64)];
+            coll = new long[(int)(bits / 64)];
+            if (rest == null) {
+            // stream the k-mers out of the index and keep the leftovers in memory once they fit
+                next_rest = remaining < Integer.MAX_VALUE - 8 && remaining * 8 < Runtime.getRuntime().maxMemory() / 8 ? new long[(int)remaining] : null;
+                for (p = 0, r = 0, number = 0; number < n; ++number) {
+                    for (; p < prefix_ptr.size() - 1 && prefix_ptr.get(p + 1) <= number; ++p);
+                    index.get_suffix(suffix, number);
+                    h = hash(p, suffix);
+                    if (find_level(levels, size, l, h) == -1) {
+                        if (next_rest != null)
+                            next_rest[r++] = h;
+                        mark(seen, coll, position(h, l, bits));
+                    }
+                }
+                rest = next_rest;
+            } else {
+                for (r = 0; r < rest.length; ++r)
+                    mark(seen, coll, position(rest[r], l, bits));
+            }
+            for (placed = 0, r = 0; r < seen.length; ++r) {
+                seen[r] &= ~coll[r];
+                placed += Long.bitCount(seen[r]);
+            }
+            levels[l] = seen;
+            remaining -= placed;
+            if (rest != null) {
+                for (p = 0, r = 0; r < rest.length; ++r)
+                    if (!is_set(seen, position(rest[r], l, bits)))
+                        rest[p++] = rest[r];
+                rest = Arrays.copyOf(rest, p);
+            }
+        }
+        levels_num = l;
+        level_size = Arrays.copyOf(size, levels_num);
+        level_bits = Arrays.copyOf(levels, levels_num);
+        keys_num = n - remaining;
+        for (rank_len = 1; rank_len < 8 && (n >> (8 * rank_len)) > 0; ++rank_len);
+        sample_ranks();
+        if (remaining > 0)
+            System.out.println(remaining + " kmers are left out of the hash function.");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(index_path + HASH_FILE), 1 << 20))) {
+            out.writeInt(levels_num);
+            out.writeInt(rank_len);
+            out.writeLong(keys_num);
+            for (l = 0; l < levels_num; ++l) {
+                out.writeLong(level_size[l]);
+                for (r = 0; r < level_bits[l].length; ++r)
+                    out.writeLong(level_bits[l][r]);
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    // translate the slots to the k-mer numbers
+        map_ranks(index_path, true);
+        for (p = 0, number = 0; number < n; ++number) {
+            for (; p < prefix_ptr.size() - 1 && prefix_ptr.get(p + 1) <= number; ++p);
+            index.get_suffix(suffix, number);
+            h = get_slot(hash(p, suffix));
+            if (h != -1)
+                put_rank(number, h);
+        }
+    }
+
+    /**
+     * Gives the number of the k-mer with the given hash value
+     *
+     * @param h The hash value of the k-mer
+     * @return The candidate number of the k-mer, which should be verified
+     * against the index, or -1 if the k-mer falls in no level.
+     */
+    public long get_rank(long h) {
+        long slot = get_slot(h);
+        return slot == -1 ? -1 : get_rank_at(slot);
+    }
+
+    /**
+     * Calculates the hash value of a k-mer.
+     *
+     * @param prefix The prefix of the k-mer
+     * @param suffix The suffix of the k-mer
+     * @return The hash value
+     */
+    public static long hash(int prefix, byte[] suffix) {
+        long h = mix(prefix + GOLDEN), word = 0;
+        int i;
+        for (i = 0; i < suffix.length; ++i) {
+            word = (word << 8) | (suffix[i] & 0x00FF);
+            if ((i & 7) == 7) {
+                h = mix(h ^ word);
+                word = 0;
+            }
+        }
+        return mix(h ^ word);
+    }
+
+    /**
+     * Closes the rank file.
+     */
+    public void close() {
+        try {
+            rank_file.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * The finalizer of the 64-bit MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Gives the position of a key in a level.
+     */
+    private static long position(long h, int level, long bits) {
+        return Long.remainderUnsigned(mix(h + (level + 1) * GOLDEN), bits);
+    }
+
+    private static boolean is_set(long[] bits, long pos) {
+        return (bits[(int)(pos >>> 6)] & (1L << pos)) != 0;
+    }
+
+    private static void mark(long[] seen, long[] coll, long pos) {
+        int w = (int)(pos >>> 6);
+        long m = 1L << pos;
+        if ((seen[w] & m) != 0)
+            coll[w] |= m;
+        else
+            seen[w] |= m;
+    }
+
+    /**
+     * Finds the level, among the first n levels, in which a key is placed.
+     */
+    private static int find_level(long[][] levels, long[] size, int n, long h) {
+        for (int l = 0; l < n; ++l)
+            if (is_set(levels[l], position(h, l, size[l])))
+                return l;
+        return -1;
+    }
+
+    /**
+     * Gives the slot of a key or -1 if it is not in any level.
+     */
+    private long get_slot(long h) {
+        long pos;
+        int l, w, s;
+        long[] bits;
+        for (l = 0; l < levels_num; ++l) {
+            bits = level_bits[l];
+            pos = position(h, l, level_size[l]);
+            w = (int)(pos >>> 6);
+            if ((bits[w] & (1L << pos)) != 0) {
+                s = (int)(pos >>> SAMPLE_SHIFT);
+                long rank = level_ranks[l][s];
+                for (s <<= SAMPLE_SHIFT - 6; s < w; ++s)
+                    rank += Long.bitCount(bits[s]);
+                return rank + Long.bitCount(bits[w] & ((1L << pos) - 1));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Samples the number of set bits before every block of the levels.
+     */
+    private void sample_ranks() {
+        int l, w;
+        long rank = 0;
+        level_ranks = new long[levels_num][];
+        for (l = 0; l < levels_num; ++l) {
+            level_ranks[l] = new long[(level_bits[l].length >> (SAMPLE_SHIFT - 6)) + 1];
+            for (w = 0; w < level_bits[l].length; ++w) {
+                if ((w & ((1 << (SAMPLE_SHIFT - 6)) - 1)) == 0)
+                    level_ranks[l][w >> (SAMPLE_SHIFT - 6)] = rank;
+                rank += Long.bitCount(level_bits[l][w]);
+            }
+        }
+    }
+
+    /**
+     * Maps the rank file into the memory.
+     */
+    private void map_ranks(String index_path, boolean create) {
+        try {
+            rank_file = new LargeMappedFile(index_path + RANK_FILE, keys_num * rank_len, create);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private long get_rank_at(long slot) {
+        return rank_file.get_long(slot * rank_len, rank_len);
+    }
+
+    private void put_rank(long number, long slot) {
+        rank_file.put_long(slot * rank_len, number, rank_len);
+    }
+}
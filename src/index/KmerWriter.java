@@ -0,0 +1,168 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the sorted k-mers of an index, one prefix after the other, either in
+ * the prefix/suffix layout of KMC or in the compact layout:
+ *      .pre  : the number of the first k-mer of every prefix, Elias-Fano encoded
+ *      .suf  : the packed suffixes without counters or markers
+ *      .skip : the first 8 bytes of the suffix of every BLOCK_SIZE'th k-mer,
+ *              so that a lookup touches one block of the suffix file
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class KmerWriter {
+    public static final int BLOCK_SIZE = 64; // Number of the k-mers of a block of the skip table
+    private final String output_prefix;
+    private final boolean compact;
+    private final int K;
+    private final int pre_len;
+    private final int suf_bytes;
+    private final int ctr_size;
+    private final int max_count;
+    private final long max;         // The largest value of a counter
+    private long kmers_num;
+    private OutputStream suf_out;
+    private DataOutputStream skip_out;
+
+    /**
+     * Creates the suffix file.
+     *
+     * @param path Path and name of the output files without extension
+     * @param c Determines if the compact layout should be written
+     * @param k Size of K
+     * @param p_len The length of the prefix of the k-mers
+     * @param c_size Number of bytes of the counters, ignored by the compact layout
+     * @param m_count The largest counter value
+     */
+    public KmerWriter(String path, boolean c, int k, int p_len, int c_size, int m_count) throws IOException {
+        output_prefix = path;
+        compact = c;
+        K = k;
+        pre_len = p_len;
+        suf_bytes = (K - pre_len) / 4;
+        ctr_size = compact ? 0 : c_size;
+        max_count = m_count;
+        max = Math.min(max_count, (1L << (8 * ctr_size)) - 1);
+        kmers_num = 0;
+        if (compact) {
+            suf_out = new BufferedOutputStream(new FileOutputStream(output_prefix + ".suf"), 1 << 20);
+            skip_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output_prefix + ".skip"), 1 << 16));
+        } else {
+            suf_out = new BufferedOutputStream(new FileOutputStream(output_prefix + ".kmc_suf"), 1 << 20);
+            suf_out.write(new byte[]{'K', 'M', 'C', 'S'});
+        }
+    }
+
+    /**
+     * Appends a k-mer to the suffix file.
+     *
+     * @param suffix An array holding the suffix
+     * @param off The offset of the suffix in the array
+     * @param count The number of occurrences of the k-mer
+     */
+    public void write(byte[] suffix, int off, long count) throws IOException {
+        if (compact && kmers_num % BLOCK_SIZE == 0)
+            skip_out.writeLong(skip_key(suffix, off, suf_bytes));
+        suf_out.write(suffix, off, suf_bytes);
+        for (count = Math.min(count, max), off = 0; off < ctr_size; ++off)
+            suf_out.write((int)((count >> (8 * off)) & 0x00FF));
+        ++kmers_num;
+    }
+
+    /**
+     * Closes the suffix file and writes the prefix file.
+     *
+     * @param prefix_count Number of k-mers with every prefix
+     * @return Number of the k-mers
+     */
+    public long close(long[] prefix_count) throws IOException {
+        long sum = 0;
+        int i;
+        if (compact) {
+            skip_out.close();
+            EliasFano prefix_ptr = new EliasFano(prefix_count.length, kmers_num);
+            for (i = 0; i < prefix_count.length; ++i) {
+                prefix_ptr.add(sum);
+                sum += prefix_count[i];
+            }
+            prefix_ptr.write(output_prefix + ".pre");
+        } else {
+            suf_out.write(new byte[]{'K', 'M', 'C', 'S'});
+            write_prefix_file(output_prefix + ".kmc_pre", prefix_count);
+        }
+        suf_out.close();
+        return kmers_num;
+    }
+
+    /**
+     * Gives the key of a suffix in the skip table, which compares like the
+     * first 8 bytes of the suffix.
+     *
+     * @param suffix An array holding the suffix
+     * @param off The offset of the suffix in the array
+     * @param n The length of the suffix
+     * @return The key
+     */
+    public static long skip_key(byte[] suffix, int off, int n) {
+        long key = 0;
+        int i;
+        for (i = 0; i < 8; ++i)
+            key = (key << 8) | (i < n ? suffix[off + i] & 0x00FF : 0);
+        return key;
+    }
+
+    /**
+     * Writes the prefix file, holding for every prefix the number of k-mers
+     * with a smaller prefix, followed by the KMC header.
+     *
+     * @param path Path to the prefix file
+     * @param prefix_count Number of k-mers with every prefix
+     */
+    private void write_prefix_file(String path, long[] prefix_count) throws IOException {
+        long sum = 0;
+        int i;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(path), 1 << 16)) {
+            out.write(new byte[]{'K', 'M', 'C', 'P'});
+            for (i = 0; i < prefix_count.length; ++i) {
+                write_long(out, sum);
+                sum += prefix_count[i];
+            }
+        // header
+            write_int(out, K);
+            write_int(out, 0); // mode
+            write_int(out, ctr_size);
+            write_int(out, pre_len);
+            write_int(out, 1); // min_count
+            write_int(out, max_count);
+            write_long(out, kmers_num);
+            write_int(out, 1); // both strands
+            for (i = 0; i < 31; ++i)
+                write_int(out, 0);
+        // header position
+            write_int(out, 6 * 4 + 8 + 4 + 31 * 4);
+            out.write(new byte[]{'K', 'M', 'C', 'P'});
+        }
+    }
+
+    private static void write_int(OutputStream out, int number) throws IOException {
+        for (int i = 0; i < 4; ++i)
+            out.write((number >> (8 * i)) & 0xFF);
+    }
+
+    private static void write_long(OutputStream out, long number) throws IOException {
+        for (int i = 0; i < 8; ++i)
+            out.write((int)((number >> (8 * i)) & 0xFF));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.IOException;
+import pantools.LargeMappedFile;
+
+/**
+ * Implements the pointers file of the index, in which every k-mer has a
+ * fixed-length record holding the node it occurs in, its offset in the node,
+ * its canonical status at the first visit and the number of the next k-mer
+ * of the node.
+ *
+ * Format 1 stores the fields in whole bytes, -1 being all 0xFF bytes.
+ * Format 2 packs the fields, each incremented by one so that an empty file
+ * holds null pointers, into one 64-bit word when they fit and into two words
+ * otherwise:
+ *      1 word : next_index | canonical | offset in the low bits and node_id in the rest
+ *      2 words: node_id | offset, then canonical | next_index
+ * The node field is sized from the largest node id the graph may reach, which
+ * also counts the genome, sequence, degenerate and annotation nodes, and a node
+ * id which does not fit in it is refused instead of being stored wrapped.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class PointerFile {
+    public static final int LATEST_FORMAT = 2;
+    private final int format;
+    private final int id_size;      // Size of the kmer numbers, in bytes for format 1 and bits for format 2
+    private final int node_size;    // Size of the node ids, in bytes for format 1 and bits for format 2
+    private final int offset_size;  // Size of the offsets, in bytes for format 1 and bits for format 2
+    private final int record_length;
+    // Format 2 layout
+    private int node_shift;
+    private long node_mask;
+    private long offset_mask;
+    private int canonical_word;
+    private int canonical_shift;
+    private int next_word;
+    private int next_shift;
+    private long next_mask;
+    private LargeMappedFile file;
+
+    /**
+     * Maps a pointers file into the memory.
+     *
+     * @param path Path to the pointers file
+     * @param kmers_num Number of the k-mers
+     * @param f The format of the file
+     * @param i_size Size of the kmer numbers, in bytes for format 1 and bits for format 2
+     * @param n_size Size of the node ids, in bits for format 2; format 1 uses i_size
+     * @param o_size Size of the offsets, in bytes for format 1 and bits for format 2
+     */
+    public PointerFile(String path, long kmers_num, int f, int i_size, int n_size, int o_size) throws IOException {
+        format = f;
+        id_size = i_size;
+        node_size = format == 1 ? i_size : n_size;
+        offset_size = o_size;
+        if (format == 1) {
+            record_length = 2 * id_size + offset_size + 1;
+        } else {
+            offset_mask = mask(offset_size);
+            if (node_size + id_size + offset_size + 1 <= 64) {
+                record_length = 8;
+                canonical_word = next_word = 0;
+                canonical_shift = offset_size;
+                next_shift = offset_size + 1;
+                next_mask = mask(id_size);
+                node_shift = next_shift + id_size;
+            } else {
+                record_length = 16;
+                canonical_word = next_word = 8;
+                canonical_shift = 63;
+                next_shift = 0;
+                next_mask = mask(63);
+                node_shift = offset_size;
+            }
+            node_mask = mask(64 - node_shift);
+        }
+        file = new LargeMappedFile(path, kmers_num * record_length, true);
+    }
+
+    /**
+     * Gives the number of bits needed to store the values [0..max].
+     *
+     * @param max The largest value
+     * @return The number of bits
+     */
+    public static int bits(long max) {
+        return Math.max(1, 64 - Long.numberOfLeadingZeros(max));
+    }
+
+    public int get_format() {
+        return format;
+    }
+
+    public int get_id_size() {
+        return id_size;
+    }
+
+    public int get_node_size() {
+        return node_size;
+    }
+
+    public int get_offset_size() {
+        return offset_size;
+    }
+
+    public int get_record_length() {
+        return record_length;
+    }
+
+    /**
+     * Determines if the empty file already holds null pointers.
+     */
+    public boolean zero_is_null() {
+        return format != 1;
+    }
+
+    /**
+     * Reads a pointer from the file.
+     * @param poniter The pointer
+     * @param number Number of the pointer.
+     */
+    public void get_pointer(IndexPointer poniter, long number) {
+        long pos = number * record_length, w0, w1;
+        if (format == 1) {
+            poniter.node_id = read_long(pos, id_size);
+            poniter.offset = (int)read_long(pos + id_size, offset_size);
+            poniter.canonical = file.get(pos + id_size + offset_size) == 0;
+            poniter.next_index = read_long(pos + id_size + offset_size + 1, id_size);
+        } else {
+            w0 = file.get_long(pos);
+            w1 = next_word == 0 ? w0 : file.get_long(pos + next_word);
+            poniter.node_id = ((w0 >>> node_shift) & node_mask) - 1;
+            poniter.offset = (int)(w0 & offset_mask) - 1;
+            poniter.canonical = ((w1 >>> canonical_shift) & 1) != 0;
+            poniter.next_index = ((w1 >>> next_shift) & next_mask) - 1;
+        }
+    }
+
+    /**
+     * Writes a pointer in the file.
+     */
+    public void put_pointer(long node_id, int offset, boolean canonical, long next_index, long number) {
+        long pos = number * record_length, w0, w1;
+        if (format == 1) {
+            file.put_long(pos, node_id, id_size);
+            file.put_long(pos + id_size, offset, offset_size);
+            file.put(pos + id_size + offset_size, (byte) (canonical ? 0 : 1));
+            file.put_long(pos + id_size + offset_size + 1, next_index, id_size);
+        } else {
+            check_node_id(node_id);
+            w0 = ((node_id + 1) << node_shift) | ((offset + 1) & offset_mask);
+            w1 = ((canonical ? 1L : 0L) << canonical_shift) | (((next_index + 1) & next_mask) << next_shift);
+            if (next_word == 0) {
+                file.put_long(pos, w0 | w1);
+            } else {
+                file.put_long(pos, w0);
+                file.put_long(pos + next_word, w1);
+            }
+        }
+    }
+
+    public long get_node_id(long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            return read_long(pos, id_size);
+        else
+            return ((file.get_long(pos) >>> node_shift) & node_mask) - 1;
+    }
+
+    public void put_node_id(long node_id, long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            file.put_long(pos, node_id, id_size);
+        else {
+            check_node_id(node_id);
+            file.put_long(pos, (file.get_long(pos) & ~(node_mask << node_shift)) | ((node_id + 1) << node_shift));
+        }
+    }
+
+    public int get_position(long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            return (int)read_long(pos + id_size, offset_size);
+        else
+            return (int)(file.get_long(pos) & offset_mask) - 1;
+    }
+
+    public void put_position(int position, long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            file.put_long(pos + id_size, position, offset_size);
+        else
+            file.put_long(pos, (file.get_long(pos) & ~offset_mask) | ((position + 1) & offset_mask));
+    }
+
+    public boolean get_canonical(long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            return file.get(pos + id_size + offset_size) == 0;
+        else
+            return ((file.get_long(pos + canonical_word) >>> canonical_shift) & 1) != 0;
+    }
+
+    public void put_canonical(boolean canonical, long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            file.put(pos + id_size + offset_size, (byte) (canonical ? 0 : 1));
+        else {
+            pos += canonical_word;
+            file.put_long(pos, (file.get_long(pos) & ~(1L << canonical_shift)) | ((canonical ? 1L : 0L) << canonical_shift));
+        }
+    }
+
+    public long get_next_index(long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            return read_long(pos + id_size + offset_size + 1, id_size);
+        else
+            return ((file.get_long(pos + next_word) >>> next_shift) & next_mask) - 1;
+    }
+
+    public void put_next_index(long next_index, long number) {
+        long pos = number * record_length;
+        if (format == 1)
+            file.put_long(pos + id_size + offset_size + 1, next_index, id_size);
+        else {
+            pos += next_word;
+            file.put_long(pos, (file.get_long(pos) & ~(next_mask << next_shift)) | (((next_index + 1) & next_mask) << next_shift));
+        }
+    }
+
+    /**
+     * Unmaps and closes the file.
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Reads a long integer of n bytes, -1 being stored as all 0xFF bytes.
+     */
+    private long read_long(long pos, int n) {
+        long number = file.get_long(pos, n);
+        return number == (1l << 8 * n) - 1 ? -1l : number;
+    }
+
+    /**
+     * Refuses a node id which does not fit in the node field of format 2.
+     */
+    private void check_node_id(long node_id) {
+        if (node_id < -1L || node_id + 1 > node_mask)
+            throw new IllegalArgumentException("Node " + node_id + " does not fit in the " + (64 - node_shift) + " bits of the node field of the pointers.");
+    }
+
+    private static long mask(int bits) {
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+}
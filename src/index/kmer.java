@@ -5,32 +5,42 @@
  */
 package index;
 
-import org.bouncycastle.util.Arrays;
-
 /**
- * Implements the data structure for a kmer. 
- * 
+ * Implements the data structure for a kmer.
+ *
+ * The forward and the reverse complement kmers are kept as 2K-bit binary
+ * codes, the left most base in the most significant bits. Up to K = 32 a code
+ * fits in one long and up to K = 64 in two, so sliding the kmer is a couple of
+ * shifts and finding the canonical form a single comparison; longer kmers are
+ * kept in arrays of words. The prefix and the suffix, by which the kmer is
+ * looked up in the index, are extracted from the code on demand.
+ *
  * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
  * University, Netherlands
  */
 public class kmer {
-    private int K; 
-    private int prefix_length;   
+    private int K;
+    private int prefix_length;
     private int suffix_length;
     private int prefix_mask;   // A binary code with just prefix_length 1's on the right
-    private int shift;         // Number of left shifts to reach to the position of left most base in the kmer 
-    private int fwd_prefix;
-    private byte[] fwd_suffix;
-    private int rev_prefix;
-    private byte[] rev_suffix;
+    private int words;         // Number of 64-bit words of the code
+    private long top_mask;     // The mask of the valid bits of the most significant word
+    private int top_shift;     // Number of left shifts to reach to the position of left most base in the most significant word
+    private long fwd_lo;       // The least significant word of the forward code
+    private long fwd_hi;
+    private long rev_lo;
+    private long rev_hi;
+    private long[] fwd_words;  // The words of the forward code when K > 64, the least significant first
+    private long[] rev_words;
+    private byte[] suffix;     // The canonical suffix, valid only if suffix_valid
+    private boolean suffix_valid;
     private boolean canonical;
-    
+
     /**
      * The constructor
-     * 
+     *
      * @param k Size of K
      * @param p_len The length of the prefix of the kmer
-     * @param s_len The length of the suffix of the kmer
      */
     public kmer(int k, int p_len)
     {
@@ -38,45 +48,69 @@ public class kmer {
         prefix_length = p_len;
         suffix_length = K - p_len;
         prefix_mask = (1 << (2*prefix_length)) - 1;
-        shift = 2 * (prefix_length - 1);
-        fwd_suffix=new byte[suffix_length / 4];
-        rev_suffix=new byte[suffix_length / 4];
+        words = (2 * K + 63) / 64;
+        top_shift = 2 * K - 2 - 64 * (words - 1);
+        top_mask = top_shift == 62 ? -1L : (1L << (top_shift + 2)) - 1;
+        if (words > 2) {
+            fwd_words = new long[words];
+            rev_words = new long[words];
+        }
+        suffix = new byte[suffix_length / 4];
+        suffix_valid = false;
         canonical = false;
     }
 
     /**
      * Copy constructor
-     * 
-     * @param k_mer The kmer object we want to copy. 
+     *
+     * @param k_mer The kmer object we want to copy.
      */
     public kmer(kmer k_mer)
     {
-        K = k_mer.K;
-        prefix_length = k_mer.prefix_length;
-        suffix_length = k_mer.suffix_length;
-        prefix_mask = k_mer.prefix_mask;
-        shift = k_mer.shift;
-        fwd_prefix = k_mer.fwd_prefix;
-        fwd_suffix = Arrays.clone(k_mer.fwd_suffix);
-        rev_prefix = k_mer.rev_prefix;
-        rev_suffix = Arrays.clone(k_mer.rev_suffix);
+        this(k_mer.K, k_mer.prefix_length);
+        copy(k_mer);
+    }
+
+    /**
+     * Copies another kmer of the same size into this one, without allocating.
+     * The prefix lengths of the kmers may differ.
+     *
+     * @param k_mer The kmer object we want to copy.
+     */
+    public void copy(kmer k_mer)
+    {
+        fwd_lo = k_mer.fwd_lo;
+        fwd_hi = k_mer.fwd_hi;
+        rev_lo = k_mer.rev_lo;
+        rev_hi = k_mer.rev_hi;
+        if (words > 2) {
+            System.arraycopy(k_mer.fwd_words, 0, fwd_words, 0, words);
+            System.arraycopy(k_mer.rev_words, 0, rev_words, 0, words);
+        }
         canonical = k_mer.canonical;
+        suffix_valid = false;
     }
-    
+
     /**
      * Gives the prefix of the k-mer
      * @return The prefix of the k-mer in the form of an integer
      */
     public int get_canonical_prefix(){
-        return canonical ? fwd_prefix : rev_prefix;
+        return (int)bits_at(canonical, 2 * suffix_length) & prefix_mask;
     }
-    
+
     /**
      * Gives the suffix of the k-mer
-     * @return The suffix of the k-mer in the form of a byte array
+     * @return The suffix of the k-mer in the form of a byte array, which
+     * is overwritten when the kmer changes
      */
     public byte[] get_canonical_suffix(){
-        return canonical ? fwd_suffix : rev_suffix;
+        if (!suffix_valid) {
+            for (int i = suffix.length - 1, pos = 0; i >= 0; --i, pos += 8)
+                suffix[i] = (byte)bits_at(canonical, pos);
+            suffix_valid = true;
+        }
+        return suffix;
     }
 
     /**
@@ -88,109 +122,63 @@ public class kmer {
     }
 
     /**
-     * Sets the prefix to a new value
-     * 
-     * @param p The new prefix for the k-mer  
-     */
-    public void set_fwd_prefix(int p){
-        fwd_prefix = p;
-    }    
-    
-    /**
-     * Sets the prefix to a new value
-     * 
-     * @param p The new prefix for the k-mer  
-     */
-    public void set_fwd_suffix(byte[] s){
-        fwd_suffix = s;
-    }    
-
-    /**
-     * Sets the prefix to a new value
-     * 
-     * @param p The new prefix for the k-mer  
+     * Sets the canonical status of the kmer
+     *
+     * @param c The new canonical status
      */
     public void set_canonical(boolean c){
         canonical = c;
-    } 
+        suffix_valid = false;
+    }
 
     /**
-     * Sets the prefix to a new value
-     * 
-     * @param p The new prefix for the k-mer  
-     */
-    public int get_fwd_prefix(){
-        return fwd_prefix;
-    }    
-    
-    /**
-     * Sets the prefix to a new value
-     * 
-     * @param p The new prefix for the k-mer  
-     */
-    public byte[] get_fwd_suffix(){
-        return fwd_suffix;
-    }    
-    
-    /**
-     * Recalculates the suffix and, in turn, the prefix based on the new suffix length
-     * 
-     * @param s_len The new suffix length for the k-mer  
+     * Sets the kmer to the one with the given forward prefix and suffix
+     *
+     * @param p The prefix of the kmer
+     * @param s The suffix of the kmer
      */
-    public static void adjust_fwd_kmer(kmer kmer2, kmer kmer1){
-        int i, j, k, suffix_length1, suffix_length2;
-        suffix_length1 = kmer1.suffix_length;
-        suffix_length2 = kmer2.suffix_length;
-        if (suffix_length1 != suffix_length2){
-            for(i = suffix_length1/4 - 1, j = suffix_length2/4 - 1; i >= 0 && j >= 0; --i, --j)
-                kmer2.fwd_suffix[j] = kmer1.fwd_suffix[i];  
-            if (i >= 0){
-                for (kmer2.fwd_prefix = kmer1.fwd_prefix, k = 0; k <= i; ++k)
-                    kmer2.fwd_prefix = (kmer2.fwd_prefix << 8) | (kmer1.fwd_suffix[k] & 0x00FF);
-            }
-            if (j >= 0){
-                kmer2.fwd_prefix = kmer1.fwd_prefix;
-                for (;j >= 0; --j){
-                    kmer2.fwd_suffix[j] = (byte)(kmer2.fwd_prefix & 0x0FF);
-                    kmer2.fwd_prefix = kmer2.fwd_prefix >> 8;
-                }
-            }
-        } else{
-            //kmer2.set_fwd_suffix(Arrays.clone(kmer1.get_fwd_suffix()));
-            //kmer2.set_fwd_prefix(kmer1.get_fwd_prefix());
-            kmer2 = kmer1;
-        }
-        kmer2.canonical = true; // to be found by find()
+    public void set_fwd(int p, byte[] s){
+        int i, j;
+        reset();
+        for (i = prefix_length - 1; i >= 0; --i)
+            next_kmer((p >> (2 * i)) & 0x03);
+        for (i = 0; i < s.length; ++i)
+            for (j = 3; j >= 0; --j)
+                next_kmer((s[i] >> (2 * j)) & 0x03);
     }
-    
+
     /**
      * Clears the content of the kmer
      */
     public void reset()
     {
-        fwd_prefix=0;
-        for(int i = 0;i < fwd_suffix.length; ++i)
-            fwd_suffix[i] = 0;
-        rev_prefix = 0;
-        for(int i = 0; i < rev_suffix.length; ++i)
-            rev_suffix[i] = 0;
+        fwd_lo = fwd_hi = rev_lo = rev_hi = 0;
+        if (words > 2) {
+            for (int i = 0; i < words; ++i)
+                fwd_words[i] = rev_words[i] = 0;
+        }
         canonical=false;
+        suffix_valid = false;
     }
-    
+
     /**
-     * Compares two kmers
-     * @param k_mer The second kmer
-     * @return -1 if the first kmer is smaller, 0 if they are equal and 1 if the second kmer is smaller
+     * Determines if the forward kmer is not larger than its reverse complement.
      */
     public void is_canonical()
     {
-        if(fwd_prefix<rev_prefix)
-            canonical = true;
-        else if(fwd_prefix>rev_prefix)
-            canonical = false;
-        else
-            canonical = compare_suffix(fwd_suffix, rev_suffix) <= 0;
-
+        int i;
+        switch (words) {
+            case 1:
+                canonical = Long.compareUnsigned(fwd_lo, rev_lo) <= 0;
+                break;
+            case 2:
+                canonical = fwd_hi != rev_hi ? Long.compareUnsigned(fwd_hi, rev_hi) < 0 : Long.compareUnsigned(fwd_lo, rev_lo) <= 0;
+                break;
+            default:
+                for (i = words - 1; i > 0 && fwd_words[i] == rev_words[i]; --i);
+                canonical = Long.compareUnsigned(fwd_words[i], rev_words[i]) <= 0;
+        }
+        suffix_valid = false;
     }
 
     /**
@@ -208,9 +196,9 @@ public class kmer {
         else if((suf1[i] & 0x0ff) < (suf2[i] & 0x0ff) )
             return -1;
         else
-            return 1;        
+            return 1;
     }
-    
+
     /**
      * Gives the next forward kmer
      * @param base_code The binary code of the base at right end of the kmer
@@ -218,37 +206,90 @@ public class kmer {
     public void next_kmer(int base_code)
     {
         int i;
-        fwd_prefix=((fwd_prefix<<2) & prefix_mask) | ((fwd_suffix[0]>>6) & 0x03 );
-        for(i=0;i<fwd_suffix.length-1;++i)
-           fwd_suffix[i]=(byte)((fwd_suffix[i]<<2) | (( fwd_suffix[i+1]>>6) & 0x03)); 
-        fwd_suffix[i]=(byte)((fwd_suffix[i]<<2) | base_code); 
-        base_code = 3 - base_code;
-        for(i=rev_suffix.length-1;i>0;--i)
-            rev_suffix[i]=(byte)(((rev_suffix[i]>>2) & 0x03f) | ((rev_suffix[i-1] & 0x03 )<<6)); 
-        rev_suffix[i]=(byte)(((rev_suffix[i]>>2) & 0x03f) | ((rev_prefix & 0x03 )<<6)); 
-        rev_prefix=(rev_prefix>>2) | (base_code<<shift); 
-        is_canonical(); 
+        long rev_code = 3 - (base_code &= 0x03);
+        switch (words) {
+            case 1:
+                fwd_lo = ((fwd_lo << 2) | base_code) & top_mask;
+                rev_lo = (rev_lo >>> 2) | (rev_code << top_shift);
+                break;
+            case 2:
+                fwd_hi = ((fwd_hi << 2) | (fwd_lo >>> 62)) & top_mask;
+                fwd_lo = (fwd_lo << 2) | base_code;
+                rev_lo = (rev_lo >>> 2) | (rev_hi << 62);
+                rev_hi = (rev_hi >>> 2) | (rev_code << top_shift);
+                break;
+            default:
+                for (i = words - 1; i > 0; --i)
+                    fwd_words[i] = (fwd_words[i] << 2) | (fwd_words[i - 1] >>> 62);
+                fwd_words[0] = (fwd_words[0] << 2) | base_code;
+                fwd_words[words - 1] &= top_mask;
+                for (i = 0; i < words - 1; ++i)
+                    rev_words[i] = (rev_words[i] >>> 2) | (rev_words[i + 1] << 62);
+                rev_words[i] = (rev_words[i] >>> 2) | (rev_code << top_shift);
+        }
+        is_canonical();
     }
 
     /**
-     * Gives the next forward kmer
-     * @param base_code The binary code of the base at right end of the kmer
+     * Gives the previous forward kmer
+     * @param base_code The binary code of the base at left end of the kmer
      */
     public void prev_kmer(int base_code)
     {
         int i;
-        for(i=fwd_suffix.length-1;i>0;--i){
-            fwd_suffix[i]=(byte)(((fwd_suffix[i]>>2) & 0x03f) | ((fwd_suffix[i-1] & 0x03 )<<6)); 
-        }
-        fwd_suffix[i]=(byte)(((fwd_suffix[i]>>2) & 0x03f) | ((fwd_prefix & 0x03 )<<6)); 
-        fwd_prefix=(fwd_prefix>>2) | (base_code<<shift); 
+        long fwd_code = base_code &= 0x03;
         base_code = 3 - base_code;
-        rev_prefix=((rev_prefix<<2) & prefix_mask) | ((rev_suffix[0]>>6) & 0x03 );
-        for(i=0;i<rev_suffix.length-1;++i)
-           rev_suffix[i]=(byte)((rev_suffix[i]<<2) | (( rev_suffix[i+1]>>6) & 0x03)); 
-        rev_suffix[i]=(byte)((rev_suffix[i]<<2) | base_code); 
-        is_canonical(); 
-    }    
+        switch (words) {
+            case 1:
+                fwd_lo = (fwd_lo >>> 2) | (fwd_code << top_shift);
+                rev_lo = ((rev_lo << 2) | base_code) & top_mask;
+                break;
+            case 2:
+                fwd_lo = (fwd_lo >>> 2) | (fwd_hi << 62);
+                fwd_hi = (fwd_hi >>> 2) | (fwd_code << top_shift);
+                rev_hi = ((rev_hi << 2) | (rev_lo >>> 62)) & top_mask;
+                rev_lo = (rev_lo << 2) | base_code;
+                break;
+            default:
+                for (i = 0; i < words - 1; ++i)
+                    fwd_words[i] = (fwd_words[i] >>> 2) | (fwd_words[i + 1] << 62);
+                fwd_words[i] = (fwd_words[i] >>> 2) | (fwd_code << top_shift);
+                for (i = words - 1; i > 0; --i)
+                    rev_words[i] = (rev_words[i] << 2) | (rev_words[i - 1] >>> 62);
+                rev_words[0] = (rev_words[0] << 2) | base_code;
+                rev_words[words - 1] &= top_mask;
+        }
+        is_canonical();
+    }
+
+    /**
+     * Gives the 64 bits of the forward or the reverse complement code which
+     * start at a bit position, the least significant bit being at position 0.
+     *
+     * @param fwd True for the forward code and False for the reverse complement
+     * @param pos The position of the first bit
+     * @return The bits in the least significant bits of a long
+     */
+    private long bits_at(boolean fwd, int pos)
+    {
+        long lo, hi;
+        long[] w;
+        int i;
+        if (words > 2) {
+            w = fwd ? fwd_words : rev_words;
+            i = pos >>> 6;
+            pos &= 63;
+            return pos == 0 || i == words - 1 ? w[i] >>> pos : (w[i] >>> pos) | (w[i + 1] << (64 - pos));
+        }
+        lo = fwd ? fwd_lo : rev_lo;
+        hi = fwd ? fwd_hi : rev_hi;
+        if (pos == 0)
+            return lo;
+        else if (pos < 64)
+            return (lo >>> pos) | (hi << (64 - pos));
+        else
+            return hi >>> (pos - 64);
+    }
 
     /**
      * Represents a kmer in the form of a string.
@@ -260,28 +301,10 @@ public class kmer {
         char[] sym=new char[]{ 'A', 'C', 'G' , 'T', 'M','R','W','S','Y','K','V','H','D','B','N'};
         StringBuilder fwd_seq=new StringBuilder(K);
         StringBuilder rev_seq=new StringBuilder(K);
-        build_sequence(sym, fwd_prefix, prefix_length,fwd_seq);
-        for(int i=0; i < fwd_suffix.length; ++i)
-            build_sequence(sym, fwd_suffix[i], 4, fwd_seq);
-        build_sequence(sym, rev_prefix, prefix_length,rev_seq);
-        for(int i=0; i < rev_suffix.length; ++i)
-            build_sequence(sym, rev_suffix[i], 4, rev_seq);
-        return fwd_seq.append(" ").append(rev_seq).toString();
-    }  
-
-    /**
-     * A recursive function for decoding the binary kmer to a string kmer  
-     * @param sym Array of symbols
-     * @param word The binary string to be decoded
-     * @param k Size of the K
-     * @param seq The string builder containing the decoded kmer
-     */
-    private void build_sequence(char[] sym, int word,int k, StringBuilder seq )
-    {
-        if(k > 0)
-        {
-            build_sequence(sym, word >> 2,k-1,seq);
-            seq.append(sym[word & 0x00000003]);
+        for(int i = K - 1; i >= 0; --i) {
+            fwd_seq.append(sym[(int)bits_at(true, 2 * i) & 0x03]);
+            rev_seq.append(sym[(int)bits_at(false, 2 * i) & 0x03]);
         }
-    } 
-}
\ No newline at end of file
+        return fwd_seq.append(" ").append(rev_seq).toString();
+    }
+}
@@ -289,7 +289,7 @@ public class AnnotationLayer {
                             log_file.write("Sequence ID = "+sequence_id+" missed in genome "+address[0]+"\n"); // usually organal genes
                             continue;
                         }
-                        seq_len = genomeDb.sequence_length[address[0]][address[1]];
+                        seq_len = genomeDb.get_sequence_length(address[0], address[1]);
                         if(address[2] > seq_len) {
                             log_file.write("Position "+address[2] + " is out of range 1-"+seq_len+".\n");
                             continue;
@@ -544,7 +544,7 @@ public class AnnotationLayer {
     private int find_sequence(String name, int genome) {
         int i, sequence = -1, number_of_matches = 0;
         for (i = 1; i <= genomeDb.num_sequences[genome]; ++i)
-            if (genomeDb.sequence_titles[genome][i].contains(name)){
+            if (genomeDb.get_sequence_title(genome, i).contains(name)){
                 ++number_of_matches;
                 sequence = i;
             }
@@ -17,12 +17,11 @@ import java.io.IOException;
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.RelationshipType;
-import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.Direction;
@@ -31,7 +30,9 @@ import org.neo4j.io.fs.FileUtils;
 import static pantools.Pantools.GENOME_DATABASE_PATH;
 import static pantools.Pantools.GRAPH_DATABASE_PATH;
 import static pantools.Pantools.INDEX_DATABASE_PATH;
-import pantools.Pantools.RelTypes;
+import static pantools.Pantools.GRAPH_STORE_PATH;
+import static pantools.Pantools.PATHS_DATABASE_PATH;
+import static pantools.Pantools.BATCH_BUILD;
 import static pantools.Pantools.labels;
 import static pantools.Pantools.genomeDb;
 import static pantools.Pantools.sequencingDb;
@@ -41,40 +42,37 @@ import static pantools.Pantools.PATH_TO_THE_REGIONS_FILE;
 import static pantools.Pantools.PATH_TO_THE_GENOME_NUMBERS_FILE;
 import static pantools.Pantools.graphDb;
 import static pantools.Pantools.indexDb;
+import static pantools.Pantools.pathsDb;
 import static pantools.Pantools.num_bases;
 import static pantools.Pantools.num_degenerates;
 import static pantools.Pantools.num_edges;
 import static pantools.Pantools.num_nodes;
-import static pantools.Pantools.phaseTime;
 import static pantools.Pantools.startTime;
-import static pantools.Pantools.MAX_TRANSACTION_SIZE;
-import static pantools.Pantools.ANCHORS;
 import static pantools.Pantools.complement;
 import static pantools.Pantools.write_fasta;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.neo4j.graphdb.NotFoundException;
-import static pantools.Pantools.DEBUG;
 import static pantools.Pantools.GAP_EXT;
 import static pantools.Pantools.GAP_OPEN;
 import static pantools.Pantools.K_SIZE;
 import static pantools.Pantools.MAX_ALIGNMENT_LENGTH;
 import static pantools.Pantools.PATH_TO_THE_SRAS_FILE;
 import static pantools.Pantools.READS_DATABASE_PATH;
-import static pantools.Pantools.SHOW_KMERS;
 //import static pantools.Pantools.MAX_TRIALS;
 import static pantools.Pantools.THREADS;
-import static pantools.Pantools.degenerate_label;
-import static pantools.Pantools.genome_label;
-import static pantools.Pantools.low_complexity_label;
-import static pantools.Pantools.nucleotide_label;
 import static pantools.Pantools.pangenome_label;
 import static pantools.Pantools.scanner;
 import static pantools.Pantools.sequence_label;
@@ -87,10 +85,6 @@ import static pantools.Pantools.sequence_label;
  */
 public class GenomeLayer {
 
-    private Node curr_node;
-    private byte curr_side;        
-    private boolean finish;
-   
     /**
      * Constructs a pangenome database from given genomes.
      * 
@@ -120,6 +114,10 @@ public class GenomeLayer {
             System.out.println("PATH_TO_THE_GENOMES_FILE is empty.");
             System.exit(1);
         }
+        if (BATCH_BUILD) {
+            build_pangenome_in_batch();
+            return;
+        }
         graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH))
                 .setConfig(keep_logical_logs, "4 files").newGraphDatabase();  
         registerShutdownHook(graphDb);
@@ -138,7 +136,7 @@ public class GenomeLayer {
             pangenome_node.setProperty("date", new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()));
             tx.success();
         }
-        construct_pangenome(pangenome_node);
+        construct_pangenome();
         System.out.println("Number of kmers:   " + indexDb.length());
         System.out.println("Number of nodes:   " + num_nodes);
         System.out.println("Number of edges:   " + num_edges);
@@ -166,8 +164,49 @@ public class GenomeLayer {
         System.out.println("graph.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH)) + " MB");
         System.out.println("index.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + INDEX_DATABASE_PATH)) + " MB");
         System.out.println("genome.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH)) + " MB");
+        System.out.println("paths.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH)) + " MB");
     }
     
+    /**
+     * Constructs the pangenome in a GraphStore and writes the graph database
+     * at once with the batch inserter, instead of through transactions.
+     */
+    private void build_pangenome_in_batch() {
+        GraphBuilder builder;
+        Map<String, Object> pangenome_properties = new HashMap<>();
+        startTime = System.currentTimeMillis();
+        num_nodes = 0;
+        num_edges = 0;
+        num_bases = 0;
+        num_degenerates = 0;
+        new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH).mkdirs();
+        genomeDb = new SequenceDatabase(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH, PATH_TO_THE_GENOMES_FILE);
+        indexDb = new IndexDatabase(PATH_TO_THE_PANGENOME_DATABASE + INDEX_DATABASE_PATH, PATH_TO_THE_GENOMES_FILE, genomeDb, K_SIZE);
+        K_SIZE = indexDb.get_K();
+        scanner = new SequenceScanner(genomeDb, 1, genomeDb.num_genomes, 1, genomeDb.num_sequences[1], K_SIZE, indexDb.get_pre_len());
+        try {
+            builder = new GraphBuilder(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_STORE_PATH);
+            builder.construct_pangenome();
+            pangenome_properties.put("k_mer_size", K_SIZE);
+            pangenome_properties.put("date", new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()));
+            builder.write_graph(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH, PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH, pangenome_properties);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Number of kmers:   " + indexDb.length());
+        System.out.println("Number of nodes:   " + num_nodes);
+        System.out.println("Number of edges:   " + num_edges);
+        System.out.println("Number of bases:   " + num_bases);
+        System.out.println("Number of degenerate nodes:   " + num_degenerates);
+        genomeDb.close();
+        indexDb.close();
+        System.out.println("graph.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH)) + " MB");
+        System.out.println("index.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + INDEX_DATABASE_PATH)) + " MB");
+        System.out.println("genome.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH)) + " MB");
+        System.out.println("paths.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH)) + " MB");
+    }
+
     /**
      * Adds new genomes to an available pangenome.
      * 
@@ -175,8 +214,7 @@ public class GenomeLayer {
      * @param pangenome_path Path to the database folder
      */
     public void add_genomes() {
-        int j, len, previous_num_genomes;
-        long byte_number = 0;
+        int previous_num_genomes;
         int[] address = new int[4];
         Node pangenome_node, start, seq_node;
         if (PATH_TO_THE_GENOMES_FILE == null){
@@ -208,27 +246,10 @@ public class GenomeLayer {
             if (!Files.exists(Paths.get(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH))) {
             // read genomes information from the graph and rebuild the genomes database
                 genomeDb = new SequenceDatabase(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH, graphDb);
-                StringBuilder seq = new StringBuilder();
-                for (address[0] = 1; address[0] <= genomeDb.num_genomes; ++address[0]) {
-                    for (address[1] = 1; address[1] <= genomeDb.num_sequences[address[0]]; ++address[1]) {
-                        seq_node = graphDb.findNode(sequence_label, "identifier", address[0] + "_" + address[1]);
-                        start = seq_node.getRelationships(Direction.OUTGOING).iterator().next().getEndNode();
-                        address[2] = 1;
-                        address[3] = (int) genomeDb.sequence_length[address[0]][address[1]];
-                        extract_sequence(seq, new IndexPointer(start.getId(), true, 0, -1l), address);
-                        len = seq.length();
-                        if (len % 2 == 1) {
-                            --len;
-                        }
-                        for (j = 0; j < len; j += 2, ++byte_number) {
-                            genomeDb.genomes_buff[(int) (byte_number / genomeDb.parts_size[0])].put((byte) ((genomeDb.binary[seq.charAt(j)] << 4) | genomeDb.binary[seq.charAt(j + 1)]));
-                        }
-                        if (len == seq.length() - 1) {
-                            genomeDb.genomes_buff[(int) (byte_number / genomeDb.parts_size[0])].put((byte) (genomeDb.binary[seq.charAt(len)] << 4));
-                            ++byte_number;
-                        }
-                    }
-                }
+                open_paths();
+                rebuild_sequences();
+                close_paths();
+                genomeDb.write_info();
             } else {
                 genomeDb = new SequenceDatabase(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH);
             }
@@ -237,11 +258,7 @@ public class GenomeLayer {
             scanner = new SequenceScanner(genomeDb, previous_num_genomes + 1, genomeDb.num_genomes, 1, genomeDb.num_sequences[previous_num_genomes + 1], K_SIZE, indexDb.get_pre_len());
             tx.success();
         }
-    // the sequences should be dropped out as they will change and add_sequence_properties() function will rebuild them.    
-        drop_nodes_property("sequence");
-    // the edge colors should be dropped out as they will change and localize_nodes() function will rebuild them again.    
-        drop_edges_colors();
-        construct_pangenome(pangenome_node);
+        construct_pangenome();
         System.out.println("Number of kmers:   " + indexDb.length());
         System.out.println("Number of nodes:   " + num_nodes);
         System.out.println("Number of edges:   " + num_edges);
@@ -269,6 +286,45 @@ public class GenomeLayer {
         System.out.println("graph.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH)) + " MB");
         System.out.println("index.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + INDEX_DATABASE_PATH)) + " MB");
         System.out.println("genome.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH)) + " MB");
+        System.out.println("paths.db size: " + getFolderSize(new File(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH)) + " MB");
+    }
+
+    /**
+     * Adds the sequencing read sets listed in PATH_TO_THE_SRAS_FILE to the
+     * reads database of the pangenome, read.db, which is a sequence database
+     * of its own with a "genome" per FASTQ or FASTA file. The files are encoded
+     * in parallel, or one after the other in chunks of reads encoded in
+     * parallel if there are fewer files than THREADS, and streamed, so no
+     * read is kept in the heap.
+     */
+    public void add_reads() {
+        int previous_num_sras = 0, g;
+        long num_reads = 0, num_read_bases = 0;
+        String reads_path = PATH_TO_THE_PANGENOME_DATABASE + READS_DATABASE_PATH;
+        if (PATH_TO_THE_SRAS_FILE == null){
+            System.out.println("PATH_TO_THE_SRAS_FILE is empty.");
+            System.exit(1);
+        }
+        if (! new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH).exists()) {
+            System.out.println("No database found in " + PATH_TO_THE_PANGENOME_DATABASE);
+            System.exit(1);
+        }
+        startTime = System.currentTimeMillis();
+        if (Files.exists(Paths.get(reads_path))) {
+            sequencingDb = new SequenceDatabase(reads_path);
+            previous_num_sras = sequencingDb.num_genomes;
+            sequencingDb.add_genomes(reads_path, PATH_TO_THE_SRAS_FILE);
+        } else
+            sequencingDb = new SequenceDatabase(reads_path, PATH_TO_THE_SRAS_FILE);
+        for (g = previous_num_sras + 1; g <= sequencingDb.num_genomes; ++g) {
+            num_reads += sequencingDb.num_sequences[g];
+            num_read_bases += sequencingDb.genome_length[g];
+        }
+        sequencingDb.close();
+        System.out.println("Number of read sets:   " + sequencingDb.num_genomes);
+        System.out.println("Number of new reads:   " + num_reads);
+        System.out.println("Number of new bases:   " + num_read_bases);
+        System.out.println("read.db size: " + getFolderSize(new File(reads_path)) + " MB");
     }
 
     public void remove_genomes() {
@@ -293,7 +349,6 @@ public class GenomeLayer {
         }
         String[] fields;
         String line, out_file_name;
-        IndexPointer start_ptr;
         StringBuilder seq;
         int c, num_regions = 0, proper_regions = 0;
         int[] address = new int[4];
@@ -338,8 +393,7 @@ public class GenomeLayer {
                     address[1] = Integer.parseInt(fields[1]);
                     address[2] = Integer.parseInt(fields[2]);
                     address[3] = Integer.parseInt(fields[3]);
-                    if (address[0] <= genomeDb.num_genomes && address[1] <= genomeDb.num_sequences[address[0]] && address[2] >= 1 && address[3] <= genomeDb.sequence_length[address[0]][address[1]]){
-                        start_ptr = locate(address);
+                    if (address[0] <= genomeDb.num_genomes && address[1] <= genomeDb.num_sequences[address[0]] && address[2] >= 1 && address[3] <= genomeDb.get_sequence_length(address[0], address[1])){
                         proper_regions++;
                         //extract_sequence(seq, start_ptr, address, K);
                         out.write(">genome:" + address[0] + " sequence:" + address[1] + " from:" + address[2] + " to:" + address[3] + " length:" + (address[3] - address[2] + 1) + "\n");
@@ -425,14 +479,14 @@ public class GenomeLayer {
                     try {
                         out = new BufferedWriter(new FileWriter(PATH_TO_THE_PANGENOME_DATABASE + "/Genome_" + genome_number + ".fasta"));
                         for (address[1] = 1; address[1] <= genomeDb.num_sequences[address[0]]; ++address[1]) {
-                            System.out.println("Sequence " + address[1] + " length = " + genomeDb.sequence_length[address[0]][address[1]]);
+                            System.out.println("Sequence " + address[1] + " length = " + genomeDb.get_sequence_length(address[0], address[1]));
                             //address[2] = 1;
-                            //address[3] = (int)genomeDb.sequence_length[address[0]][address[1]];
+                            //address[3] = (int)genomeDb.get_sequence_length(address[0], address[1]);
                             //start = locate(address, K);
                             //extract_sequence(seq, start, address, K);
-                            out.write(">" + genomeDb.sequence_titles[address[0]][address[1]] + "\n");
+                            out.write(">" + genomeDb.get_sequence_title(address[0], address[1]) + "\n");
                             address[2] = 0;
-                            address[3] = (int)genomeDb.sequence_length[address[0]][address[1]] - 1;
+                            address[3] = (int)genomeDb.get_sequence_length(address[0], address[1]) - 1;
                             seq.setLength(0);
                             scanner.get_sub_sequence(seq, address, true);
                             write_fasta(out, seq.toString(), 80);
@@ -456,6 +510,24 @@ public class GenomeLayer {
         genomeDb.close();
     }
 
+    /**
+     * Rewrites the pointers of the k-mer index in the latest pointer format,
+     * and converts the genomes.info of an older version.
+     */
+    public void migrate_pointers() {
+        if (! new File(PATH_TO_THE_PANGENOME_DATABASE + INDEX_DATABASE_PATH).exists()) {
+            System.out.println("No index found in " + PATH_TO_THE_PANGENOME_DATABASE);
+            System.exit(1);
+        }
+        startTime = System.currentTimeMillis();
+        genomeDb = new SequenceDatabase(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH);
+        genomeDb.migrate_info();
+        indexDb = new IndexDatabase(PATH_TO_THE_PANGENOME_DATABASE + INDEX_DATABASE_PATH);
+        indexDb.migrate_pointers(genomeDb);
+        indexDb.close();
+        genomeDb.close();
+    }
+
     public void retrieve_synteny(String genome) {
         if (! new File(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH).exists()) {
             System.out.println("No database found in " + PATH_TO_THE_PANGENOME_DATABASE);
@@ -480,7 +552,9 @@ public class GenomeLayer {
         //try {
             g = Integer.parseInt(genome.trim());
             System.out.println("Reconstructing synteny map between genome " + genome + " and the rest :");
+            open_paths();
             extract_synteny(g);
+            close_paths();
         /*}catch(NumberFormatException e){
             System.out.println("Invalid genome number!");
             System.exit(1);
@@ -490,64 +564,70 @@ public class GenomeLayer {
         genomeDb.close();
     }
     
+    /**
+     * Writes the places every node of the paths of a genome occurs in all the
+     * genomes; the occurrences of these nodes are gathered from the path index
+     * first.
+     *
+     * @param genome1 The genome
+     */
     public static void extract_synteny(int genome1) {
-        Relationship rel;
-        Node node, neighbor;
-        IndexPointer start;
+        Node node;
+        PathIndex.Cursor cursor = pathsDb.get_cursor();
+        Map<Long, List<int[]>> occurrences = new HashMap<>();
+        List<int[]> node_occurrences;
         try{
             BufferedWriter[] out_fwd = new BufferedWriter[genomeDb.num_genomes + 1];
             BufferedWriter[] out_rev = new BufferedWriter[genomeDb.num_genomes + 1];
             String formatStr = "%8s%10s%10s\n";
-            int[] loc2;
-            int genome2, loc1, seq1, seq2, i, node_len;
+            int genome2, loc1, loc2, seq1, seq2, node_len;
             long offset1, offset2;
             char side1, side2;
-            String origin1;
+        // The nodes the genome passes    
+            for (seq1 = 1; seq1 <= genomeDb.num_sequences[genome1]; ++seq1)
+                if (cursor.seek(genome1, seq1, 0))
+                    do {
+                        occurrences.putIfAbsent(cursor.get_node(), new ArrayList<>());
+                    } while (cursor.next());
+        // Their occurrences in all the genomes, as {genome, sequence, position, side}
+            for (genome2 = 1; genome2 <= genomeDb.num_genomes; ++genome2)
+                for (seq2 = 1; seq2 <= genomeDb.num_sequences[genome2]; ++seq2)
+                    if (cursor.seek(genome2, seq2, 0))
+                        do {
+                            node_occurrences = occurrences.get(cursor.get_node());
+                            if (node_occurrences != null)
+                                node_occurrences.add(new int[]{genome2, seq2, cursor.get_position(), cursor.is_forward() ? 'F' : 'R'});
+                        } while (cursor.next());
             for (seq1 = 1; seq1 <= genomeDb.num_sequences[genome1]; ++seq1) {
                 try (Transaction tx = graphDb.beginTx()) {
-                    loc1 = 0;
-                    start = locate(new int[]{genome1, seq1, loc1 + 1});
-                    origin1 = "G" + genome1 + "S" + seq1;
-                    node = graphDb.getNodeById(start.node_id);
-                    side1 = start.canonical ? 'F' : 'R';
-                    while (true) {
-                        //System.out.println(loc1);
-                        node_len = (int) node.getProperty("length");
-                        for (Relationship r: node.getRelationships(Direction.INCOMING)){
-                            side2 = r.getType().name().charAt(1);
-                            for (String origin2: r.getPropertyKeys()){
-                                loc2 = (int[])r.getProperty(origin2);
-                                genome2 = Integer.parseInt(origin2.split("S")[0].substring(1));
-                                seq2 = Integer.parseInt(origin2.split("S")[1]);
-                                offset2 = genomeDb.sequence_offset[genome2][seq2];
-                                offset1 = genomeDb.sequence_offset[genome1][seq1];
+                    offset1 = genomeDb.get_sequence_offset(genome1, seq1);
+                    if (cursor.seek(genome1, seq1, 0))
+                        do {
+                            loc1 = cursor.get_position();
+                            side1 = cursor.is_forward() ? 'F' : 'R';
+                            node = graphDb.getNodeById(cursor.get_node());
+                            node_len = (int) node.getProperty("length");
+                            for (int[] occ: occurrences.get(cursor.get_node())) {
+                                genome2 = occ[0];
+                                seq2 = occ[1];
+                                loc2 = occ[2];
+                                side2 = (char)occ[3];
+                                offset2 = genomeDb.get_sequence_offset(genome2, seq2);
                                 if (side1 == side2){
                                     if (out_fwd[genome2] == null){
                                         out_fwd[genome2] = new BufferedWriter(new FileWriter(PATH_TO_THE_PANGENOME_DATABASE + "/F_"+ genome1 + "_" + genome2 + ".smf"));
-                                        out_fwd[genome2].write("> " + genomeDb.genome_names[genome2].split("\\s")[0] + "\n");
+                                        out_fwd[genome2].write("> " + genomeDb.get_genome_name(genome2).split("\\s")[0] + "\n");
                                     }
-                                    for (i = 0; i < loc2.length; ++i){
-                                        out_fwd[genome2].write(String.format(formatStr, offset1 + loc1 + 1, offset2 + loc2[i] + 1, node_len));
-                                        }
+                                    out_fwd[genome2].write(String.format(formatStr, offset1 + loc1 + 1, offset2 + loc2 + 1, node_len));
                                 } else {
                                     if (out_rev[genome2] == null){
                                         out_rev[genome2] = new BufferedWriter(new FileWriter(PATH_TO_THE_PANGENOME_DATABASE + "/R_"+ genome1 + "_" + genome2 + ".smf"));
-                                        out_rev[genome2].write("> " + genomeDb.genome_names[genome2].split("\\s")[0] + " Reverse\n");
+                                        out_rev[genome2].write("> " + genomeDb.get_genome_name(genome2).split("\\s")[0] + " Reverse\n");
                                     }
-                                    for (i = 0; i < loc2.length; ++i)
-                                        out_rev[genome2].write(String.format(formatStr, offset1 + loc1 + (side1 == 'F' ? 1 : node_len), offset2 + loc2[i] + (side2 == 'F' ? 1 : node_len), node_len));
+                                    out_rev[genome2].write(String.format(formatStr, offset1 + loc1 + (side1 == 'F' ? 1 : node_len), offset2 + loc2 + (side2 == 'F' ? 1 : node_len), node_len));
                                 }
                             }
-                        }
-                        loc1 += node_len - K_SIZE + 1;
-                        rel = get_outgoing_edge(node, origin1, loc1);
-                        if (rel == null)
-                            break;
-                        else
-                            neighbor = rel.getEndNode();
-                        node = neighbor;
-                        side1 = rel.getType().name().charAt(1);
-                    } // while
+                        } while (cursor.next());
                     System.out.print("\rSequence " + seq1 + " / " + genomeDb.num_sequences[genome1] + " finished.");
                     tx.success();
                 }
@@ -565,6 +645,85 @@ public class GenomeLayer {
         }
     }
     
+    /**
+     * Writes all the sequences into the genome database, extracting them from
+     * the graph in parallel. Every sequence has its own region in the database,
+     * so the sequences can be written in any order; their ambiguity runs are
+     * put in order at the end. If a sequence can not be written, the genome
+     * database is removed and PanTools stops.
+     */
+    private void rebuild_sequences() {
+        int t, num_threads;
+        long[] first = new long[genomeDb.num_genomes + 2]; // The number of the first sequence of every genome, counting from 0
+        for (t = 1; t <= genomeDb.num_genomes; ++t)
+            first[t + 1] = first[t] + genomeDb.num_sequences[t];
+        num_threads = (int)Math.max(1, Math.min(THREADS, first[genomeDb.num_genomes + 1]));
+        System.out.println("Rebuilding the genome database...");
+        List<Future<?>> workers = new ArrayList<>();
+        ExecutorService es = Executors.newFixedThreadPool(num_threads);
+        try {
+            AtomicLong next_sequence = new AtomicLong(0);
+            for (t = 0; t < num_threads; ++t)
+                workers.add(es.submit(new Rebuild_sequences(next_sequence, first)));
+            es.shutdown();
+            for (Future<?> worker: workers)
+                worker.get();
+        } catch (InterruptedException | ExecutionException e) {
+        // the database would keep the sequences which were not written as zeros
+            es.shutdownNow();
+            System.out.println("Failed to rebuild the genome database: " + (e.getCause() != null ? e.getCause() : e.getMessage()));
+            try {
+                FileUtils.deleteRecursively(new File(PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH));
+            } catch (IOException ioe) {
+                System.out.println("Failed to delete the genome database " + PATH_TO_THE_PANGENOME_DATABASE + GENOME_DATABASE_PATH);
+            }
+            System.exit(1);
+        }
+        genomeDb.write_runs();
+    }
+
+    /**
+     * Takes sequences one by one and writes each of them, extracted from the 
+     * graph in a transaction of its own which only reads, into the genome database.
+     */
+    private class Rebuild_sequences implements Runnable {
+        AtomicLong next_sequence;
+        long[] first;
+
+        public Rebuild_sequences(AtomicLong next, long[] f) {
+            next_sequence = next;
+            first = f;
+        }
+
+        @Override
+        public void run() {
+            int g;
+            long i;
+            int[] address = new int[4];
+            Node seq_node, start;
+            StringBuilder seq = new StringBuilder();
+            for (i = next_sequence.getAndIncrement(); i < first[genomeDb.num_genomes + 1]; i = next_sequence.getAndIncrement()) {
+                g = Arrays.binarySearch(first, 1, first.length, i);
+                if (g < 0)
+                    g = -g - 2;
+                else
+                    while (first[g + 1] == i) // skip the genomes without any sequence
+                        ++g;
+                address[0] = g;
+                address[1] = (int)(i - first[g]) + 1;
+                address[2] = 1;
+                address[3] = (int) genomeDb.get_sequence_length(address[0], address[1]);
+                try (Transaction tx = graphDb.beginTx()) {
+                    seq_node = graphDb.findNode(sequence_label, "identifier", address[0] + "_" + address[1]);
+                    start = seq_node.getRelationships(Direction.OUTGOING).iterator().next().getEndNode();
+                    extract_sequence(seq, new IndexPointer(start.getId(), true, 0, -1l), address);
+                    tx.success();
+                }
+                genomeDb.put_sequence(address[0], address[1], seq);
+            }
+        }
+    }
+
     /**
      * Extracts the genomic region belonging to the specified sequence starting at th specified node.
      * 
@@ -573,12 +732,10 @@ public class GenomeLayer {
      * @param address An array determining {genome, sequence, begin, end}properties of the sequence.
      */
     public static void extract_sequence(StringBuilder seq, IndexPointer start_ptr, int[] address) {
-        Relationship rel;
         Node neighbor, node;
-        int[] addr = new int[]{address[0],address[1],address[2],address[3]};
-        int begin = addr[2] - 1, end = addr[3] - 1;
+        int begin = address[2] - 1, end = address[3] - 1;
         int len = 0, node_len, neighbor_len, seq_len, position;
-        String rel_name, origin = "G" + address[0] + "S" + address[1];
+        PathIndex.Cursor cursor = pathsDb.get_cursor();
         seq_len = end - begin + 1;
         seq.setLength(0);
         position = start_ptr.offset;
@@ -598,15 +755,14 @@ public class GenomeLayer {
                 len += append_rev(seq, (String) node.getProperty("sequence"), 0, position);
             }
         }
-    //  traverse the path of the region   
+    //  traverse the path of the region, from the node starting where the first one ends
+        if (len < seq_len)
+            cursor.seek(address[0], address[1], (begin + len) - K_SIZE + 1);
         while (len < seq_len) {
             //System.out.println(node.getId()+" "+len + " " + seq_len);
-            addr[2] = (begin + len) - K_SIZE + 1;
-            rel = get_outgoing_edge(node, origin, addr[2]);
-            neighbor = rel.getEndNode();
-            rel_name = rel.getType().name();
+            neighbor = graphDb.getNodeById(cursor.get_node());
             neighbor_len = (int) neighbor.getProperty("length");
-            if (rel_name.charAt(1) == 'F') {// Enterring forward side
+            if (cursor.is_forward()) {// Enterring forward side
                 if (len + neighbor_len - K_SIZE + 1 > seq_len) // neighbor is the last node of the path
                     len += append_fwd(seq, (String) neighbor.getProperty("sequence"), K_SIZE - 1, seq_len - len + K_SIZE - 2);
                 else 
@@ -617,30 +773,10 @@ public class GenomeLayer {
                 else 
                     len += append_rev(seq, (String) neighbor.getProperty("sequence"), 0, neighbor_len - K_SIZE);
             }
-            node = neighbor;
+            cursor.next();
         } // while
     }
   
-    /**
-     * Give the next node of the path to be traversed through.
-     * 
-     * @param current_node The current node of the path we are located at. 
-     * @param origin 
-     * @param address An array which determine the genome, sequence and position of the desirable outgoing edge.
-     * @return The outgoing edge.
-     */
-    public static Relationship get_outgoing_edge(Node current_node, String origin, int pos) {
-        int[] occurrence;
-        for (Relationship r_out : current_node.getRelationships(Direction.OUTGOING)) {
-            occurrence = (int[])r_out.getProperty(origin, null);
-            if (occurrence != null) {
-                if (Arrays.binarySearch(occurrence, pos) >= 0)
-                    return r_out;
-            }
-        }
-        return null;
-    }
-    
     /**
      * Appends substring s[from..to] to the string builder.
      * @param seq String builder.
@@ -676,727 +812,119 @@ public class GenomeLayer {
      * @return A pointer to the genomic position in the pangenome
      */
     public static IndexPointer locate(int[] addr) {
-        int node_start_pos, low, high, mid , node_len, genomic_pos;
+        int node_start_pos, node_len, genomic_pos;
         boolean forward;
-        Node node, neighbor, seq_node;
-        Relationship rel;
-        String anchor_sides, origin = "G" + addr[0] + "S" + addr[1];
-        long[] anchor_nodes;
-        int[] anchor_positions;
-        int[] address = Arrays.copyOf(addr,addr.length);
-        genomic_pos = address[2] - 1;
-        seq_node = graphDb.findNode(sequence_label, "identifier", address[0]+"_"+address[1]);
-        anchor_nodes = (long[]) seq_node.getProperty("anchor_nodes");
-        anchor_positions = (int[]) seq_node.getProperty("anchor_positions");
-        anchor_sides = (String) seq_node.getProperty("anchor_sides");
-    // Find the immediate preceding anchor_node, searching in the sorted array of anchor positions.      
-        for (low = 0, high = anchor_sides.length() - 1, mid = (low + high) / 2; low <= high; mid = (low + high) / 2) {
-            if (genomic_pos < anchor_positions[mid]) {
-                high = mid - 1;
-            } else if (genomic_pos > anchor_positions[mid]) {
-                low = mid + 1;
-            } else {
-                break;
-            }
-        }
-        if (genomic_pos < anchor_positions[mid]) {
-            --mid;
-        }
-        forward = anchor_sides.charAt(mid) == 'F';
+        long node;
+        PathIndex.Cursor cursor = pathsDb.get_cursor();
+        genomic_pos = addr[2] - 1;
+    // The first node of the path which reaches to the position; the next one starts K - 1 bases before its end
+        cursor.seek(addr[0], addr[1], Math.max(0, genomic_pos - K_SIZE + 1));
+        node = cursor.get_node();
+        forward = cursor.is_forward();
+        node_start_pos = cursor.get_position();
         try (Transaction tx = graphDb.beginTx()) {
-            node = graphDb.getNodeById(anchor_nodes[mid]);
-            node_start_pos = anchor_positions[mid];
-            node_len = (int) node.getProperty("length");
-        // Traverse the pangenome from the anchor node until reach to the target
-            while (node_start_pos + node_len <= genomic_pos) 
-            {
-                address[2] = node_start_pos + node_len - K_SIZE + 1;
-                rel = get_outgoing_edge(node, origin, address[2]);
-                if (rel == null){
-                    System.out.println("Failed to locate address : " + address[0] + " " + address[1] + " "+ address[2]);
-                    break;
-                }
-                neighbor = rel.getEndNode();
-                forward = rel.getType().name().charAt(1) == 'F';
-                node_start_pos += node_len - K_SIZE + 1;
-                node = neighbor;
-                node_len = (int) node.getProperty("length");
-            }
+            node_len = (int) graphDb.getNodeById(node).getProperty("length");
             tx.success();
         }
-        return new IndexPointer(node.getId(), forward, forward ? genomic_pos - node_start_pos : node_len - 1 - (genomic_pos - node_start_pos), -1l);
-    }
-    
-    /***
-     * Creates an edge between source and destination nodes.
-     * 
-     * @param src Source node
-     * @param des Destination node
-     * @param edge_type One of the four possible edge types: FF, FR, RF, RR
-     * @param address Specifies which genomic address the edge points to. 
-     * @return The newly created edge
-     */
-    private void connect(Node src, Node des, RelationshipType edge_type) {
-        if (DEBUG) System.out.println("connect "+src.getId()+" "+edge_type.name()+" "+des.getId());
-        src.createRelationshipTo(des, edge_type);
-    }
-    
-    /**
-     * Splits a node at a specified position by creating a new node called split_node as a part separated from the node.
-     * @param node The node which should be split.
-     * @param pos The position of the split with respect to the start on the node.
-     * @return The newly created split node.
-     */
-    private Node split(Node node, int pos) {
-        int split_len, node_len;
-        int i, s_id, gen, seq, loc,starts_at;
-        long inx,split_first_kmer,node_last_kmer=0;
-        int[] address;
-        Node neighbor, split_node;
-        Relationship rel;
-        address = (int[]) node.getProperty("address");
-        gen = address[0];
-        seq = address[1];
-        loc = address[2];
-        node_len = (int) node.getProperty("length");
-        ++num_nodes;
-        split_node = graphDb.createNode(nucleotide_label);
-        address[0] = gen;
-        address[1] = seq;
-        address[2] = loc + pos;
-        split_node.setProperty("address", address);
-        split_len = node_len - pos;
-        split_node.setProperty("length", split_len);
-    // Updates the edges comming from gene level to the node.    
-        for (Relationship r : node.getRelationships(RelTypes.starts, Direction.INCOMING)) {
-            starts_at = (int)r.getProperty("offset");
-            if (starts_at >= pos) {
-                rel = r.getStartNode().createRelationshipTo(split_node, RelTypes.starts);
-                rel.setProperty("offset", starts_at - pos);
-                rel.setProperty("forward", r.getProperty("forward"));
-                rel.setProperty("genomic_position", r.getProperty("genomic_position"));
-            r.delete();
-            } 
-        }        
-        // Updating the Kmers chain in the index  
-        node_last_kmer=indexDb.find(scanner.make_kmer(gen,seq,loc+pos-1));
-        split_first_kmer=indexDb.get_next_index(node_last_kmer);
-        indexDb.put_next_index(-1L, node_last_kmer); 
-        split_node.setProperty("first_kmer",split_first_kmer);
-        split_node.setProperty("last_kmer",node.getProperty("last_kmer"));
-        s_id=(int)split_node.getId();
-        for(i=0,inx=split_first_kmer;inx!=-1L;inx=indexDb.get_next_index(inx),++i) // update kmer coordinates
-        {
-            indexDb.put_node_id(s_id, inx);
-            indexDb.put_position(i, inx);
-        }  
-        // Moving forward-outgoing and reverse-incoming edges from node to split node.    
-        for (Relationship r : node.getRelationships(Direction.OUTGOING,RelTypes.FR,RelTypes.FF)) {
-            neighbor = r.getEndNode();
-            if (neighbor.equals(node)) 
-                neighbor = r.isType(RelTypes.FF) ? node : split_node;
-            connect(split_node, neighbor, r.getType());
-            r.delete();
-        }
-        for (Relationship r : node.getRelationships(Direction.INCOMING,RelTypes.RR,RelTypes.FR)) {
-            neighbor = r.getStartNode();
-            if (neighbor.equals(node)) 
-                neighbor = r.isType(RelTypes.RR) ? node : split_node;
-            connect(neighbor, split_node, r.getType());
-            r.delete();
-        }
-    //  Connecting node to split node
-        if (node.hasRelationship(Direction.INCOMING, RelTypes.FF, RelTypes.RF)){
-            connect(node, split_node, RelTypes.FF);
-            ++num_edges;
-        }
-        if (split_node.hasRelationship(Direction.INCOMING, RelTypes.FR, RelTypes.RR)){
-            connect(split_node ,node, RelTypes.RR);
-            ++num_edges;
-        }
-        node.setProperty("last_kmer",node_last_kmer);
-        node.setProperty("length", pos + K_SIZE - 1);
-        return split_node;
-    }
-    
-    /**
-     * Creates and extends a new node till reach to a previously visited K-mer or a degenerate region.
-     * 
-     * @param node The node to be extended.
-     */
-    private void create_extend() {
-        int[] address;
-        long node_id,last_kmer;
-        address = scanner.get_address();
-        address[2] -= K_SIZE - 1;
-        ++num_nodes;
-        Node new_node = graphDb.createNode(nucleotide_label);
-        node_id = new_node.getId();
-        if (DEBUG) System.out.println("create "+new_node.getId());
-        new_node.setProperty("address", address);
-        new_node.setProperty("length", K_SIZE);
-        new_node.setProperty("last_kmer",scanner.get_curr_index());
-        new_node.setProperty("first_kmer",scanner.get_curr_index());
-    // Set the pointer to the Kmer in the pointer database    
-        indexDb.put_pointer(new_node.getId(), 0, scanner.get_curr_kmer().get_canonical(), -1l, scanner.get_curr_index());
-        connect(curr_node ,new_node, RelTypes.values()[curr_side*2]);
-        ++num_edges;
-        curr_node = new_node;
-        curr_side = 0;
-
-        if (DEBUG) System.out.println("extending node "+curr_node.getId());
-        int begin, len;
-        last_kmer=(long)curr_node.getProperty("last_kmer");
-        boolean broke;
-        Node degenerate_node = null;
-        len = (int) curr_node.getProperty("length");
-        broke = false;
-        while (!scanner.end_of_sequence()) { // Not reached to the end of the sequence
-            if (DEBUG) System.out.println("extend " + scanner.get_position());
-            if (scanner.get_code(1) > 3) { // hit a degenerate region
-                scanner.next_position();
-                begin = scanner.get_position() - K_SIZE + 1;
-                curr_node.setProperty("length", len);
-                curr_node.setProperty("last_kmer",last_kmer);                
-                scanner.jump_forward();
-                if (scanner.end_of_sequence()){
-                    scanner.next_position();// to acheive the right length for the degenerate node    
-                    finish = true;
-                }                
-                int[] add = scanner.get_address();
-                add[2] = begin;
-                degenerate_node = create_degenerate(add);
-                connect(curr_node ,degenerate_node, RelTypes.FF); 
-                ++num_edges;
-                curr_node = degenerate_node;
-                break;
-            } else {
-                scanner.next_position();
-                scanner.get_curr_kmer().next_kmer(scanner.get_code(0));
-                if (SHOW_KMERS) System.out.println(scanner.get_curr_kmer().toString());
-            }
-            scanner.set_curr_index(indexDb.find(scanner.get_curr_kmer()));
-            if (indexDb.get_node_id(scanner.get_curr_index()) == -1L) {
-                indexDb.put_next_index(scanner.get_curr_index(),last_kmer);
-                ++len;
-                indexDb.put_pointer(node_id, len - K_SIZE, scanner.get_curr_kmer().get_canonical(), -1l, scanner.get_curr_index());
-                last_kmer=scanner.get_curr_index();
-            } else {
-                broke = true;
-                break;
-            }
-        }
-        if (degenerate_node == null){
-            new_node.setProperty("length", len);
-            new_node.setProperty("last_kmer",last_kmer);
-        }
-        if (!broke && scanner.end_of_sequence()) {// because the last kmer is somewhere in the graph we should get connected to
-            finish = true;
-        }
-    }
-
-    /**
-     * Enters the node in which the current Kmer is found in and performs zero, one or two splits.   
-     */
-    private void follow_forward(IndexPointer pointer) {
-        int l, pos, begin, g, s, loc, side;
-        Node node, split_node1, split_node2,des, src, degenerate_node = null;
-        RelationshipType rel_type;
-        int[] address;
-        boolean loop, repeated_edge;
-        pos = pointer.offset;
-        node = graphDb.getNodeById(pointer.node_id);
-        if (DEBUG) System.out.println("follow_forward "+pointer.node_id+" at "+pos);
-    // The first split might be done to seperate the part we need to enter in.
-        if (pos > 0) {  
-            if (DEBUG) System.out.println("first_split "+node.getId()+" at "+pos);
-            split_node1 = split(node, pos);
-            if (loop = (curr_node.equals(node) && curr_side == 0)) 
-                src = split_node1;
-            else 
-                src = curr_node;
-            node = split_node1; // Note : assigning reference variables is dangerous! if split_node changes node will change as well.
-        } else {
-            split_node1 = node;
-            if (loop = (curr_node.equals(node) && curr_side == 0)) 
-                src = split_node1;
-            else 
-                src = curr_node;
-        }
-        des = split_node1;
-        side=curr_side*2;
-        curr_side = 0;
-        l = (int) node.getProperty("length") - K_SIZE;
-        address = (int[]) node.getProperty("address");
-        g = address[0];
-        s = address[1];
-        loc = address[2];
-    // Follow the shared part
-        for (pos = 0; pos <= l && scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(g, s, loc + pos + K_SIZE - 1) == scanner.get_code(0); ++pos) {
-            scanner.next_position();
-         // If hit a degenarate region aplit and branch to a degenerate node 
-            if (scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(0) > 3) {
-                begin = scanner.get_position() - K_SIZE + 1;
-                scanner.jump_forward();
-                if (scanner.end_of_sequence()){
-                    scanner.next_position();// to acheive the right length for the degenerate node    
-                    finish = true;
-                }                
-                if (pos + 1 <= l) {
-                    split_node2 = split(node, pos + 1);
-                    if (loop)
-                        src = split_node2;
-                }
-                int[] add = scanner.get_address();
-                add[2] = begin;
-                degenerate_node = create_degenerate(add);
-                connect(node ,degenerate_node, RelTypes.FF);
-                ++num_edges;
-                break;
-            }
-        }
-        if (scanner.get_position() == scanner.get_sequence_length()) {
-            finish = true;
-        } else if (degenerate_node == null) // build the Kmer of difference 
-            initialize(scanner.get_position() - K_SIZE + 1);
-    //  A second split might be needed   
-        if (degenerate_node == null && pos <= l) {
-            if (DEBUG) System.out.println("second_split "+node.getId()+" at "+pos);
-            split_node2 = split(node, pos);
-            if (loop)
-                src = split_node2;
-        }
-    // connect the current node before doing splits to the split_node1    
-        rel_type = RelTypes.values()[side];
-        repeated_edge = false;
-        for (Relationship r: src.getRelationships(rel_type, Direction.OUTGOING))
-            if (r.getEndNode().equals(des)){
-                repeated_edge = true;
-                break;
-            }
-        if (!repeated_edge){
-            connect(src ,des, rel_type);
-            ++num_edges;
-        }
-        if (degenerate_node != null) {
-            curr_side = 0; // not really needed
-            curr_node = degenerate_node;
-        } else
-            curr_node = node;
+        return new IndexPointer(node, forward, forward ? genomic_pos - node_start_pos : node_len - 1 - (genomic_pos - node_start_pos), -1l);
     }
     
     /**
-     * Enters the forward side of node in which the current Kmer found and performs zero, one or two splits.   
-     */
-    private void follow_reverse(IndexPointer pointer) {
-        int pos, begin, g, s, loc, side;
-        int[] address;
-        Node node, split_node1, split_node2 ,des, src, degenerate_node = null;
-        boolean loop, first_split = false, repeated_edge;
-        pos = pointer.offset;
-        node = graphDb.getNodeById(pointer.node_id);
-        if (DEBUG) System.out.println("follow_reverse "+pointer.node_id+" at "+pos);
-        RelationshipType rel_type;
-        split_node2 = node; //if the second split does not happens remains unchanged
-        if (pos < (int) node.getProperty("length") - K_SIZE) {
-            if (DEBUG) System.out.println("first_split "+node.getId()+" at "+(pos+1));
-            first_split = true;
-            split_node1 = split(node, pos+1);
-            if (loop = curr_node.equals(node) && curr_side == 0) // might be in reverse side due to a follow reverse
-                src = split_node1;
-            else 
-                src = curr_node;
-        } else {
-            split_node1 = node;
-            if (loop = curr_node.equals(node) && curr_side == 0)
-                src = split_node1;
-            else 
-                src = curr_node;
-        }
-        des = node;
-        side=curr_side*2+1;
-        curr_side = 1;
-        address = (int[]) node.getProperty("address");
-        g = address[0];
-        s = address[1];
-        loc = address[2];
-        for (pos = (int) node.getProperty("length") - K_SIZE; pos >= 0 && scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(g, s, loc + pos) == scanner.get_complement_current_code(0); --pos) {
-            scanner.next_position();
-            if (scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(0) > 3) {
-                begin = scanner.get_position() - K_SIZE + 1;
-                scanner.jump_forward();
-                if (scanner.end_of_sequence()){
-                    scanner.next_position();// to acheive the right length for the degenerate node    
-                    finish = true;
-                }                
-                if (pos > 0) {
-                    split_node2 = split(node, pos);
-                    des = split_node2;
-                    if (!first_split && loop)
-                        src = split_node2;
-                }
-                int[] add = scanner.get_address();
-                add[2] = begin;
-                degenerate_node = create_degenerate(add);
-                connect(split_node2, degenerate_node, RelTypes.RF);
-                ++num_edges;
-                break;
-            }
-        }
-        if (scanner.get_position() == scanner.get_sequence_length()) {
-            finish = true;
-        } else if (degenerate_node == null) // build the Kmer of difference 
-            initialize(scanner.get_position() - K_SIZE + 1);
-        if (degenerate_node == null && pos >= 0) {
-            if (DEBUG) System.out.println("second_split "+node.getId()+" at "+ (pos + 1));
-            split_node2 = split(node, pos+1);
-            des = split_node2;
-            if (!first_split && loop)
-                src = split_node2;
-        }
-        rel_type = RelTypes.values()[side];
-        repeated_edge = false;
-        for (Relationship r: src.getRelationships(rel_type, Direction.OUTGOING))
-            if (r.getEndNode().equals(des)){
-                repeated_edge = true;
-                break;
-            }
-        if (!repeated_edge){
-            connect(src ,des, rel_type);
-            ++num_edges;
-        }
-        if (degenerate_node != null) {
-            curr_side = 0;
-            curr_node = degenerate_node;
-        } else
-            curr_node = split_node2;
-    }
-
-    /**
-     * creates a degenerate node starting at "begin" ending at position-1.
-     * @param address The genomic position of the region
+     * Maps the path index of the pangenome into pathsDb. A pangenome made by
+     * an older version has no path index, so it is built from the positions
+     * on the edges first.
      */
-    private Node create_degenerate(int[] address) {
-        ++num_degenerates;
-        ++num_nodes;
-        Node degenerate_node = graphDb.createNode(degenerate_label);
-        degenerate_node.addLabel(nucleotide_label);
-        if (DEBUG) System.out.println("create_degenerate:"+degenerate_node.getId()+" position:"+scanner.get_position()+" begin:"+address[2]);
-        degenerate_node.setProperty("address", address);
-        degenerate_node.setProperty("length", scanner.get_position() - address[2]);
-        return degenerate_node;
-    }
-    
-    private void initialize(int start){
-        Node degenerate_node;
-        if (!scanner.initialize_left_kmer(start, (int)genomeDb.sequence_length[scanner.get_genome()][scanner.get_sequence()])){// start with a degenerate
-            if (scanner.end_of_sequence()){
-                scanner.next_position();// to acheive the right length for the degenerate node    
-                finish = true;
-            }                
-            int[] add = scanner.get_address();
-            add[2] = 0;
-            degenerate_node = create_degenerate(add);
-            connect(curr_node ,degenerate_node, RelTypes.values()[curr_side*2]);
-            ++num_edges;
-            curr_node = degenerate_node;  
-        }
-    }
-    
-    /**
-     * 
-     Constructs the pangenome out of the provided input sequences.
-     */
-    void construct_pangenome(Node pangenome_node) {
-        int trsc = 0;
-        Node genome_node, sequence_node;
-        IndexPointer pointer = new IndexPointer();
-        phaseTime = System.currentTimeMillis();
-        Transaction tx = graphDb.beginTx();
+    private static void open_paths() {
         try {
-            while (!scanner.end_of_scan()) {
-                System.out.println("Processing genome " + scanner.get_genome() + " :             ");
-                genome_node = graphDb.createNode(genome_label);
-                genome_node.setProperty("path", genomeDb.genome_names[scanner.get_genome()]);
-                genome_node.setProperty("number", scanner.get_genome());
-                genome_node.setProperty("num_sequences", genomeDb.num_sequences[scanner.get_genome()]);
-                genome_node.setProperty("date", new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date()));
-                pangenome_node.createRelationshipTo(genome_node, RelTypes.has);
-                while (!scanner.end_of_genome()) {
-                    sequence_node = graphDb.createNode(sequence_label);
-                    sequence_node.setProperty("genome", scanner.get_genome());
-                    sequence_node.setProperty("number", scanner.get_sequence());
-                    sequence_node.setProperty("identifier", scanner.get_genome() + "_" + scanner.get_sequence());
-                    sequence_node.setProperty("title", genomeDb.sequence_titles[scanner.get_genome()][scanner.get_sequence()]);
-                    sequence_node.setProperty("length", genomeDb.sequence_length[scanner.get_genome()][scanner.get_sequence()]);
-                    sequence_node.setProperty("offset", genomeDb.sequence_offset[scanner.get_genome()][scanner.get_sequence()]);
-                    genome_node.createRelationshipTo(sequence_node, RelTypes.has);
-                    finish = false;
-                    System.out.println("sequence " + scanner.get_sequence() + "/" + genomeDb.num_sequences[scanner.get_genome()] + 
-                    " of genome " + scanner.get_genome() + "\tlength=" + genomeDb.sequence_length[scanner.get_genome()][scanner.get_sequence()]);
-                    curr_node = sequence_node;
-                    curr_side = 0;
-                    initialize(0);
-                    while (!finish) {
-                        scanner.set_curr_index(indexDb.find(scanner.get_curr_kmer()));
-                        indexDb.get_pointer(pointer, scanner.get_curr_index());
-                        if (pointer.node_id == -1L) // kmer is new
-                            create_extend();
-                        else if (scanner.get_curr_kmer().get_canonical() ^ pointer.canonical)// if sides don't agree
-                            follow_reverse(pointer);
-                        else 
-                            follow_forward(pointer);
-                        ++trsc;
-                        if (trsc >= MAX_TRANSACTION_SIZE){    
-                            tx.success();
-                            tx.close();
-                            tx = graphDb.beginTx();
-                            trsc = 0;
-                        }
-                    }
-                    connect(curr_node, sequence_node, RelTypes.values()[curr_side*2]);// to point to the last k-mer of the sequence located in the other strand
-                    ++num_edges;
-                    scanner.next_sequence();
-                }//sequences
-                System.out.println((System.currentTimeMillis() - phaseTime) / 1000 + " seconds elapsed.");
-                scanner.next_genome();
-            }//genomes
-            tx.success();
-        } finally {
-            tx.close();
+            if (!PathIndex.exists(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH))
+                build_paths(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH);
+            pathsDb = new PathIndex(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+            System.exit(1);
         }
-        add_sequence_properties();
-        localize_nodes();
     }
-    
+
     /**
-     * To add list of anchor nodes, anchor sides and anchor positions to each sequence_node.
-     * These are used for locating genomic regions very quickly. 
+     * Writes the path index of a pangenome made by an older version, which
+     * kept the start positions of the sequences on the edges they take, in
+     * G{genome}S{sequence} arrays. The edges are left as they are; add_genomes
+     * removes these arrays.
+     *
+     * @param paths_path Path to the path index
      */
-    void localize_nodes() {
-        ResourceIterator<Node> sequence_iterator;
-        LinkedList<Node> sequence_nodes;
-        int anchors_distance, trsc = 0, i, len, m, neighbor_length = 0, count;
-        char node_side, neighbor_side;
+    private static void build_paths(String paths_path) throws IOException {
+        int g, s, position;
         long length;
-        long[] anchor_nodes;
-        int[] anchor_positions;
-        int[] initial_coordinate = new int[1];
-        Node node, neighbor = null, sequence_node;
-        StringBuilder nds = new StringBuilder();
-        StringBuilder pos = new StringBuilder();
-        StringBuilder sds = new StringBuilder();
-        String[] ids_list, posis_list;
-        String rel_name,origin;
-        int[] positions;
-        int[] new_positions;
-        int[] address = new int[3], addr = null;
-        boolean is_node = false, is_degenerate = false, found = true;
-        try (Transaction tx = graphDb.beginTx()){
-            sequence_iterator = graphDb.findNodes(sequence_label);
-            sequence_nodes = new LinkedList();
-            while (sequence_iterator.hasNext())
-                sequence_nodes.add(sequence_iterator.next());
-            sequence_iterator.close();
-            tx.success();
-        }
-
-        Transaction tx = graphDb.beginTx();
-        try {
-            while (!sequence_nodes.isEmpty()){
-                sequence_node = sequence_nodes.remove();
-                origin = "G" + ((String)sequence_node.getProperty("identifier")).replace('_', 'S');
-                address[0] = (int)sequence_node.getProperty("genome");
-                address[1] = (int)sequence_node.getProperty("number");
-                System.out.println("\rLocalizing sequence "+address[1] + "/" + genomeDb.num_sequences[address[0]] + " of genome " + address[0] + "                        ");
-                length = genomeDb.sequence_length[address[0]][address[1]] - 1;
-                anchors_distance = (int)num_nodes / ANCHORS + 1;
-                node = sequence_node;
-                node_side = 'F';
-                count = 0;
-                for (address[2] = 0; address[2] + K_SIZE - 1 <= length && found;){ // K-1 bases of the last node not added
-                    //System.out.println((address[2] + K - 1)+" ? " + length);
-                    found = false;
-                    for (Relationship r : node.getRelationships(Direction.OUTGOING)) {
-                        rel_name = r.getType().name();
-                        if (rel_name.charAt(0) != node_side)
-                            continue;
-                        neighbor = r.getEndNode();
-                        neighbor_side = rel_name.charAt(1);
-                        is_node = neighbor.hasLabel(nucleotide_label) && !neighbor.hasLabel(degenerate_label);
-                        is_degenerate = neighbor.hasLabel(degenerate_label);
-                        if (is_node || is_degenerate){
-                            addr = (int[]) neighbor.getProperty("address");
-                            neighbor_length = (int) neighbor.getProperty("length");
-                        }
-                        //System.out.println(node.getId()+" "+address[2]+" "+node_side);
-                        //System.out.println(neighbor.getId()+" "+addr[2]+" "+neighbor_side);
-                        if ((is_node && scanner.compare(address, addr, K_SIZE - 1,
-                                neighbor_side == 'F' ? K_SIZE - 1 : neighbor_length - K_SIZE, 1, neighbor_side == 'F'))
-                                || (is_degenerate && Arrays.equals(addr, address))) {
-                            //System.out.println("found "+address[2]+" "+neighbor.getId());
-                            found = true;
-                            positions = (int[]) r.getProperty(origin, null);
-                            if (positions != null) {
-                                len = positions.length;
-                                new_positions = new int[len + 1];
-                                for (i = 0; i < len; ++i) {
-                                    new_positions[i] = positions[i];
-                                }
-                                new_positions[i] = address[2];
-                                r.setProperty(origin, new_positions);
-                                if (len > 1000)
-                                    neighbor.addLabel(low_complexity_label);
-                            } else {
-                                initial_coordinate[0] = address[2];
-                                r.setProperty(origin, initial_coordinate);
-                            }
-                            if (count % anchors_distance == 0) {
-                                nds.append(neighbor.getId()).append(" ");
-                                sds.append(neighbor_side);
-                                pos.append(address[2]).append(" ");
-                            }
-                            count++;
-                            address[2] = address[2] + neighbor_length - K_SIZE + 1;
-                            node = neighbor;
-                            node_side = neighbor_side;
-                            break;
-                        }
-                    }
-                    ++trsc;
-                    if (trsc >= 1000 * MAX_TRANSACTION_SIZE){
-                        tx.success();
-                        tx.close();
-                        tx = graphDb.beginTx();
-                        trsc = 0;
+        Node node;
+        Relationship rel;
+        Iterator<Relationship> first;
+        String origin;
+        System.out.println("Building the path index from the positions on the edges...");
+        PathIndex.Writer writer = new PathIndex.Writer(paths_path, genomeDb.num_genomes, genomeDb.num_sequences);
+        try (Transaction tx = graphDb.beginTx()) {
+            for (g = 1; g <= genomeDb.num_genomes; ++g)
+                for (s = 1; s <= genomeDb.num_sequences[g]; ++s) {
+                    writer.start_path(g, s);
+                    origin = "G" + g + "S" + s;
+                    length = genomeDb.get_sequence_length(g, s);
+                    first = graphDb.findNode(sequence_label, "identifier", g + "_" + s).getRelationships(Direction.OUTGOING).iterator();
+                // Like the new paths, the last K - 1 bases of a sequence start no node
+                    for (rel = first.hasNext() ? first.next() : null, position = 0; rel != null && position + K_SIZE <= length; ) {
+                        node = rel.getEndNode();
+                        writer.add_step(node.getId(), rel.getType().name().charAt(1) == 'F', position);
+                        position += (int) node.getProperty("length") - K_SIZE + 1;
+                        rel = get_outgoing_edge(node, origin, position);
                     }
-                    //System.out.print("%" + address[2] * 100 / length + "\t\r");
                 }
-                if (!found) {
-                    System.out.println("Could not locate position " + address[2] + " from node ID=" + node.getId());
-                    System.exit(1);
-                }
-                m = sds.length();
-                ids_list = nds.toString().split("\\s");
-                posis_list = pos.toString().split("\\s");
-                anchor_nodes = new long[m];
-                anchor_positions = new int[m];
-                for (i = 0; i < m; ++i) {
-                    anchor_nodes[i] = Long.valueOf(ids_list[i]);
-                    anchor_positions[i] = Integer.valueOf(posis_list[i]);
-                }
-                sequence_node.setProperty("anchor_nodes", anchor_nodes);
-                sequence_node.setProperty("anchor_positions", anchor_positions);
-                sequence_node.setProperty("anchor_sides", sds.toString());
-                nds.setLength(0);
-                pos.setLength(0);
-                sds.setLength(0);
-            }//while
-            System.out.println((System.currentTimeMillis() - phaseTime) / 1000 + " seconds elapsed.");
             tx.success();
-        } finally {
-           tx.close();
         }
-        System.out.println();
+        writer.close();
     }
 
     /**
-     * Extracts the sequence of the nodes from the genome database and store it as a property of the node.
+     * Gives the outgoing edge of a node which a sequence of an older pangenome
+     * takes at a position, or null if there is none.
+     *
+     * @param current_node The node
+     * @param origin The name of the positions of the sequence on the edges, G{genome}S{sequence}
+     * @param pos The position of the sequence the next node starts at
      */
-    void add_sequence_properties() {
-        int trsc = 0, node_length;
-        int[] addr;
-        Node node;
-        ResourceIterator<Node> nodes_iterator;
-        LinkedList<Node> nodes = new LinkedList();
-        StringBuilder sequence = new StringBuilder();
-        System.out.println("Adding sequence to the nodes...");
-        try(Transaction tx = graphDb.beginTx()){
-            nodes_iterator = graphDb.findNodes(nucleotide_label);
-            while (nodes_iterator.hasNext()){
-                nodes.add(nodes_iterator.next());
-            }
-            tx.success();
-            nodes_iterator.close();
-        }
-        Transaction tx = graphDb.beginTx();
-        try {
-        //num_bases = K - 1; // for the missed overlapped of the last node of each sequence which will not be stored 
-            while (!nodes.isEmpty()){
-                node = nodes.remove();
-                addr = (int[]) node.getProperty("address");
-                node_length = (int) node.getProperty("length");
-                num_bases += node_length;
-                sequence.setLength(0);
-                //num_bases += node_length - K + 1;
-                //node.setProperty("sequence", genomeDb.get_sequence(addr[0], addr[1], addr[2], node_length - K + 1, true).toString());
-                scanner.get_sub_sequence(sequence, addr[0], addr[1], addr[2], node_length, true);
-                node.setProperty("sequence", sequence.toString());
-                ++trsc;
-                if (trsc >= MAX_TRANSACTION_SIZE){
-                    tx.success();
-                    tx.close();
-                    tx = graphDb.beginTx();
-                    trsc = 0;
-                }
-            }
-            tx.success();
-        } finally {
-            tx.close();
+    private static Relationship get_outgoing_edge(Node current_node, String origin, int pos) {
+        int[] occurrence;
+        for (Relationship r_out : current_node.getRelationships(Direction.OUTGOING)) {
+            occurrence = (int[])r_out.getProperty(origin, null);
+            if (occurrence != null && Arrays.binarySearch(occurrence, pos) >= 0)
+                return r_out;
         }
+        return null;
     }
 
-    /**
-     * Remove the given property from all the nodes and degenerates.
-     * @param property 
-     */    
-    void drop_nodes_property(String property) {
-        int i;
-        ResourceIterator<Node> nodes_iterator;
-        LinkedList<Node> nodes = new LinkedList();
-        Node node;
-        try(Transaction tx = graphDb.beginTx()){
-            nodes_iterator = graphDb.findNodes(nucleotide_label);
-            while (nodes_iterator.hasNext()){
-                nodes.add(nodes_iterator.next());
-            }
-            tx.success();
-            nodes_iterator.close();
-        }
-        while (!nodes.isEmpty()) {
-            try (Transaction tx = graphDb.beginTx()) {
-                for (i = 0; i < MAX_TRANSACTION_SIZE && !nodes.isEmpty(); ++i) {
-                    node = nodes.remove();
-                    node.removeProperty(property);
-                }
-                tx.success();
-            }
+    private static void close_paths() {
+        try {
+            pathsDb.close();
+            pathsDb = null;
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+            System.exit(1);
         }
     }
 
     /**
-     * Remove the occurrence arrays of the edges.
-     */    
-    void drop_edges_colors() {
-        int i;
-        ResourceIterator<Relationship> rels;
-        Relationship r;
-        try (Transaction tx = graphDb.beginTx()) {
-            rels = graphDb.getAllRelationships().iterator();
-            tx.success();
-        }
-        while (rels.hasNext()) {
-            try (Transaction tx = graphDb.beginTx()) {
-                for (i = 0; i < MAX_TRANSACTION_SIZE && rels.hasNext(); ++i) {
-                    r = rels.next();
-                    if (r.isType(RelTypes.FF) || r.isType(RelTypes.FR) || r.isType(RelTypes.RF) || r.isType(RelTypes.RR))
-                        for(String p:r.getPropertyKeys())
-                            r.removeProperty(p);
-                }
-                tx.success();
-            }
+     * Constructs the pangenome of the genomes of the scanner in a GraphStore
+     * loaded from the graph database, and writes the changes back into it.
+     */
+    private void construct_pangenome() {
+        GraphBuilder builder;
+        try {
+            builder = new GraphBuilder(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_STORE_PATH);
+            builder.load_graph();
+            builder.construct_pangenome();
+            builder.flush_graph(PATH_TO_THE_PANGENOME_DATABASE + PATHS_DATABASE_PATH);
+        } catch (IOException ioe) {
+            System.out.println(ioe.getMessage());
+            System.exit(1);
         }
-        rels.close();
     }
 
     /**
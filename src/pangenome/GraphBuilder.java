@@ -0,0 +1,897 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import index.IndexPointer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import pantools.Pantools.RelTypes;
+import static pantools.Pantools.ANCHORS;
+import static pantools.Pantools.DEBUG;
+import static pantools.Pantools.K_SIZE;
+import static pantools.Pantools.MAX_TRANSACTION_SIZE;
+import static pantools.Pantools.SHOW_KMERS;
+import static pantools.Pantools.THREADS;
+import static pantools.Pantools.UNITIG_BUILD;
+import static pantools.Pantools.degenerate_label;
+import static pantools.Pantools.genomeDb;
+import static pantools.Pantools.genome_label;
+import static pantools.Pantools.graphDb;
+import static pantools.Pantools.indexDb;
+import static pantools.Pantools.low_complexity_label;
+import static pantools.Pantools.nucleotide_label;
+import static pantools.Pantools.num_bases;
+import static pantools.Pantools.num_degenerates;
+import static pantools.Pantools.num_edges;
+import static pantools.Pantools.num_nodes;
+import static pantools.Pantools.pangenome_label;
+import static pantools.Pantools.phaseTime;
+import static pantools.Pantools.scanner;
+import static pantools.Pantools.sequence_label;
+
+/**
+ * Constructs the pangenome graph in a GraphStore, so the construction reads
+ * and changes no property or relationship of Neo4j. The graph is written at
+ * the end, either into an empty graph database at once through the batch
+ * inserter of Neo4j, or through transactions into the graph database it was
+ * loaded from.
+ *
+ * The nodes made by the builder are numbered in the order they are made; the
+ * batch inserter keeps these numbers, otherwise they are replaced by the ones
+ * the database gives. The sequences of the nodes are only made while writing
+ * the graph, and the paths of the sequences, with the numbers of the nodes in
+ * the database, are written into the path index then.
+ *
+ * With UNITIG_BUILD the extensions of the kmers are marked first, and a new
+ * node is only extended to the end of its unitig, so the splits are left for
+ * the nodes of a graph the genomes are added to.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class GraphBuilder {
+    private static final int FF = RelTypes.FF.ordinal();
+    private static final int RF = RelTypes.RF.ordinal();
+    private static final int RR = RelTypes.RR.ordinal();
+    private static final int HAS = RelTypes.has.ordinal();
+    private static final String ANCHORS_FILE = "/anchors";
+    private static final String SPLITS_FILE = "/splits";
+    private static final String DEGREES_FILE = "/degrees";
+    private static final String PATHS_FILE = "/paths";
+    private final GraphStore store;
+    private long pangenome_node = -1;
+    private DataOutputStream splits;    // The log of the splits, if there are "starts" edges to be moved
+    private boolean old_occurrences;    // Determines if the loaded edges have the positions of the older versions
+    private long curr_node;
+    private byte curr_side;
+    private boolean finish;
+    private KmerFinder finder;     // Looks up the kmers ahead of the scanner
+    private KmerDegrees degrees;   // The extensions of the kmers, if the nodes are made whole
+
+    /**
+     * The constructor
+     *
+     * @param store_path Path to the folder of the graph store
+     */
+    public GraphBuilder(String store_path) throws IOException {
+        store = new GraphStore(store_path);
+    }
+
+    /**
+     * Loads the pangenome, genome, sequence and nucleotide nodes of the graph
+     * database, and the edges between the nucleotide nodes, into the store;
+     * they keep their numbers.
+     */
+    public void load_graph() throws IOException {
+        long node, edge;
+        int l;
+        int[] address;
+        RelationshipType type;
+        System.out.println("Loading the graph...");
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node n: graphDb.getAllNodes()) {
+                node = n.getId();
+                if (n.hasLabel(nucleotide_label)) {
+                    l = GraphStore.NUCLEOTIDE;
+                    if (n.hasLabel(degenerate_label))
+                        l |= GraphStore.DEGENERATE;
+                    if (n.hasLabel(low_complexity_label))
+                        l |= GraphStore.LOW_COMPLEXITY;
+                    store.create_node(node, l);
+                    address = (int[]) n.getProperty("address");
+                    store.set_address(node, address[0], address[1], address[2]);
+                    store.set_length(node, (int) n.getProperty("length"));
+                    if ((l & GraphStore.DEGENERATE) == 0) {
+                        store.set_first_kmer(node, (long) n.getProperty("first_kmer"));
+                        store.set_last_kmer(node, (long) n.getProperty("last_kmer"));
+                    }
+                } else if (n.hasLabel(sequence_label)) {
+                    store.create_node(node, GraphStore.SEQUENCE);
+                    store.set_address(node, (int) n.getProperty("genome"), (int) n.getProperty("number"), 0);
+                } else if (n.hasLabel(genome_label)) {
+                    store.create_node(node, GraphStore.GENOME);
+                    store.set_address(node, (int) n.getProperty("number"), 0, 0);
+                } else if (n.hasLabel(pangenome_label)) {
+                    store.create_node(node, GraphStore.PANGENOME);
+                    pangenome_node = node;
+                } else
+                    continue;
+                store.set_node_id(node, node);
+            }
+            for (Relationship r: graphDb.getAllRelationships()) {
+                type = r.getType();
+                if (type.name().equals(RelTypes.starts.name())) {
+                    if (splits == null)
+                        splits = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store.get_path() + SPLITS_FILE), 1 << 16));
+                } else if (type.name().length() == 2) { // FF, FR, RF or RR
+                    edge = store.connect(r.getStartNode().getId(), r.getEndNode().getId(), RelTypes.valueOf(type.name()).ordinal());
+                    store.set_edge_id(edge, r.getId());
+                    if (!old_occurrences && r.getPropertyKeys().iterator().hasNext())
+                        old_occurrences = true;
+                }
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Constructs the pangenome of all the genomes of the scanner in the store,
+     * and localizes the sequences in it.
+     *
+     * @return The number of the pangenome node
+     */
+    public long construct_pangenome() throws IOException {
+        long genome_node, sequence_node;
+        IndexPointer pointer = new IndexPointer();
+        phaseTime = System.currentTimeMillis();
+        if (UNITIG_BUILD) {
+            degrees = new KmerDegrees(store.get_path() + DEGREES_FILE, indexDb.length());
+            degrees.mark(scanner.get_genome(), genomeDb.num_genomes, THREADS);
+        }
+        finder = new KmerFinder(scanner.get_genome(), genomeDb.num_genomes, THREADS, degrees);
+        if (pangenome_node == -1)
+            pangenome_node = store.create_node(GraphStore.PANGENOME);
+        while (!scanner.end_of_scan()) {
+            System.out.println("Processing genome " + scanner.get_genome() + " :             ");
+            genome_node = store.create_node(GraphStore.GENOME);
+            store.set_address(genome_node, scanner.get_genome(), 0, 0);
+            store.connect(pangenome_node, genome_node, HAS);
+            while (!scanner.end_of_genome()) {
+                sequence_node = store.create_node(GraphStore.SEQUENCE);
+                store.set_address(sequence_node, scanner.get_genome(), scanner.get_sequence(), 0);
+                store.connect(genome_node, sequence_node, HAS);
+                finish = false;
+                System.out.println("sequence " + scanner.get_sequence() + "/" + genomeDb.num_sequences[scanner.get_genome()] +
+                " of genome " + scanner.get_genome() + "\tlength=" + genomeDb.get_sequence_length(scanner.get_genome(), scanner.get_sequence()));
+                curr_node = sequence_node;
+                curr_side = 0;
+                initialize(0);
+                while (!finish) {
+                    scanner.set_curr_index(finder.get_rank(scanner.get_genome(), scanner.get_sequence(), scanner.get_position()));
+                    indexDb.get_pointer(pointer, scanner.get_curr_index());
+                    if (pointer.node_id == -1L) // kmer is new
+                        create_extend();
+                    else if (scanner.get_curr_kmer().get_canonical() ^ pointer.canonical)// if sides don't agree
+                        follow_reverse(pointer);
+                    else
+                        follow_forward(pointer);
+                }
+                store.connect(curr_node, sequence_node, curr_side * 2);// to point to the last k-mer of the sequence located in the other strand
+                ++num_edges;
+                scanner.next_sequence();
+            }//sequences
+            System.out.println((System.currentTimeMillis() - phaseTime) / 1000 + " seconds elapsed.");
+            scanner.next_genome();
+        }//genomes
+        finder.close();
+        if (degrees != null) {
+            degrees.close();
+            degrees = null;
+        }
+        localize_nodes();
+        return pangenome_node;
+    }
+
+    /**
+     * Splits a node at a specified position by creating a new node called split_node as a part separated from the node.
+     * @param node The node which should be split.
+     * @param pos The position of the split with respect to the start on the node.
+     * @return The newly created split node.
+     */
+    private long split(long node, int pos) throws IOException {
+        int i, gen, seq, loc, split_len, node_len, t;
+        long inx, split_first_kmer, node_last_kmer, split_node, neighbor, r, next;
+        gen = store.get_genome(node);
+        seq = store.get_sequence(node);
+        loc = store.get_position(node);
+        node_len = store.get_length(node);
+        ++num_nodes;
+        split_node = store.create_node(GraphStore.NUCLEOTIDE);
+        store.set_address(split_node, gen, seq, loc + pos);
+        split_len = node_len - pos;
+        store.set_length(split_node, split_len);
+        // Updating the Kmers chain in the index
+        node_last_kmer = indexDb.find(scanner.make_kmer(gen, seq, loc + pos - 1));
+        split_first_kmer = indexDb.get_next_index(node_last_kmer);
+        indexDb.put_next_index(-1L, node_last_kmer);
+        store.set_first_kmer(split_node, split_first_kmer);
+        store.set_last_kmer(split_node, store.get_last_kmer(node));
+        for (i = 0, inx = split_first_kmer; inx != -1L; inx = indexDb.get_next_index(inx), ++i) // update kmer coordinates
+        {
+            indexDb.put_node_id(split_node, inx);
+            indexDb.put_position(i, inx);
+        }
+        // Moving forward-outgoing and reverse-incoming edges from node to split node.
+        for (r = store.first_out(node); r != -1; r = next) {
+            next = store.next_out(r);
+            t = store.get_type(r);
+            if (t != RelTypes.FR.ordinal() && t != FF)
+                continue;
+            neighbor = store.get_dst(r);
+            if (neighbor == node)
+                neighbor = t == FF ? node : split_node;
+            store.connect(split_node, neighbor, t);
+            store.delete_edge(r);
+        }
+        for (r = store.first_in(node); r != -1; r = next) {
+            next = store.next_in(r);
+            t = store.get_type(r);
+            if (t != RR && t != RelTypes.FR.ordinal())
+                continue;
+            neighbor = store.get_src(r);
+            if (neighbor == node)
+                neighbor = t == RR ? node : split_node;
+            store.connect(neighbor, split_node, t);
+            store.delete_edge(r);
+        }
+    //  Connecting node to split node
+        if (store.has_incoming(node, FF, RF)){
+            store.connect(node, split_node, FF);
+            ++num_edges;
+        }
+        if (store.has_incoming(split_node, RelTypes.FR.ordinal(), RR)){
+            store.connect(split_node, node, RR);
+            ++num_edges;
+        }
+        store.set_last_kmer(node, node_last_kmer);
+        store.set_length(node, pos + K_SIZE - 1);
+        store.add_labels(node, GraphStore.CHANGED);
+        if (splits != null) {
+            splits.writeLong(node);
+            splits.writeInt(pos);
+            splits.writeLong(split_node);
+        }
+        return split_node;
+    }
+
+    /**
+     * Creates and extends a new node till reach to a previously visited K-mer or a degenerate region,
+     * or, if the degrees of the kmers are known, to the end of the unitig.
+     */
+    private void create_extend() throws IOException {
+        int[] address;
+        long new_node, last_kmer, degenerate_node = -1;
+        int begin, len;
+        boolean broke = false;
+        address = scanner.get_address();
+        address[2] -= K_SIZE - 1;
+        ++num_nodes;
+        new_node = store.create_node(GraphStore.NUCLEOTIDE);
+        if (DEBUG) System.out.println("create " + new_node);
+        store.set_address(new_node, address[0], address[1], address[2]);
+        last_kmer = scanner.get_curr_index();
+        store.set_first_kmer(new_node, last_kmer);
+    // Set the pointer to the Kmer in the pointer database
+        indexDb.put_pointer(new_node, 0, scanner.get_curr_kmer().get_canonical(), -1l, scanner.get_curr_index());
+        store.connect(curr_node, new_node, curr_side * 2);
+        ++num_edges;
+        curr_node = new_node;
+        curr_side = 0;
+        len = K_SIZE;
+        while (!scanner.end_of_sequence()) { // Not reached to the end of the sequence
+            if (scanner.get_code(1) > 3) { // hit a degenerate region
+                scanner.next_position();
+                begin = scanner.get_position() - K_SIZE + 1;
+                scanner.jump_forward();
+                if (scanner.end_of_sequence()){
+                    scanner.next_position();// to acheive the right length for the degenerate node
+                    finish = true;
+                }
+                int[] add = scanner.get_address();
+                add[2] = begin;
+                degenerate_node = create_degenerate(add);
+                store.connect(curr_node, degenerate_node, FF);
+                ++num_edges;
+                curr_node = degenerate_node;
+                break;
+            } else {
+                scanner.next_position();
+                scanner.get_curr_kmer().next_kmer(scanner.get_code(0));
+                if (SHOW_KMERS) System.out.println(scanner.get_curr_kmer().toString());
+            }
+            scanner.set_curr_index(finder.get_rank(scanner.get_genome(), scanner.get_sequence(), scanner.get_position()));
+            if (indexDb.get_node_id(scanner.get_curr_index()) == -1L && (degrees == null ||
+                    finder.unique_path(scanner.get_genome(), scanner.get_sequence(), scanner.get_position()))) {
+                indexDb.put_next_index(scanner.get_curr_index(), last_kmer);
+                ++len;
+                indexDb.put_pointer(new_node, len - K_SIZE, scanner.get_curr_kmer().get_canonical(), -1l, scanner.get_curr_index());
+                last_kmer = scanner.get_curr_index();
+            } else {
+                broke = true;
+                break;
+            }
+        }
+        store.set_length(new_node, len);
+        store.set_last_kmer(new_node, last_kmer);
+        if (!broke && scanner.end_of_sequence()) {// because the last kmer is somewhere in the graph we should get connected to
+            finish = true;
+        }
+    }
+
+    /**
+     * Enters the node in which the current Kmer is found in and performs zero, one or two splits.
+     */
+    private void follow_forward(IndexPointer pointer) throws IOException {
+        int l, pos, begin, g, s, loc, side;
+        long node, split_node1, des, src, degenerate_node = -1;
+        boolean loop;
+        pos = pointer.offset;
+        node = pointer.node_id;
+        if (DEBUG) System.out.println("follow_forward " + node + " at " + pos);
+    // The first split might be done to seperate the part we need to enter in.
+        if (pos > 0) {
+            split_node1 = split(node, pos);
+            node = split_node1;
+        } else
+            split_node1 = node;
+        loop = curr_node == pointer.node_id && curr_side == 0;
+        src = loop ? split_node1 : curr_node;
+        des = split_node1;
+        side = curr_side * 2;
+        curr_side = 0;
+        l = store.get_length(node) - K_SIZE;
+        g = store.get_genome(node);
+        s = store.get_sequence(node);
+        loc = store.get_position(node);
+    // Follow the shared part
+        for (pos = 0; pos <= l && scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(g, s, loc + pos + K_SIZE - 1) == scanner.get_code(0); ++pos) {
+            scanner.next_position();
+         // If hit a degenarate region aplit and branch to a degenerate node
+            if (scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(0) > 3) {
+                begin = scanner.get_position() - K_SIZE + 1;
+                scanner.jump_forward();
+                if (scanner.end_of_sequence()){
+                    scanner.next_position();// to acheive the right length for the degenerate node
+                    finish = true;
+                }
+                if (pos + 1 <= l) {
+                    if (loop)
+                        src = split(node, pos + 1);
+                    else
+                        split(node, pos + 1);
+                }
+                int[] add = scanner.get_address();
+                add[2] = begin;
+                degenerate_node = create_degenerate(add);
+                store.connect(node, degenerate_node, FF);
+                ++num_edges;
+                break;
+            }
+        }
+        if (scanner.get_position() == scanner.get_sequence_length()) {
+            finish = true;
+        } else if (degenerate_node == -1) // build the Kmer of difference
+            initialize(scanner.get_position() - K_SIZE + 1);
+    //  A second split might be needed
+        if (degenerate_node == -1 && pos <= l) {
+            if (loop)
+                src = split(node, pos);
+            else
+                split(node, pos);
+        }
+    // connect the current node before doing splits to the split_node1
+        connect_once(src, des, side);
+        curr_node = degenerate_node != -1 ? degenerate_node : node;
+    }
+
+    /**
+     * Enters the forward side of node in which the current Kmer found and performs zero, one or two splits.
+     */
+    private void follow_reverse(IndexPointer pointer) throws IOException {
+        int pos, begin, g, s, loc, side;
+        long node, split_node1, split_node2, des, src, degenerate_node = -1;
+        boolean loop, first_split = false;
+        pos = pointer.offset;
+        node = pointer.node_id;
+        if (DEBUG) System.out.println("follow_reverse " + node + " at " + pos);
+        split_node2 = node; //if the second split does not happens remains unchanged
+        if (pos < store.get_length(node) - K_SIZE) {
+            first_split = true;
+            split_node1 = split(node, pos + 1);
+        } else
+            split_node1 = node;
+        loop = curr_node == node && curr_side == 0; // might be in reverse side due to a follow reverse
+        src = loop ? split_node1 : curr_node;
+        des = node;
+        side = curr_side * 2 + 1;
+        curr_side = 1;
+        g = store.get_genome(node);
+        s = store.get_sequence(node);
+        loc = store.get_position(node);
+        for (pos = store.get_length(node) - K_SIZE; pos >= 0 && scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(g, s, loc + pos) == scanner.get_complement_current_code(0); --pos) {
+            scanner.next_position();
+            if (scanner.get_position() <= scanner.get_sequence_length() - 1 && scanner.get_code(0) > 3) {
+                begin = scanner.get_position() - K_SIZE + 1;
+                scanner.jump_forward();
+                if (scanner.end_of_sequence()){
+                    scanner.next_position();// to acheive the right length for the degenerate node
+                    finish = true;
+                }
+                if (pos > 0) {
+                    split_node2 = split(node, pos);
+                    des = split_node2;
+                    if (!first_split && loop)
+                        src = split_node2;
+                }
+                int[] add = scanner.get_address();
+                add[2] = begin;
+                degenerate_node = create_degenerate(add);
+                store.connect(split_node2, degenerate_node, RF);
+                ++num_edges;
+                break;
+            }
+        }
+        if (scanner.get_position() == scanner.get_sequence_length()) {
+            finish = true;
+        } else if (degenerate_node == -1) // build the Kmer of difference
+            initialize(scanner.get_position() - K_SIZE + 1);
+        if (degenerate_node == -1 && pos >= 0) {
+            split_node2 = split(node, pos + 1);
+            des = split_node2;
+            if (!first_split && loop)
+                src = split_node2;
+        }
+        connect_once(src, des, side);
+        if (degenerate_node != -1) {
+            curr_side = 0;
+            curr_node = degenerate_node;
+        } else
+            curr_node = split_node2;
+    }
+
+    /**
+     * Connects two nodes with an edge of a type, unless they already are.
+     */
+    private void connect_once(long src, long des, int type) throws IOException {
+        for (long r = store.first_out(src); r != -1; r = store.next_out(r))
+            if (store.get_type(r) == type && store.get_dst(r) == des)
+                return;
+        store.connect(src, des, type);
+        ++num_edges;
+    }
+
+    /**
+     * creates a degenerate node starting at "begin" ending at position-1.
+     * @param address The genomic position of the region
+     */
+    private long create_degenerate(int[] address) throws IOException {
+        ++num_degenerates;
+        ++num_nodes;
+        long degenerate_node = store.create_node(GraphStore.DEGENERATE | GraphStore.NUCLEOTIDE);
+        if (DEBUG) System.out.println("create_degenerate:" + degenerate_node + " position:" + scanner.get_position() + " begin:" + address[2]);
+        store.set_address(degenerate_node, address[0], address[1], address[2]);
+        store.set_length(degenerate_node, scanner.get_position() - address[2]);
+        return degenerate_node;
+    }
+
+    private void initialize(int start) throws IOException {
+        long degenerate_node;
+        if (!scanner.initialize_left_kmer(start, (int)genomeDb.get_sequence_length(scanner.get_genome(), scanner.get_sequence()))){// start with a degenerate
+            if (scanner.end_of_sequence()){
+                scanner.next_position();// to acheive the right length for the degenerate node
+                finish = true;
+            }
+            int[] add = scanner.get_address();
+            add[2] = 0;
+            degenerate_node = create_degenerate(add);
+            store.connect(curr_node, degenerate_node, curr_side * 2);
+            ++num_edges;
+            curr_node = degenerate_node;
+        }
+    }
+
+    /**
+     * Follows the path of every sequence in the graph, counting the
+     * occurrences of the edges and writing the path and the anchors of the
+     * sequence.
+     */
+    private void localize_nodes() throws IOException {
+        int anchors_distance, neighbor_length = 0, count, m, type;
+        long node, neighbor, sequence_node, length, r;
+        boolean is_node, is_degenerate, found = true;
+        boolean node_forward, neighbor_forward = true;
+        int[] address = new int[3], addr = new int[3];
+        long[] anchor_nodes = new long[16];
+        int[] anchor_positions = new int[16];
+        byte[] anchor_sides = new byte[16];
+        try (DataOutputStream anchors = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store.get_path() + ANCHORS_FILE), 1 << 16));
+            DataOutputStream paths = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(store.get_path() + PATHS_FILE), 1 << 16))) {
+            for (sequence_node = 0; sequence_node < store.num_nodes(); ++sequence_node) {
+                if (!store.has_label(sequence_node, GraphStore.SEQUENCE))
+                    continue;
+                address[0] = store.get_genome(sequence_node);
+                address[1] = store.get_sequence(sequence_node);
+                System.out.println("\rLocalizing sequence "+address[1] + "/" + genomeDb.num_sequences[address[0]] + " of genome " + address[0] + "                        ");
+                length = genomeDb.get_sequence_length(address[0], address[1]) - 1;
+                anchors_distance = (int)num_nodes / ANCHORS + 1;
+                node = sequence_node;
+                node_forward = true;
+                count = m = 0;
+                paths.writeInt(address[0]);
+                paths.writeInt(address[1]);
+                for (address[2] = 0; address[2] + K_SIZE - 1 <= length && found;){ // K-1 bases of the last node not added
+                    found = false;
+                    for (r = store.first_out(node); r != -1; r = store.next_out(r)) {
+                        type = store.get_type(r);
+                        if (type > RR || (type < RF) != node_forward)
+                            continue;
+                        neighbor = store.get_dst(r);
+                        neighbor_forward = type % 2 == 0;
+                        is_degenerate = store.has_label(neighbor, GraphStore.DEGENERATE);
+                        is_node = store.has_label(neighbor, GraphStore.NUCLEOTIDE) && !is_degenerate;
+                        if (is_node || is_degenerate){
+                            store.get_address(neighbor, addr);
+                            neighbor_length = store.get_length(neighbor);
+                        }
+                        if ((is_node && scanner.compare(address, addr, K_SIZE - 1,
+                                neighbor_forward ? K_SIZE - 1 : neighbor_length - K_SIZE, 1, neighbor_forward))
+                                || (is_degenerate && Arrays.equals(addr, address))) {
+                            found = true;
+                            paths.writeLong(neighbor);
+                            paths.writeBoolean(neighbor_forward);
+                            paths.writeInt(address[2]);
+                            if (store.add_occurrence(r, sequence_node) > 1000 && !store.has_label(neighbor, GraphStore.LOW_COMPLEXITY))
+                                store.add_labels(neighbor, GraphStore.LOW_COMPLEXITY | GraphStore.CHANGED);
+                            if (count % anchors_distance == 0) {
+                                if (m == anchor_nodes.length) {
+                                    anchor_nodes = Arrays.copyOf(anchor_nodes, 2 * m);
+                                    anchor_positions = Arrays.copyOf(anchor_positions, 2 * m);
+                                    anchor_sides = Arrays.copyOf(anchor_sides, 2 * m);
+                                }
+                                anchor_nodes[m] = neighbor;
+                                anchor_positions[m] = address[2];
+                                anchor_sides[m++] = (byte)(neighbor_forward ? 'F' : 'R');
+                            }
+                            count++;
+                            address[2] = address[2] + neighbor_length - K_SIZE + 1;
+                            node = neighbor;
+                            node_forward = neighbor_forward;
+                            break;
+                        }
+                    }
+                }
+                if (!found) {
+                    System.out.println("Could not locate position " + address[2] + " from node ID=" + node);
+                    System.exit(1);
+                }
+                paths.writeLong(-1L);
+                anchors.writeInt(m);
+                for (int i = 0; i < m; ++i) {
+                    anchors.writeLong(anchor_nodes[i]);
+                    anchors.writeInt(anchor_positions[i]);
+                }
+                anchors.write(anchor_sides, 0, m);
+            }
+        }
+        System.out.println((System.currentTimeMillis() - phaseTime) / 1000 + " seconds elapsed.");
+        System.out.println();
+    }
+
+    /**
+     * Writes the graph into an empty graph database with the batch inserter,
+     * adding the sequences of the nodes, and the path index, and removes the
+     * store.
+     *
+     * @param graph_path Path to the graph database
+     * @param paths_path Path to the path index
+     * @param pangenome_properties The first properties of the pangenome node; the counts are added to them
+     */
+    public void write_graph(String graph_path, String paths_path, Map<String, Object> pangenome_properties) throws IOException {
+        int labels;
+        long node, r;
+        int[] address = new int[3];
+        Map<String, Object> properties = new HashMap<>();
+        StringBuilder sequence = new StringBuilder();
+        String date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date());
+        System.out.println("Writing the graph database...");
+        BatchInserter inserter = BatchInserters.inserter(new File(graph_path));
+        inserter.createNode(0, pangenome_properties, pangenome_label);
+        try (DataInputStream anchors = new DataInputStream(new BufferedInputStream(new FileInputStream(store.get_path() + ANCHORS_FILE), 1 << 16))) {
+            for (node = 1; node < store.num_nodes(); ++node) {
+                properties.clear();
+                labels = store.get_labels(node);
+                store.get_address(node, address);
+                if ((labels & GraphStore.GENOME) != 0) {
+                    genome_properties(address[0], date, properties);
+                    inserter.createNode(node, properties, genome_label);
+                } else if ((labels & GraphStore.SEQUENCE) != 0) {
+                    sequence_properties(address[0], address[1], properties);
+                    anchor_properties(anchors, properties);
+                    inserter.createNode(node, properties, sequence_label);
+                } else if ((labels & GraphStore.NUCLEOTIDE) != 0) {
+                    nucleotide_properties(node, labels, address, sequence, properties);
+                    inserter.createNode(node, properties, node_labels(labels));
+                }
+            }
+        }
+        properties.clear();
+        for (r = 0; r < store.num_edges(); ++r) {
+            if (store.get_type(r) == -1)
+                continue;
+            inserter.createRelationship(store.get_src(r), store.get_dst(r), RelTypes.values()[store.get_type(r)], properties);
+        }
+        pangenome_properties.put("num_k_mers", indexDb.length());
+        pangenome_properties.put("num_nodes", num_nodes);
+        pangenome_properties.put("num_degenerate_nodes", num_degenerates);
+        pangenome_properties.put("num_edges", num_edges);
+        pangenome_properties.put("num_genomes", genomeDb.num_genomes);
+        pangenome_properties.put("num_bases", num_bases);
+        inserter.setNodeProperties(0, pangenome_properties);
+        inserter.shutdown();
+        write_paths(paths_path);
+        store.close();
+    }
+
+    /**
+     * Writes the changes of the store into the graph database it was loaded
+     * from, through transactions of 1000 * MAX_TRANSACTION_SIZE changes, and
+     * rewrites the path index, and removes the store. Only the new nodes and
+     * edges, and the ones which have changed, are written. The new nodes get
+     * their numbers from the database, which replace the numbers of the store
+     * in the index as well. The positions older versions kept on the edges
+     * are removed.
+     *
+     * @param paths_path Path to the path index
+     */
+    public void flush_graph(String paths_path) throws IOException {
+        int labels, trsc = 0;
+        long node, r, id, inx;
+        int[] address = new int[3];
+        Node n;
+        Relationship rel;
+        Map<String, Object> properties = new HashMap<>();
+        StringBuilder sequence = new StringBuilder();
+        String date = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date());
+        System.out.println("Writing the graph database...");
+        Transaction tx = graphDb.beginTx();
+        try {
+            for (node = 0; node < store.num_nodes(); ++node) {
+                labels = store.get_labels(node);
+                if (labels == 0)
+                    continue;
+                properties.clear();
+                store.get_address(node, address);
+                id = store.get_node_id(node);
+                if (id == -1) {
+                    if ((labels & GraphStore.GENOME) != 0) {
+                        n = graphDb.createNode(genome_label);
+                        genome_properties(address[0], date, properties);
+                    } else if ((labels & GraphStore.SEQUENCE) != 0) {
+                        n = graphDb.createNode(sequence_label);
+                        sequence_properties(address[0], address[1], properties);
+                    } else {
+                        n = graphDb.createNode(node_labels(labels));
+                        nucleotide_properties(node, labels, address, sequence, properties);
+                    // Give the k-mers of the node its number in the database
+                        if ((labels & GraphStore.DEGENERATE) == 0)
+                            for (inx = store.get_first_kmer(node); inx != -1L; inx = indexDb.get_next_index(inx))
+                                indexDb.put_node_id(n.getId(), inx);
+                    }
+                    store.set_node_id(node, n.getId());
+                } else if ((labels & GraphStore.NUCLEOTIDE) != 0) {
+                    if ((labels & GraphStore.CHANGED) == 0) {
+                        num_bases += store.get_length(node);
+                        continue;
+                    }
+                    n = graphDb.getNodeById(id);
+                    nucleotide_properties(node, labels, address, sequence, properties);
+                    properties.remove("address");
+                    properties.remove("first_kmer");
+                    if ((labels & GraphStore.LOW_COMPLEXITY) != 0)
+                        n.addLabel(low_complexity_label);
+                } else
+                    continue;
+                for (Map.Entry<String, Object> p: properties.entrySet())
+                    n.setProperty(p.getKey(), p.getValue());
+                if (++trsc >= 1000 * MAX_TRANSACTION_SIZE) {
+                    tx.success();
+                    tx.close();
+                    tx = graphDb.beginTx();
+                    trsc = 0;
+                }
+            }
+            if (splits != null)
+                move_starts_edges();
+            try (DataInputStream anchors = new DataInputStream(new BufferedInputStream(new FileInputStream(store.get_path() + ANCHORS_FILE), 1 << 16))) {
+                for (node = 0; node < store.num_nodes(); ++node) {
+                    if (!store.has_label(node, GraphStore.SEQUENCE))
+                        continue;
+                    properties.clear();
+                    anchor_properties(anchors, properties);
+                    n = graphDb.getNodeById(store.get_node_id(node));
+                    for (Map.Entry<String, Object> p: properties.entrySet())
+                        n.setProperty(p.getKey(), p.getValue());
+                }
+            }
+            for (r = 0; r < store.num_edges(); ++r) {
+                id = store.get_edge_id(r);
+                if (store.get_type(r) == -1) {
+                    if (id != -1)
+                        graphDb.getRelationshipById(id).delete();
+                    continue;
+                }
+                if (id == -1) {
+                    rel = graphDb.getNodeById(store.get_node_id(store.get_src(r))).createRelationshipTo(
+                            graphDb.getNodeById(store.get_node_id(store.get_dst(r))), RelTypes.values()[store.get_type(r)]);
+                    store.set_edge_id(r, rel.getId());
+                } else if (old_occurrences) {
+                    rel = graphDb.getRelationshipById(id);
+                    for (String p: rel.getPropertyKeys())
+                        rel.removeProperty(p);
+                } else
+                    continue;
+                if (++trsc >= 1000 * MAX_TRANSACTION_SIZE) {
+                    tx.success();
+                    tx.close();
+                    tx = graphDb.beginTx();
+                    trsc = 0;
+                }
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+        write_paths(paths_path);
+        store.close();
+    }
+
+    /**
+     * Replays the splits on the "starts" edges of the annotation layer, which
+     * point to the node and the offset a feature starts at.
+     */
+    private void move_starts_edges() throws IOException {
+        long node, split_node;
+        int pos, starts_at;
+        Relationship rel;
+        splits.close();
+        splits = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(store.get_path() + SPLITS_FILE), 1 << 16))) {
+            while (in.available() > 0) {
+                node = store.get_node_id(in.readLong());
+                pos = in.readInt();
+                split_node = store.get_node_id(in.readLong());
+                for (Relationship r : graphDb.getNodeById(node).getRelationships(RelTypes.starts, Direction.INCOMING)) {
+                    starts_at = (int)r.getProperty("offset");
+                    if (starts_at >= pos) {
+                        rel = r.getStartNode().createRelationshipTo(graphDb.getNodeById(split_node), RelTypes.starts);
+                        rel.setProperty("offset", starts_at - pos);
+                        rel.setProperty("forward", r.getProperty("forward"));
+                        rel.setProperty("genomic_position", r.getProperty("genomic_position"));
+                        r.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void genome_properties(int g, String date, Map<String, Object> properties) {
+        properties.put("path", genomeDb.get_genome_name(g));
+        properties.put("number", g);
+        properties.put("num_sequences", genomeDb.num_sequences[g]);
+        properties.put("date", date);
+    }
+
+    private static void sequence_properties(int g, int s, Map<String, Object> properties) {
+        properties.put("genome", g);
+        properties.put("number", s);
+        properties.put("identifier", g + "_" + s);
+        properties.put("title", genomeDb.get_sequence_title(g, s));
+        properties.put("length", genomeDb.get_sequence_length(g, s));
+        properties.put("offset", genomeDb.get_sequence_offset(g, s));
+    }
+
+    /**
+     * Reads the anchors of the next sequence, with the numbers of the nodes
+     * in the graph database.
+     */
+    private void anchor_properties(DataInputStream anchors, Map<String, Object> properties) throws IOException {
+        int i, m = anchors.readInt();
+        long[] anchor_nodes = new long[m];
+        int[] anchor_positions = new int[m];
+        byte[] anchor_sides = new byte[m];
+        for (i = 0; i < m; ++i) {
+            anchor_nodes[i] = anchors.readLong();
+            if (store.get_node_id(anchor_nodes[i]) != -1)
+                anchor_nodes[i] = store.get_node_id(anchor_nodes[i]);
+            anchor_positions[i] = anchors.readInt();
+        }
+        anchors.readFully(anchor_sides);
+        properties.put("anchor_nodes", anchor_nodes);
+        properties.put("anchor_positions", anchor_positions);
+        properties.put("anchor_sides", new String(anchor_sides, "US-ASCII"));
+    }
+
+    /**
+     * Gives the properties of a nucleotide or degenerate node, and adds its
+     * length to num_bases.
+     */
+    private void nucleotide_properties(long node, int labels, int[] address, StringBuilder sequence, Map<String, Object> properties) {
+        int len = store.get_length(node);
+        properties.put("address", address.clone());
+        properties.put("length", len);
+        if ((labels & GraphStore.DEGENERATE) == 0) {
+            properties.put("first_kmer", store.get_first_kmer(node));
+            properties.put("last_kmer", store.get_last_kmer(node));
+        }
+        num_bases += len;
+        sequence.setLength(0);
+        scanner.get_sub_sequence(sequence, address[0], address[1], address[2], len, true);
+        properties.put("sequence", sequence.toString());
+    }
+
+    /**
+     * Writes the paths the sequences take into the path index, with the
+     * numbers of the nodes in the graph database.
+     *
+     * @param paths_path Path to the path index
+     */
+    private void write_paths(String paths_path) throws IOException {
+        long node;
+        PathIndex.Writer writer = new PathIndex.Writer(paths_path, genomeDb.num_genomes, genomeDb.num_sequences);
+        try (DataInputStream paths = new DataInputStream(new BufferedInputStream(new FileInputStream(store.get_path() + PATHS_FILE), 1 << 16))) {
+            while (paths.available() > 0) {
+                writer.start_path(paths.readInt(), paths.readInt());
+                for (node = paths.readLong(); node != -1L; node = paths.readLong()) {
+                    if (store.get_node_id(node) != -1)
+                        node = store.get_node_id(node);
+                    writer.add_step(node, paths.readBoolean(), paths.readInt());
+                }
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Gives the Neo4j labels of a nucleotide node.
+     */
+    private static Label[] node_labels(int labels) {
+        if ((labels & GraphStore.DEGENERATE) != 0)
+            return (labels & GraphStore.LOW_COMPLEXITY) != 0 ?
+                    new Label[]{degenerate_label, nucleotide_label, low_complexity_label} : new Label[]{degenerate_label, nucleotide_label};
+        else
+            return (labels & GraphStore.LOW_COMPLEXITY) != 0 ?
+                    new Label[]{nucleotide_label, low_complexity_label} : new Label[]{nucleotide_label};
+    }
+}
@@ -0,0 +1,413 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import java.io.File;
+import java.io.IOException;
+import pantools.LargeMappedFile;
+
+/**
+ * Implements an off-heap store of the nodes and the edges of the pangenome
+ * graph being constructed, so the construction does not go through the
+ * transactions and the property records of Neo4j.
+ *
+ * Every field is a memory mapped column keyed by the node or the edge number,
+ * which grows by doubling. Every node keeps a doubly linked list of its
+ * outgoing and of its incoming edges, and every edge the number of its
+ * occurrences in the last sequence passing it. The references
+ * are stored incremented by one, so an empty column holds null references.
+ * Nodes and edges loaded from, or written to, the graph database keep the
+ * number they have there.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class GraphStore {
+    public static final int PANGENOME = 1;
+    public static final int GENOME = 2;
+    public static final int SEQUENCE = 4;
+    public static final int NUCLEOTIDE = 8;
+    public static final int DEGENERATE = 16;
+    public static final int LOW_COMPLEXITY = 32;
+    public static final int CHANGED = 64;       // Not a label of the graph; the node has changed since it was loaded
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    private final String path;
+    private long num_nodes;
+    private long num_edges;
+    // nodes
+    private final Column labels;
+    private final Column genome;
+    private final Column sequence;
+    private final Column position;
+    private final Column length;
+    private final Column first_kmer;
+    private final Column last_kmer;
+    private final Column first_out;
+    private final Column first_in;
+    private final Column node_id;       // The number of the node in the graph database
+    // edges
+    private final Column type;          // -1 for a deleted edge
+    private final Column src;
+    private final Column dst;
+    private final Column next_out;
+    private final Column prev_out;
+    private final Column next_in;
+    private final Column prev_in;
+    private final Column occ_origin;    // The sequence node of the last occurrence
+    private final Column occ_count;     // The number of the occurrences in that sequence
+    private final Column edge_id;       // The number of the edge in the graph database
+    private final Column[] node_columns;
+    private final Column[] edge_columns;
+
+    /**
+     * Makes an empty store.
+     *
+     * @param p Path to the folder of the store, which is made if needed
+     */
+    public GraphStore(String p) throws IOException {
+        path = p;
+        new File(path).mkdirs();
+        labels = new Column("labels", 1);
+        genome = new Column("genome", 4);
+        sequence = new Column("sequence", 4);
+        position = new Column("position", 4);
+        length = new Column("length", 4);
+        first_kmer = new Column("first_kmer", 8);
+        last_kmer = new Column("last_kmer", 8);
+        first_out = new Column("first_out", 8);
+        first_in = new Column("first_in", 8);
+        node_id = new Column("node_id", 8);
+        type = new Column("type", 1);
+        src = new Column("src", 8);
+        dst = new Column("dst", 8);
+        next_out = new Column("next_out", 8);
+        prev_out = new Column("prev_out", 8);
+        next_in = new Column("next_in", 8);
+        prev_in = new Column("prev_in", 8);
+        occ_origin = new Column("occ_origin", 8);
+        occ_count = new Column("occ_count", 4);
+        edge_id = new Column("edge_id", 8);
+        node_columns = new Column[]{labels, genome, sequence, position, length, first_kmer, last_kmer, first_out, first_in, node_id};
+        edge_columns = new Column[]{type, src, dst, next_out, prev_out, next_in, prev_in, occ_origin, occ_count, edge_id};
+    }
+
+    /**
+     * Gives the number of the nodes, which are numbered from 0.
+     */
+    public long num_nodes() {
+        return num_nodes;
+    }
+
+    /**
+     * Gives the number of the edges, deleted ones included.
+     */
+    public long num_edges() {
+        return num_edges;
+    }
+
+    /**
+     * Adds a node with no edge.
+     *
+     * @param l The labels of the node
+     * @return The number of the node
+     */
+    public long create_node(int l) throws IOException {
+        long node = num_nodes++;
+        for (Column c: node_columns)
+            c.reserve(num_nodes);
+        labels.file.put(node, (byte)l);
+        return node;
+    }
+
+    /**
+     * Adds a node with a given number; the numbers skipped are taken by nodes
+     * with no label.
+     *
+     * @param node The number of the node
+     * @param l The labels of the node
+     */
+    public void create_node(long node, int l) throws IOException {
+        num_nodes = Math.max(num_nodes, node + 1);
+        for (Column c: node_columns)
+            c.reserve(num_nodes);
+        labels.file.put(node, (byte)l);
+    }
+
+    /**
+     * Gives the number of a node in the graph database, or -1 if it is not
+     * there yet.
+     */
+    public long get_node_id(long node) {
+        return node_id.file.get_long(8 * node) - 1;
+    }
+
+    public void set_node_id(long node, long id) {
+        node_id.file.put_long(8 * node, id + 1);
+    }
+
+    public boolean has_label(long node, int l) {
+        return (labels.file.get(node) & l) != 0;
+    }
+
+    public int get_labels(long node) {
+        return labels.file.get(node);
+    }
+
+    public void add_labels(long node, int l) {
+        labels.file.put(node, (byte)(labels.file.get(node) | l));
+    }
+
+    public int get_genome(long node) {
+        return genome.file.get_int(4 * node);
+    }
+
+    public int get_sequence(long node) {
+        return sequence.file.get_int(4 * node);
+    }
+
+    public int get_position(long node) {
+        return position.file.get_int(4 * node);
+    }
+
+    /**
+     * Gives the genomic address of the first base of a node.
+     *
+     * @param node The node
+     * @param address The array of {genome, sequence, position} to be filled
+     */
+    public void get_address(long node, int[] address) {
+        address[0] = get_genome(node);
+        address[1] = get_sequence(node);
+        address[2] = get_position(node);
+    }
+
+    public void set_address(long node, int g, int s, int p) {
+        genome.file.put_int(4 * node, g);
+        sequence.file.put_int(4 * node, s);
+        position.file.put_int(4 * node, p);
+    }
+
+    public int get_length(long node) {
+        return length.file.get_int(4 * node);
+    }
+
+    public void set_length(long node, int len) {
+        length.file.put_int(4 * node, len);
+    }
+
+    public long get_first_kmer(long node) {
+        return first_kmer.file.get_long(8 * node);
+    }
+
+    public void set_first_kmer(long node, long kmer) {
+        first_kmer.file.put_long(8 * node, kmer);
+    }
+
+    public long get_last_kmer(long node) {
+        return last_kmer.file.get_long(8 * node);
+    }
+
+    public void set_last_kmer(long node, long kmer) {
+        last_kmer.file.put_long(8 * node, kmer);
+    }
+
+    /**
+     * Adds an edge at the head of the outgoing edges of its source and of the
+     * incoming edges of its destination.
+     *
+     * @param s The source node
+     * @param d The destination node
+     * @param t The type of the edge, an ordinal of RelTypes
+     * @return The number of the edge
+     */
+    public long connect(long s, long d, int t) throws IOException {
+        long edge = num_edges++, head;
+        for (Column c: edge_columns)
+            c.reserve(num_edges);
+        type.file.put(edge, (byte)t);
+        src.file.put_long(8 * edge, s);
+        dst.file.put_long(8 * edge, d);
+        head = first_out.file.get_long(8 * s);
+        next_out.file.put_long(8 * edge, head);
+        if (head != 0)
+            prev_out.file.put_long(8 * (head - 1), edge + 1);
+        first_out.file.put_long(8 * s, edge + 1);
+        head = first_in.file.get_long(8 * d);
+        next_in.file.put_long(8 * edge, head);
+        if (head != 0)
+            prev_in.file.put_long(8 * (head - 1), edge + 1);
+        first_in.file.put_long(8 * d, edge + 1);
+        return edge;
+    }
+
+    /**
+     * Removes an edge from the lists of its nodes; the next edges of it can
+     * still be followed, so an edge can be deleted while iterating.
+     *
+     * @param edge The edge
+     */
+    public void delete_edge(long edge) {
+        long prev, next;
+        prev = prev_out.file.get_long(8 * edge);
+        next = next_out.file.get_long(8 * edge);
+        if (prev == 0)
+            first_out.file.put_long(8 * get_src(edge), next);
+        else
+            next_out.file.put_long(8 * (prev - 1), next);
+        if (next != 0)
+            prev_out.file.put_long(8 * (next - 1), prev);
+        prev = prev_in.file.get_long(8 * edge);
+        next = next_in.file.get_long(8 * edge);
+        if (prev == 0)
+            first_in.file.put_long(8 * get_dst(edge), next);
+        else
+            next_in.file.put_long(8 * (prev - 1), next);
+        if (next != 0)
+            prev_in.file.put_long(8 * (next - 1), prev);
+        type.file.put(edge, (byte)-1);
+    }
+
+    /**
+     * Gives the type of an edge.
+     *
+     * @return An ordinal of RelTypes, or -1 if the edge is deleted
+     */
+    public int get_type(long edge) {
+        return type.file.get(edge);
+    }
+
+    /**
+     * Gives the number of an edge in the graph database, or -1 if it is not
+     * there yet.
+     */
+    public long get_edge_id(long edge) {
+        return edge_id.file.get_long(8 * edge) - 1;
+    }
+
+    public void set_edge_id(long edge, long id) {
+        edge_id.file.put_long(8 * edge, id + 1);
+    }
+
+    public long get_src(long edge) {
+        return src.file.get_long(8 * edge);
+    }
+
+    public long get_dst(long edge) {
+        return dst.file.get_long(8 * edge);
+    }
+
+    /**
+     * Gives the first outgoing edge of a node, or -1.
+     */
+    public long first_out(long node) {
+        return first_out.file.get_long(8 * node) - 1;
+    }
+
+    /**
+     * Gives the next outgoing edge of the source of an edge, or -1.
+     */
+    public long next_out(long edge) {
+        return next_out.file.get_long(8 * edge) - 1;
+    }
+
+    /**
+     * Gives the first incoming edge of a node, or -1.
+     */
+    public long first_in(long node) {
+        return first_in.file.get_long(8 * node) - 1;
+    }
+
+    /**
+     * Gives the next incoming edge of the destination of an edge, or -1.
+     */
+    public long next_in(long edge) {
+        return next_in.file.get_long(8 * edge) - 1;
+    }
+
+    /**
+     * Determines if a node has an incoming edge of either of two types.
+     */
+    public boolean has_incoming(long node, int t1, int t2) {
+        int t;
+        for (long edge = first_in(node); edge != -1; edge = next_in(edge))
+            if ((t = get_type(edge)) == t1 || t == t2)
+                return true;
+        return false;
+    }
+
+    /**
+     * Counts an occurrence of an edge in a sequence; the sequences pass the
+     * edges one after the other.
+     *
+     * @param edge The edge
+     * @param sequence_node The node of the sequence
+     * @return The number of the earlier occurrences of the edge in the sequence
+     */
+    public int add_occurrence(long edge, long sequence_node) {
+        int count;
+        if (occ_origin.file.get_long(8 * edge) != sequence_node + 1) {
+            occ_origin.file.put_long(8 * edge, sequence_node + 1);
+            count = 0;
+        } else
+            count = occ_count.file.get_int(4 * edge);
+        occ_count.file.put_int(4 * edge, count + 1);
+        return count;
+    }
+
+    /**
+     * Gives the path to the folder of the store.
+     */
+    public String get_path() {
+        return path;
+    }
+
+    /**
+     * Unmaps the columns and removes the folder of the store.
+     */
+    public void close() throws IOException {
+        for (Column[] columns: new Column[][]{node_columns, edge_columns})
+            for (Column c: columns)
+                c.close();
+        File[] files = new File(path).listFiles();
+        if (files != null)
+            for (File f: files)
+                f.delete();
+        new File(path).delete();
+    }
+
+    /**
+     * A memory mapped column of fixed-width values, which grows by doubling.
+     */
+    private class Column {
+        private final String name;
+        private final int width;
+        private final LargeMappedFile file;
+        private long capacity;
+
+        public Column(String n, int w) throws IOException {
+            name = n;
+            width = w;
+            capacity = INITIAL_CAPACITY;
+            file = new LargeMappedFile(path + "/" + name, capacity * width, true);
+        }
+
+        /**
+         * Makes room for a number of values.
+         */
+        public void reserve(long n) throws IOException {
+            if (n > capacity) {
+                while (capacity < n)
+                    capacity *= 2;
+                file.grow(capacity * width);
+            }
+        }
+
+        public void close() throws IOException {
+            file.close();
+            new File(path + "/" + name).delete();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import index.kmer;
+import java.io.File;
+import java.io.IOException;
+import pantools.LargeMappedFile;
+import sequence.SequenceDatabase;
+import static pantools.Pantools.K_SIZE;
+import static pantools.Pantools.genomeDb;
+import static pantools.Pantools.indexDb;
+
+/**
+ * Keeps the bases every kmer of the genomes being added is extended with on
+ * its left and on its right side, in its canonical form, like the in- and
+ * out-degrees of BCALM and TwoPaCo. Two kmers following each other in a
+ * sequence belong to the same node of the compacted de Bruijn graph only if
+ * the first one has no other extension on that side and the second one has
+ * no other on the side it is entered from; so the construction can make a
+ * node whole at once, instead of splitting it when a later sequence enters it
+ * in the middle.
+ *
+ * A side is kept in 3 bits: 0 if it has no extension, the code of the base
+ * plus one if it has a single one, and MANY if it has more, or if a sequence
+ * or a non-degenerate region starts or ends there.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class KmerDegrees {
+    private static final int MANY = 5;
+    private static final int END = 4;   // The extension of a side a sequence starts or ends at
+    private final String path;
+    private final LargeMappedFile file;
+
+    /**
+     * Makes an empty table for all the kmers of the index.
+     *
+     * @param p Path to the file of the table
+     * @param num_kmers The number of the kmers in the index
+     */
+    public KmerDegrees(String p, long num_kmers) throws IOException {
+        path = p;
+        file = new LargeMappedFile(path, Math.max(1, num_kmers), true);
+    }
+
+    /**
+     * Adds the extensions of all the kmers of some genomes.
+     *
+     * @param from_genome The first genome
+     * @param to_genome The last genome
+     * @param threads The number of the threads looking up the kmers
+     */
+    public void mark(int from_genome, int to_genome, int threads) {
+        int g, s, p, len, valid, code;
+        long rank, prev_rank;
+        boolean canonical, prev_canonical = false;
+        kmer curr_kmer = new kmer(K_SIZE, indexDb.get_pre_len());
+        SequenceDatabase.Cursor cursor = genomeDb.get_cursor(), left = genomeDb.get_cursor(); // The bases entering and leaving the kmer
+        KmerFinder finder = new KmerFinder(from_genome, to_genome, threads);
+        for (g = from_genome; g <= to_genome; ++g) {
+            System.out.print("\rMarking the kmers of genome " + g + "          ");
+            for (s = 1; s <= genomeDb.num_sequences[g]; ++s) {
+                len = (int)genomeDb.get_sequence_length(g, s);
+                curr_kmer.reset();
+                prev_rank = -1L;
+                for (p = valid = 0; p < len; ++p) {
+                    code = cursor.get_code(g, s, p);
+                    if (code > 3) {
+                        curr_kmer.reset();
+                        valid = 0;
+                    } else {
+                        curr_kmer.next_kmer(code);
+                        ++valid;
+                    }
+                    if (valid < K_SIZE) {
+                        if (prev_rank != -1L)
+                            extend(prev_rank, prev_canonical, END);
+                        prev_rank = -1L;
+                        continue;
+                    }
+                    rank = finder.get_rank(g, s, p);
+                    canonical = curr_kmer.get_canonical();
+                    if (prev_rank == -1L)
+                        extend(rank, !canonical, END);
+                    else {
+                        extend(prev_rank, prev_canonical, code);
+                        extend(rank, !canonical, 3 - left.get_code(g, s, p - K_SIZE));
+                    }
+                    prev_rank = rank;
+                    prev_canonical = canonical;
+                }
+                if (prev_rank != -1L)
+                    extend(prev_rank, prev_canonical, END);
+            }
+        }
+        System.out.println();
+        finder.close();
+    }
+
+    /**
+     * Adds an extension to a side of a kmer.
+     *
+     * @param rank The number of the kmer in the index
+     * @param right Determines if the extension is on the right side of the canonical kmer
+     * @param code The code of the base, in the orientation of the sequence, or END
+     */
+    private void extend(long rank, boolean right, int code) {
+        int b = file.get(rank), shift = right ? 3 : 0, side = (b >> shift) & 7, ext;
+        if (code == END)
+            ext = MANY;
+        else
+            ext = (right ? code : 3 - code) + 1;
+        if (side == 0)
+            side = ext;
+        else if (side != ext)
+            side = MANY;
+        file.put(rank, (byte)((b & ~(7 << shift)) | (side << shift)));
+    }
+
+    /**
+     * Determines if two kmers following each other in a sequence are in the
+     * same node.
+     *
+     * @param rank1 The number of the first kmer in the index
+     * @param canonical1 Determines if the first kmer is canonical in the sequence
+     * @param rank2 The number of the second kmer in the index
+     * @param canonical2 Determines if the second kmer is canonical in the sequence
+     * @return True if the first kmer has no other extension to its right in the sequence and the second none to its left
+     */
+    public boolean unique_path(long rank1, boolean canonical1, long rank2, boolean canonical2) {
+        int b1 = file.get(rank1), b2 = file.get(rank2);
+        return ((canonical1 ? b1 >> 3 : b1) & 7) != MANY && ((canonical2 ? b2 : b2 >> 3) & 7) != MANY;
+    }
+
+    /**
+     * Unmaps and removes the table.
+     */
+    public void close() throws IOException {
+        file.close();
+        new File(path).delete();
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import index.kmer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import sequence.SequenceDatabase;
+import static pantools.Pantools.K_SIZE;
+import static pantools.Pantools.genomeDb;
+import static pantools.Pantools.indexDb;
+
+/**
+ * Looks up the numbers of the kmers of the genomes being added in the index,
+ * by several threads, ahead of the construction of the pangenome, which asks
+ * for them in the order of the sequences. The index does not change its
+ * kmers during the construction, so the graph stays the same as when the
+ * kmers are looked up one by one.
+ *
+ * The sequences are cut into chunks which are looked up in their order; a
+ * fixed number of chunks are kept, so the memory does not grow with the
+ * genomes. If a thread fails, the others stop and the failure is thrown to
+ * the construction, which would otherwise wait for its chunk forever.
+ *
+ * If the degrees of the kmers are given, the threads also find where the
+ * path of a sequence leaves a unitig, so the construction only creates the
+ * nodes and the edges.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class KmerFinder {
+    private static final int CHUNK_SIZE = 1 << 16;  // The number of positions in a chunk
+    private static final int BATCH_SIZE = 256;      // The number of kmers looked up together
+    private final int to_genome;
+    private final int num_slots;
+    private final long[][] ranks;       // The numbers of the kmers of the chunk in every slot
+    private final boolean[][] unique;   // Determines if the kmers of the chunk in every slot are in the unitig of the kmers before them
+    private final KmerDegrees degrees;
+    private final int[][] bounds;       // The genome, the sequence, the start and the end of the chunk in every slot
+    private final long[] slot_chunk;    // The chunk in every slot, -1 if it is free
+    private final boolean[] ready;
+    private final ExecutorService es;
+    private boolean stopped;
+    private Throwable failure;          // The first failure of a thread
+    // The next chunk to be looked up
+    private int next_genome;
+    private int next_sequence;
+    private int next_start;
+    private long next_chunk;
+    // The chunk being read by the construction
+    private long curr_chunk;
+    private int curr_genome;
+    private int curr_sequence;
+    private int curr_start;
+    private int curr_end;
+    private long[] curr_ranks;
+    private boolean[] curr_unique;
+
+    /**
+     * Starts the threads looking up the kmers.
+     *
+     * @param from_genome The first genome
+     * @param to_genome The last genome
+     * @param threads The number of the threads
+     */
+    public KmerFinder(int from_genome, int to_genome, int threads) {
+        this(from_genome, to_genome, threads, null);
+    }
+
+    /**
+     * Starts the threads looking up the kmers and checking the paths between
+     * them against their degrees.
+     *
+     * @param from_genome The first genome
+     * @param to_genome The last genome
+     * @param threads The number of the threads
+     * @param d The degrees of the kmers, or null
+     */
+    public KmerFinder(int from_genome, int to_genome, int threads, KmerDegrees d) {
+        int i;
+        this.to_genome = to_genome;
+        degrees = d;
+        next_genome = from_genome;
+        next_sequence = 1;
+        next_start = 0;
+        next_chunk = 0;
+        num_slots = 4 * threads;
+        ranks = new long[num_slots][CHUNK_SIZE];
+        unique = degrees == null ? null : new boolean[num_slots][CHUNK_SIZE];
+        bounds = new int[num_slots][4];
+        slot_chunk = new long[num_slots];
+        ready = new boolean[num_slots];
+        for (i = 0; i < num_slots; ++i)
+            slot_chunk[i] = -1;
+        curr_chunk = -1;
+        es = Executors.newFixedThreadPool(threads);
+        for (i = 0; i < threads; ++i)
+            es.execute(new Find_kmers());
+    }
+
+    /**
+     * Gives the number of the kmer which ends at a position. The positions
+     * should be asked for in the order of the sequences, not going back.
+     *
+     * @param g The genome
+     * @param s The sequence
+     * @param p The position of the last base of the kmer
+     * @return The number of the kmer in the index, or -1 if it has a degenerate base
+     */
+    public long get_rank(int g, int s, int p) {
+        while (g != curr_genome || s != curr_sequence || p >= curr_end)
+            next_chunk();
+        return curr_ranks[p - curr_start];
+    }
+
+    /**
+     * Determines if the kmer which ends at a position is in the same node as
+     * the kmer before it, according to the degrees given to the constructor.
+     * The positions should be asked for in the order of the sequences, not
+     * going back.
+     *
+     * @param g The genome
+     * @param s The sequence
+     * @param p The position of the last base of the kmer
+     * @return True if both kmers have no degenerate base and the path between them is unique
+     */
+    public boolean unique_path(int g, int s, int p) {
+        while (g != curr_genome || s != curr_sequence || p >= curr_end)
+            next_chunk();
+        return curr_unique[p - curr_start];
+    }
+
+    /**
+     * Moves to the next chunk, making the slot of the current one free.
+     */
+    private synchronized void next_chunk() {
+        int slot;
+        if (curr_chunk != -1) {
+            slot = (int)(curr_chunk % num_slots);
+            slot_chunk[slot] = -1;
+            ready[slot] = false;
+            notifyAll();
+        }
+        ++curr_chunk;
+        slot = (int)(curr_chunk % num_slots);
+        while (slot_chunk[slot] != curr_chunk || !ready[slot]) {
+            if (failure != null) {
+                es.shutdown();
+                throw new IllegalStateException("Failed to look up the kmers: " + failure, failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        curr_ranks = ranks[slot];
+        curr_unique = degrees == null ? null : unique[slot];
+        curr_genome = bounds[slot][0];
+        curr_sequence = bounds[slot][1];
+        curr_start = bounds[slot][2];
+        curr_end = bounds[slot][3];
+    }
+
+    /**
+     * Takes the next chunk to be looked up and waits for its slot.
+     *
+     * @param chunk The array to be filled with the genome, the sequence, the
+     * start and the end of the chunk
+     * @return The slot of the chunk, or -1 if there is no chunk left
+     */
+    private synchronized int take_chunk(int[] chunk) {
+        int slot;
+        long length, number;
+        if (next_genome > to_genome || stopped)
+            return -1;
+        length = genomeDb.get_sequence_length(next_genome, next_sequence);
+        chunk[0] = next_genome;
+        chunk[1] = next_sequence;
+        chunk[2] = next_start;
+        chunk[3] = (int)Math.min(length, next_start + CHUNK_SIZE);
+        number = next_chunk++;
+        next_start = chunk[3];
+        if (next_start >= length) {
+            next_start = 0;
+            if (++next_sequence > genomeDb.num_sequences[next_genome]) {
+                next_sequence = 1;
+                ++next_genome;
+            }
+        }
+        slot = (int)(number % num_slots);
+    // The slot is free once the construction has left the chunk before in it;
+    // a thread with a later chunk of the same slot must not take it first
+        while (number >= num_slots && number - num_slots >= curr_chunk && !stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                System.out.println(e.getMessage());
+                System.exit(1);
+            }
+        }
+        if (stopped)
+            return -1;
+        slot_chunk[slot] = number;
+        return slot;
+    }
+
+    private synchronized void put_chunk(int slot, int[] chunk) {
+        System.arraycopy(chunk, 0, bounds[slot], 0, 4);
+        ready[slot] = true;
+        notifyAll();
+    }
+
+    /**
+     * Keeps the failure of a thread and stops the others.
+     */
+    private synchronized void fail(Throwable t) {
+        if (failure == null)
+            failure = t;
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops the threads.
+     */
+    public void close() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        es.shutdown();
+        try {
+            es.awaitTermination(10, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Looks up the kmers of the chunks, in batches.
+     */
+    private class Find_kmers implements Runnable {
+        private final kmer curr_kmer;
+        private final kmer[] batch;
+        private final int[] offsets;
+        private final long[] batch_ranks;
+        private final boolean[] canonical;  // Determines if the kmers of the chunk are canonical
+        private long before_rank;           // The number of the kmer before the chunk
+        private boolean before_canonical;
+        private final SequenceDatabase.Cursor cursor;
+
+        public Find_kmers() {
+            curr_kmer = new kmer(K_SIZE, indexDb.get_pre_len());
+            batch = new kmer[BATCH_SIZE];
+            for (int i = 0; i < BATCH_SIZE; ++i)
+                batch[i] = new kmer(K_SIZE, indexDb.get_pre_len());
+            offsets = new int[BATCH_SIZE];
+            batch_ranks = new long[BATCH_SIZE];
+            canonical = degrees == null ? null : new boolean[CHUNK_SIZE];
+            cursor = genomeDb.get_cursor();
+        }
+
+        @Override
+        public void run() {
+            int slot, g, s, start, end, first, p, code, valid, n;
+            int[] chunk = new int[4];
+            long[] r;
+            try {
+                while ((slot = take_chunk(chunk)) != -1) {
+                    r = ranks[slot];
+                    g = chunk[0];
+                    s = chunk[1];
+                    start = chunk[2];
+                    end = chunk[3];
+                    curr_kmer.reset();
+                    before_rank = -1L;
+                // The kmer before the chunk is needed to check the path to its first kmer
+                    first = degrees == null ? start : start - 1;
+                    for (p = Math.max(0, first - K_SIZE + 1), valid = n = 0; p < end; ++p) {
+                        code = cursor.get_code(g, s, p);
+                        if (code > 3) {
+                            curr_kmer.reset();
+                            valid = 0;
+                        } else {
+                            curr_kmer.next_kmer(code);
+                            ++valid;
+                        }
+                        if (p < first)
+                            continue;
+                        if (p < start) {
+                            if (valid >= K_SIZE) {
+                                before_canonical = curr_kmer.get_canonical();
+                                batch[n].copy(curr_kmer);
+                                offsets[n++] = -1;
+                            }
+                            continue;
+                        }
+                        if (degrees != null)
+                            canonical[p - start] = curr_kmer.get_canonical();
+                        if (valid < K_SIZE)
+                            r[p - start] = -1L;
+                        else {
+                            batch[n].copy(curr_kmer);
+                            offsets[n++] = p - start;
+                            if (n == BATCH_SIZE) {
+                                find_batch(r, n);
+                                n = 0;
+                            }
+                        }
+                    }
+                    find_batch(r, n);
+                    if (degrees != null)
+                        check_paths(r, unique[slot], end - start);
+                    put_chunk(slot, chunk);
+                }
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        private void find_batch(long[] r, int n) {
+            if (n > 0) {
+                indexDb.find_batch(batch, n, batch_ranks);
+                for (int i = 0; i < n; ++i)
+                    if (offsets[i] == -1)
+                        before_rank = batch_ranks[i];
+                    else
+                        r[offsets[i]] = batch_ranks[i];
+            }
+        }
+
+        /**
+         * Checks the paths from every kmer of the chunk to the next one.
+         */
+        private void check_paths(long[] r, boolean[] u, int length) {
+            long prev_rank = before_rank;
+            boolean prev_canonical = before_canonical;
+            for (int i = 0; i < length; ++i) {
+                u[i] = prev_rank != -1L && r[i] != -1L && degrees.unique_path(prev_rank, prev_canonical, r[i], canonical[i]);
+                prev_rank = r[i];
+                prev_canonical = canonical[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import pantools.LargeMappedFile;
+
+/**
+ * Implements the memory mapped index of the paths the sequences take in the
+ * pangenome graph, paths.db, which replaces the positions kept on the edges.
+ * The path of a sequence is the list of the nodes it passes, each with the
+ * side it is entered from and the position of the sequence it starts at.
+ *
+ * A step is written as two variable length numbers: the difference of the
+ * node from the node of the previous step, zigzag coded and shifted to make
+ * room for the side, and the difference of the position from the previous
+ * one. Every SAMPLE_STEPS-th step is written without differences, and its
+ * offset and position are kept in the samples file, so a position is found by
+ * a binary search and a walk of less than SAMPLE_STEPS steps.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class PathIndex {
+    public static final int SAMPLE_STEPS = 64;
+    private static final String PATHS_FILE = "/paths";
+    private static final String SAMPLES_FILE = "/samples";
+    private static final String TABLE_FILE = "/table";
+    private final LargeMappedFile paths;
+    private final LargeMappedFile samples;
+    private final long[] first;         // The number of the first sequence of every genome, counting from 0
+    private final int[] path_steps;     // The number of the steps of every sequence
+    private final long[] first_sample;  // The first sample of every sequence
+
+    /**
+     * Maps a path index into the memory.
+     *
+     * @param path Path to the folder of the index
+     */
+    public PathIndex(String path) throws IOException {
+        int g, num_genomes;
+        long q, num_samples;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path + TABLE_FILE), 1 << 16))) {
+            num_genomes = in.readInt();
+            first = new long[num_genomes + 2];
+            for (g = 1; g <= num_genomes; ++g)
+                first[g + 1] = first[g] + in.readInt();
+            path_steps = new int[(int)first[num_genomes + 1]];
+            first_sample = new long[path_steps.length];
+            for (q = 0; q < path_steps.length; ++q) {
+                in.readLong(); // The offset of the path, which its first sample has as well
+                path_steps[(int)q] = in.readInt();
+                first_sample[(int)q] = in.readLong();
+            }
+            num_samples = in.readLong();
+        }
+        paths = num_samples > 0 ? new LargeMappedFile(path + PATHS_FILE, new File(path + PATHS_FILE).length(), false) : null;
+        samples = num_samples > 0 ? new LargeMappedFile(path + SAMPLES_FILE, 12 * num_samples, false) : null;
+    }
+
+    /**
+     * Determines if there is a path index in a folder.
+     */
+    public static boolean exists(String path) {
+        return new File(path + TABLE_FILE).exists();
+    }
+
+    /**
+     * Gives the number of the steps of the path of a sequence.
+     */
+    public int num_steps(int g, int s) {
+        return path_steps[(int)(first[g] + s - 1)];
+    }
+
+    /**
+     * Gives a new cursor on the paths.
+     */
+    public Cursor get_cursor() {
+        return new Cursor();
+    }
+
+    public void close() throws IOException {
+        if (paths != null) {
+            paths.close();
+            samples.close();
+        }
+    }
+
+    /**
+     * Walks along the path of a sequence. A cursor only reads the index, so
+     * every thread can have its own.
+     */
+    public class Cursor {
+        private long offset;        // The offset of the next step in the file
+        private int step;
+        private int num_steps;
+        private long node;
+        private boolean forward;
+        private int position;
+
+        /**
+         * Moves to the last step of the path of a sequence which starts at
+         * or before a position.
+         *
+         * @param g The genome
+         * @param s The sequence
+         * @param pos The position in the sequence
+         * @return False if the sequence has no path
+         */
+        public boolean seek(int g, int s, int pos) {
+            int q = (int)(first[g] + s - 1), low, high, mid, prev_position;
+            long sample, prev_offset, prev_node;
+            boolean prev_forward;
+            num_steps = path_steps[q];
+            if (num_steps == 0)
+                return false;
+            sample = first_sample[q];
+            for (low = 0, high = (num_steps - 1) / SAMPLE_STEPS; low < high; ) {
+                mid = (low + high + 1) / 2;
+                if (samples.get_int(12 * (sample + mid) + 8) <= pos)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+            offset = samples.get_long(12 * (sample + low));
+            step = low * SAMPLE_STEPS - 1;
+            next();
+            while (step + 1 < num_steps) {
+                prev_offset = offset;
+                prev_node = node;
+                prev_forward = forward;
+                prev_position = position;
+                next();
+                if (position > pos) {
+                    offset = prev_offset;
+                    node = prev_node;
+                    forward = prev_forward;
+                    position = prev_position;
+                    --step;
+                    break;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Moves to the next step of the path.
+         *
+         * @return False if the path has ended
+         */
+        public boolean next() {
+            long v;
+            if (step + 1 >= num_steps)
+                return false;
+            if (++step % SAMPLE_STEPS == 0) {
+                node = 0;
+                position = 0;
+            }
+            v = read_varint();
+            forward = (v & 1) == 0;
+            v >>>= 1;
+            node += (v >>> 1) ^ -(v & 1);
+            position += (int)read_varint();
+            return true;
+        }
+
+        private long read_varint() {
+            long v = 0;
+            int b, shift = 0;
+            do {
+                b = paths.get(offset++);
+                v |= (long)(b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        /**
+         * Gives the node of the current step.
+         */
+        public long get_node() {
+            return node;
+        }
+
+        /**
+         * Determines if the node of the current step is entered from its forward side.
+         */
+        public boolean is_forward() {
+            return forward;
+        }
+
+        /**
+         * Gives the position of the sequence the node of the current step starts at.
+         */
+        public int get_position() {
+            return position;
+        }
+    }
+
+    /**
+     * Writes the paths of the sequences one after the other, in any order of
+     * the sequences.
+     */
+    public static class Writer {
+        private final String path;
+        private final OutputStream out;
+        private final DataOutputStream samples;
+        private final int[] num_sequences;
+        private final long[] first;
+        private final long[] path_offset;
+        private final int[] path_steps;
+        private final long[] first_sample;
+        private long size;
+        private long num_samples;
+        private int curr;           // The number of the sequence being written
+        private long prev_node;
+        private int prev_position;
+
+        /**
+         * The constructor
+         *
+         * @param p Path to the folder of the index, which is made if needed
+         * @param num_genomes The number of the genomes
+         * @param n The number of the sequences of every genome
+         */
+        public Writer(String p, int num_genomes, int[] n) throws IOException {
+            int g;
+            path = p;
+            new File(path).mkdirs();
+            num_sequences = new int[num_genomes + 1];
+            first = new long[num_genomes + 2];
+            for (g = 1; g <= num_genomes; ++g) {
+                num_sequences[g] = n[g];
+                first[g + 1] = first[g] + n[g];
+            }
+            path_offset = new long[(int)first[num_genomes + 1]];
+            path_steps = new int[path_offset.length];
+            first_sample = new long[path_offset.length];
+            out = new BufferedOutputStream(new FileOutputStream(path + PATHS_FILE), 1 << 16);
+            samples = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path + SAMPLES_FILE), 1 << 16));
+            curr = -1;
+        }
+
+        /**
+         * Starts the path of a sequence.
+         *
+         * @param g The genome
+         * @param s The sequence
+         */
+        public void start_path(int g, int s) {
+            curr = (int)(first[g] + s - 1);
+            path_offset[curr] = size;
+            path_steps[curr] = 0;
+            first_sample[curr] = num_samples;
+        }
+
+        /**
+         * Appends a step to the path of the current sequence.
+         *
+         * @param node The node
+         * @param forward Determines if the node is entered from its forward side
+         * @param position The position of the sequence the node starts at
+         */
+        public void add_step(long node, boolean forward, int position) throws IOException {
+            long delta;
+            if (path_steps[curr]++ % SAMPLE_STEPS == 0) {
+                samples.writeLong(size);
+                samples.writeInt(position);
+                ++num_samples;
+                prev_node = 0;
+                prev_position = 0;
+            }
+            delta = node - prev_node;
+            write_varint((((delta << 1) ^ (delta >> 63)) << 1) | (forward ? 0 : 1));
+            write_varint(position - prev_position);
+            prev_node = node;
+            prev_position = position;
+        }
+
+        private void write_varint(long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                out.write((int)(v & 0x7f) | 0x80);
+                v >>>= 7;
+                ++size;
+            }
+            out.write((int)v);
+            ++size;
+        }
+
+        /**
+         * Writes the table of the paths and closes the files.
+         */
+        public void close() throws IOException {
+            int g;
+            out.close();
+            samples.close();
+            try (DataOutputStream table = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path + TABLE_FILE), 1 << 16))) {
+                table.writeInt(num_sequences.length - 1);
+                for (g = 1; g < num_sequences.length; ++g)
+                    table.writeInt(num_sequences[g]);
+                for (int q = 0; q < path_offset.length; ++q) {
+                    table.writeLong(path_offset[q]);
+                    table.writeInt(path_steps[q]);
+                    table.writeLong(first_sample[q]);
+                }
+                table.writeLong(num_samples);
+            }
+        }
+    }
+}
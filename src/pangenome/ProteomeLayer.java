@@ -12,6 +12,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -34,6 +35,7 @@ import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.ResourceIterator;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import sequence.SequenceInput;
 import static org.neo4j.graphdb.factory.GraphDatabaseSettings.keep_logical_logs;
 import static pangenome.GenomeLayer.getFolderSize;
 
@@ -842,20 +844,20 @@ public class ProteomeLayer {
                 file_path = protein_paths.readLine().trim();
                 if (file_path.equals("")) // if line is empty
                     continue;
-                fields = file_path.split("\\.");
+                fields = SequenceInput.base_name(file_path).split("\\.");
                 file_type = fields[fields.length - 1].toLowerCase();
                 if (file_type.equals("fasta") || file_type.equals("faa")){
-                    BufferedReader in = new BufferedReader(new FileReader(file_path));
+                    BufferedReader in = new BufferedReader(new InputStreamReader(SequenceInput.open_stream(file_path)));
                 // skip lines till get to the first id line   
                     do{
                         line = in.readLine().trim();
                     } while(line.equals(""));
                     protein_ID = line.substring(1);
                     ++num_proteins;
-                    while (in.ready()) {
+                    for (line = in.readLine(); line != null;) {
                         try (Transaction tx = graphDb.beginTx()) {
-                            for (trsc = 0; in.ready() && trsc < MAX_TRANSACTION_SIZE; ++trsc){
-                                line = in.readLine().trim();
+                            for (trsc = 0; line != null && trsc < MAX_TRANSACTION_SIZE; ++trsc, line = in.readLine()){
+                                line = line.trim();
                                 if (line.equals("")) // if line is empty
                                     continue;
                                 else if (line.charAt(0) == '>'){
@@ -888,7 +890,7 @@ public class ProteomeLayer {
                         tx.success();
                     }
                 } else {
-                    System.out.println(file_path + " does not have a valid extention (fasta, faa)");
+                    System.out.println(file_path + " does not have a valid extention (fasta, faa), optionally followed by gz, bgz, zst or zstd");
                     System.exit(1);
                 }
             }
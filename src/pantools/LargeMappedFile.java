@@ -0,0 +1,322 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pantools;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implements a memory mapped file of any size addressed by long offsets.
+ *
+ * The file is mapped in segments of a power-of-two size, so an offset is split
+ * into a segment number and a position with a shift and a mask. Every segment
+ * overlaps the next one by OVERLAP bytes, therefore a record shorter than that
+ * never crosses the boundary of the segment it starts in.
+ *
+ * The file may be read by several threads while it grows: the segments a
+ * reader may still hold are left to the garbage collector when they are
+ * mapped again, and only close() unmaps them explicitly, so it must not run
+ * alongside any reader.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class LargeMappedFile {
+    public static final int SEGMENT_BITS = 30;  // 1 GB segments
+    public static final int OVERLAP = 4096;
+    private final int segment_bits;
+    private final long segment_mask;
+    private final long base;        // The offset of the mapped region in the file
+    private final boolean writable;
+    private long length;
+    private RandomAccessFile file;
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * Maps a region of a file into the memory.
+     *
+     * @param path Path to the file
+     * @param offset The offset of the region in the file
+     * @param len The length of the region in bytes
+     * @param write Determines if the region should be writable; if so, the file grows as needed
+     * @param bits The logarithm of the segment size, at most 30
+     */
+    public LargeMappedFile(String path, long offset, long len, boolean write, int bits) throws IOException {
+        segment_bits = bits;
+        segment_mask = (1L << bits) - 1;
+        base = offset;
+        writable = write;
+        file = new RandomAccessFile(path, writable ? "rw" : "r");
+        segments = new MappedByteBuffer[0];
+        map(len);
+    }
+
+    /**
+     * Maps a region of a file into the memory with the default segment size.
+     *
+     * @param path Path to the file
+     * @param offset The offset of the region in the file
+     * @param len The length of the region in bytes
+     * @param write Determines if the region should be writable
+     */
+    public LargeMappedFile(String path, long offset, long len, boolean write) throws IOException {
+        this(path, offset, len, write, SEGMENT_BITS);
+    }
+
+    /**
+     * Maps a whole file, or a file to be created, into the memory.
+     *
+     * @param path Path to the file
+     * @param len The length of the file in bytes
+     * @param write Determines if the file should be writable
+     */
+    public LargeMappedFile(String path, long len, boolean write) throws IOException {
+        this(path, 0, len, write, SEGMENT_BITS);
+    }
+
+    /**
+     * Gives the length of the mapped region.
+     *
+     * @return The length in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    public byte get(long pos) {
+        return segments[(int)(pos >>> segment_bits)].get((int)(pos & segment_mask));
+    }
+
+    public void put(long pos, byte b) {
+        segments[(int)(pos >>> segment_bits)].put((int)(pos & segment_mask), b);
+    }
+
+    /**
+     * Reads a big-endian long integer of 8 bytes.
+     *
+     * @param pos The position of the first byte
+     * @return The value
+     */
+    public long get_long(long pos) {
+        return segments[(int)(pos >>> segment_bits)].getLong((int)(pos & segment_mask));
+    }
+
+    /**
+     * Writes a big-endian long integer of 8 bytes.
+     *
+     * @param pos The position of the first byte
+     * @param number The value
+     */
+    public void put_long(long pos, long number) {
+        segments[(int)(pos >>> segment_bits)].putLong((int)(pos & segment_mask), number);
+    }
+
+    /**
+     * Reads a big-endian integer of 4 bytes.
+     *
+     * @param pos The position of the first byte
+     * @return The value
+     */
+    public int get_int(long pos) {
+        return segments[(int)(pos >>> segment_bits)].getInt((int)(pos & segment_mask));
+    }
+
+    /**
+     * Writes a big-endian integer of 4 bytes.
+     *
+     * @param pos The position of the first byte
+     * @param number The value
+     */
+    public void put_int(long pos, int number) {
+        segments[(int)(pos >>> segment_bits)].putInt((int)(pos & segment_mask), number);
+    }
+
+    /**
+     * Reads a big-endian integer of n bytes, n being at most 8.
+     *
+     * @param pos The position of the first byte
+     * @param n The number of bytes
+     * @return The value
+     */
+    public long get_long(long pos, int n) {
+        MappedByteBuffer buff = segments[(int)(pos >>> segment_bits)];
+        int i, p = (int)(pos & segment_mask);
+        long number = 0;
+        for (i = 0; i < n; ++i)
+            number = (number << 8) | (buff.get(p + i) & 0x00FFL);
+        return number;
+    }
+
+    /**
+     * Writes a big-endian integer of n bytes, n being at most 8.
+     *
+     * @param pos The position of the first byte
+     * @param number The value
+     * @param n The number of bytes
+     */
+    public void put_long(long pos, long number, int n) {
+        MappedByteBuffer buff = segments[(int)(pos >>> segment_bits)];
+        int i, p = (int)(pos & segment_mask);
+        for (i = n - 1; i >= 0; --i, number >>= 8)
+            buff.put(p + i, (byte)(number & 0x00FF));
+    }
+
+    /**
+     * Reads a sequence of bytes which may span several segments.
+     *
+     * @param pos The position of the first byte
+     * @param dst The destination array
+     * @param off The offset in the destination array
+     * @param len The number of bytes
+     */
+    public void get(long pos, byte[] dst, int off, int len) {
+        ByteBuffer buff;
+        int n;
+        for (; len > 0; pos += n, off += n, len -= n) {
+            buff = segments[(int)(pos >>> segment_bits)].duplicate();
+            buff.position((int)(pos & segment_mask));
+            n = Math.min(len, buff.remaining());
+            buff.get(dst, off, n);
+        }
+    }
+
+    /**
+     * Writes a sequence of bytes which may span several segments.
+     *
+     * @param pos The position of the first byte
+     * @param src The source array
+     * @param off The offset in the source array
+     * @param len The number of bytes
+     */
+    public void put(long pos, byte[] src, int off, int len) {
+        ByteBuffer buff;
+        int n;
+        for (; len > 0; pos += n, off += n, len -= n) {
+            buff = segments[(int)(pos >>> segment_bits)].duplicate();
+            buff.position((int)(pos & segment_mask));
+            n = Math.min(len, buff.remaining());
+            buff.put(src, off, n);
+        }
+    }
+
+    /**
+     * Extends the mapped region, and the file if needed.
+     *
+     * @param len The new length of the region in bytes
+     */
+    public void grow(long len) throws IOException {
+        if (len > length)
+            map(len);
+    }
+
+    /**
+     * Shrinks the mapped region, and the file, to a given length. The old
+     * segments are left to the garbage collector.
+     *
+     * @param len The new length of the region in bytes
+     */
+    public void truncate(long len) throws IOException {
+        force();
+        segments = new MappedByteBuffer[0];
+        if (writable)
+            file.setLength(base + len);
+        map(len);
+    }
+
+    /**
+     * Asks the operating system to read the whole region into the memory ahead
+     * of the random accesses; Java offers no madvise, so the pages are touched.
+     */
+    public void load() {
+        for (MappedByteBuffer segment: segments)
+            segment.load();
+    }
+
+    /**
+     * Flushes the changes to the disk.
+     */
+    public void force() {
+        if (writable)
+            for (MappedByteBuffer segment: segments)
+                segment.force();
+    }
+
+    /**
+     * Unmaps the region explicitly, without waiting for the garbage collector,
+     * and closes the file. No other thread may read or write the file then,
+     * as an access to an unmapped segment crashes the virtual machine.
+     */
+    public void close() throws IOException {
+        for (int k = segments.length - 1; k >= 0; --k)
+            unmap(k);
+        segments = new MappedByteBuffer[0];
+        file.close();
+    }
+
+    /**
+     * Maps the segments, keeping those which are already mapped in full; the
+     * others are replaced, not unmapped, as a reader may still use them.
+     */
+    private void map(long len) throws IOException {
+        int k, size, n = (int)((len + segment_mask) >>> segment_bits);
+        long start;
+        MappedByteBuffer[] new_segments = new MappedByteBuffer[n];
+        FileChannel channel = file.getChannel();
+        if (writable && file.length() < base + len)
+            file.setLength(base + len);
+        for (k = 0; k < n; ++k) {
+            start = (long)k << segment_bits;
+            size = (int)Math.min(len - start, (1L << segment_bits) + OVERLAP);
+            if (k < segments.length && segments[k] != null && segments[k].capacity() == size) {
+                new_segments[k] = segments[k];
+            } else {
+                new_segments[k] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                        base + start, size);
+            }
+        }
+        segments = new_segments;
+        length = len;
+    }
+
+    /**
+     * Releases the memory of a segment through the cleaner of the direct buffer.
+     */
+    private void unmap(int k) {
+        if (segments[k] == null)
+            return;
+        if (writable)
+            segments[k].force();
+        clean(segments[k]);
+        segments[k] = null;
+    }
+
+    private static void clean(MappedByteBuffer buff) {
+        try {
+        // Java 9 and later
+            Class<?> unsafe_class = Class.forName("sun.misc.Unsafe");
+            Field f = unsafe_class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Method invoke_cleaner = unsafe_class.getMethod("invokeCleaner", ByteBuffer.class);
+            invoke_cleaner.invoke(f.get(null), buff);
+        } catch (Exception e) {
+            try {
+            // Java 8
+                Method cleaner = buff.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object c = cleaner.invoke(buff);
+                if (c != null)
+                    c.getClass().getMethod("clean").invoke(c);
+            } catch (Exception ex) {
+            // leave it to the garbage collector
+            }
+        }
+    }
+}
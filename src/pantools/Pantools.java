@@ -28,6 +28,7 @@ import org.neo4j.graphdb.RelationshipType;
 import pangenome.AnnotationLayer;
 import pangenome.ProteomeLayer;
 import pangenome.GenomeLayer;
+import pangenome.PathIndex;
 import sequence.SequenceScanner;
 
 /**
@@ -41,6 +42,8 @@ public class Pantools {
     public static String INDEX_DATABASE_PATH = "/databases/index.db/";
     public static String GENOME_DATABASE_PATH = "/databases/genome.db/";
     public static String READS_DATABASE_PATH = "/databases/read.db/";
+    public static String GRAPH_STORE_PATH = "/databases/graph.store/";
+    public static String PATHS_DATABASE_PATH = "/databases/paths.db/";
 
     public static String PATH_TO_THE_PANGENOME_DATABASE;
     public static String PATH_TO_THE_GENOMES_FILE;
@@ -64,6 +67,7 @@ public class Pantools {
     public static SequenceDatabase genomeDb;
     public static SequenceDatabase sequencingDb;
     public static SequenceScanner scanner;
+    public static PathIndex pathsDb;
     public static int ANCHORS = 10000; // The number of anchor nodes
     public static int MAX_TRANSACTION_SIZE = 100;    //   The number of transactions to be committed in batch
     public static int cores = Runtime.getRuntime().availableProcessors();
@@ -71,6 +75,11 @@ public class Pantools {
     public static boolean DEBUG;
     public static boolean SHOW_KMERS;
     public static int THREADS = 1;
+    public static boolean KMER_HASH = false;
+    public static boolean COMPACT_INDEX = false;
+    public static boolean TWO_BIT_GENOMES = false;
+    public static boolean BATCH_BUILD = false;
+    public static boolean UNITIG_BUILD = false;
     public static Map<String,Label> labels;
     
     public static Label pangenome_label = label("pangenome");
@@ -271,6 +280,56 @@ public class Pantools {
                         System.out.println("INFLATION = " + INFLATION);
                         System.out.println("CONTRAST = " + CONTRAST);
                         break;
+                    case "--kmer-hash": case "-kh":
+                        x = Integer.parseInt(args[i + 1]);
+                        if (x == 0 || x == 1)
+                            KMER_HASH = x == 1;
+                        else {
+                            System.out.println("Choose KMER_HASH 0 (binary search) or 1 (minimal perfect hash) or do not specify it to use the default value.");
+                            System.exit(1);
+                        }
+                        System.out.println("KMER_HASH = " + KMER_HASH);
+                        break;
+                    case "--compact-index": case "-ci":
+                        x = Integer.parseInt(args[i + 1]);
+                        if (x == 0 || x == 1)
+                            COMPACT_INDEX = x == 1;
+                        else {
+                            System.out.println("Choose COMPACT_INDEX 0 (KMC layout) or 1 (compact layout) or do not specify it to use the default value.");
+                            System.exit(1);
+                        }
+                        System.out.println("COMPACT_INDEX = " + COMPACT_INDEX);
+                        break;
+                    case "--two-bit": case "-tb":
+                        x = Integer.parseInt(args[i + 1]);
+                        if (x == 0 || x == 1)
+                            TWO_BIT_GENOMES = x == 1;
+                        else {
+                            System.out.println("Choose TWO_BIT_GENOMES 0 (4-bit bases) or 1 (2-bit bases) or do not specify it to use the default value.");
+                            System.exit(1);
+                        }
+                        System.out.println("TWO_BIT_GENOMES = " + TWO_BIT_GENOMES);
+                        break;
+                    case "--build-mode": case "-bm":
+                        x = Integer.parseInt(args[i + 1]);
+                        if (x == 0 || x == 1)
+                            BATCH_BUILD = x == 1;
+                        else {
+                            System.out.println("Choose BATCH_BUILD 0 (transactions) or 1 (batch inserter) or do not specify it to use the default value.");
+                            System.exit(1);
+                        }
+                        System.out.println("BATCH_BUILD = " + BATCH_BUILD);
+                        break;
+                    case "--unitig-build": case "-ub":
+                        x = Integer.parseInt(args[i + 1]);
+                        if (x == 0 || x == 1)
+                            UNITIG_BUILD = x == 1;
+                        else {
+                            System.out.println("Choose UNITIG_BUILD 0 (splitting nodes) or 1 (unitigs from the kmer degrees) or do not specify it to use the default value.");
+                            System.exit(1);
+                        }
+                        System.out.println("UNITIG_BUILD = " + UNITIG_BUILD);
+                        break;
                     case "--threads-number": case "-tn":
                         x = Integer.parseInt(args[i + 1]);
                         if (x < cores)
@@ -340,6 +399,9 @@ public class Pantools {
             case "ag": case "add_genomes":
                 seqLayer.add_genomes();
                 break;
+            case "ar": case "add_reads":
+                seqLayer.add_reads();
+                break;
             case "aa": case "add_annotations":
                 annLayer.add_annotaions();
                 break;
@@ -361,6 +423,9 @@ public class Pantools {
             case "rs": case "retrieve_synteny":
                 seqLayer.retrieve_synteny(args[2]);
                 break;
+            case "mp": case "migrate_pointers":
+                seqLayer.migrate_pointers();
+                break;
             case "h": case "help":
                 print_help_message();
                 System.exit(1);
@@ -397,14 +462,6 @@ public class Pantools {
 "\n" +
 "Requirements\n" +
 "------------\n" +
-"- KMC: is a disk-based programm for counting k-mers from \n" +
-"       (possibly gzipped) FASTQ/FASTA files\n" +
-"       (http://sun.aei.polsl.pl/kmc).\n" +
-"        You need to download it and add the path to the \n" +
-"        appropriate version (linux, macos or windows) of kmc \n" +
-"        and kmc_tools executables to your OS path environment \n" +
-"        variable.\n" +
-"\n" +
 "- Java Virtual Machine version 1.8 or higher: Add the path to \n" +
 "       the java executable to your OS path environment variable.\n" +
 "\n" +
@@ -434,16 +491,44 @@ public class Pantools {
 "\n" +
 "<build_pangenome or bg> \n" +
 "   To build a pan-genome out of a set of genomes.\n" +
+"   The paths of the sequences in the graph are kept in a path index \n" +
+"   (databases/paths.db), not on the edges. For a pan-genome made by \n" +
+"   an older version, the index is built from the edges when first needed.\n" +
 "\n" +
 "   <argument keys>\n" +
 "   --database_path or -dp\n" +
 "      gives path to the pangenome database. \n" +
 "   --genomes-file or -gf \n" +
 "      gives a text file containing paths to FASTA files of genomes;\n" +
-"      each in a seperated line.\n" +
+"      each in a seperated line. The files may be compressed by gzip\n" +
+"      or bgzip (.gz, .bgz) or by zstd (.zst, needs zstd in the path).\n" +
 "   --kmer-size or ks\n" +
 "      gives the size of k-mers, if not given or is out of range \n" +
 "      (6 <= K_SIZE <= 255),an optimal value would be calculated automatically.    \n" +
+"   --kmer-hash or -kh (default = 0)\n" +
+"      1 to build a minimal perfect hash of the k-mers for faster lookups; \n" +
+"      it is kept up to date by add_genomes.\n" +
+"   --compact-index or -ci (default = 0)\n" +
+"      1 to store the k-mers without counters, with Elias-Fano coded \n" +
+"      prefixes and a skip table; add_genomes keeps the layout.\n" +
+"   --two-bit or -tb (default = 0)\n" +
+"      1 to store the bases of the genome database in 2 bits, with the \n" +
+"      degenerate bases in a separate table of runs; add_genomes keeps it.\n" +
+"   --build-mode or -bm (default = 0)\n" +
+"      1 to construct the graph off-heap and write it at once with the \n" +
+"      batch inserter of Neo4j, without transactions; the nodes, edges \n" +
+"      and properties are those of the default mode, up to the node ids.\n" +
+"   --unitig-build or -ub (default = 0)\n" +
+"      1 to find the in and out degrees of the k-mers first, so every \n" +
+"      node is made whole once instead of being split by the later \n" +
+"      genomes; the graph is the same. add_genomes takes it as well.\n" +
+"   --threads-number or -tn (default = 1) \n" +
+"      gives the number of threads counting the k-mers of a new index, \n" +
+"      decompressing BGZF files, encoding the genomes in the genome \n" +
+"      database, a genome in chunks if there are fewer genomes than \n" +
+"      threads, rebuilding it from the graph if it is missing, and \n" +
+"      looking up the k-mers ahead of the construction and of the \n" +
+"      unitig build; add_genomes takes it as well.\n" +
 "\n" +
 "<build_panproteome or bp>\n" +
 "   To build a pan-proteome out of a set of proteins.\n" +
@@ -453,10 +538,12 @@ public class Pantools {
 "      gives path to the pangenome database. \n" +
 "   --proteomes_file or -pf\n" +
 "      gives a text file containing paths to FASTA files of proteomes; \n" +
-"      each in a seperated line.\n" +
+"      each in a seperated line, optionally compressed like genomes.\n" +
 "             \n" +
 "<add_genomes or ag>\n" +
 "   To add new genomes to an available pan-genome.  \n" +
+"   The positions kept on the edges by older versions are replaced \n" +
+"   by the path index.\n" +
 "  \n" +
 "   <argument keys>\n" +
 "   --database_path or -dp\n" +
@@ -464,7 +551,23 @@ public class Pantools {
 "   --genomes-file or -gf\n" +
 "      gives a text file containing paths to FASTA files of the new \n" +
 "      genomes to be added to the pangeome; \n" +
-"      each in a seperated line.\n" +
+"      each in a seperated line, optionally compressed.\n" +
+"\n" +
+"<add_reads or ar>\n" +
+"   To add sequencing read sets to the reads database of an available \n" +
+"   pan-genome (databases/read.db), which is made if it does not exist.\n" +
+"\n" +
+"   <argument keys>\n" +
+"   --database_path or -dp\n" +
+"      gives path to the pangenome database. \n" +
+"   --sras-file or -sf\n" +
+"      gives a text file containing paths to FASTQ or FASTA files of \n" +
+"      the read sets; each in a seperated line, optionally compressed.\n" +
+"      --two-bit applies as well.\n" +
+"   --threads-number or -tn (default = 1) \n" +
+"      gives the number of threads encoding the read sets, each file \n" +
+"      in a thread, or every file in chunks of reads encoded in \n" +
+"      parallel if there are fewer files than threads.\n" +
 "\n" +
 "<add_annotations or aa>\n" +
 "   To add new annotations to an available pan-genome. \n" +
@@ -541,6 +644,15 @@ public class Pantools {
 "   --threads-number or -tn (default = 1) \n" +
 "      gives the number of parallel working threads\n" +
 "\n" +
+"<migrate_pointers or mp>\n" +
+"   To rewrite the pointers of the k-mer index made by older versions \n" +
+"   in the compact format of this version, and to convert the text \n" +
+"   genomes.info of the genome database, which is otherwise only read.\n" +
+"\n" +
+"   <argument keys>\n" +
+"   --database_path or -dp\n" +
+"      gives path to the pangenome database. \n" +
+"\n" +
 "<version or v>\n" +
 "   To show the versions of PanTools and Neo4j.\n" +
 "   \n" +
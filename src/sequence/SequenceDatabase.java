@@ -6,21 +6,37 @@
 package sequence;
 
 import java.util.*;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
+import pantools.LargeMappedFile;
+import static pantools.Pantools.THREADS;
+import static pantools.Pantools.TWO_BIT_GENOMES;
 import static pantools.Pantools.genome_label;
 import static pantools.Pantools.labels;
 import static pantools.Pantools.pangenome_label;
@@ -29,28 +45,56 @@ import static pantools.Pantools.sequence_label;
 /**
  * Implements all the functionality to work with a 4-bit compressed sequence database. 
  * 
+ * The information of the sequences is kept in a memory mapped file, see
+ * SequenceMetadata, and genomes.info only keeps that of the genomes, in a
+ * binary format which is mapped as well:
+ *      INFO_MAGIC, number of bytes, number of genomes, format (0: 4-bit, 1: 2-bit)
+ *      length, number of sequences and end of the name of every genome (longs)
+ *      the names of the genomes (UTF-8)
+ * genomes.info.txt is a text export of it, which is not read. The text
+ * genomes.info of the older versions is read in the memory, and converted only
+ * when genomes are added or by migrate_info().
+ * 
+ * Optionally, the bases are stored in 2 bits, the degenerate ones as A, and
+ * the runs of degenerate bases of all the sequences are kept one after the
+ * other in genomes.amb, each as its start position, length (ints) and code
+ * (byte). The metadata gives the end of the runs of every sequence, so the
+ * runs of a sequence are searched in the mapped file.
+ * 
+ * The qualities of the FASTQ genomes are binned and kept in genomes.qual, see
+ * SequenceQualities.
+ * 
  * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
  * University, Netherlands
  */
 public class SequenceDatabase {
 
     private final String INFO_FILE = "/genomes.info";
+    private final String INFO_TEXT_FILE = "/genomes.info.txt";
+    private static final long INFO_MAGIC = 0x50414e47454e0001L; // "PANGEN" and the version of genomes.info
+    private static final int INFO_HEADER_SIZE = 32;
     private final String DB_FILE = "/genomes.db";
+    private final String AMB_FILE = "/genomes.amb";
+    private final String SEQ_FILE = "/genomes.seq";
+    private final String QUAL_FILE = "/genomes.qual";
+    private static final int RUN_SIZE = 9;  // The bytes of a run in genomes.amb
+    private static final int SEEK_DISTANCE = 1 << 16; // The jump of a cursor after which the runs are searched again
     public long num_bytes;
     public int num_genomes;
     public int num_sequences[];        // Number of sequences in each genome    
-    public String[][] sequence_titles; // Name of sequences for each genome
-    public String[][] sequence_qualities; // FASTQ quality strings
-    public String[] genome_names;     // Paths to the genome FASTA files
+    private String[] genome_names;     // Paths to the genome FASTA files, read from genomes.info when asked for
+    private LargeMappedFile info;      // The mapped genomes.info
+    private int info_genomes;          // Number of the genomes in the mapped genomes.info
     public long genome_length[];    // Length of sequences for each genome
-    public long sequence_length[][];    // Length of sequences for each genome
-    public long sequence_offset[][];    // Cummulative length of previous sequences
-    public long sequence_start[][];    // Length of sequences for each genome    
-    private RandomAccessFile genomes_file;
-    public MappedByteBuffer[] genomes_buff;
-    private int parts_num;
-    public long[] parts_size;
-    public int max_byte = 100000000;
+    private SequenceMetadata sequences; // Titles, qualities, lengths, offsets and start bytes of the sequences
+    private long first_sequence[];    // Number of the first sequence of each genome in the metadata
+    private SequenceQualities qualities; // The binned qualities of the FASTQ sequences
+    public LargeMappedFile genomes_buff;
+    public boolean two_bit;            // Determines if the bases are stored in 2 bits
+    private LargeMappedFile runs;      // The mapped genomes.amb
+    private DataOutputStream rebuilt_runs;   // The runs put by put_sequence, in any order of the sequences
+    private long rebuilt_runs_num;
+    private LargeMappedFile rebuilt_index;   // The first rebuilt run and the number of the runs of every sequence
     public char sym[];
     public int[] binary;
     public int[] complement;
@@ -88,49 +132,12 @@ public class SequenceDatabase {
      * @param path Path to the genome database
      */
     public SequenceDatabase(String path) {
-        int g, s, k;
-        BufferedReader in;
         db_path = path;
         initalize();
         try {
-            in = new BufferedReader(new FileReader(path + INFO_FILE));
-            num_bytes = Long.valueOf(in.readLine().split(":")[1]);
-            num_genomes = Integer.parseInt(in.readLine().split(":")[1]);
-            genome_names = new String[num_genomes + 1];
-            genome_length = new long[num_genomes + 1];
-            sequence_titles = new String[num_genomes + 1][];
-            sequence_qualities = new String[num_genomes + 1][];
-            sequence_length = new long[num_genomes + 1][];
-            sequence_offset = new long[num_genomes + 1][];
-            sequence_start = new long[num_genomes + 1][];
-            num_sequences = new int[num_genomes + 1];
-            for (g = 1; g <= num_genomes; ++g) {
-                genome_names[g] = in.readLine().split(":")[1];
-                genome_length[g] = Long.valueOf(in.readLine().split(":")[1]);
-                num_sequences[g] = Integer.parseInt(in.readLine().split(":")[1]);
-                sequence_titles[g] = new String[num_sequences[g] + 1];
-                sequence_qualities[g] = new String[num_sequences[g] + 1];
-                sequence_length[g] = new long[num_sequences[g] + 1];
-                sequence_offset[g] = new long[num_sequences[g] + 1];
-                sequence_start[g] = new long[num_sequences[g] + 1];
-                for (s = 1; s <= num_sequences[g]; ++s) {
-                    sequence_titles[g][s] = in.readLine().split(":")[1];
-                    sequence_qualities[g][s] = in.readLine().split(":")[1];
-                    sequence_length[g][s] = Long.valueOf(in.readLine().split(":")[1]);
-                    sequence_offset[g][s] = Long.valueOf(in.readLine().split(":")[1]);
-                    sequence_start[g][s] = Long.valueOf(in.readLine().split(":")[1]);
-                }
-            }
-            in.close();
+            read_info(0, false);
             if (Files.exists(Paths.get(path + DB_FILE))) {
-                genomes_file = new RandomAccessFile(path + DB_FILE, "r");
-                parts_num = (int) (num_bytes % max_byte == 0 ? num_bytes / max_byte : num_bytes / max_byte + 1);
-                parts_size = new long[parts_num];
-                genomes_buff = new MappedByteBuffer[parts_num];
-                for (k = 0; k < parts_num; ++k) {
-                    parts_size[k] = (int) (k == parts_num - 1 ? num_bytes % max_byte : max_byte);
-                    genomes_buff[k] = genomes_file.getChannel().map(FileChannel.MapMode.READ_ONLY, k * parts_size[0], parts_size[k]);
-                }
+                genomes_buff = new LargeMappedFile(path + DB_FILE, num_bytes, false);
             } else {
                 System.out.println("genome database not found!");
             }
@@ -148,8 +155,7 @@ public class SequenceDatabase {
     public SequenceDatabase(String path, String genome_paths_file) {
         int g;
         BufferedReader in;
-        String line, file_type;
-        String[] fields;
+        String line;
         List<String> genome_list = new LinkedList();
         db_path = path;
         initalize();
@@ -172,54 +178,11 @@ public class SequenceDatabase {
             System.out.println(e.getMessage());
             System.exit(1);
         }
-        genome_names = new String[num_genomes + 1];
-        genome_length = new long[num_genomes + 1];
-        sequence_titles = new String[num_genomes + 1][];
-        sequence_qualities = new String[num_genomes + 1][];
-        sequence_length = new long[num_genomes + 1][];
-        sequence_offset = new long[num_genomes + 1][];
-        sequence_start = new long[num_genomes + 1][];
-        num_sequences = new int[num_genomes + 1];
+        two_bit = TWO_BIT_GENOMES;
+        allocate(num_genomes);
         Iterator<String> itr = genome_list.iterator();
-        // count number of sequences of genomes    
-        for (g = 1; itr.hasNext(); ++g) {
-            num_sequences[g] = 0;
+        for (g = 1; itr.hasNext(); ++g)
             genome_names[g] = itr.next();
-            try {
-                in = new BufferedReader(new FileReader(genome_names[g]));
-                fields = genome_names[g].split("\\.");
-                file_type = fields[fields.length - 1].toLowerCase();
-                if (file_type.equals("fasta") || file_type.equals("fa") || file_type.equals("fna") || file_type.equals("fn")){
-                    while (in.ready()) {
-                        line = in.readLine().trim();
-                        if (line.equals("")) 
-                            continue;
-                        if (line.charAt(0) == '>' || line.charAt(0) == '+') 
-                            num_sequences[g]++;
-                    }
-                }else if (file_type.equals("fastq") || file_type.equals("fq") || file_type.equals("fnq") || file_type.equals("q")){
-                    while (in.ready()) {
-                        line = in.readLine().trim();
-                        if (line.equals(""))
-                            continue;
-                        num_sequences[g]++;
-                    }
-                    num_sequences[g] /= 4;
-                } else {
-                    System.out.println(genome_names[g] + " does not have a valid extention (fasta, fa, fna, fn, fastq, fq, fnq, q)");
-                    System.exit(1);
-                }
-                in.close();
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
-                System.exit(1);
-            }
-            sequence_titles[g] = new String[num_sequences[g] + 1];
-            sequence_qualities[g] = new String[num_sequences[g] + 1];
-            sequence_length[g] = new long[num_sequences[g] + 1];
-            sequence_offset[g] = new long[num_sequences[g] + 1];
-            sequence_start[g] = new long[num_sequences[g] + 1];
-        }
         code_genomes(path, 0);
         write_info();
     }
@@ -233,56 +196,40 @@ public class SequenceDatabase {
     public SequenceDatabase(String path, GraphDatabaseService graphDb) {
         new File(path).mkdir();
         Node db_node, seq_node, gen_node;
-        int k, j, g, s;
+        int g, s;
+        long length;
         db_path = path;
         num_bytes = 0;
+        two_bit = TWO_BIT_GENOMES;
         initalize();
         try (Transaction tx = graphDb.beginTx()) {
             db_node = graphDb.findNodes(pangenome_label).next();
             num_genomes = (int) db_node.getProperty("num_genomes");
-            genome_names = new String[num_genomes + 1];
-            genome_length = new long[num_genomes + 1];
-            sequence_titles = new String[num_genomes + 1][];
-            sequence_qualities = new String[num_genomes + 1][];
-            sequence_length = new long[num_genomes + 1][];
-            sequence_offset = new long[num_genomes + 1][];
-            sequence_start = new long[num_genomes + 1][];
-            num_sequences = new int[num_genomes + 1];
+            allocate(num_genomes);
+            SequenceMetadata.Writer out = new SequenceMetadata.Writer(path + SEQ_FILE);
+            SequenceQualities.Writer quality_out = new SequenceQualities.Writer(path + QUAL_FILE, false);
             for (g = 1; g <= num_genomes; ++g) {
                 gen_node = graphDb.findNode(genome_label, "number", g);
                 genome_names[g] = (String) gen_node.getProperty("path");
                 num_sequences[g] = (int) gen_node.getProperty("num_sequences");
-                sequence_titles[g] = new String[num_sequences[g] + 1];
-                sequence_qualities[g] = new String[num_sequences[g] + 1];
-                sequence_length[g] = new long[num_sequences[g] + 1];
-                sequence_offset[g] = new long[num_sequences[g] + 1];
-                sequence_start[g] = new long[num_sequences[g] + 1];
                 for (s = 1; s <= num_sequences[g]; ++s) {
                     seq_node = graphDb.findNode(sequence_label, "identifier", g + "_" + s);
-                    sequence_titles[g][s] = (String) seq_node.getProperty("title");
-                    sequence_qualities[g][s] = (String) seq_node.getProperty("quality","*");
-                    sequence_length[g][s] = (long) seq_node.getProperty("length");
-                    sequence_offset[g][s] = (long) seq_node.getProperty("offset");
-                    sequence_start[g][s] = num_bytes;
-                    num_bytes += sequence_length[g][s] % 2 == 0 ? sequence_length[g][s] / 2 : sequence_length[g][s] / 2 + 1;
+                    length = (long) seq_node.getProperty("length");
+                    out.add((String) seq_node.getProperty("title"), add_quality(quality_out, (String) seq_node.getProperty("quality","*"), length),
+                            length, (long) seq_node.getProperty("offset"), num_bytes, 0);
+                    genome_length[g] += length;
+                    num_bytes += bytes_of(length);
                 }
             }
-            try {
-                genomes_file = new RandomAccessFile(path + DB_FILE, "rw");
-            } catch (FileNotFoundException ioe) {
-                System.out.println(ioe.getMessage());
-                System.exit(1);
-            }
+            out.close();
+            quality_out.close();
             tx.success();
-        }
-        parts_num = (int) (num_bytes % max_byte == 0 ? num_bytes / max_byte : num_bytes / max_byte + 1);
-        parts_size = new long[parts_num];
-        genomes_buff = new MappedByteBuffer[parts_num];
-        try {
-            for (k = 0; k < parts_num; ++k) {
-                parts_size[k] = (int) (k == parts_num - 1 ? num_bytes % max_byte : max_byte);
-                genomes_buff[k] = genomes_file.getChannel().map(FileChannel.MapMode.READ_WRITE, k * parts_size[0], parts_size[k]);
-            }
+            index_sequences();
+            sequences = new SequenceMetadata(path + SEQ_FILE, two_bit);
+            qualities = new SequenceQualities(path + QUAL_FILE);
+            genomes_buff = new LargeMappedFile(path + DB_FILE, num_bytes, true);
+            if (two_bit)
+                start_rebuilt_runs();
         } catch (IOException e) {
             System.out.println(e.getMessage());
             System.exit(1);
@@ -291,187 +238,795 @@ public class SequenceDatabase {
     }
 
     /**
-     * Compresses genomes in a binary database, each nucleotide in 4 bits.
+     * Compresses genomes in a binary database, each nucleotide in 4 bits, or
+     * in 2 bits, reading every genome file once.
+     * 
+     * The genomes are encoded in parallel, each into its own region of the
+     * database, which is large enough for the genome if its file is not 
+     * compressed, and usually if it is. The regions are then moved next to each other; a genome
+     * which did not fit its region is encoded again at the end. If there are
+     * fewer genomes than threads, like a few large read sets, the genomes are
+     * encoded one after the other instead, each in chunks parsed in parallel.
      * 
      * @param path Path of the genome database
      * @param previous_num_genomes The number of the genomes were already in the genome database
      */
     public void code_genomes(String path, int previous_num_genomes) {
-        String line, file_type;
-        String[] fields;
-        char carry;
-        boolean havecarry;
-        long size = 0, byte_number;
-        int j, g, s, len, k;
-        BufferedReader in;
-        byte_number = previous_num_genomes == 0 ? 0 : num_bytes;
+        long[] region_start = new long[num_genomes + 2];
+        long[] shift = new long[num_genomes + 1];
+        long[] quality_start;
+        long byte_number, i, run_end;
+        int g;
         initalize();
         System.out.println("Reading " + (num_genomes - previous_num_genomes) + " genome(s)...");
+        region_start[previous_num_genomes + 1] = previous_num_genomes == 0 ? 0 : num_bytes;
+        for (g = previous_num_genomes + 1; g <= num_genomes; ++g) {
+            if (SequenceParser.file_type(genome_names[g]) == -1) {
+                System.out.println(genome_names[g] + " does not have a valid extention (fasta, fa, fna, fn, fastq, fq, fnq, q), optionally followed by gz, bgz, zst or zstd");
+                System.exit(1);
+            }
+        // two bases or more in a byte, so half of the file is enough if it is not compressed 
+            region_start[g + 1] = region_start[g] + SequenceInput.estimated_length(genome_names[g]) / 2 + 1;
+        }
         try {
-            for (g = previous_num_genomes + 1; g <= num_genomes; ++g) {
-                in = new BufferedReader(new FileReader(genome_names[g]));
-                fields = genome_names[g].split("\\.");
-                file_type = fields[fields.length - 1].toLowerCase();
-                if (file_type.equals("fasta") || file_type.equals("fa") || file_type.equals("fna") || file_type.equals("fn")){
-                    s = 0;
-                    sequence_offset[g][0] = 0;
-                    sequence_length[g][0] = 0;
-                    while (in.ready()) {
-                        line = in.readLine().trim();
-                        if (line.equals("")) {
-                            continue;
-                        }
-                        if (line.charAt(0) == '>') {
-                            ++s;
-                            sequence_titles[g][s] = line.substring(1);
-                            sequence_qualities[g][s] = "*";
-                            sequence_offset[g][s] = sequence_offset[g][s - 1] + sequence_length[g][s - 1];
-                            if (size % 2 == 1) {
-                                ++size;
-                            }
-                            sequence_start[g][s] = num_bytes + size / 2;
-                        } else {
-                            len = line.length();
-                            sequence_length[g][s] += len;
-                            genome_length[g] += len;
-                            size += len;
-                        }
-                    }
-                    if (size % 2 == 1) {
-                        ++size;
+            if (genomes_buff != null)
+                genomes_buff.close();
+            genomes_buff = new LargeMappedFile(path + DB_FILE, region_start[num_genomes + 1], true);
+            if (num_genomes - previous_num_genomes < THREADS) {
+                byte_number = region_start[previous_num_genomes + 1];
+                for (g = previous_num_genomes + 1; g <= num_genomes; ++g)
+                    try (ReadableByteChannel in = SequenceInput.open(genome_names[g])) {
+                        byte_number = new_parser(g).parse_in_chunks(in, genomes_buff, byte_number, THREADS);
                     }
-                }else if (file_type.equals("fastq") || file_type.equals("fq") || file_type.equals("fnq") || file_type.equals("q")){
-                    
-                    sequence_offset[g][0] = 0;
-                    sequence_length[g][0] = 0;
-                    for (s = 1; in.ready(); ++s) {
-                    // read title    
-                        line = in.readLine().trim();
-                        sequence_titles[g][s] = line.substring(1);
-                        sequence_offset[g][s] = sequence_offset[g][s - 1] + sequence_length[g][s - 1];
-                        if (size % 2 == 1) {
-                            ++size;
-                        }
-                        sequence_start[g][s] = num_bytes + size / 2;
-                    // read sequence
-                        line = in.readLine().trim();
-                        sequence_length[g][s] += line.length();
-                        genome_length[g] += line.length();
-                        size += line.length();
-                    // read +    
-                        in.readLine();
-                    // read quality    
-                        sequence_qualities[g][s] = in.readLine().trim();
-                    }
-                    if (size % 2 == 1)
-                        ++size;
-                } else {
-                    System.out.println(genome_names[g] + " does not have a valid extention (fasta, fa, fna, fn, fastq, fq, fnq, q)");
-                    System.exit(1);
-                }
-                in.close();
+            } else
+                byte_number = encode_in_regions(previous_num_genomes, region_start, shift);
+            num_bytes = byte_number;
+            genomes_buff.truncate(num_bytes);
+            if (qualities != null)
+                qualities.close();
+            quality_start = append_parts(QUAL_FILE, previous_num_genomes);
+            if (runs != null)
+                runs.close();
+            runs = null;
+            if (two_bit)
+                append_parts(AMB_FILE, previous_num_genomes);
+        // write the metadata of the previous sequences and the new ones next to the old file, and replace it
+            SequenceMetadata.Writer out = new SequenceMetadata.Writer(path + SEQ_FILE + ".new");
+            for (i = 0; i < first_sequence[previous_num_genomes + 1]; ++i)
+                out.add(sequences.get_title(i), sequences.get_quality(i), sequences.get_length(i), sequences.get_offset(i), sequences.get_start(i), sequences.get_run_end(i));
+            run_end = i == 0 ? 0 : sequences.get_run_end(i - 1);
+            for (g = previous_num_genomes + 1; g <= num_genomes; ++g)
+                run_end = add_sequences(out, g, shift[g], quality_start[g], run_end);
+            out.close();
+            if (sequences != null)
+                sequences.close();
+            Files.move(Paths.get(path + SEQ_FILE + ".new"), Paths.get(path + SEQ_FILE), StandardCopyOption.REPLACE_EXISTING);
+            index_sequences();
+            sequences = new SequenceMetadata(path + SEQ_FILE);
+            qualities = new SequenceQualities(path + QUAL_FILE);
+            map_runs();
+        } catch (IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        } catch (ExecutionException e) {
+            System.out.println("Failed to encode the genomes: " + e.getCause());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Encodes the new genomes in parallel, each into its own region of the
+     * database, and puts the regions next to each other.
+     * 
+     * @param previous_num_genomes The number of the genomes were already in the genome database
+     * @param region_start The start of the region of every new genome, and the end of the last one
+     * @param shift Gets the distance every genome has been moved in the database
+     * @return The position after the last genome
+     */
+    private long encode_in_regions(int previous_num_genomes, long[] region_start, long[] shift) throws IOException, InterruptedException, ExecutionException {
+        long[] region_end = new long[num_genomes + 1];
+        long byte_number;
+        int g;
+        AtomicInteger next_genome = new AtomicInteger(previous_num_genomes + 1);
+        List<Future<?>> workers = new ArrayList<>();
+        ExecutorService es = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, num_genomes - previous_num_genomes)));
+        for (g = 0; g < Math.min(THREADS, num_genomes - previous_num_genomes); ++g)
+            workers.add(es.submit(new Encode_genomes(next_genome, region_start, region_end)));
+        es.shutdown();
+    // a genome which failed would be kept empty
+        for (Future<?> worker: workers)
+            worker.get();
+    // put the regions next to each other
+        byte_number = region_start[previous_num_genomes + 1];
+        for (g = previous_num_genomes + 1; g <= num_genomes; ++g) {
+            if (region_end[g] == -1)
+                continue;
+            move(region_start[g], region_end[g], byte_number);
+            shift[g] = byte_number - region_start[g];
+            byte_number += region_end[g] - region_start[g];
+        }
+        for (g = previous_num_genomes + 1; g <= num_genomes; ++g) {
+            if (region_end[g] != -1)
+                continue;
+            try (ReadableByteChannel in = SequenceInput.open(genome_names[g])) {
+                byte_number = new_parser(g).parse(in, genomes_buff, byte_number);
             }
-            num_bytes += size / 2;
+        }
+        return byte_number;
+    }
+
+    /**
+     * Takes genomes one by one and encodes each into its own region of the
+     * database.
+     */
+    private class Encode_genomes implements Runnable {
+        AtomicInteger next_genome;
+        long[] region_start;
+        long[] region_end;
+
+        public Encode_genomes(AtomicInteger n, long[] start, long[] end) {
+            next_genome = n;
+            region_start = start;
+            region_end = end;
+        }
+
+        @Override
+        public void run() {
+            int g;
             try {
-                genomes_file = new RandomAccessFile(path + DB_FILE, "rw");
-            } catch (FileNotFoundException ioe) {
-                System.out.println(ioe.getMessage());
+                for (g = next_genome.getAndIncrement(); g <= num_genomes; g = next_genome.getAndIncrement()) {
+                    try (ReadableByteChannel in = SequenceInput.open(genome_names[g])) {
+                        region_end[g] = new_parser(g).parse(in, genomes_buff, region_start[g], region_start[g + 1]);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
                 System.exit(1);
             }
-            parts_num = (int) (num_bytes % max_byte == 0 ? num_bytes / max_byte : num_bytes / max_byte + 1);
-            parts_size = new long[parts_num];
-            genomes_buff = new MappedByteBuffer[parts_num];
-            for (k = 0; k < parts_num; ++k) {
-                parts_size[k] = (int) (k == parts_num - 1 ? num_bytes % max_byte : max_byte);
-                genomes_buff[k] = genomes_file.getChannel().map(FileChannel.MapMode.READ_WRITE, k * parts_size[0], parts_size[k]);
+        }
+    }
+
+    /**
+     * Makes the parser of a genome, which writes the metadata of the
+     * sequences, their ambiguity runs and qualities into files of its own,
+     * like genomes.seq.g, until they are added to those of the database.
+     */
+    private SequenceParser new_parser(int g) {
+        boolean fastq = SequenceParser.file_type(genome_names[g]) == 1;
+        return new SequenceParser(fastq, two_bit, db_path + SEQ_FILE + "." + g, two_bit ? db_path + AMB_FILE + "." + g : null, 
+                fastq ? db_path + QUAL_FILE + "." + g : null);
+    }
+
+    /**
+     * Appends the files the parsers of the new genomes have written to a
+     * file of the database, in the order of the genomes, and removes them.
+     * 
+     * @param file The name of the file of the database, like genomes.qual
+     * @param previous_num_genomes The number of the genomes were already in the genome database
+     * @return The position the part of every new genome starts at in the file
+     */
+    private long[] append_parts(String file, int previous_num_genomes) throws IOException {
+        long[] part_start = new long[num_genomes + 1];
+        File part;
+        try (FileChannel dest = previous_num_genomes == 0 ?
+                FileChannel.open(Paths.get(db_path + file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) :
+                FileChannel.open(Paths.get(db_path + file), StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (int g = previous_num_genomes + 1; g <= num_genomes; ++g) {
+                part_start[g] = dest.size();
+                part = new File(db_path + file + "." + g);
+                if (!part.exists())
+                    continue;
+                try (FileChannel src = FileChannel.open(part.toPath())) {
+                    for (long pos = 0, len = src.size(); pos < len; )
+                        pos += src.transferTo(pos, len - pos, dest);
+                }
+                part.delete();
             }
-            genomes_buff[(int) (byte_number / parts_size[0])].position((int) (byte_number % parts_size[0]));
-            for (g = previous_num_genomes + 1; g <= num_genomes; ++g) {
-                in = new BufferedReader(new FileReader(genome_names[g]));
-                fields = genome_names[g].split("\\.");
-                file_type = fields[fields.length - 1].toLowerCase();
-                if (file_type.equals("fasta") || file_type.equals("fa") || file_type.equals("fna") || file_type.equals("fn")){
-                    carry = ' ';
-                    havecarry = false;
-                    s = 0;
-                    while (in.ready()) {
-                        line = in.readLine().trim().toUpperCase();
-                        if (line.equals("")) {
-                            continue;
-                        }
-                        if (line.charAt(0) != '>' && havecarry) {
-                            line = carry + line;
-                        }
-                        if (line.charAt(0) == '>') {
-                            if (havecarry) {
-                                genomes_buff[(int) (byte_number / parts_size[0])].put((byte) (binary[carry] << 4));
-                                ++byte_number;
-                            }
-                            havecarry = false;
-                            ++s;
-                            //System.out.println("Reading sequence " + s + "/" + num_sequences[g] + " of genome " + g + " : " + genome_names[g]);
-                        } else {
-                            len = line.length();
-                            havecarry = (len % 2 == 1);
-                            if (havecarry) {
-                                carry = line.charAt(len - 1);
-                                --len;
-                            }
-                            for (j = 0; j < len; j += 2, ++byte_number) {
-                                genomes_buff[(int) (byte_number / parts_size[0])].put((byte)((binary[line.charAt(j)] << 4) | binary[line.charAt(j + 1)]));
-                            }
-                        }
-                    }
-                    if (havecarry) {
-                        genomes_buff[(int) (byte_number / parts_size[0])].put((byte) (binary[carry] << 4));
-                        ++byte_number;
-                    }
-                    havecarry = false;
-                }else if (file_type.equals("fastq") || file_type.equals("fq") || file_type.equals("fnq") || file_type.equals("q")){
-                    carry = ' ';
-                    havecarry = false;
-                    while (in.ready()) {
-                    // read title
-                        in.readLine();
-                        if (havecarry) {
-                            genomes_buff[(int) (byte_number / parts_size[0])].put((byte) (binary[carry] << 4));
-                            ++byte_number;
-                        }
-                        havecarry = false;
-                    //read sequence    
-                        line = in.readLine().trim().toUpperCase();
-                        len = line.length();
-                        havecarry = (len % 2 == 1);
-                        if (havecarry) {
-                            carry = line.charAt(len - 1);
-                            --len;
-                        }
-                        for (j = 0; j < len; j += 2, ++byte_number) {
-                            genomes_buff[(int) (byte_number / parts_size[0])].put((byte)((binary[line.charAt(j)] << 4) | binary[line.charAt(j + 1)]));
-                        }
-                    // read +
-                        in.readLine();
-                    // read quality
-                        in.readLine();
+        }
+        return part_start;
+    }
+
+    /**
+     * Moves a region of the database to a lower position.
+     * 
+     * @param start The start of the region
+     * @param end The end of the region
+     * @param to The new start of the region
+     */
+    private void move(long start, long end, long to) {
+        byte[] buff = new byte[SequenceParser.BUFFER_SIZE];
+        int len;
+        if (to == start)
+            return;
+        for (; start < end; start += len, to += len) {
+            len = (int)Math.min(buff.length, end - start);
+            genomes_buff.get(start, buff, 0, len);
+            genomes_buff.put(to, buff, 0, len);
+        }
+    }
+
+    /**
+     * Writes the information of the sequences of a genome from the metadata
+     * its parser has written, and removes that file.
+     * 
+     * @param out The writer of the metadata
+     * @param g The genome number
+     * @param shift The distance the genome has been moved in the database
+     * @param quality_start The position the qualities of the genome start at in genomes.qual
+     * @param run_end The number of the runs before the genome in genomes.amb
+     * @return The number of the runs in genomes.amb after the genome
+     */
+    private long add_sequences(SequenceMetadata.Writer out, int g, long shift, long quality_start, long run_end) throws IOException {
+        long i, quality, genome_runs;
+        SequenceMetadata part = new SequenceMetadata(db_path + SEQ_FILE + "." + g);
+        num_sequences[g] = (int)part.size();
+        genome_length[g] = 0;
+        for (i = 0; i < part.size(); ++i) {
+            quality = part.get_quality(i);
+            out.add(part.get_title(i), quality == -1 ? -1 : quality_start + quality, part.get_length(i), part.get_offset(i), part.get_start(i) + shift, run_end + part.get_run_end(i));
+            genome_length[g] += part.get_length(i);
+        }
+        genome_runs = part.size() == 0 ? 0 : part.get_run_end(part.size() - 1);
+        part.close();
+        Files.delete(Paths.get(db_path + SEQ_FILE + "." + g));
+        return run_end + genome_runs;
+    }
+
+    /**
+     * Gives the length of a sequence.
+     */
+    public long get_sequence_length(int g, int s) {
+        return sequences.get_length(first_sequence[g] + s - 1);
+    }
+
+    /**
+     * Gives the total length of the previous sequences of the genome.
+     */
+    public long get_sequence_offset(int g, int s) {
+        return sequences.get_offset(first_sequence[g] + s - 1);
+    }
+
+    /**
+     * Gives the position of the first byte of a sequence in the database.
+     */
+    public long get_sequence_start(int g, int s) {
+        return sequences.get_start(first_sequence[g] + s - 1);
+    }
+
+    public String get_sequence_title(int g, int s) {
+        return sequences.get_title(first_sequence[g] + s - 1);
+    }
+
+    /**
+     * Appends the binned FASTQ quality string of a sequence to a StringBuilder,
+     * or "*" if the sequence has no quality.
+     */
+    public void get_sequence_quality(StringBuilder quality, int g, int s) {
+        long pos = sequences.get_quality(first_sequence[g] + s - 1);
+        if (pos == -1)
+            quality.append('*');
+        else
+            qualities.get(quality, pos, (int)get_sequence_length(g, s));
+    }
+
+    /**
+     * Gives the binned Phred value of a base.
+     * 
+     * @param g The genome number
+     * @param s The sequence number
+     * @param p The position of the base in the sequence
+     * @return The Phred value, or -1 if the sequence has no quality
+     */
+    public int get_quality(int g, int s, int p) {
+        long pos = sequences.get_quality(first_sequence[g] + s - 1);
+        return pos == -1 ? -1 : qualities.get(pos, p);
+    }
+
+    /**
+     * Encodes a quality string of an older version of the database.
+     * 
+     * @param quality_out The writer of genomes.qual
+     * @param quality The quality string, or "*"
+     * @param length The length of the sequence
+     * @return The position of the quality in genomes.qual, or -1
+     */
+    private static long add_quality(SequenceQualities.Writer quality_out, String quality, long length) throws IOException {
+        return quality.equals("*") ? -1 : quality_out.add(quality, length);
+    }
+
+    /**
+     * Gives the number of bytes a sequence takes in the database.
+     * 
+     * @param length The length of the sequence
+     */
+    public long bytes_of(long length) {
+        return two_bit ? (length + 3) / 4 : (length + 1) / 2;
+    }
+
+    /**
+     * Gives the number of bases the database can hold, including the padding
+     * of the last byte of every sequence.
+     */
+    public long num_bases() {
+        return two_bit ? 4 * num_bytes : 2 * num_bytes;
+    }
+
+    /**
+     * Gives the binary code of a nucleotide, without checking the position.
+     * 
+     * @param g Genome number 
+     * @param s Sequence number
+     * @param p Base position
+     * @return The code 
+     */
+    public int get_code(int g, int s, int p) {
+        long r;
+        byte b;
+        if (!two_bit) {
+            b = genomes_buff.get(get_sequence_start(g, s) + p / 2);
+            return p % 2 == 0 ? (b >> 4) & 0x0f : b & 0x0f;
+        }
+        r = find_run(g, s, p);
+        if (r >= first_run(g, s) && p < get_run_start(r) + get_run_length(r))
+            return get_run_code(r);
+        b = genomes_buff.get(get_sequence_start(g, s) + p / 4);
+        return (b >> (6 - 2 * (p % 4))) & 0x03;
+    }
+
+    /**
+     * Finds the last run of degenerate bases of a sequence which starts at
+     * or before a position.
+     * 
+     * @return The number of the run in genomes.amb, or first_run(g, s) - 1 if there is none
+     */
+    long find_run(int g, int s, int p) {
+        long low = first_run(g, s), high = end_run(g, s) - 1, mid;
+        while (low <= high) {
+            mid = (low + high) >>> 1;
+            if (get_run_start(mid) <= p)
+                low = mid + 1;
+            else
+                high = mid - 1;
+        }
+        return high;
+    }
+
+    /**
+     * Gives the number of the first run of degenerate bases of a sequence in genomes.amb.
+     */
+    long first_run(int g, int s) {
+        return sequences.get_first_run(first_sequence[g] + s - 1);
+    }
+
+    /**
+     * Gives the number of the run after the last one of a sequence.
+     */
+    long end_run(int g, int s) {
+        return sequences.get_run_end(first_sequence[g] + s - 1);
+    }
+
+    int get_run_start(long r) {
+        return runs.get_int(RUN_SIZE * r);
+    }
+
+    int get_run_length(long r) {
+        return runs.get_int(RUN_SIZE * r + 4);
+    }
+
+    int get_run_code(long r) {
+        return runs.get(RUN_SIZE * r + 8);
+    }
+
+    /**
+     * Gives a new cursor on the bases of the database.
+     */
+    public Cursor get_cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Decodes the bases of the sequences for the callers which read them one
+     * after the other. The cursor keeps the run of degenerate bases of the
+     * last position asked for, and moves to the next or the previous runs one
+     * by one, so a base costs no search in genomes.amb as long as the
+     * positions asked for are close; it searches the runs again when the
+     * sequence changes or the position jumps. A cursor only reads the
+     * database, so every thread can have its own.
+     */
+    public class Cursor {
+        private int genome;
+        private int sequence;
+        private long start;         // The first byte of the sequence
+        private long length;
+        private long first;         // The first run of the sequence
+        private long end;           // The run after the last one of the sequence
+        private long run;           // The first run which ends after the last position
+        private int prev_end;       // The end of the run before it, or 0
+        private int run_start;      // The start, end and code of the run, or Integer.MAX_VALUE if there is none
+        private int run_end;
+        private int run_code;
+        private int last;           // The last position asked for
+
+        /**
+         * Gives the binary code of a nucleotide, without checking the position.
+         *
+         * @param g Genome number
+         * @param s Sequence number
+         * @param p Base position
+         * @return The code
+         */
+        public int get_code(int g, int s, int p) {
+            byte b;
+            if (g != genome || s != sequence || Math.abs(p - last) > SEEK_DISTANCE)
+                seek(g, s, p);
+            last = p;
+            if (!two_bit) {
+                b = genomes_buff.get(start + p / 2);
+                return p % 2 == 0 ? (b >> 4) & 0x0f : b & 0x0f;
+            }
+            while (p >= run_end) {
+                ++run;
+                load_run();
+            }
+            while (p < prev_end) {
+                --run;
+                load_run();
+            }
+            if (p >= run_start)
+                return run_code;
+            b = genomes_buff.get(start + p / 4);
+            return (b >> (6 - 2 * (p % 4))) & 0x03;
+        }
+
+        /**
+         * Gives the length of a sequence.
+         */
+        public long get_length(int g, int s) {
+            if (g != genome || s != sequence)
+                seek(g, s, 0);
+            return length;
+        }
+
+        private void seek(int g, int s, int p) {
+            genome = g;
+            sequence = s;
+            start = get_sequence_start(g, s);
+            length = get_sequence_length(g, s);
+            last = p;
+            if (two_bit) {
+                first = first_run(g, s);
+                end = end_run(g, s);
+                run = find_run(g, s, p);
+                if (run < first || p >= get_run_start(run) + get_run_length(run))
+                    ++run;
+                load_run();
+            }
+        }
+
+        private void load_run() {
+            prev_end = run > first ? get_run_start(run - 1) + get_run_length(run - 1) : 0;
+            if (run < end) {
+                run_start = get_run_start(run);
+                run_end = run_start + get_run_length(run);
+                run_code = get_run_code(run);
+            } else
+                run_start = run_end = Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Writes the bases of a sequence at its start in the database.
+     * 
+     * @param g Genome number 
+     * @param s Sequence number
+     * @param seq The bases of the sequence
+     */
+    public void put_sequence(int g, int s, CharSequence seq) {
+        int i, code, n = 0, carry = 0, len = seq.length(), bits = two_bit ? 2 : 4, per_byte = 8 / bits;
+        long pos = get_sequence_start(g, s);
+        int[] starts = new int[4], lengths = new int[4];
+        byte[] codes = new byte[4];
+        for (i = 0; i < len; ++i) {
+            code = binary[seq.charAt(i)];
+            if (two_bit && code > 3) {
+                if (n > 0 && codes[n - 1] == code && starts[n - 1] + lengths[n - 1] == i)
+                    ++lengths[n - 1];
+                else {
+                    if (n == starts.length) {
+                        starts = Arrays.copyOf(starts, 2 * n);
+                        lengths = Arrays.copyOf(lengths, 2 * n);
+                        codes = Arrays.copyOf(codes, 2 * n);
                     }
-                    if (havecarry) {
-                        genomes_buff[(int) (byte_number / parts_size[0])].put((byte) (binary[carry] << 4));
-                        ++byte_number;
+                    starts[n] = i;
+                    lengths[n] = 1;
+                    codes[n++] = (byte)code;
+                }
+                code = 0;
+            }
+            carry = (carry << bits) | code;
+            if ((i + 1) % per_byte == 0) {
+                genomes_buff.put(pos++, (byte)carry);
+                carry = 0;
+            }
+        }
+        if (len % per_byte != 0)
+            genomes_buff.put(pos, (byte)(carry << (bits * (per_byte - len % per_byte))));
+        if (two_bit)
+            add_rebuilt_runs(first_sequence[g] + s - 1, starts, lengths, codes, n);
+    }
+
+    /**
+     * Starts collecting the ambiguity runs of the sequences put by
+     * put_sequence, which may come in any order, in a temporary file.
+     */
+    private void start_rebuilt_runs() throws IOException {
+        rebuilt_runs = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(db_path + AMB_FILE + ".tmp"), 1 << 16));
+        rebuilt_runs_num = 0;
+        rebuilt_index = new LargeMappedFile(db_path + AMB_FILE + ".index", 16 * Math.max(1, first_sequence[num_genomes + 1]), true);
+    }
+
+    /**
+     * Appends the ambiguity runs of a rebuilt sequence to the temporary file.
+     * 
+     * @param q The number of the sequence in the metadata
+     */
+    private synchronized void add_rebuilt_runs(long q, int[] starts, int[] lengths, byte[] codes, int n) {
+        try {
+            rebuilt_index.put_long(16 * q, rebuilt_runs_num);
+            rebuilt_index.put_long(16 * q + 8, n);
+            rebuilt_runs_num += write_runs(rebuilt_runs, starts, lengths, codes, n);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes the ambiguity runs put by put_sequence into genomes.amb, in the
+     * order of the sequences, sets their ends in the metadata and maps them.
+     * Nothing is done if no sequence has been rebuilt.
+     */
+    public void write_runs() {
+        long q, r, first, count, run_end = 0;
+        byte[] run = new byte[RUN_SIZE];
+        if (rebuilt_runs == null)
+            return;
+        try {
+            rebuilt_runs.close();
+            rebuilt_runs = null;
+            LargeMappedFile in = new LargeMappedFile(db_path + AMB_FILE + ".tmp", RUN_SIZE * rebuilt_runs_num, false);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(db_path + AMB_FILE), 1 << 16))) {
+                for (q = 0; q < first_sequence[num_genomes + 1]; ++q) {
+                    first = rebuilt_index.get_long(16 * q);
+                    count = rebuilt_index.get_long(16 * q + 8);
+                    for (r = first; r < first + count; ++r) {
+                        in.get(RUN_SIZE * r, run, 0, RUN_SIZE);
+                        out.write(run);
                     }
-                    havecarry = false;
-                }else{
-                    System.err.println(genome_names[g] + " should have one of these extensions: fasta, fa, fna, fn for FATSA or"
-                            + "fastq, fq, fnq, q for FASTQ.");
-                    continue;
+                    run_end += count;
+                    sequences.set_run_end(q, run_end);
                 }
-                in.close();
             }
+            in.close();
+            rebuilt_index.close();
+            rebuilt_index = null;
+            new File(db_path + AMB_FILE + ".tmp").delete();
+            new File(db_path + AMB_FILE + ".index").delete();
+            sequences.close();
+            sequences = new SequenceMetadata(db_path + SEQ_FILE);
+            map_runs();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes runs of degenerate bases in the format of genomes.amb.
+     * 
+     * @param n The number of the runs
+     * @return The number of the runs
+     */
+    private static int write_runs(DataOutputStream out, int[] starts, int[] lengths, byte[] codes, int n) throws IOException {
+        for (int r = 0; r < n; ++r) {
+            out.writeInt(starts[r]);
+            out.writeInt(lengths[r]);
+            out.writeByte(codes[r]);
+        }
+        return n;
+    }
+
+    /**
+     * Makes the arrays of the information of the genomes.
+     * 
+     * @param n The number of the genomes
+     */
+    private void allocate(int n) {
+        genome_names = new String[n + 1];
+        genome_length = new long[n + 1];
+        num_sequences = new int[n + 1];
+        first_sequence = new long[n + 2];
+    }
+
+    /**
+     * Numbers the sequences of all the genomes one after the other, as they
+     * are in the metadata.
+     */
+    private void index_sequences() {
+        for (int g = 1; g <= num_genomes; ++g)
+            first_sequence[g + 1] = first_sequence[g] + num_sequences[g];
+    }
+
+    /**
+     * Maps genomes.info and the metadata of the sequences. 
+     * 
+     * @param new_genomes The number of the genomes which are going to be added
+     * @param convert Determines if a text genomes.info of an older version
+     * should be converted; if not, it is read in the memory
+     */
+    private void read_info(int new_genomes, boolean convert) throws IOException {
+        int g;
+        long pos;
+        if (info != null)
+            info.close();
+        info = null;
+        if (!is_binary_info()) {
+            read_text_info(new_genomes, convert);
+            return;
+        }
+        info = new LargeMappedFile(db_path + INFO_FILE, new File(db_path + INFO_FILE).length(), false);
+        if (info.get_long(0) != INFO_MAGIC) {
+            throw new IOException(db_path + INFO_FILE + " is written by another version of PanTools");
+        }
+        num_bytes = info.get_long(8);
+        num_genomes = info_genomes = (int)info.get_long(16);
+        two_bit = info.get_long(24) == 1;
+        allocate(num_genomes + new_genomes);
+        for (g = 1, pos = INFO_HEADER_SIZE; g <= num_genomes; ++g, pos += 24) {
+            genome_length[g] = info.get_long(pos);
+            num_sequences[g] = (int)info.get_long(pos + 8);
+        }
+        map_sequences();
+    }
+
+    /**
+     * Determines if genomes.info is in the binary format, of any version.
+     */
+    private boolean is_binary_info() throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(db_path + INFO_FILE))) {
+            return (in.readLong() >>> 16) == (INFO_MAGIC >>> 16);
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives the path to the file of a genome.
+     * 
+     * @param g The genome number
+     */
+    public String get_genome_name(int g) {
+        long begin, end;
+        byte[] bytes;
+        if (genome_names[g] == null) {
+            begin = g == 1 ? 0 : info.get_long(INFO_HEADER_SIZE + 24 * (g - 1) - 8);
+            end = info.get_long(INFO_HEADER_SIZE + 24 * g - 8);
+            bytes = new byte[(int)(end - begin)];
+            info.get(INFO_HEADER_SIZE + 24L * info_genomes + begin, bytes, 0, bytes.length);
+            genome_names[g] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return genome_names[g];
+    }
+
+    /**
+     * Reads a text genomes.info of an older version, together with the
+     * information of every sequence it may hold, and converts it or keeps it
+     * in the memory, so a database mounted to be read is not written.
+     * 
+     * @param new_genomes The number of the genomes which are going to be added
+     * @param convert Determines if the database should be converted
+     */
+    private void read_text_info(int new_genomes, boolean convert) throws IOException {
+        int g, s;
+        long length;
+        String title, quality;
+        boolean legacy = !Files.exists(Paths.get(db_path + SEQ_FILE));
+        ByteArrayOutputStream quality_bytes = new ByteArrayOutputStream();
+        SequenceMetadata.Writer out = !legacy ? null : convert ? new SequenceMetadata.Writer(db_path + SEQ_FILE) : new SequenceMetadata.Writer();
+        SequenceQualities.Writer quality_out = !legacy ? null : convert ? new SequenceQualities.Writer(db_path + QUAL_FILE, false) : new SequenceQualities.Writer(quality_bytes);
+        try (BufferedReader in = new BufferedReader(new FileReader(db_path + INFO_FILE))) {
+            num_bytes = Long.valueOf(value(in.readLine()));
+            num_genomes = Integer.parseInt(value(in.readLine()));
+            allocate(num_genomes + new_genomes);
+            for (g = 1; g <= num_genomes; ++g) {
+                genome_names[g] = value(in.readLine());
+                genome_length[g] = Long.valueOf(value(in.readLine()));
+                num_sequences[g] = Integer.parseInt(value(in.readLine()));
+                if (legacy)
+                    for (s = 1; s <= num_sequences[g]; ++s) {
+                        title = value(in.readLine());
+                        quality = value(in.readLine());
+                        length = Long.valueOf(value(in.readLine()));
+                        out.add(title, add_quality(quality_out, quality, length), length, 
+                                Long.valueOf(value(in.readLine())), Long.valueOf(value(in.readLine())), 0);
+                    }
+            }
+            two_bit = read_format(in);
+        }
+        if (legacy && !convert) {
+            quality_out.close();
+            index_sequences();
+            sequences = out.to_memory();
+            qualities = new SequenceQualities(quality_bytes.toByteArray());
+            return;
+        }
+        if (legacy) {
+            out.close();
+            quality_out.close();
+        }
+        map_sequences();
+        if (convert)
+            write_info();
+    }
+
+    /**
+     * Converts the text genomes.info of an older version, and the information
+     * of the sequences it holds, into the files of this version. Nothing is
+     * done if the database is already of this version.
+     */
+    public void migrate_info() {
+        try {
+            if (is_binary_info())
+                return;
+            read_info(0, true);
+            System.out.println("Converted " + db_path + INFO_FILE);
         } catch (IOException e) {
             System.out.println(e.getMessage());
             System.exit(1);
         }
     }
 
+    /**
+     * Maps the metadata of the sequences and the ambiguity runs.
+     */
+    private void map_sequences() throws IOException {
+        index_sequences();
+        if (sequences != null)
+            sequences.close();
+        sequences = new SequenceMetadata(db_path + SEQ_FILE);
+        if (qualities != null)
+            qualities.close();
+        qualities = new SequenceQualities(db_path + QUAL_FILE);
+        map_runs();
+    }
+
+    /**
+     * Maps genomes.amb in the 2-bit format.
+     */
+    private void map_runs() throws IOException {
+        if (runs != null)
+            runs.close();
+        runs = two_bit ? new LargeMappedFile(db_path + AMB_FILE, new File(db_path + AMB_FILE).length(), false) : null;
+    }
+
+    /**
+     * Gives the value of a "key:value" line of genomes.info.
+     */
+    private static String value(String line) {
+        return line.substring(line.indexOf(':') + 1);
+    }
+
+    /**
+     * Reads the optional last line of genomes.info, which gives the format of
+     * the bases.
+     * 
+     * @return True for the 2-bit format
+     */
+    private static boolean read_format(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        return line != null && value(line).equals("2bit");
+    }
+
     /**
      * Make FASTA file of a genome from the genome database.
      * 
@@ -487,8 +1042,8 @@ public class SequenceDatabase {
         try {
             out = new BufferedWriter(new FileWriter(db_path + genome_name + ".fasta"));
             for (s = 1; s <= num_sequences[genome_number]; ++s) {
-                out.write(">" + sequence_titles[genome_number][s] + "\n");
-                write_fasta(out, get_sequence(genome_number, s, 0, (int) sequence_length[genome_number][s], true), 80);
+                out.write(">" + get_sequence_title(genome_number, s) + "\n");
+                write_fasta(out, get_sequence(genome_number, s, 0, (int) get_sequence_length(genome_number, s), true), 80);
             }
             out.close();
         } catch (IOException e) {
@@ -504,13 +1059,13 @@ public class SequenceDatabase {
      * @param genome_paths_file A text file containing path to the genomes
      */
     public void add_genomes(String path, String genome_paths_file) {
-        int g, s, i, previous_num_genomes = 0;
+        int g, previous_num_genomes = 0;
         BufferedReader in;
         String line;
         List<String> genome_list = new LinkedList();
         initalize();
         try {
-            // count number of new genomes
+            // read the paths to the new genomes
             in = new BufferedReader(new FileReader(genome_paths_file));
             while (in.ready()) {
                 line = in.readLine().trim();
@@ -518,60 +1073,14 @@ public class SequenceDatabase {
                     continue;
                 }
                 genome_list.add(line);
-                num_genomes++;
-            }
-            in.close();
-            in = new BufferedReader(new FileReader(path + INFO_FILE));
-            num_bytes = Long.valueOf(in.readLine().split(":")[1]);
-            previous_num_genomes = Integer.parseInt(in.readLine().split(":")[1]);
-            genome_names = new String[num_genomes + 1];
-            genome_length = new long[num_genomes + 1];
-            sequence_titles = new String[num_genomes + 1][];
-            sequence_qualities = new String[num_genomes + 1][];
-            sequence_length = new long[num_genomes + 1][];
-            sequence_offset = new long[num_genomes + 1][];
-            sequence_start = new long[num_genomes + 1][];
-            num_sequences = new int[num_genomes + 1];
-            for (g = 1; g <= previous_num_genomes; ++g) {
-                genome_names[g] = in.readLine();
-                genome_length[g] = Long.valueOf(in.readLine().split(":")[1]);
-                num_sequences[g] = Integer.parseInt(in.readLine().split(":")[1]);
-                sequence_titles[g] = new String[num_sequences[g] + 1];
-                sequence_qualities[g] = new String[num_sequences[g] + 1];
-                sequence_length[g] = new long[num_sequences[g] + 1];
-                sequence_offset[g] = new long[num_sequences[g] + 1];
-                sequence_start[g] = new long[num_sequences[g] + 1];
-                for (s = 1; s <= num_sequences[g]; ++s) {
-                    sequence_titles[g][s] = in.readLine().split(":")[1];
-                    sequence_qualities[g][s] = in.readLine().split(":")[1];
-                    sequence_length[g][s] = Long.valueOf(in.readLine().split(":")[1]);
-                    sequence_offset[g][s] = Long.valueOf(in.readLine().split(":")[1]);
-                    sequence_start[g][s] = Long.valueOf(in.readLine().split(":")[1]);
-                }
             }
             in.close();
+            read_info(genome_list.size(), true);
+            previous_num_genomes = num_genomes;
+            num_genomes += genome_list.size();
             Iterator<String> itr = genome_list.iterator();
-            for (g = previous_num_genomes + 1; itr.hasNext(); ++g) {
-                num_sequences[g] = 0;
+            for (g = previous_num_genomes + 1; itr.hasNext(); ++g)
                 genome_names[g] = itr.next();
-                // count number of sequences
-                in = new BufferedReader(new FileReader(genome_names[g]));
-                while (in.ready()) {
-                    line = in.readLine().trim();
-                    if (line.equals("")) {
-                        continue;
-                    }
-                    if (line.charAt(0) == '>') {
-                        num_sequences[g]++;
-                    }
-                }
-                in.close();
-                sequence_titles[g] = new String[num_sequences[g] + 1];
-                sequence_qualities[g] = new String[num_sequences[g] + 1];
-                sequence_length[g] = new long[num_sequences[g] + 1];
-                sequence_offset[g] = new long[num_sequences[g] + 1];
-                sequence_start[g] = new long[num_sequences[g] + 1];
-            }
         } catch (IOException e) {
             System.out.println(e.getMessage());
             System.exit(1);
@@ -585,38 +1094,60 @@ public class SequenceDatabase {
      */
     public void close() {
         try {
-            genomes_file.close();
+            if (genomes_buff != null)
+                genomes_buff.close();
+            if (sequences != null)
+                sequences.close();
+            if (qualities != null)
+                qualities.close();
+            if (info != null)
+                info.close();
+            if (runs != null)
+                runs.close();
         } catch (IOException e) {
             System.out.println(e.getMessage());
             System.exit(1);
         }
-        for (int k = 0; k < parts_num; ++k) {
-            genomes_buff[k] = null;
-        }
     }
 
     /**
-     * Writes the genomes.info file to disk.
+     * Writes the genomes.info file, and its text export, to disk.
      */
     public void write_info() {
-        int g, s;
+        int g;
+        long name_end = 0;
+        byte[][] names = new byte[num_genomes + 1][];
         try {
-            BufferedWriter out = new BufferedWriter(new FileWriter(db_path + INFO_FILE));
-            out.write("number_of_bytes:" + num_bytes + "\n");
-            out.write("number_of_genomes:" + num_genomes + "\n");
-            for (g = 1; g <= num_genomes; ++g) {
-                out.write("genome name:" + genome_names[g] + "\n");
-                out.write("genome length:" + genome_length[g] + "\n");
-                out.write("number_of_sequences:" + num_sequences[g] + "\n");
-                for (s = 1; s <= num_sequences[g]; ++s) {
-                    out.write("sequence title:" + sequence_titles[g][s] + "\n");
-                    out.write("sequence quality:" + sequence_qualities[g][s] + "\n");
-                    out.write("sequence length:" + sequence_length[g][s] + "\n");
-                    out.write("sequence offset:" + sequence_offset[g][s] + "\n");
-                    out.write("sequence start:" + sequence_start[g][s] + "\n");
+        // the names still in the mapped file are read before it is overwritten    
+            for (g = 1; g <= num_genomes; ++g)
+                names[g] = get_genome_name(g).getBytes(StandardCharsets.UTF_8);
+            if (info != null)
+                info.close();
+            info = null;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(db_path + INFO_FILE)))) {
+                out.writeLong(INFO_MAGIC);
+                out.writeLong(num_bytes);
+                out.writeLong(num_genomes);
+                out.writeLong(two_bit ? 1 : 0);
+                for (g = 1; g <= num_genomes; ++g) {
+                    name_end += names[g].length;
+                    out.writeLong(genome_length[g]);
+                    out.writeLong(num_sequences[g]);
+                    out.writeLong(name_end);
                 }
+                for (g = 1; g <= num_genomes; ++g)
+                    out.write(names[g]);
+            }
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(db_path + INFO_TEXT_FILE))) {
+                out.write("number_of_bytes:" + num_bytes + "\n");
+                out.write("number_of_genomes:" + num_genomes + "\n");
+                for (g = 1; g <= num_genomes; ++g) {
+                    out.write("genome name:" + genome_names[g] + "\n");
+                    out.write("genome length:" + genome_length[g] + "\n");
+                    out.write("number_of_sequences:" + num_sequences[g] + "\n");
+                }
+                out.write("format:" + (two_bit ? "2bit" : "4bit") + "\n");
             }
-            out.close();
         } catch (IOException ioe) {
             System.out.println(ioe.getMessage());
             System.exit(1);
@@ -0,0 +1,275 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package sequence;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import static pantools.Pantools.THREADS;
+
+/**
+ * Opens sequence files which may be compressed, so they can be read without
+ * decompressing them on the disk first:
+ *      .gz, .bgz : gzip; BGZF files are decompressed block by block in parallel
+ *      .zst, .zstd : zstd, through the zstd command line tool
+ * Other files are read as they are.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class SequenceInput {
+    private static final int GZIP_RATIO = 6; // More than the usual compression ratio of sequences
+
+    /**
+     * Gives the name of a file without the extension of its compression.
+     *
+     * @param path Path to the file
+     * @return The path without .gz, .bgz, .zst or .zstd
+     */
+    public static String base_name(String path) {
+        return path.replaceFirst("\\.(gz|bgz|zst|zstd)$", "");
+    }
+
+    /**
+     * Determines if a file is compressed, by its extension.
+     */
+    public static boolean is_compressed(String path) {
+        return !base_name(path).equals(path);
+    }
+
+    /**
+     * Gives a guess of the length of the decompressed content of a file,
+     * larger than the real length in most cases.
+     *
+     * @param path Path to the file
+     * @return The length in bytes
+     */
+    public static long estimated_length(String path) {
+        long len = new File(path).length();
+        return is_compressed(path) ? len * GZIP_RATIO : len;
+    }
+
+    /**
+     * Opens a sequence file, decompressing it on the fly.
+     *
+     * @param path Path to the file
+     * @return A channel giving the decompressed content
+     */
+    public static ReadableByteChannel open(String path) throws IOException {
+        String ext = path.substring(path.lastIndexOf('.') + 1).toLowerCase();
+        switch (ext) {
+            case "gz": case "bgz":
+                if (is_bgzf(path))
+                    return new BgzfChannel(path, THREADS);
+                return Channels.newChannel(new GZIPInputStream(new FileInputStream(path), 1 << 16));
+            case "zst": case "zstd":
+                return open_process(path, "zstd", "-dc", path);
+            default:
+                return FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        }
+    }
+
+    /**
+     * Opens a sequence file as a stream of bytes, decompressing it on the fly.
+     *
+     * @param path Path to the file
+     * @return The stream
+     */
+    public static InputStream open_stream(String path) throws IOException {
+        return Channels.newInputStream(open(path));
+    }
+
+    /**
+     * Determines if a file starts with a BGZF block.
+     */
+    private static boolean is_bgzf(String path) throws IOException {
+        byte[] header = new byte[18];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(path))) {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return false;
+        }
+        return (header[0] & 0xFF) == 31 && (header[1] & 0xFF) == 139 && header[2] == 8 && (header[3] & 4) != 0
+                && header[12] == 'B' && header[13] == 'C';
+    }
+
+    /**
+     * Reads the output of an external decompressor.
+     */
+    private static ReadableByteChannel open_process(String path, String... command) throws IOException {
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        } catch (IOException e) {
+            throw new IOException("Failed to run " + command[0] + " to read " + path + "; is it in your path?");
+        }
+        process.getOutputStream().close();
+        return new ReadableByteChannel() {
+            private final ReadableByteChannel out = Channels.newChannel(process.getInputStream());
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = out.read(dst);
+                if (n == -1) {
+                    try {
+                        if (process.waitFor() != 0)
+                            throw new IOException(command[0] + " failed to read " + path);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.getMessage());
+                    }
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return out.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+                process.destroy();
+            }
+        };
+    }
+
+    /**
+     * Reads a BGZF file, the blocks of which are independent gzip members of
+     * at most 64 KB, reading the blocks in order and inflating several of
+     * them at the same time.
+     */
+    private static class BgzfChannel implements ReadableByteChannel {
+        private final DataInputStream in;
+        private final ExecutorService es;
+        private final ArrayDeque<Future<byte[]>> blocks; // The blocks being inflated, in order
+        private final int window;
+        private byte[] block;
+        private int pos;
+        private boolean end;
+
+        public BgzfChannel(String path, int threads) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 20));
+            es = Executors.newFixedThreadPool(Math.max(1, threads));
+            blocks = new ArrayDeque<>();
+            window = 4 * Math.max(1, threads);
+            block = new byte[0];
+            pos = 0;
+            end = false;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n;
+            while (pos == block.length) {
+                while (!end && blocks.size() < window)
+                    submit_block();
+                if (blocks.isEmpty())
+                    return -1;
+                try {
+                    block = blocks.poll().get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                }
+                pos = 0;
+            }
+            n = Math.min(dst.remaining(), block.length - pos);
+            dst.put(block, pos, n);
+            pos += n;
+            return n;
+        }
+
+        /**
+         * Reads the next compressed block and gives it to a worker to inflate.
+         */
+        private void submit_block() throws IOException {
+            byte[] header = new byte[12], extra, data;
+            int i, xlen, bsize = -1;
+            try {
+                in.readFully(header, 0, 1);
+            } catch (EOFException e) {
+                end = true;
+                return;
+            }
+            in.readFully(header, 1, 11);
+            if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || (header[3] & 4) == 0)
+                throw new IOException("Invalid BGZF block");
+            xlen = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+            extra = new byte[xlen];
+            in.readFully(extra);
+            for (i = 0; i + 4 <= xlen; i += 4 + ((extra[i + 2] & 0xFF) | ((extra[i + 3] & 0xFF) << 8)))
+                if (extra[i] == 'B' && extra[i + 1] == 'C')
+                    bsize = (extra[i + 4] & 0xFF) | ((extra[i + 5] & 0xFF) << 8);
+            if (bsize == -1)
+                throw new IOException("Invalid BGZF block");
+            data = new byte[bsize + 1 - 12 - xlen];
+            in.readFully(data);
+            blocks.add(es.submit(() -> inflate(data)));
+        }
+
+        /**
+         * Inflates the compressed data of a block and checks its CRC.
+         *
+         * @param data The compressed data followed by the CRC and the length
+         * @return The decompressed block
+         */
+        private static byte[] inflate(byte[] data) throws IOException {
+            int n = data.length;
+            int crc = (data[n - 8] & 0xFF) | ((data[n - 7] & 0xFF) << 8) | ((data[n - 6] & 0xFF) << 16) | ((data[n - 5] & 0xFF) << 24);
+            int size = (data[n - 4] & 0xFF) | ((data[n - 3] & 0xFF) << 8) | ((data[n - 2] & 0xFF) << 16) | ((data[n - 1] & 0xFF) << 24);
+            byte[] block = new byte[size];
+            Inflater inflater = new Inflater(true);
+            CRC32 crc32 = new CRC32();
+            int len = 0, k;
+            try {
+                inflater.setInput(data, 0, n - 8);
+                while (len < size) {
+                    if ((k = inflater.inflate(block, len, size - len)) == 0 && (inflater.finished() || inflater.needsInput()))
+                        throw new IOException("Truncated BGZF block");
+                    len += k;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt BGZF block: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            crc32.update(block);
+            if ((int)crc32.getValue() != crc)
+                throw new IOException("CRC mismatch in BGZF block");
+            return block;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !es.isShutdown();
+        }
+
+        @Override
+        public void close() throws IOException {
+            es.shutdownNow();
+            in.close();
+        }
+    }
+}
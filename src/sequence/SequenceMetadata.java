@@ -0,0 +1,272 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package sequence;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import pantools.LargeMappedFile;
+
+/**
+ * Implements a memory mapped, column-wise store of the information of all the
+ * sequences of a genome database, so no object is made per sequence when the
+ * database is opened. The titles and the qualities are decoded only when they
+ * are asked for; the qualities are kept in genomes.qual, see SequenceQualities.
+ *
+ * The sequences are numbered from 0 in the order of the genomes; the file is:
+ *      MAGIC, number of sequences N, length of the titles, 0
+ *      N lengths, N offsets, N start bytes (longs)
+ *      N ends of the titles, N positions of the qualities or -1 (longs)
+ *      N ends of the ambiguity runs in genomes.amb (longs)
+ *      the titles (UTF-8)
+ *
+ * The metadata of a database of an older version, which must not be written,
+ * is kept in the memory in the same layout.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class SequenceMetadata {
+    private static final long MAGIC = 0x50414e5345510002L; // "PANSEQ" and the version
+    private static final int HEADER_SIZE = 32;
+    private final LargeMappedFile file;     // The mapped file, or null if the metadata is in the memory
+    private final ByteBuffer memory;
+    private final long size;
+    private final long length_col;
+    private final long offset_col;
+    private final long start_col;
+    private final long title_col;
+    private final long quality_col;
+    private final long run_col;
+    private final long titles;
+
+    /**
+     * Maps a metadata file into the memory.
+     *
+     * @param path Path to the file
+     */
+    public SequenceMetadata(String path) throws IOException {
+        this(path, false);
+    }
+
+    /**
+     * Maps a metadata file into the memory.
+     *
+     * @param path Path to the file
+     * @param write Determines if the ends of the ambiguity runs can be set
+     */
+    public SequenceMetadata(String path, boolean write) throws IOException {
+        this(new LargeMappedFile(path, new File(path).length(), write), null, path);
+    }
+
+    private SequenceMetadata(LargeMappedFile f, ByteBuffer m, String name) throws IOException {
+        file = f;
+        memory = m;
+        if (get_long(0) != MAGIC)
+            throw new IOException(name + " is not a sequence metadata file of this version");
+        size = get_long(8);
+        length_col = HEADER_SIZE;
+        offset_col = length_col + 8 * size;
+        start_col = offset_col + 8 * size;
+        title_col = start_col + 8 * size;
+        quality_col = title_col + 8 * size;
+        run_col = quality_col + 8 * size;
+        titles = run_col + 8 * size;
+    }
+
+    /**
+     * Gives the number of the sequences.
+     */
+    public long size() {
+        return size;
+    }
+
+    public long get_length(long i) {
+        return get_long(length_col + 8 * i);
+    }
+
+    public long get_offset(long i) {
+        return get_long(offset_col + 8 * i);
+    }
+
+    public long get_start(long i) {
+        return get_long(start_col + 8 * i);
+    }
+
+    public String get_title(long i) {
+        long begin = i == 0 ? 0 : get_long(title_col + 8 * (i - 1));
+        byte[] bytes = new byte[(int)(get_long(title_col + 8 * i) - begin)];
+        if (file != null)
+            file.get(titles + begin, bytes, 0, bytes.length);
+        else {
+            ByteBuffer b = memory.duplicate(); // the position is not shared by the threads
+            b.position((int)(titles + begin));
+            b.get(bytes);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gives the position of the quality of a sequence in genomes.qual.
+     *
+     * @return The position, or -1 if the sequence has no quality
+     */
+    public long get_quality(long i) {
+        return get_long(quality_col + 8 * i);
+    }
+
+    /**
+     * Gives the number of the first ambiguity run of a sequence in genomes.amb.
+     */
+    public long get_first_run(long i) {
+        return i == 0 ? 0 : get_long(run_col + 8 * (i - 1));
+    }
+
+    /**
+     * Gives the number of the ambiguity run after the last one of a sequence.
+     */
+    public long get_run_end(long i) {
+        return get_long(run_col + 8 * i);
+    }
+
+    /**
+     * Sets the end of the ambiguity runs of a sequence, in a file mapped to be written.
+     */
+    public void set_run_end(long i, long end) {
+        file.put_long(run_col + 8 * i, end);
+    }
+
+    private long get_long(long pos) {
+        return file != null ? file.get_long(pos) : memory.getLong((int)pos);
+    }
+
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    /**
+     * Writes a metadata file, sequence by sequence. Every column goes into a
+     * temporary file first, so the heap does not grow with the number of the
+     * sequences; close() puts the columns together. A writer without a file
+     * keeps the columns in the memory, and to_memory() puts them together.
+     */
+    public static class Writer {
+        private static final String[] COLUMNS = {".len", ".off", ".start", ".tend", ".qual", ".runs", ".titles"};
+        private final String path;
+        private final DataOutputStream[] out;
+        private final ByteArrayOutputStream[] columns;   // The columns kept in the memory
+        private long size;
+        private long title_bytes;
+
+        /**
+         * The constructor
+         *
+         * @param p Path to the file to be written
+         */
+        public Writer(String p) throws IOException {
+            path = p;
+            out = new DataOutputStream[COLUMNS.length];
+            columns = null;
+            for (int c = 0; c < COLUMNS.length; ++c)
+                out[c] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path + COLUMNS[c]), 1 << 16));
+        }
+
+        /**
+         * Makes a writer which keeps the metadata in the memory.
+         */
+        public Writer() {
+            path = null;
+            out = new DataOutputStream[COLUMNS.length];
+            columns = new ByteArrayOutputStream[COLUMNS.length];
+            for (int c = 0; c < COLUMNS.length; ++c)
+                out[c] = new DataOutputStream(columns[c] = new ByteArrayOutputStream());
+        }
+
+        /**
+         * Appends the information of the next sequence.
+         * 
+         * @param quality The position of the quality in genomes.qual, or -1
+         * @param run_end The number of the ambiguity run after the last one of the sequence
+         */
+        public void add(String title, long quality, long length, long offset, long start, long run_end) throws IOException {
+            byte[] t = title.getBytes(StandardCharsets.UTF_8);
+            add(t, t.length, quality, length, offset, start, run_end);
+        }
+
+        /**
+         * Appends the information of the next sequence, with its title in UTF-8.
+         * 
+         * @param title_len The length of the title in the title array
+         */
+        public void add(byte[] title, int title_len, long quality, long length, long offset, long start, long run_end) throws IOException {
+            out[0].writeLong(length);
+            out[1].writeLong(offset);
+            out[2].writeLong(start);
+            title_bytes += title_len;
+            out[3].writeLong(title_bytes);
+            out[4].writeLong(quality);
+            out[5].writeLong(run_end);
+            out[6].write(title, 0, title_len);
+            ++size;
+        }
+
+        /**
+         * Writes the header and the columns into the file, and removes the
+         * temporary files.
+         */
+        public void close() throws IOException {
+            for (DataOutputStream column: out)
+                column.close();
+            try (FileOutputStream header = new FileOutputStream(path)) {
+                write_header(header);
+            }
+            try (FileChannel dest = FileChannel.open(Paths.get(path), StandardOpenOption.APPEND)) {
+                for (String column: COLUMNS) {
+                    try (FileChannel src = FileChannel.open(Paths.get(path + column))) {
+                        for (long pos = 0, len = src.size(); pos < len; )
+                            pos += src.transferTo(pos, len - pos, dest);
+                    }
+                    Files.delete(Paths.get(path + column));
+                }
+            }
+        }
+
+        /**
+         * Puts the header and the columns kept in the memory together.
+         *
+         * @return The metadata
+         */
+        public SequenceMetadata to_memory() throws IOException {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            for (DataOutputStream column: out)
+                column.close();
+            write_header(all);
+            for (ByteArrayOutputStream column: columns)
+                column.writeTo(all);
+            return new SequenceMetadata(null, ByteBuffer.wrap(all.toByteArray()), "The metadata in the memory");
+        }
+
+        private void write_header(OutputStream header) throws IOException {
+            DataOutputStream data = new DataOutputStream(header);
+            data.writeLong(MAGIC);
+            data.writeLong(size);
+            data.writeLong(title_bytes);
+            data.writeLong(0);
+            data.flush();
+        }
+    }
+}
@@ -0,0 +1,584 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package sequence;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import pantools.LargeMappedFile;
+
+/**
+ * Parses a FASTA or a FASTQ file in a single pass over its raw bytes and
+ * appends the 4-bit codes of its sequences to the genome database, every
+ * sequence starting at a new byte. In the 2-bit format, the degenerate bases
+ * are written as A and kept as runs of (position, length, code) instead.
+ *
+ * The bytes are translated by a lookup table, so no String is made for the
+ * sequence lines. The title, length and start of every sequence are written
+ * into a metadata file of the file as soon as the sequence ends, see
+ * SequenceMetadata, and so are its ambiguity runs and binned qualities, see
+ * SequenceQualities, so nothing is kept in the heap per sequence.
+ *
+ * A large file can be cut into chunks of whole records, which are parsed in
+ * parallel into the memory and added in their order, see parse_in_chunks().
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class SequenceParser {
+    public static final int BUFFER_SIZE = 1 << 20;
+    public static final int CHUNK_SIZE = 1 << 22;  // The bytes of a chunk of a file parsed by a thread
+    private static final int SKIP = -1;       // Code of the white spaces
+    private static final int[] CODE = new int[256];
+    static {
+        String symbols = "ACGTMRWSYKVHDBN";
+        Arrays.fill(CODE, 0); // unknown symbols are read as A, like before
+        for (int i = 0; i < symbols.length(); ++i) {
+            CODE[symbols.charAt(i)] = i;
+            CODE[Character.toLowerCase(symbols.charAt(i))] = i;
+        }
+        CODE[' '] = CODE['\t'] = CODE['\r'] = SKIP;
+    }
+    // The states of the parser
+    private static final int LINE_START = 0;
+    private static final int TITLE = 1;
+    private static final int SEQUENCE = 2;
+    private static final int PLUS = 3;
+    private static final int QUALITY = 4;
+
+    private final boolean fastq;
+    private final String metadata_path;
+    private final String runs_path;
+    private final String quality_path;
+    private SequenceMetadata.Writer metadata_out;
+    private DataOutputStream runs_out;
+    private SequenceQualities.Writer quality_out;
+    private byte[] title;          // The title of the current sequence
+    private int title_len;
+    private long start;            // The position of the first byte of the current sequence in the database
+    private long quality_start;    // The position of the quality of the current sequence in the quality file, or -1
+    private int quality_len;
+    private long offset;           // The total length of the previous sequences
+    private int num_sequences;
+    private int state;
+    private int field;             // The line of a FASTQ record being read
+    private long length;           // The length of the current sequence
+    private byte[] line;           // The title or the quality line being read
+    private int line_len;
+    private byte[] out_buff;       // The codes to be written into the database
+    private int out_len;
+    private long out_pos;          // The position of out_buff in the database
+    private final int bits;        // Number of bits of a base, 2 or 4
+    private int carry;             // The codes waiting for the byte to be full
+    private int pending;           // Number of the codes in carry
+    private int run_start;         // The last ambiguity run of the current sequence, if its length is not 0
+    private int run_length;
+    private int run_code;
+    private long num_runs;         // Number of the ambiguity runs written
+    private LargeMappedFile database;
+    private long out_limit;        // The end of the region of the database to be written
+
+    /**
+     * The constructor
+     *
+     * @param q True for a FASTQ file and False for a FASTA file
+     * @param two_bit True for the 2-bit format and False for the 4-bit one
+     * @param m_path Path to the file the metadata of the sequences are written to
+     * @param r_path Path to the file the ambiguity runs are written to in the 2-bit format
+     * @param q_path Path to the file the qualities of a FASTQ file are written to
+     */
+    public SequenceParser(boolean q, boolean two_bit, String m_path, String r_path, String q_path) {
+        fastq = q;
+        bits = two_bit ? 2 : 4;
+        metadata_path = m_path;
+        runs_path = r_path;
+        quality_path = q_path;
+        title = new byte[256];
+        line = new byte[256];
+    }
+
+    /**
+     * Determines the format of a genome file from its extension, ignoring
+     * the extension of its compression.
+     *
+     * @param file_name The name of the file
+     * @return 0 for FASTA, 1 for FASTQ and -1 for an unknown extension
+     */
+    public static int file_type(String file_name) {
+        String[] fields = SequenceInput.base_name(file_name).split("\\.");
+        switch (fields[fields.length - 1].toLowerCase()) {
+            case "fasta": case "fa": case "fna": case "fn":
+                return 0;
+            case "fastq": case "fq": case "fnq": case "q":
+                return 1;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Reads all the sequences of a file and writes their codes into the
+     * database, growing it as needed.
+     *
+     * @param in The channel to read the file from
+     * @param db The genome database file
+     * @param byte_number The position of the first sequence in the database
+     * @return The position after the last sequence
+     */
+    public long parse(ReadableByteChannel in, LargeMappedFile db, long byte_number) throws IOException {
+        return parse(in, db, byte_number, Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads all the sequences of a file and writes their codes into a region
+     * of the database, so several files can be parsed at the same time.
+     *
+     * @param in The channel to read the file from
+     * @param db The genome database file
+     * @param byte_number The position of the first sequence in the database
+     * @param limit The end of the region; the database grows only if there is no limit 
+     * @return The position after the last sequence, or -1 if the region was too small
+     */
+    public long parse(ReadableByteChannel in, LargeMappedFile db, long byte_number, long limit) throws IOException {
+        ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
+        int n;
+        open(db, byte_number, limit);
+        try {
+            while ((n = in.read(buff)) != -1) {
+                parse(buff.array(), n);
+                buff.clear();
+            }
+            end_of_input();
+            flush();
+        } catch (BufferOverflowException e) {
+            return -1;
+        } finally {
+            close();
+        }
+        return out_pos;
+    }
+
+    /**
+     * Reads all the sequences of a file and writes their codes at the end of
+     * the database, like parse(), but cuts the file into chunks of whole
+     * records which are parsed in parallel and added in their order, so a
+     * single large file uses all the threads.
+     *
+     * @param in The channel to read the file from
+     * @param db The genome database file
+     * @param byte_number The position of the first sequence in the database
+     * @param threads The number of the threads parsing the chunks
+     * @return The position after the last sequence
+     */
+    public long parse_in_chunks(ReadableByteChannel in, LargeMappedFile db, long byte_number, int threads) throws IOException {
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        ArrayDeque<Future<Chunk>> chunks = new ArrayDeque<>(); // The chunks being parsed, in order
+        byte[] buff = new byte[CHUNK_SIZE], chunk;
+        int n, len = 0, cut;
+        open(db, byte_number, Long.MAX_VALUE);
+        try {
+            while ((n = in.read(ByteBuffer.wrap(buff, len, buff.length - len))) != -1) {
+                len += n;
+                if (len < buff.length)
+                    continue;
+                cut = last_record_start(buff, len);
+                if (cut == 0) { // a record longer than the buffer
+                    buff = Arrays.copyOf(buff, 2 * buff.length);
+                    continue;
+                }
+                chunk = buff;
+                buff = new byte[Math.max(CHUNK_SIZE, 2 * (len - cut))];
+                System.arraycopy(chunk, cut, buff, 0, len - cut);
+                len -= cut;
+                submit_chunk(es, chunks, chunk, cut, threads);
+            }
+            if (len > 0)
+                submit_chunk(es, chunks, buff, len, threads);
+            while (!chunks.isEmpty())
+                append_chunk(next_chunk(chunks));
+        } finally {
+            es.shutdownNow();
+            close();
+        }
+        return out_pos;
+    }
+
+    /**
+     * Gives the position the last record of a buffer starts at, which may
+     * be cut by the end of the buffer.
+     *
+     * @return The position, or 0 if the buffer has no other record
+     */
+    private int last_record_start(byte[] bytes, int len) {
+        int i, b, lines = 0, start = 0;
+        boolean empty = true;
+        if (!fastq) {
+            for (i = len - 1; i > 0; --i)
+                if (bytes[i] == '>' && bytes[i - 1] == '\n')
+                    return i;
+            return 0;
+        }
+    // a FASTQ record is four lines, the empty ones not counted, like in parse()
+        for (i = 0; i < len; ++i) {
+            b = bytes[i] & 0x00FF;
+            if (b == '\n') {
+                if (!empty && ++lines % 4 == 0)
+                    start = i + 1;
+                empty = true;
+            } else if (CODE[b] != SKIP)
+                empty = false;
+        }
+        return start;
+    }
+
+    /**
+     * Parses a chunk in a thread of its own, once a chunk is free in the
+     * window of the chunks being parsed.
+     */
+    private void submit_chunk(ExecutorService es, ArrayDeque<Future<Chunk>> chunks, byte[] bytes, int len, int threads) throws IOException {
+        boolean two_bit = bits == 2;
+        while (chunks.size() >= 2 * threads)
+            append_chunk(next_chunk(chunks));
+        chunks.add(es.submit(() -> new SequenceParser(fastq, two_bit, null, null, null).parse_chunk(bytes, len)));
+    }
+
+    private static Chunk next_chunk(ArrayDeque<Future<Chunk>> chunks) throws IOException {
+        try {
+            return chunks.poll().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException(e.getCause() != null ? e.getCause().toString() : e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a chunk of a file, which starts and ends with whole records,
+     * into the memory.
+     *
+     * @param bytes The chunk
+     * @param len The length of the chunk
+     * @return The codes and the information of the sequences of the chunk
+     */
+    private Chunk parse_chunk(byte[] bytes, int len) throws IOException {
+        Chunk chunk = new Chunk();
+        ByteArrayOutputStream runs = new ByteArrayOutputStream(), quals = new ByteArrayOutputStream();
+        reset(0);
+        out_limit = Long.MAX_VALUE;
+        out_buff = new byte[len + 1]; // the codes of a sequence never take more bytes than its lines, so no flush is needed
+        metadata_out = new SequenceMetadata.Writer();
+        runs_out = bits == 2 ? new DataOutputStream(runs) : null;
+        quality_out = fastq ? new SequenceQualities.Writer(quals) : null;
+        parse(bytes, len);
+        end_of_input();
+        if (runs_out != null)
+            runs_out.close();
+        if (quality_out != null)
+            quality_out.close();
+        chunk.codes = out_buff;
+        chunk.codes_len = out_len;
+        chunk.metadata = metadata_out.to_memory();
+        chunk.runs = runs.toByteArray();
+        chunk.qualities = quals.toByteArray();
+        chunk.length = offset;
+        chunk.num_runs = num_runs;
+        return chunk;
+    }
+
+    /**
+     * Appends a parsed chunk to the database and to the files of the parser,
+     * shifting its positions after those of the previous chunks.
+     */
+    private void append_chunk(Chunk chunk) throws IOException {
+        long i, quality, quality_shift = quality_out != null ? quality_out.append(chunk.qualities) : 0;
+        SequenceMetadata m = chunk.metadata;
+        for (i = 0; i < m.size(); ++i) {
+            quality = m.get_quality(i);
+            metadata_out.add(m.get_title(i), quality == -1 ? -1 : quality_shift + quality, m.get_length(i), 
+                    offset + m.get_offset(i), out_pos + m.get_start(i), num_runs + m.get_run_end(i));
+        }
+        if (runs_out != null)
+            runs_out.write(chunk.runs);
+        if (out_pos + chunk.codes_len > database.length())
+            database.grow(Math.max(out_pos + chunk.codes_len, 2 * database.length()));
+        database.put(out_pos, chunk.codes, 0, chunk.codes_len);
+        out_pos += chunk.codes_len;
+        offset += chunk.length;
+        num_runs += chunk.num_runs;
+        num_sequences += (int)m.size();
+    }
+
+    /**
+     * Starts writing a file into the database and the files of the parser.
+     */
+    private void open(LargeMappedFile db, long byte_number, long limit) throws IOException {
+        reset(byte_number);
+        database = db;
+        out_buff = new byte[BUFFER_SIZE];
+        out_limit = limit;
+        metadata_out = new SequenceMetadata.Writer(metadata_path);
+        if (bits == 2)
+            runs_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runs_path), 1 << 16));
+        if (fastq)
+            quality_out = new SequenceQualities.Writer(quality_path, false);
+    }
+
+    private void reset(long byte_number) {
+        out_pos = byte_number;
+        out_len = 0;
+        carry = 0;
+        pending = 0;
+        num_sequences = 0;
+        num_runs = 0;
+        offset = 0;
+        state = LINE_START;
+        field = 0;
+        length = 0;
+    }
+
+    private void close() throws IOException {
+        database = null;
+        out_buff = null;
+        metadata_out.close();
+        metadata_out = null;
+        if (runs_out != null)
+            runs_out.close();
+        runs_out = null;
+        if (quality_out != null)
+            quality_out.close();
+        quality_out = null;
+    }
+
+    /**
+     * Parses the next bytes of the input.
+     *
+     * @param bytes The bytes
+     * @param n The number of the bytes
+     */
+    private void parse(byte[] bytes, int n) throws IOException {
+        int i, b, code;
+        for (i = 0; i < n; ++i) {
+            b = bytes[i] & 0x00FF;
+            switch (state) {
+                case LINE_START:
+                    if (b == '\n' || CODE[b] == SKIP)
+                        break;
+                    if (fastq ? field == 0 : b == '>') {
+                        if (num_sequences > 0)
+                            end_sequence(length);
+                        length = 0;
+                        start_sequence();
+                        state = TITLE;
+                    } else if (fastq && field == 2)
+                        state = PLUS;
+                    else if (fastq && field == 3) {
+                        state = QUALITY;
+                        quality_start = quality_out.position();
+                        quality_len = 0;
+                    } else
+                        state = SEQUENCE;
+                    --i; // read the byte again in the new state
+                    break;
+                case TITLE:
+                    if (b == '\n') {
+                        add_title();
+                        line_len = 0;
+                        state = LINE_START;
+                        field = 1;
+                    } else
+                        append_line(b);
+                    break;
+                case SEQUENCE:
+                    if (b == '\n') {
+                        state = LINE_START;
+                        if (fastq)
+                            field = 2;
+                    } else if ((code = CODE[b]) != SKIP && num_sequences > 0) {
+                        put_code(code, length);
+                        ++length;
+                    }
+                    break;
+                case PLUS:
+                    if (b == '\n') {
+                        state = LINE_START;
+                        field = 3;
+                    }
+                    break;
+                case QUALITY:
+                    if (b == '\n') {
+                        end_quality(length);
+                        state = LINE_START;
+                        field = 0;
+                    } else if (b > ' ' && quality_len < length) {
+                        quality_out.put(b);
+                        ++quality_len;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Ends the last sequence; the last line may not end with a new line.
+     */
+    private void end_of_input() throws IOException {
+        if (state == TITLE)
+            add_title();
+        else if (state == QUALITY)
+            end_quality(length);
+        if (num_sequences > 0)
+            end_sequence(length);
+    }
+
+    /**
+     * Gives the number of the sequences read.
+     */
+    public int get_num_sequences() {
+        return num_sequences;
+    }
+
+    private void start_sequence() {
+        start = out_pos + out_len;
+        quality_start = -1;
+        title_len = 0;
+        run_length = 0;
+        ++num_sequences;
+    }
+
+    /**
+     * Pads the last byte of a sequence, so the next one starts at a new byte,
+     * and writes the information of the sequence.
+     */
+    private void end_sequence(long length) throws IOException {
+        if (pending > 0) {
+            if (out_len == out_buff.length)
+                flush();
+            out_buff[out_len++] = (byte)(carry << (8 - pending * bits));
+            carry = 0;
+            pending = 0;
+        }
+        end_run();
+        metadata_out.add(title, title_len, quality_start, length, offset, start, num_runs);
+        offset += length;
+    }
+
+    /**
+     * Appends a code to the output; two codes, or four in the 2-bit format, 
+     * make a byte.
+     * 
+     * @param code The code of the base
+     * @param p The position of the base in its sequence
+     */
+    private void put_code(int code, long p) throws IOException {
+        if (bits == 2 && code > 3) {
+            add_run((int)p, code);
+            code = 0;
+        }
+        carry = (carry << bits) | code;
+        if (++pending == 8 / bits) {
+            if (out_len == out_buff.length)
+                flush();
+            out_buff[out_len++] = (byte)carry;
+            carry = 0;
+            pending = 0;
+        }
+    }
+
+    /**
+     * Adds a degenerate base to the ambiguity runs of the current sequence,
+     * extending the last run if the base continues it.
+     */
+    private void add_run(int p, int code) throws IOException {
+        if (run_length > 0 && run_code == code && run_start + run_length == p) {
+            ++run_length;
+            return;
+        }
+        end_run();
+        run_start = p;
+        run_length = 1;
+        run_code = code;
+    }
+
+    /**
+     * Writes the last ambiguity run in the format of genomes.amb.
+     */
+    private void end_run() throws IOException {
+        if (run_length > 0) {
+            runs_out.writeInt(run_start);
+            runs_out.writeInt(run_length);
+            runs_out.writeByte(run_code);
+            ++num_runs;
+            run_length = 0;
+        }
+    }
+
+    /**
+     * Keeps the title line, without its first symbol and the surrounding
+     * white spaces, as the title of the current sequence.
+     */
+    private void add_title() {
+        int begin = 1, end = line_len;
+        while (begin < end && (line[begin] & 0xff) <= ' ')
+            ++begin;
+        while (end > begin && (line[end - 1] & 0xff) <= ' ')
+            --end;
+        if (end - begin > title.length)
+            title = Arrays.copyOf(title, end - begin);
+        System.arraycopy(line, begin, title, 0, end - begin);
+        title_len = end - begin;
+    }
+
+    /**
+     * Pads the quality of a sequence to its length.
+     */
+    private void end_quality(long length) throws IOException {
+        for (; quality_len < length; ++quality_len)
+            quality_out.put('!');
+        quality_out.end();
+    }
+
+    private void append_line(int b) {
+        if (line_len == line.length)
+            line = Arrays.copyOf(line, 2 * line_len);
+        line[line_len++] = (byte)b;
+    }
+
+    /**
+     * Writes the codes of the output buffer into the database.
+     */
+    private void flush() throws IOException {
+        if (out_pos + out_len > out_limit)
+            throw new BufferOverflowException();
+        if (out_pos + out_len > database.length())
+            database.grow(Math.max(out_pos + out_len, 2 * database.length()));
+        database.put(out_pos, out_buff, 0, out_len);
+        out_pos += out_len;
+        out_len = 0;
+    }
+
+    /**
+     * The codes and the information of the sequences of a chunk of a file,
+     * with the positions counted from the start of the chunk.
+     */
+    private static class Chunk {
+        byte[] codes;
+        int codes_len;
+        SequenceMetadata metadata;
+        byte[] runs;
+        byte[] qualities;
+        long length;            // The total length of the sequences
+        long num_runs;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package sequence;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import pantools.LargeMappedFile;
+
+/**
+ * Implements the memory mapped store of the FASTQ qualities of the genome
+ * database, genomes.qual. The Phred values are binned into the 8 levels of
+ * Illumina and the bins are packed in 4 bits, two in a byte, the quality of
+ * every sequence starting at a new byte. The file only grows, so the position
+ * of the quality of a sequence never changes. The qualities of a database of
+ * an older version, which must not be written, are kept in the memory.
+ *
+ * @author Siavash Sheikhizadeh, Bioinformatics chairgroup, Wageningen
+ * University, Netherlands
+ */
+public class SequenceQualities {
+    public static final int PHRED_OFFSET = 33;
+    private static final int[] LOWER = {0, 3, 10, 20, 25, 30, 35, 40}; // The lowest Phred value of every bin
+    private static final int[] VALUE = {2, 6, 15, 22, 27, 33, 37, 40}; // The Phred value every bin is read as
+    private static final int[] BIN = new int[256]; // The bin of every quality symbol
+    static {
+        for (int q = 0, b = 0; q < BIN.length - PHRED_OFFSET; ++q) {
+            if (b + 1 < LOWER.length && q >= LOWER[b + 1])
+                ++b;
+            BIN[q + PHRED_OFFSET] = b;
+        }
+    }
+    private final LargeMappedFile file;
+    private final byte[] memory;    // The qualities, if they are not in a file
+
+    /**
+     * Maps a quality file into the memory.
+     *
+     * @param path Path to the file; it may not exist if there is no FASTQ genome
+     */
+    public SequenceQualities(String path) throws IOException {
+        File f = new File(path);
+        file = f.exists() && f.length() > 0 ? new LargeMappedFile(path, f.length(), false) : null;
+        memory = null;
+    }
+
+    /**
+     * Keeps the qualities written into the memory.
+     *
+     * @param m The binned qualities, in the format of the file
+     */
+    public SequenceQualities(byte[] m) {
+        file = null;
+        memory = m;
+    }
+
+    /**
+     * Gives the binned Phred value of a base.
+     *
+     * @param pos The position of the quality of the sequence in the file
+     * @param p The position of the base in the sequence
+     * @return The Phred value
+     */
+    public int get(long pos, int p) {
+        byte b = get_byte(pos + p / 2);
+        return VALUE[p % 2 == 0 ? (b >> 4) & 0x0f : b & 0x0f];
+    }
+
+    /**
+     * Appends the quality symbols of a sequence to a StringBuilder.
+     *
+     * @param quality The StringBuilder
+     * @param pos The position of the quality of the sequence in the file
+     * @param len The length of the sequence
+     */
+    public void get(StringBuilder quality, long pos, int len) {
+        int p;
+        byte b = 0;
+        for (p = 0; p < len; ++p) {
+            if (p % 2 == 0) {
+                b = get_byte(pos + p / 2);
+                quality.append((char)(VALUE[(b >> 4) & 0x0f] + PHRED_OFFSET));
+            } else
+                quality.append((char)(VALUE[b & 0x0f] + PHRED_OFFSET));
+        }
+    }
+
+    private byte get_byte(long pos) {
+        return file != null ? file.get(pos) : memory[(int)pos];
+    }
+
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    /**
+     * Writes the binned qualities of sequences one after the other.
+     */
+    public static class Writer {
+        private final OutputStream out;
+        private long size;
+        private int carry;          // The bin waiting for its pair, or -1
+
+        /**
+         * The constructor
+         *
+         * @param path Path to the file
+         * @param append Determines if the qualities should be appended to the file
+         */
+        public Writer(String path, boolean append) throws IOException {
+            out = new BufferedOutputStream(new FileOutputStream(path, append), 1 << 16);
+            size = append ? new File(path).length() : 0;
+            carry = -1;
+        }
+
+        /**
+         * Makes a writer into a stream, like one in the memory.
+         *
+         * @param o The stream
+         */
+        public Writer(OutputStream o) {
+            out = o;
+            size = 0;
+            carry = -1;
+        }
+
+        /**
+         * Gives the position the next quality is written at.
+         */
+        public long position() {
+            return size;
+        }
+
+        /**
+         * Appends the quality of a base.
+         *
+         * @param symbol The quality symbol
+         */
+        public void put(int symbol) throws IOException {
+            int bin = BIN[symbol & 0xff];
+            if (carry == -1)
+                carry = bin;
+            else {
+                out.write((carry << 4) | bin);
+                ++size;
+                carry = -1;
+            }
+        }
+
+        /**
+         * Pads the last byte of the quality of a sequence.
+         */
+        public void end() throws IOException {
+            if (carry != -1) {
+                out.write(carry << 4);
+                ++size;
+                carry = -1;
+            }
+        }
+
+        /**
+         * Appends the quality of a sequence, cut or padded to its length.
+         *
+         * @param quality The quality symbols
+         * @param length The length of the sequence
+         * @return The position of the quality in the file
+         */
+        public long add(CharSequence quality, long length) throws IOException {
+            long pos = size;
+            for (long i = 0; i < length; ++i)
+                put(i < quality.length() ? quality.charAt((int)i) : PHRED_OFFSET);
+            end();
+            return pos;
+        }
+
+        /**
+         * Appends the qualities binned by another writer, which has ended them.
+         *
+         * @param bins The binned qualities
+         * @return The position of the qualities in the file
+         */
+        public long append(byte[] bins) throws IOException {
+            long pos;
+            end();
+            pos = size;
+            out.write(bins);
+            size += bins.length;
+            return pos;
+        }
+
+        public void close() throws IOException {
+            end();
+            out.close();
+        }
+    }
+}
@@ -21,9 +21,17 @@ public class SequenceScanner {
     private int K;
     private kmer curr_kmer;
     private long curr_index;
+    private char[] fwd_pairs;   // The two bases of every byte of the database
+    private char[] rev_pairs;   // The complements of the two bases of every byte, in reverse order
+    private char[] fwd_quads;   // The four bases of every byte of a 2-bit database
+    private char[] complement_symbol; // The complement of every base symbol
+    private char[] bases;       // The bases decoded by get_bases
+    private SequenceDatabase.Cursor cursor;       // Decodes the scanned sequence
+    private SequenceDatabase.Cursor other_cursor; // Decodes the regions it is compared with
     SequenceDatabase database;
     
     public SequenceScanner(SequenceDatabase db, int fg, int tg, int fs, int ts, int k, int pre_len){
+        int b, j, hi, lo;
         database = db;
         K = k;
         curr_kmer = new kmer(K,pre_len);
@@ -31,6 +39,31 @@ public class SequenceScanner {
         to_genome = tg;
         sequence = fs;
         to_sequence = ts;
+        fwd_pairs = new char[512];
+        rev_pairs = new char[512];
+        for (b = 0; b < 256; ++b) {
+            hi = b >> 4;
+            lo = b & 0x0f;
+            fwd_pairs[2 * b] = symbol(hi);
+            fwd_pairs[2 * b + 1] = symbol(lo);
+            rev_pairs[2 * b] = symbol(lo < 15 ? database.complement[lo] : 15);
+            rev_pairs[2 * b + 1] = symbol(hi < 15 ? database.complement[hi] : 15);
+        }
+        fwd_quads = new char[1024];
+        for (b = 0; b < 256; ++b)
+            for (j = 0; j < 4; ++j)
+                fwd_quads[4 * b + j] = database.sym[(b >> (6 - 2 * j)) & 0x03];
+        complement_symbol = new char[128];
+        complement_symbol['N'] = 'N';
+        for (j = 0; j < database.sym.length; ++j)
+            complement_symbol[database.sym[j]] = database.sym[database.complement[j]];
+        bases = new char[1024];
+        cursor = database.get_cursor();
+        other_cursor = database.get_cursor();
+    }
+
+    private char symbol(int code) {
+        return code < database.sym.length ? database.sym[code] : 'N';
     }
     
     public int get_genome(){
@@ -53,23 +86,16 @@ public class SequenceScanner {
     }
     
     public long get_sequence_length(){
-        return database.sequence_length[genome][sequence];
+        return database.get_sequence_length(genome, sequence);
     }
     
     public long get_sequence_length(int g, int s){
-        return database.sequence_length[g][s];
+        return database.get_sequence_length(g, s);
     }
 
     public int get_code(int offset) {
-        if (position + offset < database.sequence_length[genome][sequence] && position + offset > -1) {
-            byte b;
-            long pos = database.sequence_start[genome][sequence] + (position + offset) / 2;
-            b = database.genomes_buff[(int) (pos / database.parts_size[0])].get((int) (pos % database.parts_size[0]));
-            if ((position + offset) % 2 == 0) {
-                return (b >> 4) & 0x0f;
-            } else {
-                return (b & 0x0f);
-            }
+        if (position + offset < cursor.get_length(genome, sequence) && position + offset > -1) {
+            return cursor.get_code(genome, sequence, position + offset);
         } else {
             System.out.println("Wrong genomic position: " + (position + offset));
             return -1;
@@ -218,15 +244,8 @@ public class SequenceScanner {
      * @return The base 
      */
     public char get_symbol(int g, int s, int p) {
-        if (p < database.sequence_length[g][s]) {
-            byte b;
-            long pos = database.sequence_start[g][s] + p / 2;
-            b = database.genomes_buff[(int) (pos / database.parts_size[0])].get((int) (pos % database.parts_size[0]));
-            if (p % 2 == 0) {
-                return database.sym[(b >> 4) & 0x0f];
-            } else {
-                return database.sym[b & 0x0f];
-            }
+        if (p < database.get_sequence_length(g, s)) {
+            return database.sym[database.get_code(g, s, p)];
         } else {
             return 0;
         }
@@ -240,15 +259,8 @@ public class SequenceScanner {
      * @return The base 
      */
     public char get_complement_symbol(int g, int s, int p) {
-        if (p < database.sequence_length[g][s]) {
-            byte b;
-            long pos = database.sequence_start[g][s] + p / 2;
-            b = database.genomes_buff[(int) (pos / database.parts_size[0])].get((int) (pos % database.parts_size[0]));
-            if (p % 2 == 0) {
-                return database.sym[database.complement[(b >> 4) & 0x0f]];
-            } else {
-                return database.sym[database.complement[(b & 0x0f)]];
-            }
+        if (p < database.get_sequence_length(g, s)) {
+            return database.sym[database.complement[database.get_code(g, s, p)]];
         } else {
             return 0;
         }
@@ -262,15 +274,8 @@ public class SequenceScanner {
      * @return The base 
      */
     public int get_code(int g, int s, int p) {
-        if (p < database.sequence_length[g][s] && p > -1) {
-            byte b;
-            long pos = database.sequence_start[g][s] + p / 2;
-            b = database.genomes_buff[(int) (pos / database.parts_size[0])].get((int) (pos % database.parts_size[0]));
-            if (p % 2 == 0) {
-                return (b >> 4) & 0x0f;
-            } else {
-                return (b & 0x0f);
-            }
+        if (p < other_cursor.get_length(g, s) && p > -1) {
+            return other_cursor.get_code(g, s, p);
         } else {
             System.out.println("Wrong genomic position: " + p);
             return -1;
@@ -285,35 +290,140 @@ public class SequenceScanner {
      * @return The base 
      */    
     public int get_complement_code(int g, int s, int p) {
-        if (p < database.sequence_length[g][s]) {
-            byte b;
-            long pos = database.sequence_start[g][s] + p / 2;
-            b = database.genomes_buff[(int) (pos / database.parts_size[0])].get((int) (pos % database.parts_size[0]));
-            if (p % 2 == 0) {
-                return database.complement[(b >> 4) & 0x0f];
-            } else {
-                return database.complement[(b & 0x0f)];
-            }
+        if (p < other_cursor.get_length(g, s)) {
+            return database.complement[other_cursor.get_code(g, s, p)];
         } else {
             return -1;
         }
     }
 
     public int get_complement_current_code(int offset) {
-        if (position + offset < database.sequence_length[genome][sequence]) {
-            byte b;
-            long pos = database.sequence_start[genome][sequence] + (position + offset) / 2;
-            b = database.genomes_buff[(int) (pos / database.parts_size[0])].get((int) (pos % database.parts_size[0]));
-            if ((position + offset) % 2 == 0) {
-                return database.complement[(b >> 4) & 0x0f];
-            } else {
-                return database.complement[(b & 0x0f)];
-            }
+        if (position + offset < cursor.get_length(genome, sequence)) {
+            return database.complement[cursor.get_code(genome, sequence, position + offset)];
         } else {
             return -1;
         }
     }
     
+    /**
+     * Decodes a genomic region into an array of bases, which is reused by the
+     * next call. The region is read eight bytes, sixteen bases, at a time and
+     * every byte is turned into two bases by a lookup table. A 2-bit database
+     * is decoded by decode_two_bit instead.
+     * 
+     * @param g Genome number
+     * @param s Sequence number
+     * @param p Start Position of the region
+     * @param l Length of the region
+     * @param direction specifies the direction, True for forward and False for reverse complement
+     * @return The array holding the l bases of the region at its beginning
+     */
+    public char[] get_bases(int g, int s, int p, int l, boolean direction) {
+        int i = 0, k, b, n;
+        long w, pos;
+        if (bases.length < l)
+            bases = new char[Math.max(l, 2 * bases.length)];
+        if (database.two_bit) {
+            decode_two_bit(g, s, p, l);
+            if (!direction)
+                reverse_complement(l);
+        } else if (direction) {
+            pos = database.get_sequence_start(g, s) + p / 2;
+            if (p % 2 == 1 && l > 0)
+                bases[i++] = symbol(database.genomes_buff.get(pos++) & 0x0f);
+            for (n = (l - i) / 2; n >= 8; n -= 8, pos += 8) {
+                w = database.genomes_buff.get_long(pos);
+                for (k = 56; k >= 0; k -= 8, i += 2) {
+                    b = (int)(w >>> k) & 0xff;
+                    bases[i] = fwd_pairs[2 * b];
+                    bases[i + 1] = fwd_pairs[2 * b + 1];
+                }
+            }
+            for (; n > 0; --n, ++pos, i += 2) {
+                b = database.genomes_buff.get(pos) & 0xff;
+                bases[i] = fwd_pairs[2 * b];
+                bases[i + 1] = fwd_pairs[2 * b + 1];
+            }
+            if (i < l)
+                bases[i] = symbol((database.genomes_buff.get(pos) >> 4) & 0x0f);
+        } else {
+        // from the last base to the first one    
+            pos = database.get_sequence_start(g, s) + (p + l - 1) / 2;
+            if ((p + l - 1) % 2 == 0 && l > 0)
+                bases[i++] = rev_pairs[2 * (database.genomes_buff.get(pos--) & 0xf0) + 1];
+            for (n = (l - i) / 2; n >= 8; n -= 8, pos -= 8) {
+                w = database.genomes_buff.get_long(pos - 7);
+                for (k = 0; k <= 56; k += 8, i += 2) {
+                    b = (int)(w >>> k) & 0xff;
+                    bases[i] = rev_pairs[2 * b];
+                    bases[i + 1] = rev_pairs[2 * b + 1];
+                }
+            }
+            for (; n > 0; --n, --pos, i += 2) {
+                b = database.genomes_buff.get(pos) & 0xff;
+                bases[i] = rev_pairs[2 * b];
+                bases[i + 1] = rev_pairs[2 * b + 1];
+            }
+            if (i < l)
+                bases[i] = rev_pairs[2 * (database.genomes_buff.get(pos) & 0x0f)];
+        }
+        return bases;
+    }
+
+    /**
+     * Decodes a region of a 2-bit database into the bases array, four bases
+     * of a byte by a lookup table, and then writes the degenerate bases of 
+     * the ambiguity runs over it.
+     */
+    private void decode_two_bit(int g, int s, int p, int l) {
+        int i = 0, k, b, n, q, start, end;
+        long r, run_end, w, pos = database.get_sequence_start(g, s) + p / 4;
+        if (p % 4 != 0 && l > 0)
+            for (b = database.genomes_buff.get(pos++) & 0xff, k = p % 4; k < 4 && i < l; ++k)
+                bases[i++] = fwd_quads[4 * b + k];
+        for (n = (l - i) / 4; n >= 8; n -= 8, pos += 8) {
+            w = database.genomes_buff.get_long(pos);
+            for (k = 56; k >= 0; k -= 8, i += 4) {
+                b = (int)(w >>> k) & 0xff;
+                bases[i] = fwd_quads[4 * b];
+                bases[i + 1] = fwd_quads[4 * b + 1];
+                bases[i + 2] = fwd_quads[4 * b + 2];
+                bases[i + 3] = fwd_quads[4 * b + 3];
+            }
+        }
+        for (; n > 0; --n, ++pos, i += 4) {
+            b = database.genomes_buff.get(pos) & 0xff;
+            bases[i] = fwd_quads[4 * b];
+            bases[i + 1] = fwd_quads[4 * b + 1];
+            bases[i + 2] = fwd_quads[4 * b + 2];
+            bases[i + 3] = fwd_quads[4 * b + 3];
+        }
+        if (i < l)
+            for (b = database.genomes_buff.get(pos) & 0xff, k = 0; i < l; ++k)
+                bases[i++] = fwd_quads[4 * b + k];
+        run_end = database.end_run(g, s);
+        for (r = Math.max(database.first_run(g, s), database.find_run(g, s, p)); r < run_end && (start = database.get_run_start(r)) < p + l; ++r) {
+            end = Math.min(p + l, start + database.get_run_length(r));
+            for (q = Math.max(p, start); q < end; ++q)
+                bases[q - p] = database.sym[database.get_run_code(r)];
+        }
+    }
+
+    /**
+     * Turns the first l bases of the bases array into their reverse complement.
+     */
+    private void reverse_complement(int l) {
+        int i, j;
+        char c;
+        for (i = 0, j = l - 1; i < j; ++i, --j) {
+            c = bases[i];
+            bases[i] = complement_symbol[bases[j]];
+            bases[j] = complement_symbol[c];
+        }
+        if (i == j)
+            bases[i] = complement_symbol[bases[i]];
+    }
+
     /**
      * Retrieves a genomic region from the genome database.
      * 
@@ -325,77 +435,31 @@ public class SequenceScanner {
      * @return The genomic region
      */
     public void get_sub_sequence(StringBuilder seq, int g, int s, int p, int l, boolean direction) {
-        int i;
-        if (p >= 0 && p + l <= database.sequence_length[g][s]){
-            if (direction) {
-                for (i = 0; i < l; ++i) {
-                    seq.append(get_symbol(g, s, p + i));
-                }
-            } else {
-                for (i = l - 1; i >= 0; --i) {
-                    seq.append(get_complement_symbol(g, s, p + i));
-                }
-            }
+        if (p >= 0 && p + l <= database.get_sequence_length(g, s)) {
+            if (l > 0)
+                seq.append(get_bases(g, s, p, l, direction), 0, l);
         } else
             System.err.println("Reading out of range!");
     } 
 
     public void get_sub_sequence(StringBuilder seq, int[] adderess, boolean direction) {
-        int i, g, s, p, l;
-        g = adderess[0];
-        s = adderess[1];
-        p =adderess[2];
-        l = adderess[3] - adderess[2] + 1;
-        if (p >= 0 && p + l <= database.sequence_length[g][s]){
-            if (direction) {
-                for (i = 0; i < l; ++i) {
-                    seq.append(get_symbol(g, s, p + i));
-                }
-            } else {
-                for (i = l - 1; i >= 0; --i) {
-                    seq.append(get_complement_symbol(g, s, p + i));
-                }
-            }
-        } else
-            System.err.println("Reading out of range!");
+        get_sub_sequence(seq, adderess[0], adderess[1], adderess[2], adderess[3] - adderess[2] + 1, direction);
     } 
 
     public void get_complete_sequence(StringBuilder seq, int g, int s, boolean direction) {
-        int i, l;
-        l = (int)database.sequence_length[g][s];
-        if (direction) {
-            for (i = 0; i < l; ++i) {
-                seq.append(get_symbol(g, s, i));
-            }
-        } else {
-            for (i = l - 1; i >= 0; --i) {
-                seq.append(get_complement_symbol(g, s, i));
-            }
-        }
+        get_sub_sequence(seq, g, s, 0, (int)database.get_sequence_length(g, s), direction);
     } 
     
     public void get_complete_sequence(StringBuilder seq, int[] adderess, boolean direction) {
-        int i, g, s, p, l;
-        g = adderess[0];
-        s = adderess[1];
-        l = (int)database.sequence_length[g][s];
-        if (direction) {
-            for (i = 0; i < l; ++i) {
-                seq.append(get_symbol(g, s, i));
-            }
-        } else {
-            for (i = l - 1; i >= 0; --i) {
-                seq.append(get_complement_symbol(g, s, i));
-            }
-        }
+        get_complete_sequence(seq, adderess[0], adderess[1], direction);
     } 
     
     public void get_sequence_quality(StringBuilder quality, int g, int s) {
-        quality.append(database.sequence_qualities[g][s]);
+        database.get_sequence_quality(quality, g, s);
     } 
 
     public void get_sequence_title(StringBuilder title, int g, int s) {
-        title.append(database.sequence_titles[g][s]);
+        title.append(database.get_sequence_title(g, s));
     } 
     
 
@@ -412,21 +476,21 @@ public class SequenceScanner {
      * @return The result of the comparison
      */
     public boolean compare(int[] a1, int[] a2, int offset1, int offset2, int len, boolean direction) {
-        if (a1[2] + offset1 + len - 1 >= database.sequence_length[a1[0]][a1[1]] || 
-                a2[2] + offset2 + len - 1 >= database.sequence_length[a2[0]][a2[1]]) {
+        if (a1[2] + offset1 + len - 1 >= database.get_sequence_length(a1[0], a1[1]) || 
+                a2[2] + offset2 + len - 1 >= database.get_sequence_length(a2[0], a2[1])) {
             return false;
         }
         int i;
         boolean equal;
         if (direction) {
             for (equal = true, i = 0; i < len && equal; ++i) {
-                if (get_code(a1[0], a1[1], a1[2] + offset1 + i) != get_code(a2[0], a2[1], a2[2] + offset2 + i)) {
+                if (cursor.get_code(a1[0], a1[1], a1[2] + offset1 + i) != other_cursor.get_code(a2[0], a2[1], a2[2] + offset2 + i)) {
                     equal = false;
                 }
             }
         } else {
             for (equal = true, i = 0; i < len && equal; ++i) {
-                if (get_code(a1[0], a1[1], a1[2] + offset1 + i) != get_complement_code(a2[0], a2[1], a2[2] + offset2 + len - i - 1)) {
+                if (cursor.get_code(a1[0], a1[1], a1[2] + offset1 + i) != database.complement[other_cursor.get_code(a2[0], a2[1], a2[2] + offset2 + len - i - 1)]) {
                     equal = false;
                 }
             }
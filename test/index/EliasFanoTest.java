@@ -0,0 +1,97 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import static org.junit.Assert.assertEquals;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class EliasFanoTest {
+
+    /**
+     * Test of add and get methods, with low bits and runs of equal numbers.
+     */
+    @Test
+    public void test1_Add_get() {
+        System.out.println("Testing add and get:");
+        long[] numbers = numbers(5000, 1L << 40, 1);
+        EliasFano ef = fill(numbers, 1L << 40);
+        assertEquals(numbers.length, ef.size());
+        for (int i = 0; i < numbers.length; ++i)
+            assertEquals(numbers[i], ef.get(i));
+    }
+
+    /**
+     * Test of add and get methods when the universe is smaller than the
+     * number of the numbers, so no low bits are kept.
+     */
+    @Test
+    public void test2_No_low_bits() {
+        System.out.println("Testing a sequence without low bits:");
+        long[] numbers = numbers(3000, 1000, 2);
+        EliasFano ef = fill(numbers, 1000);
+        for (int i = 0; i < numbers.length; ++i)
+            assertEquals(numbers[i], ef.get(i));
+        numbers = new long[700]; // all zero, like the prefixes of an empty index
+        ef = fill(numbers, 0);
+        for (int i = 0; i < numbers.length; ++i)
+            assertEquals(0, ef.get(i));
+    }
+
+    /**
+     * Test of write method and of the constructor reading the file.
+     */
+    @Test
+    public void test3_Write_read() throws IOException {
+        System.out.println("Testing write and read:");
+        File file = File.createTempFile("elias_fano", ".pre");
+        long[][] cases = new long[][]{numbers(1, 7, 3), numbers(256, 300, 4), numbers(4097, 1L << 33, 5), numbers(2000, 10, 6)};
+        long[] universes = new long[]{7, 300, 1L << 33, 10};
+        try {
+            for (int c = 0; c < cases.length; ++c) {
+                fill(cases[c], universes[c]).write(file.getPath());
+                EliasFano ef = new EliasFano(file.getPath());
+                assertEquals(cases[c].length, ef.size());
+                for (int i = 0; i < cases[c].length; ++i)
+                    assertEquals(cases[c][i], ef.get(i));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Gives a sorted sequence of random numbers, with runs of equal numbers
+     * longer than a sample, ending with the largest one.
+     */
+    private static long[] numbers(int n, long universe, long seed) {
+        Random random = new Random(seed);
+        long[] numbers = new long[n];
+        int i, run;
+        for (i = 0; i < n; ) {
+            numbers[i] = (random.nextLong() >>> 1) % (universe + 1);
+            for (run = random.nextInt(10) == 0 ? 300 : 1; --run > 0 && i + 1 < n; ++i)
+                numbers[i + 1] = numbers[i];
+            ++i;
+        }
+        Arrays.sort(numbers);
+        numbers[n - 1] = universe;
+        return numbers;
+    }
+
+    private static EliasFano fill(long[] numbers, long universe) {
+        EliasFano ef = new EliasFano(numbers.length, universe);
+        for (long number: numbers)
+            ef.add(number);
+        return ef;
+    }
+}
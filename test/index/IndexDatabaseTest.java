@@ -0,0 +1,231 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import pangenome.GenomeLayer;
+import sequence.SequenceDatabase;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pantools.Pantools.GENOME_DATABASE_PATH;
+import static pantools.Pantools.GRAPH_DATABASE_PATH;
+import static pantools.Pantools.INDEX_DATABASE_PATH;
+import static pantools.Pantools.K_SIZE;
+import static pantools.Pantools.PATH_TO_THE_GENOMES_FILE;
+import static pantools.Pantools.PATH_TO_THE_PANGENOME_DATABASE;
+import static pantools.Pantools.degenerate_label;
+import static pantools.Pantools.nucleotide_label;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class IndexDatabaseTest {
+    private static final int K = 15;
+    private File test_directory;
+    private String[][] genomes;
+    private int k_size;
+
+    /**
+     * Writes a genome of bases A and C and a genome of bases A and G, so that
+     * some prefixes have only old kmers and some only new ones, with runs of
+     * A and of C in both, which give kmers counted in both genomes.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(8);
+        String[] alphabets = new String[]{null, "AC", "AG"};
+        String a_run = new String(new char[300]).replace('\0', 'A'), c_run = new String(new char[30]).replace('\0', 'C');
+        StringBuilder seq = new StringBuilder();
+        int g, s, i;
+        k_size = K_SIZE;
+        test_directory = Files.createTempDirectory("index").toFile();
+        genomes = new String[3][];
+        for (g = 1; g <= 2; ++g) {
+            genomes[g] = new String[2];
+            for (s = 0; s < 2; ++s) {
+                seq.setLength(0);
+                for (i = 0; i < 3000; ++i)
+                    seq.append(alphabets[g].charAt(random.nextInt(2)));
+                genomes[g][s] = seq.toString();
+            }
+            genomes[g][1] = genomes[g][1].substring(0, 1000) + a_run + "NNN" + genomes[g][1].substring(1000, 2000) + c_run + genomes[g][1].substring(2000);
+        }
+        for (g = 1; g <= 2; ++g) {
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genome" + g + ".fasta"))) {
+                for (s = 0; s < genomes[g].length; ++s)
+                    out.write(">s" + s + "\n" + genomes[g][s] + "\n");
+            }
+            try (BufferedWriter list = new BufferedWriter(new FileWriter(test_directory + "/genomes" + g + ".txt"))) {
+                list.write(test_directory + "/genome" + g + ".fasta\n");
+            }
+        }
+        try (BufferedWriter list = new BufferedWriter(new FileWriter(test_directory + "/genomes.txt"))) {
+            for (g = 1; g <= 2; ++g)
+                list.write(test_directory + "/genome" + g + ".fasta\n");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        K_SIZE = k_size;
+        delete(test_directory);
+    }
+
+    /**
+     * Test of the constructor which merges the kmers of new genomes into an
+     * index, comparing the merged index with a fresh index of all the genomes
+     * and checking the kmers of the nodes and the pointers against the
+     * sequences.
+     */
+    @Test
+    public void test1_Merge() throws IOException {
+        System.out.println("Testing merge:");
+        String pangenome = test_directory + "/pangenome", fresh = test_directory + "/fresh";
+        check_prefixes();
+        K_SIZE = K;
+        PATH_TO_THE_PANGENOME_DATABASE = pangenome;
+        PATH_TO_THE_GENOMES_FILE = test_directory + "/genomes1.txt";
+        new GenomeLayer().initialize_pangenome();
+        PATH_TO_THE_GENOMES_FILE = test_directory + "/genomes2.txt";
+        new GenomeLayer().add_genomes();
+        new File(fresh).mkdirs();
+        SequenceDatabase genomeDb = new SequenceDatabase(pangenome + GENOME_DATABASE_PATH);
+        new IndexDatabase(fresh + "/index.db", test_directory + "/genomes.txt", genomeDb, K).close();
+        genomeDb.close();
+        for (String ext: new String[]{".kmc_pre", ".kmc_suf"})
+            assertArrayEquals(Files.readAllBytes(Paths.get(fresh + "/index.db/sorted" + ext)),
+                    Files.readAllBytes(Paths.get(pangenome + INDEX_DATABASE_PATH + "sorted" + ext)));
+        IndexDatabase indexDb = new IndexDatabase(pangenome + INDEX_DATABASE_PATH);
+        assertEquals(255, indexDb.get_kmer_count(indexDb.find(new_kmer(repeat('A')))));
+        assertEquals(occurrences(repeat('C')), indexDb.get_kmer_count(indexDb.find(new_kmer(repeat('C')))));
+        check_nodes(indexDb, pangenome + GRAPH_DATABASE_PATH);
+        indexDb.close();
+    }
+
+    /**
+     * Checks that the genomes give prefixes of the old kmers only, prefixes
+     * of the new kmers only and prefixes of both.
+     */
+    private void check_prefixes() {
+        int pre_len = KmerCounter.prefix_length(K, 4 * 3000);
+        Set<String> old_prefixes = new HashSet<>(), new_prefixes = new HashSet<>(), both = new HashSet<>();
+        String kmer;
+        int g, p;
+        for (g = 1; g <= 2; ++g)
+            for (String seq: genomes[g])
+                for (p = 0; p + K <= seq.length(); ++p) {
+                    kmer = seq.substring(p, p + K);
+                    if (kmer.indexOf('N') == -1)
+                        (g == 1 ? old_prefixes : new_prefixes).add(canonical(kmer).substring(0, pre_len));
+                }
+        both.addAll(old_prefixes);
+        both.retainAll(new_prefixes);
+        assertFalse(both.isEmpty());
+        assertTrue(old_prefixes.size() > both.size());
+        assertTrue(new_prefixes.size() > both.size());
+    }
+
+    /**
+     * Checks that the first and the last kmers of every node, the chain of
+     * kmers between them and their pointers match the sequence of the node.
+     */
+    private void check_nodes(IndexDatabase indexDb, String graph_path) {
+        GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(graph_path));
+        IndexPointer ptr = new IndexPointer();
+        Node node;
+        int[] address;
+        String seq;
+        long inx, nodes = 0;
+        int i, length;
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> nodes_iterator = graphDb.findNodes(nucleotide_label);
+            while (nodes_iterator.hasNext()) {
+                node = nodes_iterator.next();
+                if (node.hasLabel(degenerate_label))
+                    continue;
+                address = (int[]) node.getProperty("address");
+                length = (int) node.getProperty("length");
+                seq = genomes[address[0]][address[1] - 1].substring(address[2], address[2] + length);
+                assertEquals(canonical(seq.substring(0, K)), kmer_string(indexDb, (long) node.getProperty("first_kmer")));
+                assertEquals(canonical(seq.substring(length - K)), kmer_string(indexDb, (long) node.getProperty("last_kmer")));
+                for (i = 0, inx = (long) node.getProperty("first_kmer"); inx != -1L; inx = indexDb.get_next_index(inx), ++i) {
+                    indexDb.get_pointer(ptr, inx);
+                    assertEquals(node.getId(), ptr.node_id);
+                    assertEquals(i, ptr.offset);
+                    assertEquals(canonical(seq.substring(i, i + K)), kmer_string(indexDb, inx));
+                }
+                assertEquals(length - K + 1, i);
+                ++nodes;
+            }
+            tx.success();
+        }
+        graphDb.shutdown();
+        assertTrue(nodes > 0);
+    }
+
+    /**
+     * Counts the occurrences of a kmer and of its reverse complement in the genomes.
+     */
+    private int occurrences(String kmer) {
+        int count = 0, g, p;
+        for (g = 1; g <= 2; ++g)
+            for (String seq: genomes[g])
+                for (p = 0; p + K <= seq.length(); ++p)
+                    if (seq.substring(p, p + K).indexOf('N') == -1 && canonical(seq.substring(p, p + K)).equals(canonical(kmer)))
+                        ++count;
+        return count;
+    }
+
+    private kmer new_kmer(String s) {
+        kmer k_mer = new kmer(K, KmerCounter.prefix_length(K, 4 * 3000));
+        for (int i = 0; i < s.length(); ++i)
+            k_mer.next_kmer("ACGT".indexOf(s.charAt(i)));
+        return k_mer;
+    }
+
+    private static String kmer_string(IndexDatabase indexDb, long number) {
+        kmer k_mer = new kmer(K, indexDb.get_pre_len());
+        indexDb.get_kmer(k_mer, number);
+        return k_mer.toString().split(" ")[0];
+    }
+
+    private static String repeat(char c) {
+        return new String(new char[K]).replace('\0', c);
+    }
+
+    private static String canonical(String s) {
+        StringBuilder rev = new StringBuilder();
+        for (int i = s.length() - 1; i >= 0; --i)
+            rev.append("TGCA".charAt("ACGT".indexOf(s.charAt(i))));
+        return s.compareTo(rev.toString()) <= 0 ? s : rev.toString();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
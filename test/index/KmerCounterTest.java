@@ -0,0 +1,164 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import sequence.SequenceDatabase;
+import static org.junit.Assert.assertEquals;
+import static pantools.Pantools.THREADS;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class KmerCounterTest {
+    private static final int K = 15;
+    private File test_directory;
+    private String[][] genomes;
+    private SequenceDatabase genomeDb;
+    private int threads;
+
+    /**
+     * Writes two genomes of random sequences with a run of one base longer
+     * than the largest counter, a reverse complement repeat and runs of N.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        StringBuilder seq = new StringBuilder();
+        String repeat;
+        int g, s, i;
+        threads = THREADS;
+        test_directory = Files.createTempDirectory("counter").toFile();
+        genomes = new String[3][];
+        for (g = 1; g <= 2; ++g) {
+            genomes[g] = new String[3];
+            for (s = 0; s < 3; ++s) {
+                seq.setLength(0);
+                for (i = 0; i < 2000; ++i)
+                    seq.append("ACGT".charAt(random.nextInt(4)));
+                genomes[g][s] = seq.toString();
+            }
+        }
+        repeat = genomes[1][0].substring(100, 400);
+        genomes[1][1] = genomes[1][1].substring(0, 1000) + "NNNNN" + reverse_complement(repeat) + genomes[1][1].substring(1000);
+        genomes[2][0] = genomes[2][0].substring(0, 500) + new String(new char[300]).replace('\0', 'A') + "N" + genomes[2][0].substring(500);
+        genomes[2][2] = genomes[2][2].substring(0, 7) + "N" + genomes[2][2].substring(8, 1000) + repeat;
+        try (BufferedWriter list = new BufferedWriter(new FileWriter(test_directory + "/genomes.txt"))) {
+            for (g = 1; g <= 2; ++g) {
+                try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genome" + g + ".fasta"))) {
+                    for (s = 0; s < genomes[g].length; ++s)
+                        out.write(">s" + s + "\n" + genomes[g][s] + "\n");
+                }
+                list.write(test_directory + "/genome" + g + ".fasta\n");
+            }
+        }
+        genomeDb = new SequenceDatabase(test_directory + "/genome.db", test_directory + "/genomes.txt");
+    }
+
+    @After
+    public void tearDown() {
+        THREADS = threads;
+        genomeDb.close();
+        delete(test_directory);
+    }
+
+    /**
+     * Test of count method, in one bucket with one thread.
+     */
+    @Test
+    public void test1_Count() throws IOException {
+        System.out.println("Testing count in one bucket:");
+        THREADS = 1;
+        check_count(1, 2, 0, 512);
+    }
+
+    /**
+     * Test of count method, in several buckets scattered in several passes
+     * by several threads, and of the k-mers of the later genomes only.
+     */
+    @Test
+    public void test2_Count_passes() throws IOException {
+        System.out.println("Testing count in several passes:");
+        THREADS = 2;
+        check_count(1, 2, 3, 4);
+        check_count(2, 2, 4, 2);
+    }
+
+    /**
+     * Counts the k-mers of some genomes with the counter and compares the
+     * k-mers and their counters with the ones counted in a map.
+     */
+    private void check_count(int from_genome, int to_genome, int bits, int open_files) throws IOException {
+        int pre_len = KmerCounter.prefix_length(K, 12000);
+        String output = test_directory + "/sorted" + from_genome + bits;
+        Map<String, Integer> expected = new TreeMap<>(), found = new TreeMap<>();
+        int g, p;
+        String kmer, rev;
+        for (g = from_genome; g <= to_genome; ++g)
+            for (String seq: genomes[g])
+                for (p = 0; p + K <= seq.length(); ++p) {
+                    kmer = seq.substring(p, p + K);
+                    if (kmer.indexOf('N') != -1)
+                        continue;
+                    rev = reverse_complement(kmer);
+                    expected.merge(kmer.compareTo(rev) <= 0 ? kmer : rev, 1, Integer::sum);
+                }
+        for (Map.Entry<String, Integer> e: expected.entrySet())
+            e.setValue(Math.min(e.getValue(), 255));
+        long num_kmers = new KmerCounter(genomeDb, K, pre_len, from_genome, to_genome).count(output, test_directory.getPath(), false, bits, open_files);
+        assertEquals(expected.size(), num_kmers);
+        byte[] pre = Files.readAllBytes(Paths.get(output + ".kmc_pre")), suf = Files.readAllBytes(Paths.get(output + ".kmc_suf"));
+        int suf_bytes = (K - pre_len) / 4, prefix, i;
+        long r, end;
+        StringBuilder sb = new StringBuilder();
+        for (prefix = 0; prefix < 1 << (2 * pre_len); ++prefix) {
+            end = prefix + 1 < 1 << (2 * pre_len) ? read_long(pre, 4 + 8 * (prefix + 1)) : num_kmers;
+            for (r = read_long(pre, 4 + 8 * prefix); r < end; ++r) {
+                sb.setLength(0);
+                for (i = pre_len - 1; i >= 0; --i)
+                    sb.append("ACGT".charAt((prefix >>> (2 * i)) & 3));
+                for (i = 0; i < 4 * suf_bytes; ++i)
+                    sb.append("ACGT".charAt((suf[4 + (int)r * (suf_bytes + 1) + i / 4] >>> (6 - 2 * (i % 4))) & 3));
+                found.put(sb.toString(), suf[4 + (int)r * (suf_bytes + 1) + suf_bytes] & 0xFF);
+            }
+        }
+        assertEquals(expected, found);
+        assertEquals(255, (int)found.get(new String(new char[K]).replace('\0', 'A')));
+    }
+
+    private static long read_long(byte[] b, int off) {
+        long number = 0;
+        for (int i = 7; i >= 0; --i)
+            number = (number << 8) | (b[off + i] & 0xFF);
+        return number;
+    }
+
+    private static String reverse_complement(String s) {
+        StringBuilder rev = new StringBuilder();
+        for (int i = s.length() - 1; i >= 0; --i)
+            rev.append("TGCAN".charAt("ACGTN".indexOf(s.charAt(i))));
+        return rev.toString();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import sequence.SequenceDatabase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pantools.Pantools.COMPACT_INDEX;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class KmerWriterTest {
+    private static final int K = 51;
+    private File test_directory;
+    private String[] sequences;
+
+    /**
+     * Writes a genome of many k-mers sharing the prefix and the first bytes of
+     * the suffix, so that the keys of several blocks of the skip table are
+     * equal, and a random sequence.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(9);
+        StringBuilder stem = new StringBuilder("AAAAC"), seq = new StringBuilder();
+        int i, j;
+        test_directory = Files.createTempDirectory("kmers").toFile();
+        while (stem.length() < K - 5)
+            stem.append("ACGT".charAt(random.nextInt(4)));
+        sequences = new String[401];
+        for (i = 0; i < 400; ++i) {
+            seq.setLength(0);
+            seq.append(stem);
+            for (j = 0; j < 4; ++j)
+                seq.append("ACGT".charAt(random.nextInt(4)));
+            seq.append("CG".charAt(random.nextInt(2))); // keeps the forward kmer canonical
+            sequences[i] = seq.toString();
+        }
+        seq.setLength(0);
+        for (i = 0; i < 5000; ++i)
+            seq.append("ACGT".charAt(random.nextInt(4)));
+        sequences[400] = seq.toString();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genome.fasta"))) {
+            for (i = 0; i < sequences.length; ++i)
+                out.write(">s" + i + "\n" + sequences[i] + "\n");
+        }
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genomes.txt"))) {
+            out.write(test_directory + "/genome.fasta\n");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        COMPACT_INDEX = false;
+        delete(test_directory);
+    }
+
+    /**
+     * Test of skip_key method, which should order the keys like the suffixes.
+     */
+    @Test
+    public void test1_Skip_key() {
+        System.out.println("Testing skip_key:");
+        byte[] a = new byte[]{0x10, (byte)0xF0, 0, 0, 0, 0, 0, 0, 0x7F}, b = new byte[]{0x10, (byte)0xF1, 0, 0, 0, 0, 0, 0, 0x00};
+        assertTrue(Long.compareUnsigned(KmerWriter.skip_key(a, 0, a.length), KmerWriter.skip_key(b, 0, b.length)) < 0);
+        assertEquals(KmerWriter.skip_key(a, 0, 8), KmerWriter.skip_key(Arrays.copyOf(a, 8), 0, 8));
+        assertEquals(0x1000000000000000L, KmerWriter.skip_key(a, 0, 1)); // shorter suffixes are padded with zeros
+    }
+
+    /**
+     * Test of the lookups of the compact layout through the skip table, against the layout of KMC.
+     */
+    @Test
+    public void test2_Find() {
+        System.out.println("Testing find through the skip table:");
+        SequenceDatabase genomeDb = new SequenceDatabase(test_directory + "/genome.db", test_directory + "/genomes.txt");
+        COMPACT_INDEX = false;
+        IndexDatabase kmc_index = new IndexDatabase(test_directory + "/kmc.db", test_directory + "/genomes.txt", genomeDb, K);
+        COMPACT_INDEX = true;
+        IndexDatabase compact_index = new IndexDatabase(test_directory + "/compact.db", test_directory + "/genomes.txt", genomeDb, K);
+        assertTrue(new File(test_directory + "/compact.db/sorted.skip").exists());
+        assertEquals(kmc_index.length(), compact_index.length());
+        assertTrue(compact_index.length() > 4 * KmerWriter.BLOCK_SIZE);
+        kmer curr = new kmer(K, compact_index.get_pre_len()), found = new kmer(K, compact_index.get_pre_len());
+        kmer[] batch = new kmer[]{curr};
+        long[] ranks = new long[1];
+        long rank;
+        int found_kmers = 0;
+        for (String seq: sequences) {
+            curr.reset();
+            for (int p = 0; p < seq.length(); ++p) {
+                curr.next_kmer("ACGT".indexOf(seq.charAt(p)));
+                if (p < K - 1)
+                    continue;
+                rank = compact_index.find(curr);
+                assertTrue(rank >= 0);
+                assertEquals(kmc_index.find(curr), rank);
+                compact_index.find_batch(batch, 1, ranks);
+                assertEquals(rank, ranks[0]);
+                compact_index.get_kmer(found, rank);
+                assertEquals(curr.get_canonical_prefix(), found.get_canonical_prefix());
+                assertTrue(Arrays.equals(curr.get_canonical_suffix(), found.get_canonical_suffix()));
+                ++found_kmers;
+            }
+        }
+        assertTrue(found_kmers > 0);
+    // Kmers of the stem with a tail absent from the genome
+        for (String tail: new String[]{"AAAAA", "TTTTT", "GGGGG", "CCCCA"}) {
+            String seq = sequences[0].substring(0, K - 5) + tail;
+            if (Arrays.asList(sequences).contains(seq))
+                continue;
+            curr.reset();
+            for (int p = 0; p < K; ++p)
+                curr.next_kmer("ACGT".indexOf(seq.charAt(p)));
+            assertEquals(-1L, compact_index.find(curr));
+            assertEquals(-1L, kmc_index.find(curr));
+        }
+        kmc_index.close();
+        compact_index.close();
+        genomeDb.close();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
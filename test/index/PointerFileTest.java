@@ -0,0 +1,199 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package index;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import sequence.SequenceDatabase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PointerFileTest {
+    private File test_directory;
+
+    @Before
+    public void setUp() throws IOException {
+        test_directory = Files.createTempDirectory("pointers").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(test_directory);
+    }
+
+    /**
+     * Test of put_pointer and get_pointer in the one word layout of format 2.
+     */
+    @Test
+    public void test1_One_word() throws IOException {
+        System.out.println("Testing the pointers in one word:");
+        PointerFile file = new PointerFile(test_directory + "/pointers.db", 1000, 2, 10, 12, 16);
+        assertEquals(8, file.get_record_length());
+        round_trip(file, 1000, 1L << 12, 1 << 16);
+        file.close();
+    }
+
+    /**
+     * Test of put_pointer and get_pointer in the two word layout of format 2.
+     */
+    @Test
+    public void test2_Two_words() throws IOException {
+        System.out.println("Testing the pointers in two words:");
+        PointerFile file = new PointerFile(test_directory + "/pointers.db", 1000, 2, 30, 33, 20);
+        assertEquals(16, file.get_record_length());
+        round_trip(file, 1L << 30, 1L << 33, 1 << 20);
+        file.close();
+    }
+
+    /**
+     * Test of put_pointer and put_node_id with a node id larger than the node field.
+     */
+    @Test
+    public void test3_Node_overflow() throws IOException {
+        System.out.println("Testing a node id out of the node field:");
+        PointerFile file = new PointerFile(test_directory + "/pointers.db", 10, 2, 10, 12, 16);
+        long largest = (1L << (64 - 10 - 1 - 16)) - 2;
+        file.put_pointer(largest, 5, true, 9, 0);
+        assertEquals(largest, file.get_node_id(0));
+        try {
+            file.put_pointer(largest + 1, 5, true, 9, 1);
+            fail("The node id was stored wrapped.");
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            file.put_node_id(largest + 1, 0);
+            fail("The node id was stored wrapped.");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(largest, file.get_node_id(0));
+        file.close();
+    }
+
+    /**
+     * Test of migrate_pointers method, of class IndexDatabase, from format 1 to format 2.
+     */
+    @Test
+    public void test4_Migrate_pointers() throws IOException {
+        System.out.println("Testing migrate_pointers:");
+        String genome_path = test_directory + "/genome.fasta", index_path = test_directory + "/index.db";
+        String[] info;
+        int i, id_len, offset_len;
+        long p, kmers_num;
+        Random random = new Random(5);
+        IndexPointer ptr = new IndexPointer();
+        StringBuilder sequence = new StringBuilder();
+        for (i = 0; i < 3000; ++i)
+            sequence.append("ACGT".charAt(random.nextInt(4)));
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(genome_path))) {
+            out.write(">s1\n" + sequence + "\n");
+        }
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genomes.txt"))) {
+            out.write(genome_path + "\n");
+        }
+        SequenceDatabase genomeDb = new SequenceDatabase(test_directory + "/genome.db", test_directory + "/genomes.txt");
+        IndexDatabase indexDb = new IndexDatabase(index_path, test_directory + "/genomes.txt", genomeDb, 11);
+        kmers_num = indexDb.length();
+        indexDb.close();
+    // Write the pointers and the information of the index like an older version
+        info = read_lines(index_path + "/index.info");
+        id_len = Integer.parseInt(info[8].split(":")[1]);
+        offset_len = Integer.parseInt(info[9].split(":")[1]);
+        new File(index_path + "/pointers.db").delete();
+        PointerFile old_file = new PointerFile(index_path + "/pointers.db", kmers_num, 1, id_len, id_len, offset_len);
+        for (p = 0; p < kmers_num; ++p)
+            if (p % 7 == 0)
+                old_file.put_pointer(-1L, -1, false, -1L, p);
+            else
+                old_file.put_pointer(p * 3, (int)(p % 2900), p % 2 == 0, p % 5 == 0 ? -1L : kmers_num - 1 - p, p);
+        old_file.close();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(index_path + "/index.info"))) {
+            for (i = 0; i < 10; ++i)
+                out.write(info[i] + "\n");
+            out.write("POINTER_LENGTH:" + (2 * id_len + offset_len + 1) + "\n");
+        }
+        indexDb = new IndexDatabase(index_path);
+        indexDb.migrate_pointers(genomeDb);
+        indexDb.close();
+        assertEquals("pointer_format:2", read_lines(index_path + "/index.info")[11]);
+        indexDb = new IndexDatabase(index_path);
+        for (p = 0; p < kmers_num; ++p) {
+            indexDb.get_pointer(ptr, p);
+            if (p % 7 == 0) {
+                assertEquals(-1L, ptr.node_id);
+                assertEquals(-1, ptr.offset);
+                assertEquals(-1L, ptr.next_index);
+            } else {
+                assertEquals(p * 3, ptr.node_id);
+                assertEquals(p % 2900, ptr.offset);
+                assertEquals(p % 2 == 0, ptr.canonical);
+                assertEquals(p % 5 == 0 ? -1L : kmers_num - 1 - p, ptr.next_index);
+            }
+        }
+        indexDb.close();
+        genomeDb.close();
+    }
+
+    /**
+     * Writes and reads back pointers with null, small and largest values,
+     * then changes each field on its own.
+     */
+    private void round_trip(PointerFile file, long max_next, long max_node, int max_offset) {
+        long[] nodes = new long[]{-1L, 0, 1, max_node - 2, 12345 % max_node};
+        long[] nexts = new long[]{-1L, 0, max_next - 2, 77 % max_next, -1L};
+        int[] offsets = new int[]{-1, 0, max_offset - 2, 3, 1000 % max_offset};
+        IndexPointer ptr = new IndexPointer();
+        int i;
+        for (i = 0; i < nodes.length; ++i)
+            file.put_pointer(nodes[i], offsets[i], i % 2 == 0, nexts[i], i);
+        for (i = 0; i < nodes.length; ++i) {
+            file.get_pointer(ptr, i);
+            assertEquals(nodes[i], ptr.node_id);
+            assertEquals(offsets[i], ptr.offset);
+            assertEquals(i % 2 == 0, ptr.canonical);
+            assertEquals(nexts[i], ptr.next_index);
+        }
+        assertEquals(-1L, file.get_node_id(nodes.length));  // never written
+        assertEquals(-1L, file.get_next_index(nodes.length));
+        for (i = 0; i < nodes.length; ++i) {
+            file.put_node_id(nodes[(i + 1) % nodes.length], i);
+            file.put_position(offsets[(i + 2) % nodes.length], i);
+            file.put_canonical(i % 2 != 0, i);
+            file.put_next_index(nexts[(i + 3) % nodes.length], i);
+        }
+        for (i = 0; i < nodes.length; ++i) {
+            assertEquals(nodes[(i + 1) % nodes.length], file.get_node_id(i));
+            assertEquals(offsets[(i + 2) % nodes.length], file.get_position(i));
+            assertEquals(i % 2 != 0, file.get_canonical(i));
+            assertEquals(nexts[(i + 3) % nodes.length], file.get_next_index(i));
+        }
+    }
+
+    private static String[] read_lines(String path) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+            return in.lines().toArray(String[]::new);
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
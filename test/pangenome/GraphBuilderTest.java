@@ -0,0 +1,364 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import index.IndexDatabase;
+import index.IndexPointer;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static pantools.Pantools.BATCH_BUILD;
+import static pantools.Pantools.GRAPH_DATABASE_PATH;
+import static pantools.Pantools.INDEX_DATABASE_PATH;
+import static pantools.Pantools.K_SIZE;
+import static pantools.Pantools.PATH_TO_THE_GENOMES_FILE;
+import static pantools.Pantools.PATHS_DATABASE_PATH;
+import static pantools.Pantools.PATH_TO_THE_PANGENOME_DATABASE;
+import static pantools.Pantools.RelTypes;
+import static pantools.Pantools.degenerate_label;
+import static pantools.Pantools.feature_label;
+import static pantools.Pantools.genome_label;
+import static pantools.Pantools.nucleotide_label;
+import static pantools.Pantools.sequence_label;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class GraphBuilderTest {
+    private static final int K = 15;
+    private static final int[] FEATURES = new int[]{0, 100, 305, 650, 702, 950, 1110, 1300, 1480}; // Positions in the first sequence
+    private File test_directory;
+    private int k_size;
+
+    /**
+     * Writes three genomes sharing a sequence, with substitutions, an
+     * insertion, a tandem repeat, reverse complement copies, a run of N and
+     * an ambiguous base, so that nodes are split, extended and entered in
+     * both directions.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(22);
+        String x = random_sequence(random, 1500), y = random_sequence(random, 600), z;
+        k_size = K_SIZE;
+        test_directory = Files.createTempDirectory("builder").toFile();
+        z = substitute(x, new int[]{300, 700, 701, 1200});
+        write_genome(1, x, y.substring(0, 250) + "NNNNN" + y.substring(250, 400) + "R" + y.substring(400));
+        write_genome(2, z.substring(0, 900) + random_sequence(random, 40) + z.substring(900),
+                y.substring(0, 200) + y.substring(100, 200) + y.substring(200, 500), reverse_complement(x.substring(400, 1100)));
+        write_genome(3, reverse_complement(z), x.substring(1000) + y.substring(300) + x.substring(0, 500));
+        write_list("all", 1, 2, 3);
+        write_list("first", 1);
+        write_list("rest", 2, 3);
+    }
+
+    @After
+    public void tearDown() {
+        K_SIZE = k_size;
+        BATCH_BUILD = false;
+        delete(test_directory);
+    }
+
+    /**
+     * Test of write_graph method, comparing the graph written by the batch
+     * inserter with the one written through transactions, up to the ids of
+     * the nodes.
+     */
+    @Test
+    public void test1_Write_graph() throws IOException {
+        System.out.println("Testing write_graph:");
+        List<String> graph = build("default", "all", false);
+        assertEquals(reference("all"), graph);
+        assertEquals(graph, build("batch", "all", true));
+    }
+
+    /**
+     * Test of add_genomes method, with features starting in the nodes which
+     * are split by the new genomes.
+     */
+    @Test
+    public void test2_Add_genomes() throws IOException {
+        System.out.println("Testing add_genomes:");
+        build("added", "first", false);
+        add_features(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH);
+        PATH_TO_THE_GENOMES_FILE = test_directory + "/rest.txt";
+        new GenomeLayer().add_genomes();
+        check_features(PATH_TO_THE_PANGENOME_DATABASE + GRAPH_DATABASE_PATH);
+        check_kmers(PATH_TO_THE_PANGENOME_DATABASE);
+        assertEquals(reference("added"), dump(PATH_TO_THE_PANGENOME_DATABASE));
+    }
+
+    /**
+     * Adds features starting at some positions of the first sequence, with
+     * "starts" edges to the nodes these positions are in.
+     */
+    private static void add_features(String graph_path) {
+        GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(graph_path));
+        int[] address;
+        Relationship rel;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (int position : FEATURES) {
+                Node feature = graphDb.createNode(feature_label);
+                feature.setProperty("id", "f" + position);
+                for (Node node : graphDb.getAllNodes()) {
+                    if (!node.hasLabel(nucleotide_label) || node.hasLabel(degenerate_label))
+                        continue;
+                    address = (int[]) node.getProperty("address");
+                    if (address[0] == 1 && address[1] == 1 && address[2] <= position && position < address[2] + (int) node.getProperty("length")) {
+                        rel = feature.createRelationshipTo(node, RelTypes.starts);
+                        rel.setProperty("offset", position - address[2]);
+                        rel.setProperty("forward", true);
+                        rel.setProperty("genomic_position", position);
+                        break;
+                    }
+                }
+            }
+            tx.success();
+        }
+        graphDb.shutdown();
+    }
+
+    /**
+     * Checks that the "starts" edge of every feature points to a node and an
+     * offset at the position the feature starts at.
+     */
+    private static void check_features(String graph_path) {
+        GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(graph_path));
+        Relationship rel;
+        int[] address;
+        int offset;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (int position : FEATURES) {
+                rel = graphDb.findNode(feature_label, "id", "f" + position).getSingleRelationship(RelTypes.starts, Direction.OUTGOING);
+                address = (int[]) rel.getEndNode().getProperty("address");
+                offset = (int) rel.getProperty("offset");
+                assertEquals(1, address[0]);
+                assertEquals(1, address[1]);
+                assertEquals(position, address[2] + offset);
+                assertTrue(offset < (int) rel.getEndNode().getProperty("length"));
+            }
+            tx.success();
+        }
+        graphDb.shutdown();
+    }
+
+    /**
+     * Checks that the kmers of every node point to the node, at their offset
+     * in the node.
+     */
+    private static void check_kmers(String pangenome_path) {
+        GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(pangenome_path + GRAPH_DATABASE_PATH));
+        IndexDatabase indexDb = new IndexDatabase(pangenome_path + INDEX_DATABASE_PATH);
+        IndexPointer pointer = new IndexPointer();
+        long inx, last = -1L;
+        int i;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node node : (Iterable<Node>) () -> graphDb.findNodes(nucleotide_label)) {
+                if (node.hasLabel(degenerate_label))
+                    continue;
+                for (i = 0, inx = (long) node.getProperty("first_kmer"); inx != -1L; last = inx, inx = indexDb.get_next_index(inx), ++i) {
+                    indexDb.get_pointer(pointer, inx);
+                    assertEquals(node.getId(), pointer.node_id);
+                    assertEquals(i, pointer.offset);
+                }
+                assertEquals((int) node.getProperty("length") - K + 1, i);
+                assertEquals((long) node.getProperty("last_kmer"), last);
+            }
+            tx.success();
+        }
+        indexDb.close();
+        graphDb.shutdown();
+    }
+
+    /**
+     * Builds a pangenome of some genomes.
+     *
+     * @return The lines of the graph
+     */
+    private List<String> build(String name, String genomes, boolean batch) throws IOException {
+        K_SIZE = K;
+        BATCH_BUILD = batch;
+        PATH_TO_THE_PANGENOME_DATABASE = test_directory + "/" + name;
+        PATH_TO_THE_GENOMES_FILE = test_directory + "/" + genomes + ".txt";
+        new GenomeLayer().initialize_pangenome();
+        return dump(PATH_TO_THE_PANGENOME_DATABASE);
+    }
+
+    /**
+     * Gives a line for every node and every edge of a pangenome, in which the
+     * nodes are named after their labels and their address, identifier or
+     * number instead of their ids, sorted. The positions the sequences take
+     * the edges at are given on the edges, in G{genome}S{sequence} arrays, as
+     * the construction through transactions kept them.
+     */
+    private List<String> dump(String pangenome_path) throws IOException {
+        GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(pangenome_path + GRAPH_DATABASE_PATH));
+        List<String> lines = new ArrayList<>();
+        Map<Long, String> names = new TreeMap<>();
+        Map<String, Map<String, List<Integer>>> occurrences = new TreeMap<>();
+        String edge;
+        try (Transaction tx = graphDb.beginTx()) {
+            for (Node node : graphDb.getAllNodes())
+                names.put(node.getId(), name(node));
+            read_paths(graphDb, pangenome_path + PATHS_DATABASE_PATH, occurrences);
+            for (Node node : graphDb.getAllNodes())
+                lines.add("N " + names.get(node.getId()) + " " + properties(node.getAllProperties(), names));
+            for (Relationship r : graphDb.getAllRelationships()) {
+                Map<String, Object> properties = r.getAllProperties();
+                edge = r.getStartNode().getId() + " " + r.getEndNode().getId() + " " + r.getType().name();
+                if (occurrences.containsKey(edge))
+                    properties.putAll(occurrences.remove(edge));
+                lines.add("R " + names.get(r.getStartNode().getId()) + " " + names.get(r.getEndNode().getId()) + " " + r.getType().name() + " " + properties(properties, names));
+            }
+            tx.success();
+        }
+        graphDb.shutdown();
+        assertTrue(occurrences.isEmpty());
+        Collections.sort(lines);
+        return lines;
+    }
+
+    /**
+     * Collects the positions every sequence takes the edges at from the path
+     * index, by the ids of the nodes of the edges and the type of the edges.
+     */
+    private static void read_paths(GraphDatabaseService graphDb, String paths_path, Map<String, Map<String, List<Integer>>> occurrences) throws IOException {
+        PathIndex paths = new PathIndex(paths_path);
+        PathIndex.Cursor cursor = paths.get_cursor();
+        long node;
+        boolean forward;
+        String edge;
+        for (Node genome : (Iterable<Node>) () -> graphDb.findNodes(genome_label))
+            for (int g = (int) genome.getProperty("number"), s = 1; s <= (int) genome.getProperty("num_sequences"); ++s) {
+                node = graphDb.findNode(sequence_label, "identifier", g + "_" + s).getId();
+                forward = true;
+                for (boolean found = cursor.seek(g, s, 0); found; found = cursor.next()) {
+                    edge = node + " " + cursor.get_node() + " " + (forward ? "F" : "R") + (cursor.is_forward() ? "F" : "R");
+                    occurrences.computeIfAbsent(edge, e -> new TreeMap<>()).computeIfAbsent("G" + g + "S" + s, o -> new ArrayList<>()).add(cursor.get_position());
+                    node = cursor.get_node();
+                    forward = cursor.is_forward();
+                }
+            }
+        paths.close();
+    }
+
+    /**
+     * Gives the lines of a graph the construction through transactions made.
+     */
+    private List<String> reference(String name) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(GraphBuilderTest.class.getResourceAsStream("graph_" + name + ".txt")))) {
+            for (String line = in.readLine(); line != null; line = in.readLine())
+                lines.add(line);
+        }
+        return lines;
+    }
+
+    private static String name(Node node) {
+        TreeSet<String> labels = new TreeSet<>();
+        for (Label label : node.getLabels())
+            labels.add(label.name());
+        if (node.hasProperty("address") && node.hasProperty("length"))
+            return labels + Arrays.toString((int[]) node.getProperty("address")) + "/" + node.getProperty("length");
+        for (String key : new String[]{"identifier", "number", "id"})
+            if (node.hasProperty(key))
+                return labels + String.valueOf(node.getProperty(key));
+        return labels.toString();
+    }
+
+    /**
+     * Gives the properties of a node or an edge but the date, with the ids of
+     * the nodes in them replaced by the names of the nodes and the paths of
+     * the files relative to the test directory.
+     */
+    private String properties(Map<String, Object> all_properties, Map<Long, String> names) {
+        Map<String, String> properties = new TreeMap<>();
+        for (Map.Entry<String, Object> e : all_properties.entrySet()) {
+            Object value = e.getValue();
+            if (e.getKey().equals("date"))
+                continue;
+            if (e.getKey().equals("anchor_nodes")) {
+                List<String> anchors = new ArrayList<>();
+                for (long id : (long[]) value)
+                    anchors.add(names.get(id));
+                properties.put(e.getKey(), anchors.toString());
+            } else if (value instanceof int[])
+                properties.put(e.getKey(), Arrays.toString((int[]) value));
+            else if (value instanceof long[])
+                properties.put(e.getKey(), Arrays.toString((long[]) value));
+            else
+                properties.put(e.getKey(), String.valueOf(value).replace(test_directory.getPath() + "/", ""));
+        }
+        return properties.toString();
+    }
+
+    private void write_genome(int g, String... sequences) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genome" + g + ".fasta"))) {
+            for (int s = 0; s < sequences.length; ++s)
+                out.write(">g" + g + "s" + s + "\n" + sequences[s] + "\n");
+        }
+    }
+
+    private void write_list(String name, int... genomes) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/" + name + ".txt"))) {
+            for (int g : genomes)
+                out.write(test_directory + "/genome" + g + ".fasta\n");
+        }
+    }
+
+    private static String random_sequence(Random random, int length) {
+        StringBuilder seq = new StringBuilder();
+        for (int i = 0; i < length; ++i)
+            seq.append("ACGT".charAt(random.nextInt(4)));
+        return seq.toString();
+    }
+
+    private static String substitute(String s, int[] positions) {
+        StringBuilder seq = new StringBuilder(s);
+        for (int p : positions)
+            seq.setCharAt(p, "CGTA".charAt("ACGT".indexOf(s.charAt(p))));
+        return seq.toString();
+    }
+
+    private static String reverse_complement(String s) {
+        StringBuilder rev = new StringBuilder();
+        for (int i = s.length() - 1; i >= 0; --i)
+            rev.append("TGCA".charAt("ACGT".indexOf(s.charAt(i))));
+        return rev.toString();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import index.IndexDatabase;
+import index.kmer;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import sequence.SequenceDatabase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pantools.Pantools.GRAPH_DATABASE_PATH;
+import static pantools.Pantools.K_SIZE;
+import static pantools.Pantools.PATH_TO_THE_GENOMES_FILE;
+import static pantools.Pantools.PATH_TO_THE_PANGENOME_DATABASE;
+import static pantools.Pantools.UNITIG_BUILD;
+import static pantools.Pantools.genomeDb;
+import static pantools.Pantools.indexDb;
+import static pantools.Pantools.nucleotide_label;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class KmerDegreesTest {
+    private static final int K = 15;
+    private static final char END = '$';
+    private File test_directory;
+    private String[][] genomes;
+    private int[] junctions;    // The ends of the pairs of kmers of the first sequence which are broken by the others
+    private int k_size;
+
+    /**
+     * Writes a genome with a sequence, a copy of its beginning which branches
+     * off, and a sequence with the reverse complement of a part of it, and a
+     * genome with a copy of it interrupted by a run of N.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(24);
+        String x = random_sequence(random, 1000);
+        int g, s;
+        k_size = K_SIZE;
+        test_directory = Files.createTempDirectory("degrees").toFile();
+        genomes = new String[3][];
+    // The bases after the branch and around the repeat differ from those of the first sequence
+        genomes[1] = new String[]{x, x.substring(0, 400) + other_base(x.charAt(400)) + random_sequence(random, 300),
+                random_sequence(random, 200) + other_base(complement(x.charAt(800))) + reverse_complement(x.substring(600, 800))
+                + other_base(complement(x.charAt(599))) + random_sequence(random, 200)};
+        genomes[2] = new String[]{x.substring(0, 300) + "NNNNNNNNNN" + x.substring(310)};
+        junctions = new int[]{400, 600 + K - 1, 800, 300, 310 + K - 1};
+        try (BufferedWriter list = new BufferedWriter(new FileWriter(test_directory + "/genomes.txt"))) {
+            for (g = 1; g <= 2; ++g) {
+                try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genome" + g + ".fasta"))) {
+                    for (s = 0; s < genomes[g].length; ++s)
+                        out.write(">s" + s + "\n" + genomes[g][s] + "\n");
+                }
+                list.write(test_directory + "/genome" + g + ".fasta\n");
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        K_SIZE = k_size;
+        UNITIG_BUILD = false;
+        delete(test_directory);
+    }
+
+    /**
+     * Test of mark and unique_path methods, and of the paths checked by the
+     * kmer finder, at every pair of kmers following each other in the
+     * sequences.
+     */
+    @Test
+    public void test1_Unique_path() throws IOException {
+        System.out.println("Testing unique_path:");
+        Map<String, Set<Character>> left = new HashMap<>(), right = new HashMap<>();
+        kmer curr_kmer;
+        String seq;
+        long rank, prev_rank;
+        boolean canonical, prev_canonical = false, expected;
+        int g, s, p, unique = 0, broken = 0;
+        genomeDb = new SequenceDatabase(test_directory + "/genome.db", test_directory + "/genomes.txt");
+        indexDb = new IndexDatabase(test_directory + "/index.db", test_directory + "/genomes.txt", genomeDb, K);
+        K_SIZE = indexDb.get_K();
+        collect_extensions(left, right);
+        KmerDegrees degrees = new KmerDegrees(test_directory + "/degrees", indexDb.length());
+        degrees.mark(1, 2, 2);
+        KmerFinder finder = new KmerFinder(1, 2, 2, degrees);
+        curr_kmer = new kmer(K, indexDb.get_pre_len());
+        for (g = 1; g <= 2; ++g)
+            for (s = 0; s < genomes[g].length; ++s) {
+                seq = genomes[g][s];
+                for (p = K; p < seq.length(); ++p) {
+                    if (seq.substring(p - K, p + 1).indexOf('N') != -1)
+                        continue;
+                    curr_kmer.reset();
+                    for (char c: seq.substring(p - K, p).toCharArray())
+                        curr_kmer.next_kmer("ACGT".indexOf(c));
+                    prev_rank = indexDb.find(curr_kmer);
+                    prev_canonical = curr_kmer.get_canonical();
+                    curr_kmer.next_kmer("ACGT".indexOf(seq.charAt(p)));
+                    rank = indexDb.find(curr_kmer);
+                    canonical = curr_kmer.get_canonical();
+                    expected = side(seq.substring(p - K, p), true, left, right).size() == 1 &&
+                            side(seq.substring(p - K + 1, p + 1), false, left, right).size() == 1;
+                    assertEquals(expected, degrees.unique_path(prev_rank, prev_canonical, rank, canonical));
+                    assertEquals(expected, finder.unique_path(g, s + 1, p));
+                    if (expected)
+                        ++unique;
+                    else
+                        ++broken;
+                    if (g == 1 && s == 0)
+                        for (int j: junctions)
+                            if (p == j)
+                                assertFalse(expected);
+                }
+            }
+        assertTrue(unique > 0);
+        assertTrue(broken > 0);
+        finder.close();
+        degrees.close();
+        indexDb.close();
+        genomeDb.close();
+    }
+
+    /**
+     * Test of the construction with the kmer degrees, comparing its nodes
+     * with those of the construction which splits the nodes.
+     */
+    @Test
+    public void test2_Unitig_build() {
+        System.out.println("Testing the unitig build:");
+        PATH_TO_THE_GENOMES_FILE = test_directory + "/genomes.txt";
+        K_SIZE = K;
+        UNITIG_BUILD = false;
+        PATH_TO_THE_PANGENOME_DATABASE = test_directory + "/split";
+        new GenomeLayer().initialize_pangenome();
+        K_SIZE = K;
+        UNITIG_BUILD = true;
+        PATH_TO_THE_PANGENOME_DATABASE = test_directory + "/unitig";
+        new GenomeLayer().initialize_pangenome();
+        List<String> split = node_sequences(test_directory + "/split" + GRAPH_DATABASE_PATH);
+        assertTrue(split.size() > 5);
+        assertEquals(split, node_sequences(test_directory + "/unitig" + GRAPH_DATABASE_PATH));
+    }
+
+    /**
+     * Collects the bases every canonical kmer of the genomes is extended with
+     * on its left and on its right side, or END at the sides a sequence or a
+     * run of N starts or ends.
+     */
+    private void collect_extensions(Map<String, Set<Character>> left, Map<String, Set<Character>> right) {
+        String seq, kmer, canonical;
+        char before, after;
+        int g, s, p;
+        for (g = 1; g <= 2; ++g)
+            for (s = 0; s < genomes[g].length; ++s) {
+                seq = genomes[g][s];
+                for (p = 0; p + K <= seq.length(); ++p) {
+                    kmer = seq.substring(p, p + K);
+                    if (kmer.indexOf('N') != -1)
+                        continue;
+                    before = p > 0 && seq.charAt(p - 1) != 'N' ? seq.charAt(p - 1) : END;
+                    after = p + K < seq.length() && seq.charAt(p + K) != 'N' ? seq.charAt(p + K) : END;
+                    canonical = canonical(kmer);
+                    left.computeIfAbsent(canonical, c -> new HashSet<>()).add(kmer.equals(canonical) ? before : complement(after));
+                    right.computeIfAbsent(canonical, c -> new HashSet<>()).add(kmer.equals(canonical) ? after : complement(before));
+                }
+            }
+    }
+
+    /**
+     * Gives the extensions of a side of a kmer, with END counted as two.
+     */
+    private Set<Character> side(String kmer, boolean to_right, Map<String, Set<Character>> left, Map<String, Set<Character>> right) {
+        Set<Character> ext = (kmer.equals(canonical(kmer)) == to_right ? right : left).get(canonical(kmer));
+        if (ext.contains(END)) {
+            ext = new HashSet<>(ext);
+            ext.add('N');
+        }
+        return ext;
+    }
+
+    /**
+     * Gives the sorted sequences of the nucleotide nodes of a graph, each in
+     * its canonical orientation.
+     */
+    private List<String> node_sequences(String graph_path) {
+        GraphDatabaseService graphDb = new GraphDatabaseFactory().newEmbeddedDatabase(new File(graph_path));
+        List<String> sequences = new ArrayList<>();
+        int[] address;
+        try (Transaction tx = graphDb.beginTx()) {
+            ResourceIterator<Node> nodes = graphDb.findNodes(nucleotide_label);
+            while (nodes.hasNext()) {
+                Node node = nodes.next();
+                address = (int[]) node.getProperty("address");
+                sequences.add(canonical(genomes[address[0]][address[1] - 1].substring(address[2], address[2] + (int) node.getProperty("length"))));
+            }
+            tx.success();
+        }
+        graphDb.shutdown();
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    private static String random_sequence(Random random, int length) {
+        StringBuilder seq = new StringBuilder();
+        for (int i = 0; i < length; ++i)
+            seq.append("ACGT".charAt(random.nextInt(4)));
+        return seq.toString();
+    }
+
+    private static char other_base(char c) {
+        return c == 'A' ? 'C' : 'A';
+    }
+
+    private static char complement(char c) {
+        return c == END ? END : "TGCAN".charAt("ACGTN".indexOf(c));
+    }
+
+    private static String reverse_complement(String s) {
+        StringBuilder rev = new StringBuilder();
+        for (int i = s.length() - 1; i >= 0; --i)
+            rev.append(complement(s.charAt(i)));
+        return rev.toString();
+    }
+
+    private static String canonical(String s) {
+        String rev = reverse_complement(s);
+        return s.compareTo(rev) <= 0 ? s : rev;
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
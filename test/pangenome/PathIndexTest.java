@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pangenome;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static pangenome.PathIndex.SAMPLE_STEPS;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class PathIndexTest {
+    private static final int[] NUM_SEQUENCES = new int[]{0, 3, 2};
+    private static final int[][] NUM_STEPS = new int[][]{{}, {1, 0, 3 * SAMPLE_STEPS + 5}, {SAMPLE_STEPS, SAMPLE_STEPS + 1}};
+    private File test_directory;
+    private long[][][] nodes;
+    private boolean[][][] sides;
+    private int[][][] positions;
+    private PathIndex index;
+
+    /**
+     * Writes paths of one step, of no step, of exactly one sample and of
+     * several samples, with nodes far apart in both directions and positions
+     * with short and long gaps, so that the numbers take one to many bytes.
+     * The sequences are written out of their order.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(25);
+        int g, s, i, n;
+        test_directory = Files.createTempDirectory("paths").toFile();
+        nodes = new long[NUM_SEQUENCES.length][][];
+        sides = new boolean[NUM_SEQUENCES.length][][];
+        positions = new int[NUM_SEQUENCES.length][][];
+        for (g = 1; g < NUM_SEQUENCES.length; ++g) {
+            nodes[g] = new long[NUM_SEQUENCES[g] + 1][];
+            sides[g] = new boolean[NUM_SEQUENCES[g] + 1][];
+            positions[g] = new int[NUM_SEQUENCES[g] + 1][];
+            for (s = 1; s <= NUM_SEQUENCES[g]; ++s) {
+                n = NUM_STEPS[g][s - 1];
+                nodes[g][s] = new long[n];
+                sides[g][s] = new boolean[n];
+                positions[g][s] = new int[n];
+                for (i = 0; i < n; ++i) {
+                    switch (random.nextInt(4)) {
+                        case 0: nodes[g][s][i] = random.nextInt(100); break;
+                        case 1: nodes[g][s][i] = (1L << 40) - random.nextInt(100); break;
+                        default: nodes[g][s][i] = (random.nextLong() >>> 1) % (1L << 40);
+                    }
+                    sides[g][s][i] = random.nextBoolean();
+                    if (i > 0)
+                        positions[g][s][i] = positions[g][s][i - 1] + 1 + (random.nextInt(8) == 0 ? random.nextInt(1 << 24) : random.nextInt(100));
+                }
+            }
+        }
+        PathIndex.Writer writer = new PathIndex.Writer(test_directory.getPath(), NUM_SEQUENCES.length - 1, NUM_SEQUENCES);
+        for (g = NUM_SEQUENCES.length - 1; g >= 1; --g)
+            for (s = NUM_SEQUENCES[g]; s >= 1; --s) {
+                writer.start_path(g, s);
+                for (i = 0; i < nodes[g][s].length; ++i)
+                    writer.add_step(nodes[g][s][i], sides[g][s][i], positions[g][s][i]);
+            }
+        writer.close();
+        assertTrue(PathIndex.exists(test_directory.getPath()));
+        index = new PathIndex(test_directory.getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+        delete(test_directory);
+    }
+
+    /**
+     * Test of num_steps and next methods, walking every path from its start.
+     */
+    @Test
+    public void test1_Next() {
+        System.out.println("Testing next:");
+        PathIndex.Cursor cursor = index.get_cursor();
+        int g, s, i;
+        for (g = 1; g < NUM_SEQUENCES.length; ++g)
+            for (s = 1; s <= NUM_SEQUENCES[g]; ++s) {
+                assertEquals(nodes[g][s].length, index.num_steps(g, s));
+                if (nodes[g][s].length == 0) {
+                    assertFalse(cursor.seek(g, s, 0));
+                    continue;
+                }
+                assertTrue(cursor.seek(g, s, 0));
+                for (i = 0; i < nodes[g][s].length; ++i) {
+                    if (i > 0)
+                        assertTrue(cursor.next());
+                    assert_step(cursor, g, s, i);
+                }
+                assertFalse(cursor.next());
+            }
+    }
+
+    /**
+     * Test of seek method, at the positions around the samples and between
+     * the steps, and of next method after it.
+     */
+    @Test
+    public void test2_Seek() {
+        System.out.println("Testing seek:");
+        PathIndex.Cursor cursor = index.get_cursor();
+        int g, s, i, n, step, pos;
+        for (g = 1; g < NUM_SEQUENCES.length; ++g)
+            for (s = 1; s <= NUM_SEQUENCES[g]; ++s) {
+                n = nodes[g][s].length;
+                for (i = 0; i < n; ++i) {
+                    if (i % SAMPLE_STEPS > 1 && i % SAMPLE_STEPS < SAMPLE_STEPS - 2 && i != n - 1)
+                        continue;
+                    for (pos = positions[g][s][i] - 1; pos <= positions[g][s][i] + 1; ++pos) {
+                        if (pos < 0)
+                            continue;
+                        assertTrue(cursor.seek(g, s, pos));
+                        step = pos < positions[g][s][i] ? i - 1 : i;
+                        if (pos > positions[g][s][i] && i + 1 < n && positions[g][s][i + 1] <= pos)
+                            step = i + 1;
+                        assert_step(cursor, g, s, step);
+                        if (step + 1 < n) {
+                            assertTrue(cursor.next());
+                            assert_step(cursor, g, s, step + 1);
+                        } else
+                            assertFalse(cursor.next());
+                    }
+                }
+            // Beyond the last step
+                if (n > 0) {
+                    assertTrue(cursor.seek(g, s, Integer.MAX_VALUE));
+                    assert_step(cursor, g, s, n - 1);
+                }
+            }
+    }
+
+    private void assert_step(PathIndex.Cursor cursor, int g, int s, int i) {
+        assertEquals(nodes[g][s][i], cursor.get_node());
+        assertEquals(sides[g][s][i], cursor.is_forward());
+        assertEquals(positions[g][s][i], cursor.get_position());
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package sequence;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+import static org.junit.Assert.assertEquals;
+import static pantools.Pantools.TWO_BIT_GENOMES;
+
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SequenceDatabaseTest {
+    private File test_directory;
+    private String[] sequences;
+
+    /**
+     * Writes sequences with runs of degenerate bases at their ends, next to
+     * each other and far apart.
+     */
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(15);
+        StringBuilder seq = new StringBuilder();
+        int s, i;
+        test_directory = Files.createTempDirectory("sequences").toFile();
+        sequences = new String[4];
+        for (s = 0; s < sequences.length; ++s) {
+            seq.setLength(0);
+            for (i = 0; i < 200000; ++i)
+                seq.append(random.nextInt(50) == 0 ? "NRYKM".charAt(random.nextInt(5)) : "ACGT".charAt(random.nextInt(4)));
+            sequences[s] = seq.toString();
+        }
+        sequences[1] = "NNNRRYACGT" + sequences[1] + "ACNNNN";
+        sequences[2] = sequences[2].replace('N', 'A').replace('R', 'C').replace('Y', 'G').replace('K', 'T').replace('M', 'A');
+        sequences[3] = "NNNN";
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genome.fasta"))) {
+            for (s = 0; s < sequences.length; ++s)
+                out.write(">s" + s + "\n" + sequences[s] + "\n");
+        }
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(test_directory + "/genomes.txt"))) {
+            out.write(test_directory + "/genome.fasta\n");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        TWO_BIT_GENOMES = false;
+        delete(test_directory);
+    }
+
+    /**
+     * Test of get_code method of class Cursor in the 4-bit format.
+     */
+    @Test
+    public void test1_Cursor_four_bit() {
+        System.out.println("Testing the cursor of a 4-bit database:");
+        TWO_BIT_GENOMES = false;
+        check_cursor();
+    }
+
+    /**
+     * Test of get_code method of class Cursor in the 2-bit format, with the
+     * ambiguity runs.
+     */
+    @Test
+    public void test2_Cursor_two_bit() {
+        System.out.println("Testing the cursor of a 2-bit database:");
+        TWO_BIT_GENOMES = true;
+        check_cursor();
+    }
+
+    /**
+     * Reads the sequences through a cursor forward, comparing the codes with
+     * the bases, then backward, at random and alternating between two
+     * sequences, comparing them with the codes of get_code.
+     */
+    private void check_cursor() {
+        SequenceDatabase genomeDb = new SequenceDatabase(test_directory + "/genome.db", test_directory + "/genomes.txt");
+        SequenceDatabase.Cursor cursor = genomeDb.get_cursor();
+        Random random = new Random(16);
+        int s, p, i, len;
+        for (s = 1; s <= sequences.length; ++s) {
+            len = sequences[s - 1].length();
+            assertEquals(len, cursor.get_length(1, s));
+            for (p = 0; p < len; ++p)
+                assertEquals(sequences[s - 1].charAt(p), genomeDb.sym[cursor.get_code(1, s, p)]);
+            for (p = len - 1; p >= 0; --p)
+                assertEquals(genomeDb.get_code(1, s, p), cursor.get_code(1, s, p));
+            for (i = 0; i < 10000; ++i) {
+                p = random.nextInt(len);
+                assertEquals(genomeDb.get_code(1, s, p), cursor.get_code(1, s, p));
+            }
+        }
+        for (p = 0; p < 10000; ++p) {
+            assertEquals(genomeDb.get_code(1, 2, p), cursor.get_code(1, 2, p));
+            assertEquals(genomeDb.get_code(1, 3, 199999 - p), cursor.get_code(1, 3, 199999 - p));
+        }
+        genomeDb.close();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null)
+            for (File c: children)
+                delete(c);
+        f.delete();
+    }
+}